@@ -35,7 +35,9 @@ public class Bamformatics {
         System.out.println("\nAuthor: Tomasz Konopka (bamformatics@gmail.com)\n");
         System.out.println("Usage: java -jar Bamformatics.jar TYPE [options]\n");
         System.out.println("   annotatevariants   - add ID codes to a vcf file");
+        System.out.println("   callsomatic        - call somatic variants in a tumor/normal pair");
         System.out.println("   callvariants       - produce variant calls");
+        System.out.println("   changeevents       - find somatic and other change events in a variantdetails table");
         System.out.println("   defaults           - set default parameters");
         System.out.println("   demultiplex        - demultiplex a bam using barcodes");
         System.out.println("   errors             - estimate substitution error rates");
@@ -43,8 +45,10 @@ public class Bamformatics {
         System.out.println("   find               - look for indels and other properties in bam");
         System.out.println("   gui                - graphical user interface");
         System.out.println("   noquals            - remove base qualities");
+        System.out.println("   rescore            - call variants again from saved evidence");
         System.out.println("   split              - split a bam file into two using ids");
         System.out.println("   stats              - collect various statistics about alignment file");
+        System.out.println("   trackquery         - read values of binary tracks in regions");
         System.out.println("   tracks             - compute genotype-able coverage (and other) tracks");
         System.out.println("   variantdetails     - create custom tables from several vcfs and bams");
         System.out.println("   version            - display the current version");
@@ -85,12 +89,20 @@ public class Bamformatics {
         // (could be a switch statement here if I switch to Java 7...)
         if (tooltype.equals("tracks")) {
             new bamfo.tracks.BamfoTracks(newargs, System.out).run();
+        } else if (tooltype.equals("trackquery")) {
+            new bamfo.tracks.BamfoTrackQuery(newargs, System.out).run();
         } else if (tooltype.equals("callvariants")) {
             new bamfo.call.BamfoVcf(newargs, System.out).run();
+        } else if (tooltype.equals("callsomatic")) {
+            new bamfo.call.BamfoSomatic(newargs, System.out).run();
+        } else if (tooltype.equals("rescore")) {
+            new bamfo.call.BamfoRescore(newargs, System.out).run();
         } else if (tooltype.equals("filtervariants")) {
             new bamfo.call.BamfoVcfFilter(newargs).run();
         } else if (tooltype.equals("multivcf") || tooltype.equals("variantdetails")) {
             new bamfo.call.BamfoVcfDetail(newargs).run();
+        } else if (tooltype.equals("changeevents")) {
+            new bamfo.call.BamfoChangeEvents(newargs, System.out).run();
         } else if (tooltype.equals("annotatevariants")) {
             new bamfo.call.BamfoAnnotateVariants(newargs).run();
         } else if (tooltype.equals("errors")) {
@@ -0,0 +1,230 @@
+/*
+ * Copyright 2012-2014 Tomasz Konopka.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bamfo.call;
+
+import bamfo.utils.BamfoCommon;
+import bamfo.utils.ChromosomeSequence;
+import java.util.Arrays;
+
+/**
+ * Remembers anchors of indels computed on the reference sequence. All reads
+ * that carry the same indel at the same position have the same reference
+ * anchor, so at a well-covered indel the left-shift along the genome only
+ * needs to be computed once.
+ *
+ * Entries are keyed by (indelstart, indel sequence) and hold the anchor
+ * position and the reference sequence from the anchor to indelstart. The
+ * table uses open addressing with linear probing. Entries before the window
+ * start are dropped when the table is rebuilt; if the table is still too full
+ * after that, it is emptied, so its size stays bounded.
+ *
+ * @author tkonopka
+ */
+class AnchorCache {
+
+    // keys (a null indel marks an empty slot)
+    private final int[] starts;
+    private final byte[][] indels;
+    // values
+    private final int[] anchors;
+    private final byte[][] sequences;
+    private final int mask;
+    private int used = 0;
+    private int windowstart = 1;
+    private ChromosomeSequence chrsequence = null;
+    // reference sequence for the anchor of the last query
+    private byte[] lastsequence;
+    private long hits = 0, misses = 0;
+
+    /**
+     *
+     * @param capacity
+     *
+     * number of slots (will be rounded up to a power of two). The table holds
+     * at most half as many entries.
+     */
+    AnchorCache(int capacity) {
+        int size = 64;
+        while (size < capacity) {
+            size *= 2;
+        }
+        starts = new int[size];
+        indels = new byte[size][];
+        anchors = new int[size];
+        sequences = new byte[size][];
+        mask = size - 1;
+    }
+
+    /**
+     * Entries for indels before the new start become stale.
+     *
+     * @param windowstart
+     */
+    void setWindowStart(int windowstart) {
+        this.windowstart = windowstart;
+    }
+
+    private void clear() {
+        Arrays.fill(indels, null);
+        Arrays.fill(sequences, null);
+        used = 0;
+    }
+
+    private int slot(int indelstart, byte[] indel, int offset, int len) {
+        int h = indelstart * 0x9E3779B9;
+        for (int i = 0; i < len; i++) {
+            h = 31 * h + indel[offset + i];
+        }
+        h ^= h >>> 16;
+        return h & mask;
+    }
+
+    private static boolean sameIndel(byte[] stored, byte[] indel, int offset, int len) {
+        if (stored.length != len) {
+            return false;
+        }
+        for (int i = 0; i < len; i++) {
+            if (stored[i] != indel[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Computes, or looks up, the anchor of an indel on the reference, as
+     * BamfoCommon.getAnchorPosition(chrsequence, indelstart, indel, offset,
+     * len).
+     *
+     * @param chrsequence
+     * @param indelstart
+     * @param indel
+     * @param offset
+     * @param len
+     * @return
+     *
+     * the 1-based anchor position. The reference sequence from the anchor to
+     * indelstart is then available through getAnchorSequence().
+     */
+    int getAnchorPosition(ChromosomeSequence chrsequence, int indelstart,
+            byte[] indel, int offset, int len) {
+
+        // entries from another chromosome are of no use
+        if (chrsequence != this.chrsequence) {
+            clear();
+            this.chrsequence = chrsequence;
+        }
+
+        int i = slot(indelstart, indel, offset, len);
+        while (indels[i] != null) {
+            if (starts[i] == indelstart && sameIndel(indels[i], indel, offset, len)) {
+                hits++;
+                lastsequence = sequences[i];
+                return anchors[i];
+            }
+            i = (i + 1) & mask;
+        }
+
+        misses++;
+        int anchorpos = BamfoCommon.getAnchorPosition(chrsequence, indelstart, indel, offset, len);
+        lastsequence = chrsequence.getSequenceBase1(Math.max(1, anchorpos), Math.max(1, indelstart));
+
+        if (2 * (used + 1) > starts.length) {
+            rebuild();
+            i = slot(indelstart, indel, offset, len);
+            while (indels[i] != null) {
+                i = (i + 1) & mask;
+            }
+        }
+        starts[i] = indelstart;
+        indels[i] = Arrays.copyOfRange(indel, offset, offset + len);
+        anchors[i] = anchorpos;
+        sequences[i] = lastsequence;
+        used++;
+        return anchorpos;
+    }
+
+    /**
+     *
+     * @return
+     *
+     * the reference sequence from the anchor to indelstart (both included)
+     * for the last query. The array is shared and should not be modified.
+     */
+    byte[] getAnchorSequence() {
+        return lastsequence;
+    }
+
+    /**
+     * Drops stale entries. If the live entries would still fill more than a
+     * quarter of the table, all entries are dropped.
+     */
+    private void rebuild() {
+        int live = 0;
+        for (int i = 0; i < starts.length; i++) {
+            if (indels[i] != null && starts[i] >= windowstart) {
+                live++;
+            }
+        }
+        if (4 * live > starts.length) {
+            clear();
+            return;
+        }
+
+        int[] oldstarts = starts.clone();
+        byte[][] oldindels = indels.clone();
+        int[] oldanchors = anchors.clone();
+        byte[][] oldsequences = sequences.clone();
+        clear();
+        for (int i = 0; i < oldstarts.length; i++) {
+            if (oldindels[i] != null && oldstarts[i] >= windowstart) {
+                byte[] indel = oldindels[i];
+                int j = slot(oldstarts[i], indel, 0, indel.length);
+                while (indels[j] != null) {
+                    j = (j + 1) & mask;
+                }
+                starts[j] = oldstarts[i];
+                indels[j] = indel;
+                anchors[j] = oldanchors[i];
+                sequences[j] = oldsequences[i];
+                used++;
+            }
+        }
+    }
+
+    /**
+     * Adds the hit and miss counts of another cache to this one (used to
+     * collect the counts from worker threads).
+     *
+     * @param other
+     */
+    synchronized void addCounts(AnchorCache other) {
+        hits += other.hits;
+        misses += other.misses;
+    }
+
+    /**
+     *
+     * @return
+     *
+     * a one-line summary of the number of lookups and the hit rate
+     */
+    synchronized String getMetrics() {
+        long total = hits + misses;
+        double rate = total == 0 ? 0.0 : 100.0 * hits / total;
+        return String.format("Indel anchor cache: %d lookups, hit rate %.1f%%", total, rate);
+    }
+}
@@ -0,0 +1,314 @@
+/*
+ * Copyright 2012-2014 Tomasz Konopka.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bamfo.call;
+
+import bamfo.utils.BamfoTool;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import joptsimple.OptionParser;
+import joptsimple.OptionSet;
+import jsequtils.file.OutputStreamMaker;
+
+/**
+ * Finds change events (e.g. somatic mutations) in a table created by
+ * variantdetails. This is a streaming version of the R function
+ * getVarChangeEvents: the table is read one line at a time and any number of
+ * sample pairs are scored on each line, so memory use does not depend on the
+ * size of the table.
+ *
+ * @author tkonopka
+ */
+public class BamfoChangeEvents extends BamfoTool implements Runnable {
+
+    // columns copied from the input table for each event
+    private final static String[] basecols = {"chr", "position", "dbSNP", "refBase", "altBase"};
+    // columns read for each sample
+    private final static String[] samplecols = {".cov", ".cov.low", ".ref", ".ref.low", ".alt", ".alt.low", ".filter"};
+    private String input = "stdin";
+    private String output = "stdout";
+    private boolean verbose = false;
+    private final ArrayList<String> pairsA = new ArrayList<>(4);
+    private final ArrayList<String> pairsB = new ArrayList<>(4);
+    private final ArrayList<byte[]> okfilters = new ArrayList<>(4);
+    private final SomaticFilter filter = new SomaticFilter();
+    private final DecimalFormat scoreformat = new DecimalFormat("0.0000");
+
+    private void printChangeEventsHelp() {
+        outputStream.println("Bamformatics changeevents: a tool for finding change events in a variantdetails table");
+        outputStream.println();
+        outputStream.println("General options:");
+        outputStream.println("  --input <File>           - table from variantdetails (plain or gz)");
+        outputStream.println("  --output <File>          - output table");
+        outputStream.println("  --pair <String>          - labels of samples A and B, separated by a comma");
+        outputStream.println("                             (can be repeated)");
+        outputStream.println("  --okfilters <String>     - filter codes accepted in sample B, separated by commas");
+        outputStream.println("                             [default PASS]");
+        outputStream.println("  --verbose                - print progress information");
+        outputStream.println();
+        outputStream.println(filter.printHelp());
+    }
+
+    private boolean parseChangeEventsParameters(String[] args) {
+
+        OptionParser prs = new OptionParser();
+
+        prs.accepts("input").withRequiredArg().ofType(String.class);
+        prs.accepts("output").withRequiredArg().ofType(String.class);
+        prs.accepts("pair").withRequiredArg().ofType(String.class);
+        prs.accepts("okfilters").withRequiredArg().ofType(String.class);
+        prs.accepts("verbose");
+        filter.addOptionsToOptionParser(prs);
+
+        OptionSet options;
+        try {
+            options = prs.parse(args);
+        } catch (Exception ex) {
+            outputStream.println("Error parsing command line parameters\n" + ex.getMessage());
+            return false;
+        }
+
+        verbose = options.has("verbose");
+
+        if (options.has("input")) {
+            input = (String) options.valueOf("input");
+            if (!new File(input).canRead()) {
+                outputStream.println("input file is not readable: " + input);
+                return false;
+            }
+        }
+        if (options.has("output")) {
+            output = (String) options.valueOf("output");
+        } else {
+            verbose = false;
+        }
+
+        if (options.has("pair")) {
+            List pairlist = options.valuesOf("pair");
+            for (int i = 0; i < pairlist.size(); i++) {
+                String[] pair = ((String) pairlist.get(i)).split(",");
+                if (pair.length != 2) {
+                    outputStream.println("invalid pair: " + pairlist.get(i));
+                    return false;
+                }
+                pairsA.add(pair[0]);
+                pairsB.add(pair[1]);
+            }
+        } else {
+            outputStream.println("missing parameter pair");
+            return false;
+        }
+
+        String filters = "PASS";
+        if (options.has("okfilters")) {
+            filters = (String) options.valueOf("okfilters");
+        }
+        String[] temp = filters.split(",");
+        for (int i = 0; i < temp.length; i++) {
+            okfilters.add(temp[i].getBytes());
+        }
+
+        return filter.getOptionValues(options);
+    }
+
+    public BamfoChangeEvents(String[] args, PrintStream logstream) {
+        super(logstream);
+
+        if (args == null) {
+            printChangeEventsHelp();
+            return;
+        }
+
+        if (!parseChangeEventsParameters(args)) {
+            return;
+        }
+        bamfolog.setVerbose(verbose);
+
+        isReady = true;
+    }
+
+    /**
+     *
+     * @param header
+     * @param name
+     * @return
+     *
+     * index of the column with the given name
+     *
+     * @throws IOException
+     *
+     * if the column is missing
+     */
+    private static int findColumn(TableLineReader header, String name) throws IOException {
+        for (int i = 0; i < header.getNumberFields(); i++) {
+            if (header.getField(i).equals(name)) {
+                return i;
+            }
+        }
+        throw new IOException("missing column " + name);
+    }
+
+    /**
+     * Reads the counts of one sample from the current line.
+     *
+     * @param table
+     * @param columns
+     *
+     * indexes of the samplecols columns of the sample
+     *
+     * @param counts
+     */
+    private static void readCounts(TableLineReader table, int[] columns, VariantCounts counts) {
+        counts.coverage = table.getInt(columns[0]);
+        counts.coverageLowQ = table.getInt(columns[1]);
+        counts.refcounts = table.getInt(columns[2]);
+        counts.refcountsLowQ = table.getInt(columns[3]);
+        counts.altcounts = table.getInt(columns[4]);
+        counts.altcountsLowQ = table.getInt(columns[5]);
+    }
+
+    private boolean isOkFilter(TableLineReader table, int column) {
+        for (int i = 0; i < okfilters.size(); i++) {
+            if (table.fieldEquals(column, okfilters.get(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void findChangeEvents(TableLineReader table, OutputStream out) throws IOException {
+
+        // locate the columns of each sample
+        if (!table.next()) {
+            throw new IOException("input table is empty");
+        }
+        for (int i = 0; i < basecols.length; i++) {
+            if (findColumn(table, basecols[i]) != i) {
+                throw new IOException("input is not a variantdetails table");
+            }
+        }
+        int numpairs = pairsA.size();
+        int[][] columnsA = new int[numpairs][samplecols.length];
+        int[][] columnsB = new int[numpairs][samplecols.length];
+        for (int p = 0; p < numpairs; p++) {
+            for (int j = 0; j < samplecols.length; j++) {
+                columnsA[p][j] = findColumn(table, pairsA.get(p) + samplecols[j]);
+                columnsB[p][j] = findColumn(table, pairsB.get(p) + samplecols[j]);
+            }
+        }
+        int filterindex = samplecols.length - 1;
+
+        StringBuilder sb = new StringBuilder(256);
+        for (int i = 0; i < basecols.length; i++) {
+            sb.append(basecols[i]).append("\t");
+        }
+        sb.append("sampleA\tsampleB\tevent.score\tA.BAF\tB.BAF\n");
+        out.write(sb.toString().getBytes());
+
+        byte[][] pairlabels = new byte[numpairs][];
+        for (int p = 0; p < numpairs; p++) {
+            pairlabels[p] = ("\t" + pairsA.get(p) + "\t" + pairsB.get(p) + "\t").getBytes();
+        }
+
+        VariantCounts countsA = new VariantCounts();
+        VariantCounts countsB = new VariantCounts();
+        long numlines = 0, numevents = 0;
+        while (table.next()) {
+            if (table.getNumberFields() == 1 && table.getField(0).isEmpty()) {
+                continue;
+            }
+            numlines++;
+            for (int p = 0; p < numpairs; p++) {
+                if (!isOkFilter(table, columnsB[p][filterindex])) {
+                    continue;
+                }
+                readCounts(table, columnsA[p], countsA);
+                readCounts(table, columnsB[p], countsB);
+                if (!filter.isEvent(countsA, countsB)) {
+                    continue;
+                }
+                table.writeFields(out, basecols.length);
+                out.write(pairlabels[p]);
+                sb = new StringBuilder(64);
+                sb.append(scoreformat.format(filter.getEventScore(countsA, countsB))).append("\t");
+                sb.append(scoreformat.format(SomaticFilter.getBAF(countsA))).append("\t");
+                sb.append(scoreformat.format(SomaticFilter.getBAF(countsB))).append("\n");
+                out.write(sb.toString().getBytes());
+                numevents++;
+            }
+        }
+
+        bamfolog.log("Variants:      \t" + numlines);
+        bamfolog.log("Change events: \t" + numevents);
+    }
+
+    @Override
+    public void run() {
+        if (!isReady) {
+            return;
+        }
+
+        InputStream in;
+        OutputStream out;
+        try {
+            if (input.equals("stdin")) {
+                in = System.in;
+            } else if (input.endsWith(".gz")) {
+                in = new GZIPInputStream(new FileInputStream(input), 1 << 16);
+            } else {
+                in = new FileInputStream(input);
+            }
+        } catch (IOException ex) {
+            outputStream.println("Could not open input: " + ex.getMessage());
+            return;
+        }
+        try {
+            if (output.equals("stdout")) {
+                out = new BufferedOutputStream(System.out, 1 << 16);
+            } else {
+                out = OutputStreamMaker.makeOutputStream(output);
+            }
+        } catch (IOException ex) {
+            outputStream.println("Could not create output: " + ex.getMessage());
+            return;
+        }
+
+        try {
+            findChangeEvents(new TableLineReader(in), out);
+        } catch (Exception ex) {
+            outputStream.println("Error finding change events: " + ex.getMessage());
+        }
+
+        try {
+            in.close();
+            if (output.equals("stdout")) {
+                out.flush();
+            } else {
+                out.close();
+            }
+        } catch (IOException ex) {
+            outputStream.println("Error closing streams: " + ex.getMessage());
+        }
+    }
+}
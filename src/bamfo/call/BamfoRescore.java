@@ -0,0 +1,250 @@
+/*
+ * Copyright 2012-2014 Tomasz Konopka.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bamfo.call;
+
+import bamfo.utils.BamfoSettings;
+import bamfo.utils.BamfoTool;
+import bamfo.utils.bed.BedRegions;
+import java.io.File;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import joptsimple.OptionParser;
+import joptsimple.OptionSet;
+
+/**
+ * Calls variants again from the evidence saved by callvariants --evidence,
+ * without reading the alignment. Only thresholds applied when a locus is
+ * scored can be changed (see SweepProfile); the other settings are those
+ * recorded in the evidence file.
+ *
+ * @author tkonopka
+ */
+public class BamfoRescore extends BamfoTool implements Runnable {
+
+    private File evidencefile = null;
+    private String outvcf = "stdout";
+    private boolean bgzf = false;
+    private boolean verbose = false;
+    private File regionsfile = null;
+    private BedRegions regions = null;
+    private File profilesfile = null;
+    private ArrayList<SweepProfile> profiles = null;
+    // settings recorded in the evidence file, modified by the command line
+    private BamfoSettings settings;
+    private File bamfile;
+    private String samplelabel = "samplelabel";
+    private int evidencedepth = 1;
+    private EvidenceCache.Reader reader = null;
+
+    private void printRescoreHelp() {
+        outputStream.println("Bamformatics rescore: a tool for calling variants from saved evidence");
+        outputStream.println();
+        outputStream.println("General options:");
+        outputStream.println("  --evidence <File>        - evidence file created by callvariants --evidence");
+        outputStream.println("  --output <File>          - output vcf file");
+        outputStream.println("  --bgzf                   - compress output with bgzf and write a tabix index");
+        outputStream.println("  --regions <File>         - bed file with target regions");
+        outputStream.println("  --profiles <File>        - file with threshold profiles, one per line (label and options);");
+        outputStream.println("                             one vcf is written per profile");
+        outputStream.println("  --verbose                - print progress information");
+        outputStream.println();
+        outputStream.println("Other settings are taken from the evidence file unless set below.");
+        outputStream.println();
+        outputStream.println(new BamfoSettings(SweepProfile.profiletypes).printHelp());
+    }
+
+    private boolean parseRescoreParameters(String[] args) {
+
+        OptionParser prs = new OptionParser();
+
+        // evidence - input file
+        prs.accepts("evidence").withRequiredArg().ofType(File.class);
+        // output - output vcf
+        prs.accepts("output").withRequiredArg().ofType(String.class);
+        prs.accepts("bgzf");
+        prs.accepts("regions").withRequiredArg().ofType(File.class);
+        prs.accepts("profiles").withRequiredArg().ofType(File.class);
+        prs.accepts("verbose");
+        // thresholds that can be changed for rescoring
+        new BamfoSettings(SweepProfile.profiletypes).addOptionsToOptionParser(prs);
+
+        OptionSet options;
+        try {
+            options = prs.parse(args);
+        } catch (Exception ex) {
+            outputStream.println("Error parsing command line parameters\n" + ex.getMessage());
+            return false;
+        }
+
+        verbose = options.has("verbose");
+
+        if (options.has("evidence")) {
+            evidencefile = (File) options.valueOf("evidence");
+        } else {
+            outputStream.println("missing parameter evidence");
+            return false;
+        }
+
+        if (options.has("output")) {
+            outvcf = (String) options.valueOf("output");
+        } else {
+            verbose = false;
+        }
+        bgzf = options.has("bgzf");
+        if (bgzf && outvcf.equals("stdout")) {
+            outputStream.println("bgzf output requires an output file");
+            return false;
+        }
+
+        if (options.has("regions")) {
+            regionsfile = (File) options.valueOf("regions");
+            try {
+                // empty and inverted intervals do not cover any locus
+                regions = new BedRegions(regionsfile, true);
+            } catch (Exception ex) {
+                outputStream.println("could not read regions file: " + ex.getMessage());
+                return false;
+            }
+        }
+
+        // the base settings come from the evidence file
+        try {
+            reader = new EvidenceCache.Reader(evidencefile);
+        } catch (Exception ex) {
+            outputStream.println("could not read evidence file: " + ex.getMessage());
+            return false;
+        }
+        if (!readHeader(reader.getHeader())) {
+            return false;
+        }
+        if (!settings.getOptionValues(options)) {
+            return false;
+        }
+
+        if (options.has("profiles")) {
+            if (outvcf.equals("stdout")) {
+                outputStream.println("profiles require an output file");
+                return false;
+            }
+            profilesfile = (File) options.valueOf("profiles");
+            try {
+                profiles = SweepProfile.read(profilesfile, settings);
+            } catch (Exception ex) {
+                outputStream.println("could not read profiles file: " + ex.getMessage());
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Reads the settings, alignment and label from the header of an evidence
+     * file.
+     *
+     * @param header
+     * @return
+     */
+    private boolean readHeader(String header) {
+        ArrayList<String> headerargs = new ArrayList<>(32);
+        String[] lines = header.split("\n");
+        for (int i = 0; i < lines.length; i++) {
+            if (!lines[i].startsWith("##bamformatics.") || !lines[i].contains("=")) {
+                continue;
+            }
+            String key = lines[i].substring(15, lines[i].indexOf('='));
+            String value = lines[i].substring(lines[i].indexOf('=') + 1);
+            switch (key) {
+                case "bam":
+                    bamfile = new File(value);
+                    break;
+                case "label":
+                    samplelabel = value;
+                    break;
+                case "evidencedepth":
+                    evidencedepth = Integer.parseInt(value);
+                    break;
+                default:
+                    headerargs.add("--" + key + "=" + value);
+                    break;
+            }
+        }
+
+        settings = new BamfoSettings(BamfoVcf.settingtypes);
+        OptionParser prs = new OptionParser();
+        settings.addOptionsToOptionParser(prs);
+        try {
+            if (bamfile == null || !settings.getOptionValues(prs.parse(headerargs.toArray(new String[0])))) {
+                outputStream.println("could not read settings from evidence file");
+                return false;
+            }
+        } catch (Exception ex) {
+            outputStream.println("could not read settings from evidence file: " + ex.getMessage());
+            return false;
+        }
+        return true;
+    }
+
+    public BamfoRescore(String[] args, PrintStream logstream) {
+        super(logstream);
+
+        if (args == null) {
+            printRescoreHelp();
+            return;
+        }
+
+        if (!parseRescoreParameters(args)) {
+            return;
+        }
+        bamfolog.setVerbose(verbose);
+
+        isReady = true;
+    }
+
+    @Override
+    public void run() {
+        if (!isReady) {
+            return;
+        }
+
+        // calls at loci that were not saved would be missed
+        int mindepth = settings.getMindepth();
+        if (profiles != null) {
+            for (int i = 0; i < profiles.size(); i++) {
+                mindepth = Math.min(mindepth, profiles.get(i).settings.getMindepth());
+            }
+        }
+        if (mindepth < evidencedepth) {
+            bamfolog.log(true, "Warning: evidence was saved for mindepth " + evidencedepth
+                    + "; calls with lower mindepth may be incomplete");
+        }
+
+        bamfolog.log("Rescoring " + evidencefile.getName());
+        if (regions != null && regions.getNumSkipped() > 0) {
+            bamfolog.log("Skipped " + regions.getNumSkipped() + " empty or inverted intervals in regions file");
+        }
+        BamfoVcf caller = new BamfoVcf(settings, bamfile, samplelabel, outvcf, bgzf,
+                evidencefile, profilesfile, profiles, outputStream);
+        caller.rescore(reader, regions);
+        bamfolog.log("Rescoring complete");
+
+        try {
+            reader.close();
+        } catch (Exception ex) {
+            outputStream.println("Error closing evidence file: " + ex.getMessage());
+        }
+    }
+}
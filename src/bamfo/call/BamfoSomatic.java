@@ -0,0 +1,151 @@
+/*
+ * Copyright 2012-2014 Tomasz Konopka.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bamfo.call;
+
+import bamfo.utils.BamfoSettings;
+import bamfo.utils.BamfoTool;
+import java.io.File;
+import java.io.PrintStream;
+import joptsimple.OptionParser;
+import joptsimple.OptionSet;
+
+/**
+ * Calls somatic variants in a tumor/normal pair. The two alignments are read
+ * together in one pass. Variants called in the tumor are scored against the
+ * normal as in the R function getVarChangeEvents, and change events are
+ * written to a vcf with one column per sample.
+ *
+ * @author tkonopka
+ */
+public class BamfoSomatic extends BamfoTool implements Runnable {
+
+    private File normalbam = null;
+    private File tumorbam = null;
+    private String normallabel = "normal";
+    private String tumorlabel = "tumor";
+    private String outvcf = "stdout";
+    private boolean bgzf = false;
+    private boolean verbose = false;
+    private final BamfoSettings settings = new BamfoSettings(BamfoVcf.settingtypes);
+    private final SomaticFilter somatic = new SomaticFilter();
+
+    private void printSomaticHelp() {
+        outputStream.println("Bamformatics callsomatic: a tool for calling somatic variants in a tumor/normal pair");
+        outputStream.println();
+        outputStream.println("General options:");
+        outputStream.println("  --normal <File>          - alignment of the normal sample");
+        outputStream.println("  --tumor <File>           - alignment of the tumor sample");
+        outputStream.println("  --normallabel <String>   - label for the normal sample [default normal]");
+        outputStream.println("  --tumorlabel <String>    - label for the tumor sample [default tumor]");
+        outputStream.println("  --output <File>          - output vcf file");
+        outputStream.println("  --bgzf                   - compress output with bgzf and write a tabix index");
+        outputStream.println("  --verbose                - print progress information");
+        outputStream.println();
+        outputStream.println(somatic.printHelp());
+        outputStream.println(settings.printHelp());
+    }
+
+    private boolean parseSomaticParameters(String[] args) {
+
+        OptionParser prs = new OptionParser();
+
+        // normal, tumor - input bam files
+        prs.accepts("normal").withRequiredArg().ofType(File.class);
+        prs.accepts("tumor").withRequiredArg().ofType(File.class);
+        prs.accepts("normallabel").withRequiredArg().ofType(String.class);
+        prs.accepts("tumorlabel").withRequiredArg().ofType(String.class);
+        // output - output vcf
+        prs.accepts("output").withRequiredArg().ofType(String.class);
+        prs.accepts("bgzf");
+        prs.accepts("verbose");
+        // thresholds for change events
+        somatic.addOptionsToOptionParser(prs);
+        // options for variant calling
+        settings.addOptionsToOptionParser(prs);
+
+        OptionSet options;
+        try {
+            options = prs.parse(args);
+        } catch (Exception ex) {
+            outputStream.println("Error parsing command line parameters\n" + ex.getMessage());
+            return false;
+        }
+
+        verbose = options.has("verbose");
+
+        if (options.has("normal") && options.has("tumor")) {
+            normalbam = (File) options.valueOf("normal");
+            tumorbam = (File) options.valueOf("tumor");
+        } else {
+            outputStream.println("missing parameter normal or tumor");
+            return false;
+        }
+        if (!normalbam.canRead() || !tumorbam.canRead()) {
+            outputStream.println("bam file is not readable: "
+                    + (normalbam.canRead() ? tumorbam.getName() : normalbam.getName()));
+            return false;
+        }
+        if (options.has("normallabel")) {
+            normallabel = (String) options.valueOf("normallabel");
+        }
+        if (options.has("tumorlabel")) {
+            tumorlabel = (String) options.valueOf("tumorlabel");
+        }
+
+        if (options.has("output")) {
+            outvcf = (String) options.valueOf("output");
+        } else {
+            verbose = false;
+        }
+        bgzf = options.has("bgzf");
+        if (bgzf && outvcf.equals("stdout")) {
+            outputStream.println("bgzf output requires an output file");
+            return false;
+        }
+
+        if (!somatic.getOptionValues(options)) {
+            return false;
+        }
+
+        return settings.getOptionValues(options);
+    }
+
+    public BamfoSomatic(String[] args, PrintStream logstream) {
+        super(logstream);
+
+        if (args == null) {
+            printSomaticHelp();
+            return;
+        }
+
+        if (!parseSomaticParameters(args)) {
+            return;
+        }
+        bamfolog.setVerbose(verbose);
+
+        isReady = true;
+    }
+
+    @Override
+    public void run() {
+        if (!isReady) {
+            return;
+        }
+
+        new BamfoVcf(settings, normalbam, tumorbam, normallabel, tumorlabel,
+                outvcf, bgzf, verbose, somatic, outputStream).run();
+    }
+}
@@ -21,25 +21,45 @@ import bamfo.utils.BamfoFisherTest;
 import bamfo.utils.BamfoRecord;
 import bamfo.utils.BamfoSettings;
 import bamfo.utils.BamfoTool;
+import bamfo.utils.ChromosomeSequence;
+import bamfo.utils.IndexedFastaReader;
+import bamfo.utils.MergedSAMRecordIterator;
+import bamfo.utils.VcfWriter;
+import bamfo.utils.bed.BedRegions;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.DecimalFormat;
+import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import joptsimple.OptionParser;
 import joptsimple.OptionSet;
-import jsequtils.file.BufferedReaderMaker;
 import jsequtils.file.OutputStreamMaker;
-import jsequtils.sequence.FastaReader;
 import jsequtils.variants.VcfEntry;
-import net.sf.samtools.CigarElement;
 import net.sf.samtools.SAMFileHeader;
 import net.sf.samtools.SAMFileReader;
 import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMRecordIterator;
+import net.sf.samtools.SAMSequenceDictionary;
+import net.sf.samtools.SAMSequenceRecord;
 
 /**
  * A variant caller for SNVs and Indels. It parses an alignment file and
@@ -52,18 +72,65 @@ public class BamfoVcf extends BamfoTool implements Runnable {
 
     // cachelocations is used in traversal. This number of position are kept fully in memory
     private static final int CACHELOCATIONS = 128;
+    // in multi-threaded mode, chromosomes are split into shards of this length
+    // each shard is preceded by a margin that is processed, but not reported
+    // (both are multiples of CACHELOCATIONS so that drains fall on the same loci)
+    private static final int SHARDLENGTH = 8192 * CACHELOCATIONS;
+    private static final int SHARDMARGIN = 16 * CACHELOCATIONS;
+    // length of windows scanned for candidate loci in single-threaded prescan mode
+    private static final int PRESCANWINDOW = 1024 * CACHELOCATIONS;
+    // number of slots in the cache of indel anchors
+    private static final int ANCHORCACHESIZE = 32 * CACHELOCATIONS;
+    // in region-restricted mode, reads are fetched for targets extended by this flank
+    // (wide enough to hold indels that are anchored inside a target)
+    private static final int REGIONFLANK = 2 * CACHELOCATIONS;
     // other Calling specific settings
-    private File bamfile;
+    // several alignments are called jointly, each one is a sample
+    private final ArrayList<File> bamfiles = new ArrayList<>(4);
     private String outvcf = "stdout";
-    private String samplelabel = "samplelabel";
+    private final ArrayList<String> samplelabels = new ArrayList<>(4);
     private boolean verbose = false;
+    private int threads = 1;
+    private boolean bgzf = false;
+    private boolean prescan = false;
+    // checkpoints are written only when a run can be resumed (otherwise checkpointfile is null)
+    private boolean resume = false;
+    private File checkpointfile = null;
+    // size of the output before this run started appending to it
+    private long checkpointbase = 0;
+    private File regionsfile = null;
+    private BedRegions regions = null;
+    // in a parameter sweep, the evidence is scored by one caller per profile
+    private File profilesfile = null;
+    private ArrayList<SweepProfile> profiles = null;
+    private BamfoVcf[] sweepcallers = null;
+    // state of a sweep caller: its own output, and the end of the last deletion
+    // it called (loci within the deletion are not called)
+    private String profilelabel = null;
+    private VcfWriter sweepout = null;
+    private String deletionchr = null;
+    private int deletionend = 0;
+    // evidence at loci that could become calls is saved here for rescoring
+    private File evidencefile = null;
+    private EvidenceCache.Writer evidence = null;
+    private final HashMap<Integer, LocusIndelQuasiCalled> sweepquasicalled = new HashMap<>(4);
+    // in somatic calling, the first alignment is the normal and the second the tumor;
+    // only tumor variants that pass this filter are reported
+    private SomaticFilter somatic = null;
+    private final VariantCounts normalcounts = new VariantCounts();
+    private final VariantCounts tumorcounts = new VariantCounts();
     private final DecimalFormat scoreformat = new DecimalFormat("0.00");
     // some settings used in variant calling    
-    private final static String[] settingtypes = {"minbasequal", "minmapqual",
+    final static String[] settingtypes = {"minbasequal", "minmapqual",
         "minscore", "minallelic", "mindepth", "minfromstart", "minfromend",
-        "strandbias", "trim", "trimQB", "NRef", "genome", "validate"};
-    private final BamfoSettings settings = new BamfoSettings(settingtypes);
-    private final BamfoFisherTest fisher = new BamfoFisherTest();
+        "strandbias", "trim", "trimQB", "NRef", "maxdepth", "seed", "genome", "validate"};
+    private final BamfoSettings settings;
+    private final BamfoFisherTest fisher;
+    // reused for every locus scored by this object
+    private final LocusSNVSummary locussummary = new LocusSNVSummary();
+    // reusable buffer for deleted sequences, and anchors of indels on the reference (see modifyGenotype)
+    private byte[] indelbuffer = new byte[64];
+    private final AnchorCache anchorcache = new AnchorCache(ANCHORCACHESIZE);
     // vcfformat will contain the ninth column for the vcf file
     // explanation for the two-letter codes are in the writeVcfHeader function
     private final static String vcfformat = "GT:GQ:ED:SF:MN:MM:MW:BW:DS:NM";
@@ -74,9 +141,19 @@ public class BamfoVcf extends BamfoTool implements Runnable {
         outputStream.println("Bamformatics callvariants: a tool for calling variants from an alignment");
         outputStream.println();
         outputStream.println("General options:");
-        outputStream.println("  --bam <File>             - input alignment file");
+        outputStream.println("  --bam <File>             - input alignment file (can be repeated for joint calling)");
+        outputStream.println("  --label <String>         - sample label (one for each alignment)");
         outputStream.println("  --output <File>          - output vcf file");
-        outputStream.println("  --genome <File>          - fasta file with genome sequence");
+        outputStream.println("  --bgzf                   - compress output with bgzf and write a tabix index");
+        outputStream.println("  --resume                 - continue an interrupted run from its last checkpoint");
+        outputStream.println("  --genome <File>          - fasta file with genome sequence (indexed with .fai)");
+        outputStream.println("  --threads <int>          - number of calling threads (requires indexed bam)");
+        outputStream.println("  --regions <File>         - bed file with target regions (requires indexed bam)");
+        outputStream.println("  --prescan                - collect evidence only at candidate loci marked using MD tags");
+        outputStream.println("                             (requires indexed bam)");
+        outputStream.println("  --profiles <File>        - file with threshold profiles, one per line (label and options);");
+        outputStream.println("                             the alignment is read once and one vcf is written per profile");
+        outputStream.println("  --evidence <File>        - also save the evidence at candidate loci for the rescore tool");
         outputStream.println("  --verbose                - print progress information");
         outputStream.println();
         outputStream.println(settings.printHelp());
@@ -96,6 +173,20 @@ public class BamfoVcf extends BamfoTool implements Runnable {
         prs.accepts("label").withRequiredArg().ofType(String.class);
         // verbose - display verbose report by chromosome
         prs.accepts("verbose");
+        // bgzf - compressed and indexed output
+        prs.accepts("bgzf");
+        // resume - continue a previous run from a checkpoint
+        prs.accepts("resume");
+        // threads - number of threads used for calling
+        prs.accepts("threads").withRequiredArg().ofType(Integer.class);
+        // regions - bed file restricting calling to target regions
+        prs.accepts("regions").withRequiredArg().ofType(File.class);
+        // prescan - two-stage calling, full evidence only at candidate loci
+        prs.accepts("prescan");
+        // profiles - parameter sweep, several sets of thresholds in one pass
+        prs.accepts("profiles").withRequiredArg().ofType(File.class);
+        // evidence - binary file with the evidence at loci that could be called
+        prs.accepts("evidence").withRequiredArg().ofType(File.class);
 
         // some options for variant calling
         settings.addOptionsToOptionParser(prs);
@@ -114,10 +205,14 @@ public class BamfoVcf extends BamfoTool implements Runnable {
         bamfolog.setVerbose(verbose);
 
         if (options.has("bam")) {
-            bamfile = (File) options.valueOf("bam");
-            if (!bamfile.canRead()) {
-                outputStream.println("bam file is not readable");
-                return false;
+            List bamlist = (List) options.valuesOf("bam");
+            for (int i = 0; i < bamlist.size(); i++) {
+                File bamfile = (File) bamlist.get(i);
+                if (!bamfile.canRead()) {
+                    outputStream.println("bam file is not readable: " + bamfile.getName());
+                    return false;
+                }
+                bamfiles.add(bamfile);
             }
         } else {
             outputStream.println("missing parameter bam");
@@ -132,9 +227,53 @@ public class BamfoVcf extends BamfoTool implements Runnable {
             verbose = false;
         }
 
-        // if label is not set, the default will be used
+        bgzf = options.has("bgzf");
+        if (bgzf && outvcf.equals("stdout")) {
+            outputStream.println("bgzf output requires an output file");
+            return false;
+        }
+
+        // if label is not set, the default will be used (only for a single alignment)
         if (options.has("label")) {
-            samplelabel = (String) options.valueOf("label");
+            List labellist = (List) options.valuesOf("label");
+            for (int i = 0; i < labellist.size(); i++) {
+                samplelabels.add((String) labellist.get(i));
+            }
+        } else if (bamfiles.size() == 1) {
+            samplelabels.add("samplelabel");
+        }
+        if (samplelabels.size() != bamfiles.size()) {
+            outputStream.println("number of bam and label arguments do not match");
+            return false;
+        }
+
+        if (options.has("threads")) {
+            threads = (Integer) options.valueOf("threads");
+            if (threads < 1) {
+                outputStream.println("threads must be a positive integer");
+                return false;
+            }
+        }
+
+        if (options.has("regions")) {
+            if (bamfiles.size() > 1) {
+                outputStream.println("regions are not supported in joint calling");
+                return false;
+            }
+            regionsfile = (File) options.valueOf("regions");
+            try {
+                // empty and inverted intervals do not cover any locus
+                regions = new BedRegions(regionsfile, true);
+            } catch (Exception ex) {
+                outputStream.println("could not read regions file: " + ex.getMessage());
+                return false;
+            }
+        }
+
+        prescan = options.has("prescan");
+        if (prescan && (bamfiles.size() > 1 || regions != null)) {
+            outputStream.println("prescan is not supported in joint calling or with regions");
+            return false;
         }
 
         // get the options for variant calling
@@ -142,6 +281,52 @@ public class BamfoVcf extends BamfoTool implements Runnable {
             return false;
         }
 
+        // profiles are read after the settings, as they start from the same values
+        if (options.has("profiles")) {
+            if (bamfiles.size() > 1 || regions != null) {
+                outputStream.println("profiles are not supported in joint calling or with regions");
+                return false;
+            }
+            if (outvcf.equals("stdout")) {
+                outputStream.println("profiles require an output file");
+                return false;
+            }
+            profilesfile = (File) options.valueOf("profiles");
+            try {
+                profiles = SweepProfile.read(profilesfile, settings);
+            } catch (Exception ex) {
+                outputStream.println("could not read profiles file: " + ex.getMessage());
+                return false;
+            }
+        }
+
+        if (options.has("evidence")) {
+            if (bamfiles.size() > 1 || regions != null) {
+                outputStream.println("evidence is not supported in joint calling or with regions");
+                return false;
+            }
+            evidencefile = (File) options.valueOf("evidence");
+        }
+
+        // reads beyond a cap are counted at the settings thresholds, which vary in these modes
+        if (settings.getMaxdepth() > 0 && (profiles != null || evidencefile != null)) {
+            outputStream.println("maxdepth is not supported with profiles or evidence");
+            return false;
+        }
+
+        // checkpoints are kept for uncompressed vcf files, in whole-genome single-sample calling
+        boolean resumable = !outvcf.equals("stdout") && !bgzf && !outvcf.endsWith(".gz")
+                && !outvcf.endsWith(".bz2") && bamfiles.size() == 1 && regions == null
+                && profiles == null && evidencefile == null;
+        if (resumable) {
+            checkpointfile = new File(outvcf + ".checkpoint");
+        }
+        resume = options.has("resume");
+        if (resume && !resumable) {
+            outputStream.println("resume requires uncompressed vcf output, a single bam, and no regions");
+            return false;
+        }
+
         return true;
     }
 
@@ -158,6 +343,8 @@ public class BamfoVcf extends BamfoTool implements Runnable {
      */
     public BamfoVcf(String[] args, PrintStream logstream) {
         super(logstream);
+        settings = new BamfoSettings(settingtypes);
+        fisher = new BamfoFisherTest();
 
         if (args == null) {
             printBamVcfHelp();
@@ -191,7 +378,10 @@ public class BamfoVcf extends BamfoTool implements Runnable {
      */
     public BamfoVcf(File bamfile, String outvcf, BamfoSettings s, PrintStream logstream) {
         super(logstream);
-        this.bamfile = bamfile.getAbsoluteFile();
+        settings = new BamfoSettings(settingtypes);
+        fisher = new BamfoFisherTest();
+        this.bamfiles.add(bamfile.getAbsoluteFile());
+        this.samplelabels.add("samplelabel");
         this.outvcf = outvcf;
         this.verbose = true;
         this.bamfolog.setVerbose(verbose);
@@ -207,11 +397,57 @@ public class BamfoVcf extends BamfoTool implements Runnable {
             settings.setStrandbias(s.getStrandbias());
             settings.setTrimBtail(s.isTrimBtail());
             settings.setTrimpolyedge(s.isTrimpolyedge());
+            settings.setMaxdepth(s.getMaxdepth());
+            settings.setSeed(s.getSeed());
         }
         isReady = true;
     }
 
-    private void writeVcfHeader(OutputStream outstream, String label) throws IOException {
+    /**
+     * A constructor used to make workers in multi-threaded calling. The new
+     * object shares the settings and the fisher test with the parent, but has
+     * its own formatting objects.
+     *
+     * @param parent
+     */
+    private BamfoVcf(BamfoVcf parent) {
+        super(parent.outputStream);
+        this.bamfiles.addAll(parent.bamfiles);
+        this.outvcf = parent.outvcf;
+        this.samplelabels.addAll(parent.samplelabels);
+        this.verbose = parent.verbose;
+        this.prescan = parent.prescan;
+        this.bamfolog.setVerbose(verbose);
+        this.settings = parent.settings;
+        this.fisher = parent.fisher;
+        isReady = true;
+    }
+
+    /**
+     * A constructor used to make the callers in a parameter sweep. The new
+     * object uses the settings of a profile and shares the fisher test with
+     * the parent.
+     *
+     * @param parent
+     * @param profile
+     */
+    private BamfoVcf(BamfoVcf parent, SweepProfile profile) {
+        super(parent.outputStream);
+        this.bamfiles.addAll(parent.bamfiles);
+        this.outvcf = profile.getOutputName(parent.outvcf, parent.bgzf);
+        this.samplelabels.addAll(parent.samplelabels);
+        this.verbose = parent.verbose;
+        this.bgzf = parent.bgzf;
+        this.profilesfile = parent.profilesfile;
+        this.profilelabel = profile.label;
+        this.evidencefile = parent.evidencefile;
+        this.bamfolog.setVerbose(verbose);
+        this.settings = profile.settings;
+        this.fisher = parent.fisher;
+        isReady = true;
+    }
+
+    private void writeVcfHeader(VcfWriter vcfout) throws IOException {
         StringBuilder sb = new StringBuilder(4096);
         SimpleDateFormat dateformat = new SimpleDateFormat("yyyyMMdd");
 
@@ -221,7 +457,25 @@ public class BamfoVcf extends BamfoTool implements Runnable {
 
         // write the settings used to genotype
         sb.append(settings.printAllOptions());
-        sb.append("##bamformatics.bam=").append(bamfile.getAbsolutePath()).append("\n");
+        for (int i = 0; i < bamfiles.size(); i++) {
+            sb.append("##bamformatics.bam=").append(bamfiles.get(i).getAbsolutePath()).append("\n");
+        }
+        if (regionsfile != null) {
+            sb.append("##bamformatics.regions=").append(regionsfile.getAbsolutePath()).append("\n");
+        }
+        if (profilelabel != null) {
+            sb.append("##bamformatics.profiles=").append(profilesfile.getAbsolutePath()).append("\n");
+            sb.append("##bamformatics.profile=").append(profilelabel).append("\n");
+        }
+        if (evidencefile != null) {
+            sb.append("##bamformatics.evidence=").append(evidencefile.getAbsolutePath()).append("\n");
+        }
+        if (somatic != null) {
+            sb.append(somatic.printSettings());
+            sb.append("##INFO=<ID=ES,Number=1,Type=Float,Description=\"Event score, difference of allelic proportions in tumor and normal\">\n");
+            sb.append("##INFO=<ID=NBAF,Number=1,Type=Float,Description=\"Proportion of reads with the alternative allele in the normal\">\n");
+            sb.append("##INFO=<ID=TBAF,Number=1,Type=Float,Description=\"Proportion of reads with the alternative allele in the tumor\">\n");
+        }
 
         // explain the format field        
         sb.append("##FORMAT=<ID=GT,Number=1,Type=String,Description=\"Genotype\">\n");
@@ -237,9 +491,61 @@ public class BamfoVcf extends BamfoTool implements Runnable {
         sb.append("##FORMAT=<ID=NM,Number=1,Type=Integer,Description=\"Mean value of NM tag of variant containing reads\">\n");
 
         // write out the canonical line signaling start of the variant list
-        sb.append("#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO\tFORMAT\t").append(label).append("\n");
+        sb.append("#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO\tFORMAT");
+        for (int i = 0; i < samplelabels.size(); i++) {
+            sb.append("\t").append(samplelabels.get(i));
+        }
+        sb.append("\n");
+
+        vcfout.writeHeader(sb.toString());
+    }
 
-        outstream.write(sb.toString().getBytes());
+    /**
+     *
+     * @return
+     *
+     * hash of all the settings that affect the content of the output vcf
+     */
+    private String getSettingsHash() {
+        StringBuilder sb = new StringBuilder(1024);
+        sb.append(settings.printAllOptions()).append("\n");
+        for (int i = 0; i < bamfiles.size(); i++) {
+            sb.append(bamfiles.get(i).getAbsolutePath()).append("\t").append(samplelabels.get(i)).append("\n");
+        }
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(sb.toString().getBytes());
+            StringBuilder hex = new StringBuilder(2 * digest.length);
+            for (int i = 0; i < digest.length; i++) {
+                hex.append(String.format("%02x", digest[i]));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            return Integer.toHexString(sb.toString().hashCode());
+        }
+    }
+
+    /**
+     * Records that all chromosomes up to (and including) a given one have been
+     * written to the output. Does nothing if the run cannot be resumed.
+     *
+     * @param vcfout
+     * @param reference
+     *
+     * index of the last completed chromosome in the sequence dictionary
+     *
+     * @param complete
+     *
+     * set true when calling has finished
+     *
+     * @throws IOException
+     */
+    private void writeCheckpoint(VcfWriter vcfout, int reference, boolean complete) throws IOException {
+        if (checkpointfile == null) {
+            return;
+        }
+        vcfout.flush();
+        new CallCheckpoint(getSettingsHash(), reference,
+                checkpointbase + vcfout.getBytesWritten(), complete).write(checkpointfile);
     }
 
     /**
@@ -250,11 +556,11 @@ public class BamfoVcf extends BamfoTool implements Runnable {
      *
      * an initialized reader of SAM files
      *
-     * @param genomereader
+     * @param genome
      *
-     * an initialized reader of fasta sequence (reference genome)
+     * an initialized reader of an indexed fasta file (reference genome)
      *
-     * @param outstream
+     * @param vcfout
      *
      * initialized stream where variants will be stored. This function will only
      * output the variants. Headers should be written previously
@@ -262,7 +568,8 @@ public class BamfoVcf extends BamfoTool implements Runnable {
      *
      * @throws IOException
      */
-    private void genotypeBam(SAMFileReader inputSam, FastaReader genomereader, OutputStream outstream) throws IOException {
+    private void genotypeBam(SAMFileReader inputSam, IndexedFastaReader genome, VcfWriter vcfout,
+            int firstref) throws IOException {
 
         // record starting time          
         bamfolog.log("Starting variant calling with Bamformatics");
@@ -278,129 +585,1146 @@ public class BamfoVcf extends BamfoTool implements Runnable {
         int lastdrain = 1;
         String nowRefName;
         int nowRefLen = 0;
+        ChromosomeSequence chrsequence = null;
 
         // the two "info" hashmap will store information about reads documenting snv and indels
         // anchored at loci 
         // For snvs, anchor point is locus of snv
         // For indels, anchor point may be position in vcf, or some place prior, depending on sequence
-        // make the hashmaps large so that an appropriate number of cached locations fit without resizing.
-        HashMap<Integer, LocusSNVDataList> snvinfo = new HashMap<>(2 * CACHELOCATIONS);
+        // make the maps large so that an appropriate number of cached locations fit without resizing.
+        LocusSNVPileup snvinfo = newPileup();
         HashMap<Integer, LocusIndelDataList> indelinfo = new HashMap<>(2 * CACHELOCATIONS);
         // The next hashmap will store "semi-called indels"
         HashMap<Integer, LocusIndelQuasiCalled> indelquasicalled = new HashMap<>(8);
+        // in prescan mode, a second reader marks candidate loci ahead of the records
+        SAMFileReader prescanreader = null;
+        CandidateSites candidates = null;
+        if (prescan) {
+            prescanreader = new SAMFileReader(bamfiles.get(0));
+            BamfoCommon.updateValidationStringency(prescanreader, settings.getValidate());
+        }
+        // records are read and decoded on a separate thread, and arrive here in batches
+        // (the decoder thread only passes on aligned, primary, non-duplicate records)
+        RecordPipeline pipeline = new RecordPipeline(inputSam, firstref, settings.isTrimBtail(), settings.isTrimpolyedge());
+        pipeline.start();
+        try {
+            RecordPipeline.RecordBatch batch;
+            while ((batch = pipeline.take()) != null) {
+                for (int k = 0; k < batch.size; k++) {
+                    // b2r holds derived information on each record in turn
+                    BamfoRecord b2r = batch.records[k];
+                    SAMRecord samRecord = b2r.record;
+                    int recordReference = samRecord.getReferenceIndex();
+                    nowpos = b2r.startpos;
+
+                    // check if the record starts a new chromosome
+                    // if so, finish processing the old chromosome and prepare for the next one
+                    if (recordReference != nowRef) {
+                        if (Thread.currentThread().isInterrupted()) {
+                            bamfolog.log("Calling interrupted");
+                            return;
+                        }
 
-        // read each record, for each chromosome
-        for (final SAMRecord samRecord : inputSam) {
+                        // genotype the remaining loci on the chromosome
+                        if (nowRef != -1) {
+                            lastdrain = genotypeLoci(vcfout, snvinfo, indelinfo, indelquasicalled,
+                                    chrsequence, lastdrain, 1 + nowRefLen);
+                            writeCheckpoint(vcfout, nowRef, false);
+                        }
 
-            // only process aligned, primary records records, with mapping quality greater than zero
-            // and non-duplicate
-            int recordReference = samRecord.getReferenceIndex();
-            if (recordReference > -1 && !samRecord.getNotPrimaryAlignmentFlag()
-                    && !samRecord.getReadUnmappedFlag() && !samRecord.getDuplicateReadFlag()) {
+                        // get information about the new chromosome
+                        nowRef = recordReference;
+                        nowRefName = samRecord.getReferenceName();
+                        nowRefLen = (samHeader.getSequence(nowRef)).getSequenceLength();
+                        lastdrain = 1;
+
+                        // get access to the chromosome sequence
+                        chrsequence = getGenomeChromosome(genome, nowRefName, nowRefLen);
+                        if (chrsequence == null) {
+                            return;
+                        }
 
-                nowpos = samRecord.getAlignmentStart();
+                        bamfolog.log("Calling " + nowRefName);
 
-                // check if the record starts a new chromosome
-                // if so, finish processing the old chromosome and prepare for the next one
-                if (recordReference != nowRef) {
-                    if (Thread.currentThread().isInterrupted()) {
-                        bamfolog.log("Calling interrupted");
-                        return;
+                        // initialize new chrinfo objects that will store pileup information
+                        snvinfo.clear();
+                        indelinfo = new HashMap<Integer, LocusIndelDataList>(2 * CACHELOCATIONS);
+                        if (prescanreader != null) {
+                            candidates = new CandidateSites(prescanreader, chrsequence, getCandidateDepth(),
+                                    settings.isTrimBtail(), settings.isTrimpolyedge());
+                        }
                     }
 
-                    // genotype the remaining loci on the chromosome
-                    if (nowRef != -1) {
-                        lastdrain = genotypeLoci(outstream, snvinfo, indelinfo, indelquasicalled,
-                                genomereader, lastdrain, 1 + nowRefLen);
+                    // make sure the candidate loci are known for the whole read
+                    if (candidates != null && b2r.getAlignmentEnd() >= candidates.getEnd()) {
+                        candidates.scan(nowpos, Math.max(b2r.getAlignmentEnd() + 1, nowpos + PRESCANWINDOW));
                     }
 
-                    // get information about the new chromosome
-                    nowRef = recordReference;
-                    nowRefName = samRecord.getReferenceName();
-                    nowRefLen = (samHeader.getSequence(nowRef)).getSequenceLength();
-                    lastdrain = 1;
+                    // add the contribution of this read to the coverage
+                    try {
+                        modifyGenotype(b2r, snvinfo, indelinfo, chrsequence, candidates);
+                    } catch (Exception ex) {
+                        bamfolog.log(true, "Error during calling: " + ex.getMessage());
+                        bamfolog.log(true, samRecord.getSAMString());
+                        return;
+                    }
 
-                    // get chromosome sequence from the genome reader (perhaps skip over missing chromosomes)
-                    genomereader.readNext();
-                    System.gc();
-                    while (genomereader.hasThis() && !nowRefName.equals(genomereader.getChromosomeName())) {
+                    // perhaps drain the chrinfo if the fill index has run too far ahead of the drain index
+                    // (drains stop at multiples of CACHELOCATIONS, so that shards in multi-threaded mode
+                    // drain at exactly the same loci)
+                    int drainto = nowpos - (nowpos % CACHELOCATIONS);
+                    if (drainto > lastdrain && nowRefLen - nowpos > CACHELOCATIONS) {
                         if (Thread.currentThread().isInterrupted()) {
                             bamfolog.log("Calling interrupted");
                             return;
                         }
-                        genomereader.readNext();
-                        System.gc();
+                        lastdrain = genotypeLoci(vcfout, snvinfo, indelinfo, indelquasicalled, chrsequence, lastdrain, drainto);
                     }
-                    if (!nowRefName.equals(genomereader.getChromosomeName())) {
-                        bamfolog.log(true, "Error: chromsome " + nowRefName + " does not appear in the genome reference file");
-                        bamfolog.log(true, "(check that chromsomes appear in the same order in bam and reference)");
-                        return;
+                }
+                pipeline.recycle(batch);
+            } // end of loop over records
+        } catch (InterruptedException ex) {
+            bamfolog.log("Calling interrupted");
+            return;
+        } finally {
+            pipeline.close();
+            bamfolog.log(pipeline.getMetrics());
+            bamfolog.log(anchorcache.getMetrics());
+            if (prescanreader != null) {
+                prescanreader.close();
+            }
+        }
+
+        // if there is still something left in the chrinfo, genotype from the current index beyond the chromosome length
+        if (nowRef != -1) {
+            lastdrain = genotypeLoci(vcfout, snvinfo, indelinfo, indelquasicalled, chrsequence, lastdrain, 1 + nowRefLen);
+        }
+
+        writeCheckpoint(vcfout, samHeader.getSequenceDictionary().size() - 1, true);
+        bamfolog.log("Calling complete");
+
+        // print out some stats to check for 'memory leaks' i.e. information retained in the maps
+        // the maps should be empty at the end of the analysis
+        //
+        //outputStream.println("snvinfo: " + snvinfo.size());
+        //outputStream.println("indelinfo: " + indelinfo.size());
+        //outputStream.println("indelquasicalled: " + indelquasicalled.size());
+    }
+
+    /**
+     *
+     * @return
+     *
+     * a pileup in which reads matching the reference are only counted, using
+     * the thresholds from the settings, and in which the stored reads are
+     * capped at maxdepth. In a parameter sweep, or when the evidence is saved
+     * for rescoring, all reads are stored as the thresholds vary (such runs
+     * do not accept a cap).
+     */
+    private LocusSNVPileup newPileup() {
+        if (profiles != null || evidencefile != null) {
+            return new LocusSNVPileup(2 * CACHELOCATIONS);
+        }
+        LocusSNVPileup pileup = new LocusSNVPileup(2 * CACHELOCATIONS, settings.getMinfromstart(),
+                settings.getMinfromend(), settings.getMinbasequal(), settings.getMinmapqual());
+        pileup.setMaxDepth(settings.getMaxdepth(), settings.getSeed());
+        return pileup;
+    }
+
+    /**
+     *
+     * @return
+     *
+     * the depth at which a locus becomes a candidate in prescan mode (in a
+     * parameter sweep, the smallest mindepth among the profiles)
+     */
+    private int getCandidateDepth() {
+        int depth = settings.getMindepth();
+        if (profiles != null) {
+            for (int i = 0; i < profiles.size(); i++) {
+                depth = Math.min(depth, profiles.get(i).settings.getMindepth());
+            }
+        }
+        return depth;
+    }
+
+    /**
+     * Holds the evidence collected from one sample during joint calling.
+     */
+    private static class SampleEvidence {
+
+        final LocusSNVPileup snvinfo;
+        final HashMap<Integer, LocusIndelDataList> indelinfo;
+        final HashMap<Integer, LocusIndelQuasiCalled> indelquasicalled;
+
+        public SampleEvidence(LocusSNVPileup snvinfo) {
+            this.snvinfo = snvinfo;
+            indelinfo = new HashMap<>(2 * CACHELOCATIONS);
+            indelquasicalled = new HashMap<>(8);
+        }
+
+        public void clear() {
+            snvinfo.clear();
+            indelinfo.clear();
+        }
+    }
+
+    /**
+     * Version of genotypeBam that calls variants in several alignments at
+     * once. The alignments are traversed together, in a single pass, and each
+     * alignment contributes evidence to its own sample. Loci where at least
+     * one sample has a variant are reported in one vcf entry with one column
+     * per sample.
+     *
+     * @param inputSams
+     *
+     * initialized readers of the alignments, one per sample
+     *
+     * @param genome
+     * @param vcfout
+     * @throws IOException
+     */
+    private void genotypeBamJoint(SAMFileReader[] inputSams, IndexedFastaReader genome, VcfWriter vcfout) throws IOException {
+
+        // record starting time          
+        bamfolog.log("Starting joint variant calling with Bamformatics (" + inputSams.length + " samples)");
+        String[] temp = settings.printAllOptions().split("\n");
+        for (int i = 0; i < temp.length; i++) {
+            bamfolog.log(temp[i]);
+        }
+
+        // the merged traversal requires that all alignments use the same chromosomes
+        SAMFileHeader samHeader = inputSams[0].getFileHeader();
+        for (int i = 1; i < inputSams.length; i++) {
+            if (!isSameDictionary(samHeader.getSequenceDictionary(), inputSams[i].getFileHeader().getSequenceDictionary())) {
+                bamfolog.log(true, "Error: alignments " + bamfiles.get(0).getName() + " and "
+                        + bamfiles.get(i).getName() + " have different sequence dictionaries");
+                return;
+            }
+        }
+
+        int nowRef = -1, nowpos;
+        int lastdrain = 1;
+        String nowRefName;
+        int nowRefLen = 0;
+        ChromosomeSequence chrsequence = null;
+
+        SampleEvidence[] samples = new SampleEvidence[inputSams.length];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = new SampleEvidence(newPileup());
+        }
+        // records are processed one at a time, so all samples can share the decoding object
+        BamfoRecord b2r = new BamfoRecord(settings.isTrimBtail(), settings.isTrimpolyedge());
+
+        MergedSAMRecordIterator it = new MergedSAMRecordIterator(inputSams);
+        while (it.hasNext()) {
+            SAMRecord samRecord = it.next();
+            if (!isCallableRecord(samRecord)) {
+                continue;
+            }
+            int recordReference = samRecord.getReferenceIndex();
+            nowpos = samRecord.getAlignmentStart();
+
+            // check if the record starts a new chromosome
+            if (recordReference != nowRef) {
+                if (Thread.currentThread().isInterrupted()) {
+                    bamfolog.log("Calling interrupted");
+                    return;
+                }
+
+                // genotype the remaining loci on the chromosome
+                if (nowRef != -1) {
+                    lastdrain = genotypeJointLoci(vcfout, samples, chrsequence, lastdrain, 1 + nowRefLen);
+                }
+
+                nowRef = recordReference;
+                nowRefName = samRecord.getReferenceName();
+                nowRefLen = (samHeader.getSequence(nowRef)).getSequenceLength();
+                lastdrain = 1;
+
+                chrsequence = getGenomeChromosome(genome, nowRefName, nowRefLen);
+                if (chrsequence == null) {
+                    return;
+                }
+
+                bamfolog.log("Calling " + nowRefName);
+
+                for (int i = 0; i < samples.length; i++) {
+                    samples[i].clear();
+                }
+            }
+
+            SampleEvidence sample = samples[it.getSource()];
+            try {
+                modifyGenotype(b2r, sample.snvinfo, sample.indelinfo, chrsequence, null, samRecord);
+            } catch (Exception ex) {
+                bamfolog.log(true, "Error during calling: " + ex.getMessage());
+                bamfolog.log(true, samRecord.getSAMString());
+                return;
+            }
+
+            // drain all the samples on the same loci as the single-sample caller
+            int drainto = nowpos - (nowpos % CACHELOCATIONS);
+            if (drainto > lastdrain && nowRefLen - nowpos > CACHELOCATIONS) {
+                if (Thread.currentThread().isInterrupted()) {
+                    bamfolog.log("Calling interrupted");
+                    return;
+                }
+                lastdrain = genotypeJointLoci(vcfout, samples, chrsequence, lastdrain, drainto);
+            }
+        }
+
+        if (nowRef != -1) {
+            genotypeJointLoci(vcfout, samples, chrsequence, lastdrain, 1 + nowRefLen);
+        }
+
+        bamfolog.log(anchorcache.getMetrics());
+        bamfolog.log("Calling complete");
+    }
+
+    /**
+     *
+     * @param a
+     * @param b
+     * @return
+     *
+     * true if the two dictionaries have the same chromosomes, with the same
+     * lengths, in the same order
+     */
+    private static boolean isSameDictionary(SAMSequenceDictionary a, SAMSequenceDictionary b) {
+        if (a.size() != b.size()) {
+            return false;
+        }
+        for (int i = 0; i < a.size(); i++) {
+            SAMSequenceRecord ssra = a.getSequence(i);
+            SAMSequenceRecord ssrb = b.getSequence(i);
+            if (!ssra.getSequenceName().equals(ssrb.getSequenceName())
+                    || ssra.getSequenceLength() != ssrb.getSequenceLength()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Joint-calling version of genotypeLoci. Each sample is called
+     * independently, and the calls at one locus are merged into one vcf entry.
+     *
+     * @param vcfout
+     * @param samples
+     * @param chrsequence
+     * @param startpos
+     *
+     * 1-based coordinate system
+     *
+     * @param endpos
+     *
+     * 1-based coordinate system
+     *
+     * @return
+     * @throws IOException
+     */
+    private int genotypeJointLoci(VcfWriter vcfout, SampleEvidence[] samples,
+            ChromosomeSequence chrsequence, int startpos, int endpos) throws IOException {
+
+        VcfEntry[] calls = new VcfEntry[samples.length];
+        LocusIndelDataList[] indellists = new LocusIndelDataList[samples.length];
+        for (int i = startpos; i < endpos; i++) {
+            try {
+                byte refbase = chrsequence.getBaseAtPositionBase1(i);
+                boolean anycall = false;
+                for (int s = 0; s < samples.length; s++) {
+                    SampleEvidence sample = samples[s];
+                    LocusIndelDataList indellist = sample.indelinfo.get(i);
+                    indellists[s] = indellist;
+                    if (indellist != null) {
+                        preprocessIndelGenotype(i, indellist, sample.indelquasicalled);
+                        sample.indelinfo.remove(i);
                     }
-                    // check that the chromsome lengths in alignment and reference match
-                    if (nowRefLen != genomereader.getChromosomeLength()) {
-                        bamfolog.log(true, "Error: discordant lengths on chromosome " + nowRefName);
-                        return;
+
+                    LocusIndelQuasiCalled liqc = sample.indelquasicalled.get(i);
+                    LocusSNVDataList lgl = sample.snvinfo.get(i);
+                    calls[s] = null;
+                    if (lgl != null || liqc != null) {
+                        calls[s] = getSNVAndIndelCall(lgl, liqc, refbase);
+                    }
+                    anycall = anycall || calls[s] != null;
+                }
+
+                if (anycall) {
+                    // in somatic calling, only tumor calls that are change events are reported
+                    String info = null;
+                    if (somatic != null) {
+                        info = calls[1] == null ? null : getSomaticInfo(calls[1], samples, indellists, i);
+                    }
+                    if (somatic == null || info != null) {
+                        VcfEntry entry = getJointCall(calls, samples, i);
+                        entry.setChr(chrsequence.getChromosomeName());
+                        entry.setPosition(i);
+                        if (info != null) {
+                            entry.setInfo(info);
+                        }
+                        vcfout.write(entry);
+                    }
+                    // avoid calling variants within deletions, separately in each sample
+                    for (int s = 0; s < samples.length; s++) {
+                        if (calls[s] != null && calls[s].isIndel()) {
+                            calls[s].setPosition(i);
+                            postprocessIndel(calls[s], samples[s].snvinfo);
+                        }
+                    }
+                }
+
+                for (int s = 0; s < samples.length; s++) {
+                    samples[s].snvinfo.remove(i);
+                    samples[s].indelquasicalled.remove(i);
+                }
+            } catch (Exception ex) {
+                bamfolog.log("Exception at " + chrsequence.getChromosomeName() + ":" + i);
+            }
+        }
+        for (int s = 0; s < samples.length; s++) {
+            samples[s].snvinfo.setWindowStart(endpos);
+        }
+        anchorcache.setWindowStart(endpos);
+
+        return endpos;
+    }
+
+    /**
+     * Compares the evidence for a tumor variant in the normal and tumor
+     * samples (see SomaticFilter). The reads are counted as in variantdetails.
+     *
+     * @param call
+     *
+     * variant called in the tumor. Only the first alternative allele is
+     * considered.
+     *
+     * @param samples
+     * @param indellists
+     *
+     * reads with indels anchored at the locus, in each sample
+     *
+     * @param pos
+     * @return
+     *
+     * the info field for the vcf entry, or null if the variant is not a
+     * somatic event
+     */
+    private String getSomaticInfo(VcfEntry call, SampleEvidence[] samples,
+            LocusIndelDataList[] indellists, int pos) {
+        String ref = call.getRef();
+        String alt = call.getAlt();
+        if (alt.indexOf(',') >= 0) {
+            alt = alt.substring(0, alt.indexOf(','));
+        }
+
+        if (VcfEntry.isIndel(ref, alt)) {
+            byte[] indel = ref.length() > 1 ? ref.substring(1).getBytes() : alt.substring(1).getBytes();
+            normalcounts.countIndel(samples[0].snvinfo.get(pos), indellists[0], ref.charAt(0), indel, settings);
+            tumorcounts.countIndel(samples[1].snvinfo.get(pos), indellists[1], ref.charAt(0), indel, settings);
+        } else {
+            normalcounts.countSNV(samples[0].snvinfo.get(pos), ref.charAt(0), alt.charAt(0), settings);
+            tumorcounts.countSNV(samples[1].snvinfo.get(pos), ref.charAt(0), alt.charAt(0), settings);
+        }
+
+        if (!somatic.isEvent(normalcounts, tumorcounts)) {
+            return null;
+        }
+        return "ES=" + scoreformat.format(somatic.getEventScore(normalcounts, tumorcounts))
+                + ";NBAF=" + scoreformat.format(SomaticFilter.getBAF(normalcounts))
+                + ";TBAF=" + scoreformat.format(SomaticFilter.getBAF(tumorcounts));
+    }
+
+    /**
+     * Merges calls made in individual samples into one multi-sample entry. The
+     * reference allele is the longest one called in any sample; alleles from
+     * the other samples are extended so that they match this reference.
+     *
+     * @param calls
+     *
+     * calls in individual samples, null for samples without a call
+     *
+     * @param samples
+     * @param pos
+     * @return
+     * @throws ParseException
+     */
+    private VcfEntry getJointCall(VcfEntry[] calls, SampleEvidence[] samples, int pos) throws ParseException {
+
+        String ref = "";
+        double quality = 0.0;
+        for (int s = 0; s < calls.length; s++) {
+            if (calls[s] != null) {
+                if (calls[s].getRef().length() > ref.length()) {
+                    ref = calls[s].getRef();
+                }
+                quality = Math.max(quality, scoreformat.parse(calls[s].getQuality()).doubleValue());
+            }
+        }
+
+        ArrayList<String> alts = new ArrayList<>(4);
+        StringBuilder genotypes = new StringBuilder(64 * calls.length);
+        for (int s = 0; s < calls.length; s++) {
+            if (s > 0) {
+                genotypes.append("\t");
+            }
+            if (calls[s] == null) {
+                genotypes.append(getNoCallGenotype(samples[s].snvinfo.get(pos)));
+            } else {
+                genotypes.append(getJointGenotype(calls[s], ref, alts));
+            }
+        }
+
+        StringBuilder alt = new StringBuilder(16);
+        for (int i = 0; i < alts.size(); i++) {
+            if (i > 0) {
+                alt.append(",");
+            }
+            alt.append(alts.get(i));
+        }
+
+        VcfEntry entry = new VcfEntry();
+        entry.setRef(ref);
+        entry.setAlt(alt.toString());
+        entry.setQuality(scoreformat.format(quality));
+        entry.setFormat(vcfformat);
+        entry.setGenotype(genotypes.toString());
+        return entry;
+    }
+
+    /**
+     * Rewrites the genotype of a single-sample call so that its alleles refer
+     * to the joint list of alternative alleles.
+     *
+     * @param call
+     * @param ref
+     *
+     * joint reference allele
+     *
+     * @param alts
+     *
+     * joint list of alternative alleles. New alleles from this call are
+     * appended to this list.
+     *
+     * @return
+     */
+    private static String getJointGenotype(VcfEntry call, String ref, ArrayList<String> alts) {
+
+        // alleles are extended by the part of the joint reference not covered by this call
+        String suffix = ref.substring(call.getRef().length());
+        String[] callalts = call.getAlt().split(",");
+        int[] allele = new int[callalts.length + 1];
+        for (int k = 0; k < callalts.length; k++) {
+            String alt = callalts[k] + suffix;
+            int index = alts.indexOf(alt);
+            if (index < 0) {
+                alts.add(alt);
+                index = alts.size() - 1;
+            }
+            allele[k + 1] = index + 1;
+        }
+
+        String genotype = call.getGenotype();
+        int colon = genotype.indexOf(':');
+        String[] gt = genotype.substring(0, colon).split("/");
+        StringBuilder sb = new StringBuilder(genotype.length() + 4);
+        for (int j = 0; j < gt.length; j++) {
+            if (j > 0) {
+                sb.append("/");
+            }
+            sb.append(allele[Integer.parseInt(gt[j])]);
+        }
+        sb.append(genotype.substring(colon));
+        return sb.toString();
+    }
+
+    /**
+     * Describes a sample without a variant call at a locus where another
+     * sample has a call. Only the genotype and the effective depth are
+     * reported.
+     *
+     * @param locus
+     * @return
+     */
+    private String getNoCallGenotype(LocusSNVDataList locus) {
+        int depth = 0;
+        if (locus != null) {
+            locus.summarize(locussummary, settings.getMinfromstart(),
+                    settings.getMinfromend(), settings.getMinbasequal(),
+                    settings.getMinmapqual());
+            int[] locusdepth = locussummary.getStrandEffectiveDepth();
+            depth = locusdepth[0] + locusdepth[1];
+        }
+        String gt = (depth > 0 && depth >= settings.getMindepth()) ? "0/0" : "./.";
+        return gt + ":.:" + depth + ":.:.:.:.:.:.:.";
+    }
+
+    /**
+     * Version of genotypeBam that only visits target regions. Reads are fetched
+     * from an indexed alignment for blocks made of the targets and their
+     * flanks. Loci in the flanks are processed, but only variants inside the
+     * targets are reported.
+     *
+     * @param inputSam
+     *
+     * an initialized reader of an indexed alignment file
+     *
+     * @param genome
+     * @param vcfout
+     * @throws IOException
+     */
+    private void genotypeRegions(SAMFileReader inputSam, IndexedFastaReader genome, VcfWriter vcfout) throws IOException {
+
+        // record starting time          
+        bamfolog.log("Starting variant calling with Bamformatics (target regions)");
+        String[] temp = settings.printAllOptions().split("\n");
+        for (int i = 0; i < temp.length; i++) {
+            bamfolog.log(temp[i]);
+        }
+
+        if (regions.getNumSkipped() > 0) {
+            bamfolog.log("Skipped " + regions.getNumSkipped() + " empty or inverted intervals in regions file");
+        }
+
+        // nearby targets are merged into blocks when their flanks overlap
+        BedRegions blocks = regions.expand(REGIONFLANK);
+
+        LocusSNVPileup snvinfo = newPileup();
+        HashMap<Integer, LocusIndelDataList> indelinfo = new HashMap<>(2 * CACHELOCATIONS);
+        HashMap<Integer, LocusIndelQuasiCalled> indelquasicalled = new HashMap<>(8);
+        BamfoRecord b2r = new BamfoRecord(settings.isTrimBtail(), settings.isTrimpolyedge());
+
+        for (SAMSequenceRecord ssr : inputSam.getFileHeader().getSequenceDictionary().getSequences()) {
+            if (Thread.currentThread().isInterrupted()) {
+                bamfolog.log("Calling interrupted");
+                return;
+            }
+
+            String nowRefName = ssr.getSequenceName();
+            int nowRefLen = ssr.getSequenceLength();
+            int[] blockstarts = blocks.getStarts(nowRefName);
+            if (blockstarts == null || blockstarts.length == 0) {
+                continue;
+            }
+            int[] blockends = blocks.getEnds(nowRefName);
+
+            // convert the bed targets into 1-based coordinates, with ends not included
+            int[] targetstarts = regions.getStarts(nowRefName);
+            int[] targetends = regions.getEnds(nowRefName);
+            for (int i = 0; i < targetstarts.length; i++) {
+                targetstarts[i]++;
+                targetends[i]++;
+            }
+
+            ChromosomeSequence chrsequence = getGenomeChromosome(genome, nowRefName, nowRefLen);
+            if (chrsequence == null) {
+                return;
+            }
+
+            bamfolog.log("Calling " + nowRefName);
+
+            snvinfo.clear();
+            indelinfo.clear();
+            int lastdrain = 1;
+            // lastend is the right-most locus that can hold evidence from the reads processed so far
+            int lastend = 0;
+            int prevblockend = 0;
+
+            for (int b = 0; b < blockstarts.length; b++) {
+                int blockstart = blockstarts[b] + 1;
+                int blockend = Math.min(blockends[b], nowRefLen);
+                if (blockstart > blockend) {
+                    continue;
+                }
+
+                // finish the evidence from previous blocks and skip over the gap
+                int blockdrain = blockstart - (blockstart % CACHELOCATIONS);
+                if (blockdrain > lastdrain) {
+                    genotypeTargetLoci(vcfout, snvinfo, indelinfo, indelquasicalled, chrsequence,
+                            lastdrain, Math.min(blockdrain, Math.max(lastdrain, lastend + 1)), targetstarts, targetends);
+                    snvinfo.setWindowStart(blockdrain);
+                    anchorcache.setWindowStart(blockdrain);
+                    lastdrain = blockdrain;
+                }
+
+                SAMRecordIterator it = inputSam.queryOverlapping(nowRefName, blockstart, blockend);
+                try {
+                    while (it.hasNext()) {
+                        SAMRecord samRecord = it.next();
+                        int nowpos = samRecord.getAlignmentStart();
+                        // records that overlap the previous block have already been processed
+                        if (nowpos <= prevblockend || !isCallableRecord(samRecord)) {
+                            continue;
+                        }
+
+                        try {
+                            modifyGenotype(b2r, snvinfo, indelinfo, chrsequence, null, samRecord);
+                        } catch (Exception ex) {
+                            bamfolog.log(true, "Error during calling: " + ex.getMessage());
+                            bamfolog.log(true, samRecord.getSAMString());
+                            return;
+                        }
+                        lastend = Math.max(lastend, samRecord.getAlignmentEnd());
+
+                        int drainto = nowpos - (nowpos % CACHELOCATIONS);
+                        if (drainto > lastdrain && nowRefLen - nowpos > CACHELOCATIONS) {
+                            if (Thread.currentThread().isInterrupted()) {
+                                bamfolog.log("Calling interrupted");
+                                return;
+                            }
+                            lastdrain = genotypeTargetLoci(vcfout, snvinfo, indelinfo, indelquasicalled,
+                                    chrsequence, lastdrain, drainto, targetstarts, targetends);
+                        }
                     }
+                } finally {
+                    it.close();
+                }
+                // reads that start in the skipped gap can leave indels anchored before the window
+                removeIndelsBefore(indelinfo, lastdrain);
+                prevblockend = blockend;
+            }
 
-                    bamfolog.log("Calling " + nowRefName);
+            // genotype what is left on this chromosome
+            genotypeTargetLoci(vcfout, snvinfo, indelinfo, indelquasicalled, chrsequence,
+                    lastdrain, Math.max(lastdrain, Math.min(lastend + 1, nowRefLen + 1)), targetstarts, targetends);
+            indelquasicalled.clear();
+        }
 
-                    // initialize a new chrinfo object that will store pileup information
-                    snvinfo = new HashMap<Integer, LocusSNVDataList>(2 * CACHELOCATIONS);
+        bamfolog.log(anchorcache.getMetrics());
+        bamfolog.log("Calling complete");
+    }
+
+    /**
+     * Removes indel evidence anchored before a locus. Such loci have already
+     * been genotyped (or skipped), so the evidence would never be drained.
+     *
+     * @param indelinfo
+     * @param pos
+     */
+    private static void removeIndelsBefore(HashMap<Integer, LocusIndelDataList> indelinfo, int pos) {
+        Iterator<Integer> it = indelinfo.keySet().iterator();
+        while (it.hasNext()) {
+            if (it.next() < pos) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Variant of genotypeLoci that only reports variants inside target
+     * regions. Loci between the targets are processed, but not reported.
+     *
+     * @param targetstarts
+     *
+     * sorted start positions of targets, 1-based coordinate system
+     *
+     * @param targetends
+     *
+     * end positions of targets, 1-based coordinate system, not included in
+     * the targets
+     *
+     * @return
+     */
+    private int genotypeTargetLoci(VcfWriter vcfout, LocusSNVPileup snvinfo,
+            HashMap<Integer, LocusIndelDataList> indelinfo,
+            HashMap<Integer, LocusIndelQuasiCalled> indelquasicalled,
+            ChromosomeSequence chrsequence, int startpos, int endpos,
+            int[] targetstarts, int[] targetends) throws IOException {
+
+        // find the first target that ends after startpos
+        int t = Arrays.binarySearch(targetends, startpos);
+        t = t < 0 ? -t - 1 : t + 1;
+
+        int nowpos = startpos;
+        while (nowpos < endpos) {
+            if (t >= targetstarts.length || targetstarts[t] >= endpos) {
+                genotypeLoci(null, snvinfo, indelinfo, indelquasicalled, chrsequence, nowpos, endpos);
+                nowpos = endpos;
+            } else if (nowpos < targetstarts[t]) {
+                genotypeLoci(null, snvinfo, indelinfo, indelquasicalled, chrsequence, nowpos, targetstarts[t]);
+                nowpos = targetstarts[t];
+            } else {
+                int targetend = Math.min(endpos, targetends[t]);
+                genotypeLoci(vcfout, snvinfo, indelinfo, indelquasicalled, chrsequence, nowpos, targetend);
+                nowpos = targetend;
+                t++;
+            }
+        }
+        return endpos;
+    }
+
+    /**
+     * Looks up a chromosome in the reference genome.
+     *
+     * @param genome
+     * @param chrname
+     * @param chrlen
+     *
+     * expected length of the chromosome, as declared in the alignment header
+     *
+     * @return
+     *
+     * object giving access to the sequence of the chromosome. null if the
+     * chromosome is missing or has a discordant length.
+     */
+    private ChromosomeSequence getGenomeChromosome(IndexedFastaReader genome, String chrname, int chrlen) {
+        ChromosomeSequence chrsequence = genome.getChromosome(chrname);
+        if (chrsequence == null) {
+            bamfolog.log(true, "Error: chromsome " + chrname + " does not appear in the genome reference file");
+            return null;
+        }
+        // check that the chromsome lengths in alignment and reference match
+        if (chrlen != chrsequence.getChromosomeLength()) {
+            bamfolog.log(true, "Error: discordant lengths on chromosome " + chrname);
+            return null;
+        }
+        return chrsequence;
+    }
+
+    /**
+     * Check if a record should be used for calling, i.e. if it is aligned,
+     * primary, and non-duplicate.
+     *
+     * @param record
+     * @return
+     */
+    static boolean isCallableRecord(SAMRecord record) {
+        return record.getReferenceIndex() > -1 && !record.getNotPrimaryAlignmentFlag()
+                && !record.getReadUnmappedFlag() && !record.getDuplicateReadFlag();
+    }
+
+    /**
+     * Check if a chromosome holds at least one record that can be used for
+     * calling. (The single-threaded caller only visits such chromosomes.)
+     *
+     * @param inputSam
+     *
+     * an indexed alignment reader
+     *
+     * @param chrname
+     * @return
+     */
+    private static boolean hasCallableRecords(SAMFileReader inputSam, String chrname) {
+        SAMRecordIterator it = inputSam.query(chrname, 0, 0, false);
+        try {
+            while (it.hasNext()) {
+                if (isCallableRecord(it.next())) {
+                    return true;
+                }
+            }
+        } finally {
+            it.close();
+        }
+        return false;
+    }
+
+    /**
+     * Multi-threaded version of genotypeBam. Each chromosome is split into
+     * shards that are called independently using their own indexed readers.
+     * The output from the shards is written out in coordinate order and is
+     * the same as from the single-threaded genotypeBam.
+     *
+     * @param inputSam
+     *
+     * an initialized reader of an indexed alignment file
+     *
+     * @param genome
+     *
+     * reader of the reference genome (shared by all the shards)
+     *
+     * @param vcfout
+     * @throws IOException
+     */
+    private void genotypeBamThreaded(SAMFileReader inputSam, IndexedFastaReader genome, VcfWriter vcfout,
+            int firstref) throws IOException {
+
+        // record starting time          
+        bamfolog.log("Starting variant calling with Bamformatics (" + threads + " threads)");
+        String[] temp = settings.printAllOptions().split("\n");
+        for (int i = 0; i < temp.length; i++) {
+            bamfolog.log(temp[i]);
+        }
+
+        // each thread will use one of these readers at a time
+        ArrayBlockingQueue<SAMFileReader> readers = new ArrayBlockingQueue<>(threads);
+        for (int i = 0; i < threads; i++) {
+            SAMFileReader reader = new SAMFileReader(bamfiles.get(0));
+            BamfoCommon.updateValidationStringency(reader, settings.getValidate());
+            readers.add(reader);
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+
+        // all shards share the mapped genome, so shards from all chromosomes 
+        // can be prepared at once (preparation stops at the first chromosome
+        // that cannot be called, as in the single-threaded caller)
+        boolean submittedall = true;
+        ArrayList<ShardCaller> shardcallers = new ArrayList<>(256);
+        // for the last shard on each chromosome, the index of the chromosome (otherwise -1)
+        ArrayList<Integer> shardrefs = new ArrayList<>(256);
+        // shards are submitted through a window, so that finished shards cannot
+        // pile up in memory faster than the writer consumes them
+        int maxinflight = 2 * threads;
+        SAMSequenceDictionary dictionary = inputSam.getFileHeader().getSequenceDictionary();
+        try {
+            for (int nowRef = firstref; nowRef < dictionary.size(); nowRef++) {
+                SAMSequenceRecord ssr = dictionary.getSequence(nowRef);
+                if (Thread.currentThread().isInterrupted()) {
+                    bamfolog.log("Calling interrupted");
+                    return;
+                }
+
+                String nowRefName = ssr.getSequenceName();
+                int nowRefLen = ssr.getSequenceLength();
+                if (!hasCallableRecords(inputSam, nowRefName)) {
+                    continue;
+                }
+                ChromosomeSequence chrsequence = getGenomeChromosome(genome, nowRefName, nowRefLen);
+                if (chrsequence == null) {
+                    submittedall = false;
+                    break;
                 }
 
-                // parse information from this record to 
-                // add the contribution of this read to the coverage
+                bamfolog.log("Calling " + nowRefName);
+
+                // prepare all the shards on this chromosome
+                for (int shardstart = 1; shardstart <= nowRefLen;) {
+                    int shardend = Math.min(shardstart - (shardstart % SHARDLENGTH) + SHARDLENGTH, 1 + nowRefLen);
+                    shardcallers.add(new ShardCaller(readers, chrsequence,
+                            nowRefName, nowRefLen, shardstart, shardend));
+                    shardrefs.add(shardend > nowRefLen ? nowRef : -1);
+                    shardstart = shardend;
+                }
+            }
+
+            // collect the shard output in order, keeping at most maxinflight
+            // shards submitted but not yet written
+            ArrayList<Future<byte[]>> shards = new ArrayList<>(shardcallers.size());
+            for (int i = 0; i < shardcallers.size(); i++) {
+                while (shards.size() < shardcallers.size() && shards.size() < i + maxinflight) {
+                    shards.add(pool.submit(shardcallers.get(shards.size())));
+                }
+                byte[] shardvariants = shards.get(i).get();
+                // the output of a written shard is not needed anymore
+                shards.set(i, null);
+                if (shardvariants == null) {
+                    return;
+                }
+                vcfout.writeRecords(shardvariants);
+                if (shardrefs.get(i) >= 0) {
+                    writeCheckpoint(vcfout, shardrefs.get(i), false);
+                }
+            }
+        } catch (InterruptedException ex) {
+            bamfolog.log("Calling interrupted");
+            return;
+        } catch (ExecutionException ex) {
+            bamfolog.log(true, "Error during calling: " + ex.getCause().getMessage());
+            return;
+        } finally {
+            pool.shutdownNow();
+            for (SAMFileReader reader : readers) {
+                reader.close();
+            }
+        }
+
+        if (submittedall) {
+            writeCheckpoint(vcfout, dictionary.size() - 1, true);
+            bamfolog.log(anchorcache.getMetrics());
+            bamfolog.log("Calling complete");
+        }
+    }
+
+    /**
+     * Calls variants in one shard of a chromosome, i.e. between shardstart
+     * (included) and shardend (not included). Reads are fetched from an
+     * indexed reader starting a margin before the shard. Loci in this margin
+     * are processed just like in the single-threaded caller, but they are not
+     * reported.
+     *
+     * @param inputSam
+     *
+     * reader of an indexed alignment
+     *
+     * @param chrsequence
+     *
+     * sequence of the chromosome
+     *
+     * @param chrname
+     * @param chrlen
+     * @param shardstart
+     *
+     * 1-based coordinate system
+     *
+     * @param shardend
+     *
+     * 1-based coordinate system
+     *
+     * @return
+     *
+     * bytes with vcf-formated variants, or null if calling failed
+     *
+     * @throws IOException
+     */
+    private byte[] genotypeShard(SAMFileReader inputSam, ChromosomeSequence chrsequence,
+            String chrname, int chrlen, int shardstart, int shardend) throws IOException {
+
+        ByteArrayOutputStream shardbytes = new ByteArrayOutputStream(4096);
+        VcfWriter shardout = new VcfWriter(shardbytes);
+        int marginstart = Math.max(1, shardstart - SHARDMARGIN);
+        int lastdrain = marginstart;
+
+        LocusSNVPileup snvinfo = newPileup();
+        snvinfo.setWindowStart(marginstart);
+        HashMap<Integer, LocusIndelDataList> indelinfo = new HashMap<>(2 * CACHELOCATIONS);
+        HashMap<Integer, LocusIndelQuasiCalled> indelquasicalled = new HashMap<>(8);
+        BamfoRecord b2r = new BamfoRecord(settings.isTrimBtail(), settings.isTrimpolyedge());
+
+        // in prescan mode, mark the candidate loci before collecting evidence
+        CandidateSites candidates = null;
+        if (prescan) {
+            candidates = new CandidateSites(inputSam, chrsequence, settings.getMindepth(),
+                    settings.isTrimBtail(), settings.isTrimpolyedge());
+            candidates.scan(marginstart, shardend);
+        }
+
+        SAMRecordIterator it = inputSam.queryOverlapping(chrname, marginstart, 0);
+        try {
+            while (it.hasNext() && lastdrain < shardend) {
+                SAMRecord samRecord = it.next();
+                if (!isCallableRecord(samRecord)) {
+                    continue;
+                }
+                int nowpos = samRecord.getAlignmentStart();
+
                 try {
-                    //modifyGenotype(snvinfo, indelinfo, indelquasicalled, genomereader, samRecord);
-                    modifyGenotype(snvinfo, indelinfo, genomereader, samRecord);
+                    modifyGenotype(b2r, snvinfo, indelinfo, chrsequence, candidates, samRecord);
                 } catch (Exception ex) {
                     bamfolog.log(true, "Error during calling: " + ex.getMessage());
                     bamfolog.log(true, samRecord.getSAMString());
-                    return;
+                    return null;
                 }
 
-                // perhaps drain the chrinfo if the fill index has run too far ahead of the drain index
-                if (nowpos - lastdrain > CACHELOCATIONS && nowRefLen - nowpos > CACHELOCATIONS) {
+                // drain on the same loci as the single-threaded caller
+                int drainto = nowpos - (nowpos % CACHELOCATIONS);
+                if (drainto > lastdrain && chrlen - nowpos > CACHELOCATIONS) {
                     if (Thread.currentThread().isInterrupted()) {
-                        bamfolog.log("Calling interrupted");
-                        return;
+                        return null;
                     }
-                    lastdrain = genotypeLoci(outstream, snvinfo, indelinfo, indelquasicalled, genomereader, lastdrain, nowpos);
+                    lastdrain = genotypeShardLoci(shardout, snvinfo, indelinfo, indelquasicalled,
+                            chrsequence, lastdrain, Math.min(drainto, shardend), shardstart);
                 }
             }
-        } // end of for loop over records
+        } finally {
+            it.close();
+        }
 
-        // if there is still something left in the chrinfo, genotype from the current index beyond the chromosome length
-        if (nowRef != -1) {
-            lastdrain = genotypeLoci(outstream, snvinfo, indelinfo, indelquasicalled, genomereader, lastdrain, 1 + nowRefLen);
+        // genotype what is left (up to the end of the chromosome)
+        if (lastdrain < shardend) {
+            genotypeShardLoci(shardout, snvinfo, indelinfo, indelquasicalled,
+                    chrsequence, lastdrain, shardend, shardstart);
         }
 
-        bamfolog.log("Calling complete");
+        shardout.flush();
+        return shardbytes.toByteArray();
+    }
 
-        // print out some stats to check for 'memory leaks' i.e. information retained in the maps
-        // the maps should be empty at the end of the analysis
-        //
-        //outputStream.println("snvinfo: " + snvinfo.size());
-        //outputStream.println("indelinfo: " + indelinfo.size());
-        //outputStream.println("indelquasicalled: " + indelquasicalled.size());
+    /**
+     * Variant of genotypeLoci that only reports variants at or beyond
+     * shardstart.
+     *
+     * @return
+     */
+    private int genotypeShardLoci(VcfWriter vcfout, LocusSNVPileup snvinfo,
+            HashMap<Integer, LocusIndelDataList> indelinfo,
+            HashMap<Integer, LocusIndelQuasiCalled> indelquasicalled,
+            ChromosomeSequence chrsequence, int startpos, int endpos, int shardstart) throws IOException {
+        if (startpos < shardstart) {
+            genotypeLoci(null, snvinfo, indelinfo, indelquasicalled, chrsequence,
+                    startpos, Math.min(endpos, shardstart));
+        }
+        if (endpos > shardstart) {
+            genotypeLoci(vcfout, snvinfo, indelinfo, indelquasicalled, chrsequence,
+                    Math.max(startpos, shardstart), endpos);
+        }
+        return endpos;
+    }
+
+    /**
+     * Task that calls variants in one shard. It borrows an alignment reader
+     * from a shared pool and uses a new worker object so that formatting
+     * objects are not shared between threads.
+     */
+    private class ShardCaller implements Callable<byte[]> {
+
+        private final ArrayBlockingQueue<SAMFileReader> readers;
+        private final ChromosomeSequence chrsequence;
+        private final String chrname;
+        private final int chrlen, shardstart, shardend;
+
+        public ShardCaller(ArrayBlockingQueue<SAMFileReader> readers, ChromosomeSequence chrsequence,
+                String chrname, int chrlen, int shardstart, int shardend) {
+            this.readers = readers;
+            this.chrsequence = chrsequence;
+            this.chrname = chrname;
+            this.chrlen = chrlen;
+            this.shardstart = shardstart;
+            this.shardend = shardend;
+        }
+
+        @Override
+        public byte[] call() throws Exception {
+            SAMFileReader reader = readers.take();
+            try {
+                BamfoVcf worker = new BamfoVcf(BamfoVcf.this);
+                byte[] shardvariants = worker.genotypeShard(reader, chrsequence, chrname, chrlen, shardstart, shardend);
+                anchorcache.addCounts(worker.anchorcache);
+                return shardvariants;
+            } finally {
+                readers.put(reader);
+            }
+        }
     }
 
     /**
      * Parses a record and stores information from the record into data
      * structures that can later be used to call variants.
      *
+     * @param b2r
+     *
+     * a reusable object that will hold the record and some derived quantities
+     *
      * @param snvinfo
      * @param indelinfo
-     * @param genomereader
+     * @param chrsequence
+     * @param candidates
      * @param record
      */
-    private void modifyGenotype(HashMap<Integer, LocusSNVDataList> snvinfo,
+    private void modifyGenotype(BamfoRecord b2r, LocusSNVPileup snvinfo,
             HashMap<Integer, LocusIndelDataList> indelinfo,
-            FastaReader genomereader, SAMRecord record) {
+            ChromosomeSequence chrsequence, CandidateSites candidates, SAMRecord record) {
 
-        // create an object holding the record and some derived quantities 
+        // load the record and some derived quantities 
         // this will provide easy access to the positions of each base, etc.
-        BamfoRecord b2r = new BamfoRecord(record, settings.isTrimBtail(), settings.isTrimpolyedge());
+        b2r.load(record);
+        modifyGenotype(b2r, snvinfo, indelinfo, chrsequence, candidates);
+    }
+
+    /**
+     * Stores information from a record that has already been loaded into a
+     * BamfoRecord.
+     *
+     * @param b2r
+     * @param snvinfo
+     * @param indelinfo
+     * @param chrsequence
+     * @param candidates
+     *
+     * loci where substitution evidence is collected (if null, all loci)
+     */
+    private void modifyGenotype(BamfoRecord b2r, LocusSNVPileup snvinfo,
+            HashMap<Integer, LocusIndelDataList> indelinfo,
+            ChromosomeSequence chrsequence, CandidateSites candidates) {
 
         byte[] bases = b2r.bases;
 
@@ -411,24 +1735,27 @@ public class BamfoVcf extends BamfoTool implements Runnable {
             // loop over the cigars  
             int nowp = b2r.startpos;
             int nowi = 0;
-            for (int i = 0; i < b2r.cigarelements.size(); i++) {
-                CigarElement ce = b2r.cigarelements.get(i);
-                int celen = ce.getLength();
+            for (int i = 0; i < b2r.numcigar; i++) {
+                int celen = b2r.cigarlengths[i];
 
                 boolean heredeletion = false;
                 boolean hereinsertion = false;
+                // the indel sequence is indel[indeloffset, indeloffset+celen)
                 byte[] indel = null;
+                int indeloffset = 0;
                 int indelstart = nowp; // start position in genome coordinates                
                 int indelindex = nowi; // start position in read coordinates
 
-                switch (ce.getOperator()) {
+                switch (b2r.cigarops[i]) {
                     case M:
                         nowp += celen;
                         nowi += celen;
                         break;
                     case D:
                         nowp += celen;
-                        indel = genomereader.getSequenceBase1(indelstart, nowp - 1);
+                        indelbuffer = ensureLength(indelbuffer, celen);
+                        chrsequence.getSequenceBase1(indelstart, nowp - 1, indelbuffer);
+                        indel = indelbuffer;
                         indelindex = nowi;
                         heredeletion = true;
                         break;
@@ -442,9 +1769,10 @@ public class BamfoVcf extends BamfoTool implements Runnable {
                         nowi += celen;
                         break;
                     case I:
-                        indel = new byte[celen];
+                        // the inserted sequence is read directly from the read bases
+                        indel = bases;
+                        indeloffset = nowi;
                         indelindex = nowi;
-                        System.arraycopy(bases, nowi, indel, 0, celen);
                         nowi += celen; // advance nowi to be ready for the next cigar operator
                         hereinsertion = true;
                         break;
@@ -460,9 +1788,10 @@ public class BamfoVcf extends BamfoTool implements Runnable {
 
                     // find out if the anchor is really there or should be shifted to the left
                     // try to evaluate the anchor using genomic sequence                   
-                    int anchorpos = BamfoCommon.getAnchorPosition(genomereader, indelstart, indel);
+                    // (reads with the same indel share this anchor, so it is looked up in a cache)
+                    int anchorpos = anchorcache.getAnchorPosition(chrsequence, indelstart, indel, indeloffset, celen);
                     // evaluate anchor relative to the read sequence
-                    int readanchorpos = BamfoCommon.getAnchorPosition(bases, indelindex, indel);
+                    int readanchorpos = BamfoCommon.getAnchorPosition(bases, indelindex, indel, indeloffset, celen);
                     int anchorpos2 = indelstart - (indelindex - readanchorpos);
                     
                     // avoid errors when indels are at start of chromosome
@@ -471,17 +1800,22 @@ public class BamfoVcf extends BamfoTool implements Runnable {
                     indelstart = Math.max(1, indelstart);
 
                     // use the anchor that is furthest to the left
+                    // (the anchor sequence is anchor[anchoroffset, anchoroffset+anchorlen))
                     byte[] anchor;
+                    int anchoroffset, anchorlen;
                     if (anchorpos <= anchorpos2) {
-                        anchor = genomereader.getSequenceBase1(anchorpos, indelstart);
+                        anchor = anchorcache.getAnchorSequence();
+                        anchoroffset = 0;
+                        anchorlen = anchor.length;
                     } else {
-                        anchor = new byte[1 + indelindex - readanchorpos];
-                        System.arraycopy(bases, readanchorpos - 1, anchor, 0, anchor.length);
+                        anchor = bases;
+                        anchoroffset = readanchorpos - 1;
+                        anchorlen = 1 + indelindex - readanchorpos;
                         anchorpos = anchorpos2;
                         //make sure the first base of the anchor corresponds to the genome
-                        //anchor[0] = genomereader.getBaseAtPositionBase1(anchorpos);
+                        //anchor[0] = chrsequence.getBaseAtPositionBase1(anchorpos);
                     }
-                    anchorbase = genomereader.getBaseAtPositionBase1(anchorpos);
+                    anchorbase = chrsequence.getBaseAtPositionBase1(anchorpos);
                     
                     // record this indel
                     LocusIndelDataList nowIDL = indelinfo.get(anchorpos);
@@ -491,7 +1825,8 @@ public class BamfoVcf extends BamfoTool implements Runnable {
                     }
                     
                     //save information about this indel into the list of indel data anchored 
-                    nowIDL.add(anchor, indel, indelstart, b2r, indelindex, hereinsertion);
+                    nowIDL.add(anchor, anchoroffset, anchorlen, indel, indeloffset, celen,
+                            indelstart, b2r, indelindex, hereinsertion);
                 }
             }
 
@@ -500,28 +1835,33 @@ public class BamfoVcf extends BamfoTool implements Runnable {
         // now for each position record the information about base substitutions        
         int[] pos = b2r.pos;
         for (int nowindex = 0; nowindex < b2r.readlength; nowindex++) {           
-            if (pos[nowindex] > 0) {
-
-                LocusSNVDataList nowGDL = snvinfo.get(pos[nowindex]);
-                if (nowGDL == null) {
-                    nowGDL = new LocusSNVDataList(pos[nowindex]);
-                    snvinfo.put(pos[nowindex], nowGDL);
-                }
+            if (pos[nowindex] > 0 && (candidates == null || candidates.isCandidate(pos[nowindex]))) {
 
                 // save information about this base
-                nowGDL.add(b2r, nowindex);
+                snvinfo.add(pos[nowindex], chrsequence.getBaseAtPositionBase1(pos[nowindex]), b2r, nowindex);
             }
         }
 
     }
 
+    private static byte[] ensureLength(byte[] buffer, int length) {
+        if (buffer.length >= length) {
+            return buffer;
+        }
+        return new byte[Math.max(2 * buffer.length, length)];
+    }
+
     /**
      * calls variants in genomic regions between startpos (included) and endpos
      * (not included)
      *
-     * @param outstream
+     * @param vcfout
+     *
+     * stream for the variants. Can be null, in which case the loci are
+     * processed but the calls are not reported.
+     *
      * @param snvinfo
-     * @param genomereader
+     * @param chrsequence
      * @param startpos
      *
      * 1-based coordinate system
@@ -533,10 +1873,14 @@ public class BamfoVcf extends BamfoTool implements Runnable {
      * @return
      * @throws IOException
      */
-    private int genotypeLoci(OutputStream outstream, HashMap<Integer, LocusSNVDataList> snvinfo,
+    private int genotypeLoci(VcfWriter vcfout, LocusSNVPileup snvinfo,
             HashMap<Integer, LocusIndelDataList> indelinfo,
             HashMap<Integer, LocusIndelQuasiCalled> indelquasicalled,
-            FastaReader genomereader, int startpos, int endpos) throws IOException {
+            ChromosomeSequence chrsequence, int startpos, int endpos) throws IOException {
+
+        if (sweepcallers != null) {
+            return genotypeSweepLoci(snvinfo, indelinfo, chrsequence, startpos, endpos);
+        }
 
         for (int i = startpos; i < endpos; i++) {
             try {
@@ -553,11 +1897,13 @@ public class BamfoVcf extends BamfoTool implements Runnable {
 
                 if (lgl != null || liqc != null) {
 
-                    VcfEntry entry = getSNVAndIndelCall(lgl, liqc, genomereader.getBaseAtPositionBase1(i));
+                    VcfEntry entry = getSNVAndIndelCall(lgl, liqc, chrsequence.getBaseAtPositionBase1(i));
                     if (entry != null) {
-                        entry.setChr(genomereader.getChromosomeName());
+                        entry.setChr(chrsequence.getChromosomeName());
                         entry.setPosition(i);
-                        outstream.write(entry.toString().getBytes());
+                        if (vcfout != null) {
+                            vcfout.write(entry);
+                        }
                         // if the entry is an indel. also post-process (avoids memory leaks) 
                         if (entry.isIndel()) {
                             postprocessIndel(entry, snvinfo);
@@ -569,7 +1915,7 @@ public class BamfoVcf extends BamfoTool implements Runnable {
                     indelquasicalled.remove(i);
                 }
             } catch (Exception ex) {
-                bamfolog.log("Exception at " + genomereader.getChromosomeName() + ":" + i);
+                bamfolog.log("Exception at " + chrsequence.getChromosomeName() + ":" + i);
                 if (snvinfo.get(i) != null) {
                     snvinfo.get(i).print();
                 }
@@ -582,10 +1928,109 @@ public class BamfoVcf extends BamfoTool implements Runnable {
 
             }
         }
+        snvinfo.setWindowStart(endpos);
+        anchorcache.setWindowStart(endpos);
+
+        return endpos;
+    }
+
+    /**
+     * Version of genotypeLoci for a parameter sweep. Each locus is scored by
+     * all the sweep callers before it is removed from the pileup. (Also used
+     * with a single caller when the evidence is saved for rescoring.)
+     *
+     * @param snvinfo
+     * @param indelinfo
+     * @param chrsequence
+     * @param startpos
+     * @param endpos
+     * @return
+     * @throws IOException
+     */
+    private int genotypeSweepLoci(LocusSNVPileup snvinfo,
+            HashMap<Integer, LocusIndelDataList> indelinfo,
+            ChromosomeSequence chrsequence, int startpos, int endpos) throws IOException {
+
+        String chrname = chrsequence.getChromosomeName();
+        for (int i = startpos; i < endpos; i++) {
+            LocusIndelDataList indellist = indelinfo.remove(i);
+            LocusSNVDataList lgl = snvinfo.get(i);
+            if (lgl == null && indellist == null) {
+                continue;
+            }
+            byte refbase = chrsequence.getBaseAtPositionBase1(i);
+            // save loci that can become calls with some thresholds (see EvidenceCache)
+            if (evidence != null && lgl != null && refbase != 'N'
+                    && (indellist != null || lgl.getNonReferenceCount(refbase) >= getEvidenceDepth())) {
+                evidence.add(chrname, i, refbase, lgl, indellist);
+            }
+            for (int k = 0; k < sweepcallers.length; k++) {
+                try {
+                    sweepcallers[k].callSweepLocus(chrname, i, lgl, indellist, refbase, true);
+                } catch (Exception ex) {
+                    bamfolog.log("Exception at " + chrsequence.getChromosomeName() + ":" + i
+                            + " in profile " + sweepcallers[k].profilelabel);
+                }
+            }
+            snvinfo.remove(i);
+        }
+        snvinfo.setWindowStart(endpos);
+        anchorcache.setWindowStart(endpos);
 
         return endpos;
     }
 
+    /**
+     * Calls one locus with the settings of this sweep caller and writes the
+     * call to the output of the caller. The evidence is shared with the other
+     * callers and is not modified.
+     *
+     * @param chrname
+     * @param pos
+     * @param lgl
+     * @param indellist
+     * @param refbase
+     * @param report
+     *
+     * set false to process the locus without writing the call
+     *
+     * @throws IOException
+     */
+    private void callSweepLocus(String chrname, int pos, LocusSNVDataList lgl,
+            LocusIndelDataList indellist, byte refbase, boolean report) throws IOException {
+
+        // loci within a deletion called by this profile are skipped
+        // (the single-profile caller removes them from the pileup instead)
+        if (!chrname.equals(deletionchr)) {
+            deletionchr = chrname;
+            deletionend = 0;
+        }
+        if (pos <= deletionend) {
+            return;
+        }
+
+        LocusIndelQuasiCalled liqc = null;
+        if (indellist != null) {
+            preprocessIndelGenotype(pos, indellist, sweepquasicalled);
+            liqc = sweepquasicalled.remove(pos);
+        }
+        if (lgl == null) {
+            return;
+        }
+
+        VcfEntry entry = getSNVAndIndelCall(lgl, liqc, refbase);
+        if (entry != null) {
+            entry.setChr(chrname);
+            entry.setPosition(pos);
+            if (report) {
+                sweepout.write(entry);
+            }
+            if (entry.isIndel()) {
+                deletionend = Math.max(deletionend, pos + entry.getRef().length() - 1);
+            }
+        }
+    }
+
     /**
      *
      * @param locus
@@ -596,7 +2041,7 @@ public class BamfoVcf extends BamfoTool implements Runnable {
      *
      *
      */
-    private VcfEntry getSNVCall(LocusSNVDataList locus, byte refbase) {
+    private VcfEntry getSNVCall(LocusSNVDataList locus, LocusSNVSummary summary, byte refbase) {
 
         if (locus == null || refbase == 'N') {
             return null;
@@ -610,14 +2055,12 @@ public class BamfoVcf extends BamfoTool implements Runnable {
         // Some string that will make up the vcf entry
         String alt = "";
 
-        // get coverage information from the list at this locus
+        // get coverage information from the summary of this locus
+        // (copies, as the counts are modified below)
         int[] covtot = new int[5];
-        int[] covplus = new int[5];
-        int[] covminus = new int[5];
-        int[] maxns = new int[5];
-        locus.getCoverageCounts(covplus, covminus, maxns,
-                settings.getMinfromstart(), settings.getMinfromend(),
-                settings.getMinbasequal(), settings.getMinmapqual());
+        int[] covplus = summary.covplus.clone();
+        int[] covminus = summary.covminus.clone();
+        int[] maxns = summary.maxn;
         // get coverage totals
         int totminus = 0, totplus = 0;
         for (int i = 0; i < 5; i++) {
@@ -707,9 +2150,9 @@ public class BamfoVcf extends BamfoTool implements Runnable {
         int nowDS = Integer.MAX_VALUE;
         for (int i = 0; i < 4; i++) {
             if (significant[i]) {
-                int thisUFS = locus.getNumberUniqueFromstart(BamfoCommon.ZeroToFourToByte(i));
+                int thisUFS = summary.getNumberUniqueFromstart(i);
                 if (i == whichref && settings.isNRef()) {
-                    thisUFS += locus.getNumberUniqueFromstart((byte) 'N');
+                    thisUFS += summary.getNumberUniqueFromstart(BamfoCommon.codeN);
                 }
                 if (thisUFS < 2) {
                     significant[i] = false;
@@ -739,7 +2182,7 @@ public class BamfoVcf extends BamfoTool implements Runnable {
                     alt += "," + BamfoCommon.ZeroToFourToBase(i);
                 }
 
-                maxNMtag = Math.max(maxNMtag, locus.getMeanNMtag(BamfoCommon.ZeroToFourToByte(i)));
+                maxNMtag = Math.max(maxNMtag, summary.getMeanNMtag(i));
                 // also find out the maximal intron gap length for all significant variants
                 if (maxns[i] > maxmaxN) {
                     maxmaxN = maxns[i];
@@ -753,14 +2196,13 @@ public class BamfoVcf extends BamfoTool implements Runnable {
         // conver the minfisherp into phred scale
         minfisherp = Math.abs(10.0 * Math.log10(minfisherp));
 
-        int[] lowcounts = locus.getLowQualityCounts(settings.getMinfromstart(), settings.getMinfromend(),
-                settings.getMinbasequal(), settings.getMinmapqual());
+        int[] lowcounts = summary.lowcounts;
 
         // finally, put the information together to create the summary for the sample                
         String sampleGT = getGTString(numsignificant, significant[whichref]) + ":"
                 + ((int) Math.floor(score)) + ":" + tottot + ":"
                 + scoreformat.format(minfisherp) + ":"
-                + maxmaxN + ":" + scoreformat.format(locus.getMedianMappingQuality())
+                + maxmaxN + ":" + scoreformat.format(summary.getMedianMappingQuality())
                 + ":" + lowcounts[0] + ":" + lowcounts[1] + ":" + nowDS + ":" + maxNMtag;
 
         VcfEntry entry = new VcfEntry();
@@ -857,17 +2299,20 @@ public class BamfoVcf extends BamfoTool implements Runnable {
             return null;
         }
 
+        // collect all the evidence at the locus in one sweep
+        locus.summarize(locussummary, settings.getMinfromstart(),
+                settings.getMinfromend(), settings.getMinbasequal(),
+                settings.getMinmapqual());
+
         // get genotype for substitutions
-        VcfEntry snvans = getSNVCall(locus, refbase);
+        VcfEntry snvans = getSNVCall(locus, locussummary, refbase);
 
         // if there are no indels, just do the calcualtion for substitutions
         if (liqc == null) {
             return snvans;
         }
 
-        int[] locusdepth = locus.getStrandEffectiveDepth(settings.getMinfromstart(),
-                settings.getMinfromend(), settings.getMinbasequal(),
-                settings.getMinmapqual());
+        int[] locusdepth = locussummary.getStrandEffectiveDepth();
         VcfEntry ans = getIndelCall(liqc, locusdepth[0], locusdepth[1]);
 
         if (ans == null) {
@@ -975,7 +2420,7 @@ public class BamfoVcf extends BamfoTool implements Runnable {
 
     }
 
-    private void postprocessIndel(VcfEntry entry, HashMap<Integer, LocusSNVDataList> snvinfo) {
+    private void postprocessIndel(VcfEntry entry, LocusSNVPileup snvinfo) {
 
         // get the length of the reference sequence in the vcf entry
         int entryreflen = entry.getRef().length();
@@ -1018,46 +2463,396 @@ public class BamfoVcf extends BamfoTool implements Runnable {
         }
 
         // create a reader for the reference genome
-        FastaReader genomereader;
+        IndexedFastaReader genome;
         try {
-            genomereader = new FastaReader(BufferedReaderMaker.makeBufferedReader(settings.getGenome()));
+            genome = new IndexedFastaReader(new File(settings.getGenome()));
         } catch (Exception ex) {
             outputStream.println("Could not open the genome file: " + ex.getMessage());
             return;
         }
 
+        if (profiles != null || evidencefile != null) {
+            runSweep(genome);
+            return;
+        }
+
+        // when resuming, find the first chromosome that was not completed
+        int firstref = 0;
+        CallCheckpoint checkpoint = null;
+        if (resume && checkpointfile.exists()) {
+            try {
+                checkpoint = CallCheckpoint.read(checkpointfile);
+            } catch (Exception ex) {
+                outputStream.println("Could not read checkpoint: " + ex.getMessage());
+                return;
+            }
+            if (!checkpoint.settingshash.equals(getSettingsHash())) {
+                outputStream.println("Checkpoint was created with different settings; cannot resume");
+                return;
+            }
+            if (checkpoint.complete) {
+                bamfolog.log(true, "Calling was already complete");
+                return;
+            }
+            firstref = checkpoint.reference + 1;
+            bamfolog.log(true, "Resuming calling after " + checkpoint.offset + " bytes of output");
+        }
+
         // create the output stream
-        OutputStream outstream;
+        VcfWriter vcfout;
         if (outvcf.equals("stdout")) {
-            outstream = System.out;
+            vcfout = new VcfWriter(System.out);
+        } else if (checkpoint != null) {
+            // discard output written after the checkpoint, then append
+            try {
+                RandomAccessFile raf = new RandomAccessFile(outvcf, "rw");
+                try {
+                    if (raf.length() < checkpoint.offset) {
+                        outputStream.println("Output file is shorter than recorded in the checkpoint; cannot resume");
+                        return;
+                    }
+                    raf.setLength(checkpoint.offset);
+                } finally {
+                    raf.close();
+                }
+                vcfout = new VcfWriter(new BufferedOutputStream(new FileOutputStream(outvcf, true)));
+                checkpointbase = checkpoint.offset;
+            } catch (Exception ex) {
+                outputStream.println("could not open output file: " + ex.getMessage());
+                return;
+            }
         } else {
             try {
-                outstream = OutputStreamMaker.makeOutputStream(outvcf);
+                vcfout = makeVcfWriter(outvcf);
             } catch (Exception ex) {
                 outputStream.println("could not create output file: " + ex.getMessage());
                 return;
             }
         }
 
-        // start processing, open the SAM file and start computing
-        SAMFileReader inputSam = new SAMFileReader(bamfile);
-        BamfoCommon.updateValidationStringency(inputSam, settings.getValidate());
+        // start processing, open the SAM files and start computing
+        SAMFileReader[] inputSams = new SAMFileReader[bamfiles.size()];
+        for (int i = 0; i < inputSams.length; i++) {
+            inputSams[i] = new SAMFileReader(bamfiles.get(i));
+            BamfoCommon.updateValidationStringency(inputSams[i], settings.getValidate());
+        }
+        SAMFileReader inputSam = inputSams[0];
 
         try {
-            writeVcfHeader(outstream, samplelabel);
-            genotypeBam(inputSam, genomereader, outstream);
+            if (checkpoint == null) {
+                writeVcfHeader(vcfout);
+                writeCheckpoint(vcfout, -1, false);
+            }
+            if (inputSams.length > 1) {
+                if (threads > 1) {
+                    bamfolog.log(true, "Joint calling with a single thread");
+                }
+                genotypeBamJoint(inputSams, genome, vcfout);
+            } else if (regions != null) {
+                if (!inputSam.hasIndex()) {
+                    bamfolog.log(true, "Error: calling in target regions requires an indexed alignment");
+                } else {
+                    if (threads > 1) {
+                        bamfolog.log(true, "Calling target regions with a single thread");
+                    }
+                    genotypeRegions(inputSam, genome, vcfout);
+                }
+            } else if (prescan && !inputSam.hasIndex()) {
+                bamfolog.log(true, "Error: prescan requires an indexed alignment");
+            } else if (threads > 1 && inputSam.hasIndex()) {
+                genotypeBamThreaded(inputSam, genome, vcfout, firstref);
+            } else {
+                if (threads > 1) {
+                    bamfolog.log(true, "Alignment is not indexed; calling with a single thread");
+                }
+                genotypeBam(inputSam, genome, vcfout, firstref);
+            }
         } catch (Exception ex) {
             outputStream.println("Error during genotyping: " + ex.getMessage() + "\n");
         }
 
         // close the streams
-        if (outstream != System.out) {
+        for (int i = 0; i < inputSams.length; i++) {
+            inputSams[i].close();
+        }
+        try {
+            if (outvcf.equals("stdout")) {
+                vcfout.flush();
+            } else {
+                vcfout.close();
+            }
+        } catch (IOException ex) {
+            outputStream.println("Error closing vcf: " + ex.getMessage());
+        }
+    }
+
+    private VcfWriter makeVcfWriter(String filename) throws IOException {
+        if (filename.equals("stdout")) {
+            return new VcfWriter(System.out);
+        }
+        if (bgzf) {
+            return new VcfWriter(new File(filename));
+        }
+        return new VcfWriter(OutputStreamMaker.makeOutputStream(filename));
+    }
+
+    /**
+     * A constructor used by the rescore tool. The object calls variants from
+     * saved evidence (see rescore) rather than from an alignment.
+     *
+     * @param s
+     *
+     * settings for calling (used directly, not copied)
+     *
+     * @param bamfile
+     * @param samplelabel
+     *
+     * alignment and label recorded in the evidence file
+     *
+     * @param outvcf
+     * @param bgzf
+     * @param evidencefile
+     * @param profilesfile
+     * @param profiles
+     *
+     * profiles for a parameter sweep (null to call with the settings only)
+     *
+     * @param logstream
+     */
+    BamfoVcf(BamfoSettings s, File bamfile, String samplelabel, String outvcf, boolean bgzf,
+            File evidencefile, File profilesfile, ArrayList<SweepProfile> profiles, PrintStream logstream) {
+        super(logstream);
+        this.settings = s;
+        this.fisher = new BamfoFisherTest();
+        this.bamfiles.add(bamfile);
+        this.samplelabels.add(samplelabel);
+        this.outvcf = outvcf;
+        this.bgzf = bgzf;
+        this.evidencefile = evidencefile;
+        this.profilesfile = profilesfile;
+        this.profiles = profiles;
+        isReady = true;
+    }
+
+    /**
+     * A constructor used by the callsomatic tool. The two alignments are
+     * traversed together as in joint calling, and variants called in the
+     * tumor are reported if they pass the somatic filter.
+     *
+     * @param s
+     *
+     * settings for calling (used directly, not copied)
+     *
+     * @param normalbam
+     * @param tumorbam
+     * @param normallabel
+     * @param tumorlabel
+     * @param outvcf
+     * @param bgzf
+     * @param verbose
+     * @param somatic
+     * @param logstream
+     */
+    BamfoVcf(BamfoSettings s, File normalbam, File tumorbam, String normallabel, String tumorlabel,
+            String outvcf, boolean bgzf, boolean verbose, SomaticFilter somatic, PrintStream logstream) {
+        super(logstream);
+        this.settings = s;
+        this.fisher = new BamfoFisherTest();
+        this.bamfiles.add(normalbam);
+        this.bamfiles.add(tumorbam);
+        this.samplelabels.add(normallabel);
+        this.samplelabels.add(tumorlabel);
+        this.outvcf = outvcf;
+        this.bgzf = bgzf;
+        this.verbose = verbose;
+        this.bamfolog.setVerbose(verbose);
+        this.somatic = somatic;
+        isReady = true;
+    }
+
+    /**
+     *
+     * @return
+     *
+     * the number of reads differing from the reference that a locus needs to
+     * be saved in the evidence file
+     */
+    private int getEvidenceDepth() {
+        return Math.max(1, getCandidateDepth());
+    }
+
+    private String getEvidenceHeader() {
+        StringBuilder sb = new StringBuilder(1024);
+        sb.append(settings.printAllOptions());
+        sb.append("##bamformatics.bam=").append(bamfiles.get(0).getAbsolutePath()).append("\n");
+        sb.append("##bamformatics.label=").append(samplelabels.get(0)).append("\n");
+        sb.append("##bamformatics.evidencedepth=").append(getEvidenceDepth()).append("\n");
+        return sb.toString();
+    }
+
+    /**
+     * Creates the callers that score loci in runSweep and rescore, one for
+     * each profile or a single one using the settings of this object, and
+     * writes the headers of their outputs.
+     *
+     * @return
+     *
+     * true if all outputs could be created
+     */
+    private boolean openSweepCallers() {
+        sweepcallers = new BamfoVcf[profiles == null ? 1 : profiles.size()];
+        try {
+            for (int i = 0; i < sweepcallers.length; i++) {
+                if (profiles == null) {
+                    sweepcallers[i] = new BamfoVcf(this);
+                    sweepcallers[i].evidencefile = evidencefile;
+                } else {
+                    sweepcallers[i] = new BamfoVcf(this, profiles.get(i));
+                }
+                sweepcallers[i].sweepout = makeVcfWriter(sweepcallers[i].outvcf);
+                sweepcallers[i].writeVcfHeader(sweepcallers[i].sweepout);
+            }
+        } catch (Exception ex) {
+            outputStream.println("could not create output file: " + ex.getMessage());
+            closeSweepOutputs();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Version of run() for a parameter sweep, or for a run that saves its
+     * evidence. The alignment is traversed once and each profile writes its
+     * calls into its own vcf file.
+     *
+     * @param genome
+     */
+    private void runSweep(IndexedFastaReader genome) {
+
+        if (!openSweepCallers()) {
+            return;
+        }
+        if (evidencefile != null) {
+            try {
+                evidence = new EvidenceCache.Writer(evidencefile, getEvidenceHeader());
+            } catch (Exception ex) {
+                outputStream.println("could not create evidence file: " + ex.getMessage());
+                closeSweepOutputs();
+                return;
+            }
+        }
+
+        SAMFileReader inputSam = new SAMFileReader(bamfiles.get(0));
+        BamfoCommon.updateValidationStringency(inputSam, settings.getValidate());
+        try {
+            if (profiles != null) {
+                bamfolog.log("Parameter sweep with " + sweepcallers.length + " profiles");
+            }
+            if (prescan && !inputSam.hasIndex()) {
+                bamfolog.log(true, "Error: prescan requires an indexed alignment");
+            } else {
+                if (threads > 1) {
+                    bamfolog.log(true, "Calling with a single thread (required for sweeps and saved evidence)");
+                }
+                genotypeBam(inputSam, genome, null, 0);
+            }
+        } catch (Exception ex) {
+            outputStream.println("Error during genotyping: " + ex.getMessage() + "\n");
+        }
+
+        inputSam.close();
+        closeSweepOutputs();
+        if (evidence != null) {
             try {
-                outstream.close();
+                evidence.close();
+                bamfolog.log(evidence.getMetrics());
             } catch (IOException ex) {
-                outputStream.println("Error closing vcf: " + ex.getMessage());
+                outputStream.println("Error closing evidence file: " + ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Calls variants from saved evidence instead of from an alignment. Only
+     * the saved loci are visited, so a profile can only be called in full if
+     * its mindepth is not lower than the depth used to save the evidence.
+     *
+     * @param reader
+     * @param targets
+     *
+     * regions where calls are reported (null to report all calls)
+     */
+    void rescore(EvidenceCache.Reader reader, BedRegions targets) {
+        if (!openSweepCallers()) {
+            return;
+        }
+
+        // blocks near the targets are also read, so that deletions called
+        // just before a target still hide the loci they cover
+        BedRegions blocks = targets == null ? null : targets.expand(REGIONFLANK);
+        try {
+            for (int b = 0; b < reader.getNumberBlocks(); b++) {
+                if (blocks != null && !overlaps(blocks, reader.getBlockChromosome(b),
+                        reader.getBlockFirst(b), reader.getBlockLast(b))) {
+                    continue;
+                }
+                reader.readBlock(b);
+                while (reader.nextLocus()) {
+                    String chr = reader.getChromosome();
+                    int pos = reader.getPosition();
+                    // (despite its name, containsBase0 takes 1-based positions, as in OneFilter)
+                    boolean report = targets == null || targets.containsBase0(chr, pos);
+                    for (int k = 0; k < sweepcallers.length; k++) {
+                        sweepcallers[k].callSweepLocus(chr, pos, reader.getSNVs(), reader.getIndels(),
+                                reader.getReferenceBase(), report);
+                    }
+                }
+            }
+        } catch (Exception ex) {
+            outputStream.println("Error during rescoring: " + ex.getMessage() + "\n");
+        }
+
+        closeSweepOutputs();
+    }
+
+    /**
+     *
+     * @param regions
+     * @param chr
+     * @param first
+     * @param last
+     * @return
+     *
+     * true if the 1-based interval [first, last] overlaps one of the regions
+     */
+    private static boolean overlaps(BedRegions regions, String chr, int first, int last) {
+        int[] starts = regions.getStarts(chr);
+        int[] ends = regions.getEnds(chr);
+        if (starts == null) {
+            return false;
+        }
+        // a bed region covers the 1-based positions [start + 1, end]
+        for (int i = 0; i < starts.length; i++) {
+            if (starts[i] + 1 <= last && ends[i] >= first) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void closeSweepOutputs() {
+        for (int i = 0; i < sweepcallers.length; i++) {
+            if (sweepcallers[i] != null && sweepcallers[i].sweepout != null) {
+                try {
+                    if (sweepcallers[i].outvcf.equals("stdout")) {
+                        sweepcallers[i].sweepout.flush();
+                    } else {
+                        sweepcallers[i].sweepout.close();
+                    }
+                } catch (IOException ex) {
+                    outputStream.println("Error closing vcf: " + ex.getMessage());
+                }
             }
         }
-        genomereader.close();
     }
 }
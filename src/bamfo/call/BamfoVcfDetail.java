@@ -28,7 +28,6 @@ import jsequtils.file.BufferedReaderMaker;
 import jsequtils.file.OutputStreamMaker;
 import jsequtils.sequence.FastaReader;
 import jsequtils.variants.VcfEntry;
-import net.sf.samtools.CigarElement;
 import net.sf.samtools.SAMFileHeader;
 import net.sf.samtools.SAMFileReader;
 import net.sf.samtools.SAMRecord;
@@ -64,8 +63,10 @@ public class BamfoVcfDetail extends BamfoTool implements Runnable {
     private boolean verbose;
     // use the common genotyping option settings    
     private final static String[] settingtypes = {"minbasequal", "minmapqual",
-        "minfromstart", "minfromend", "trim", "trimQB", "NRef", "genome", "validate"};
+        "minfromstart", "minfromend", "trim", "trimQB", "NRef", "maxdepth", "seed", "genome", "validate"};
     private BamfoSettings settings = new BamfoSettings(settingtypes);
+    // reused for every variant and sample
+    private final VariantCounts counts = new VariantCounts();
     //String specialread = "readname";
 
     /**
@@ -578,14 +579,18 @@ public class BamfoVcfDetail extends BamfoTool implements Runnable {
         HashMap<Integer, VariantSummary> chrSNVsSummary = null;
         HashMap<Integer, VariantSummary> chrIndelsSummary = null;
         // chrinfo will contain detail information about genotype at a locus
-        HashMap<Integer, LocusSNVDataList> chrSNVsInfo = new HashMap<>(16);
+        int cachelocations = 64;
+        // (the thresholds allow reads beyond a depth cap to be counted exactly)
+        LocusSNVPileup chrSNVsInfo = new LocusSNVPileup(2 * cachelocations, settings.getMinfromstart(),
+                settings.getMinfromend(), settings.getMinbasequal(), settings.getMinmapqual());
+        chrSNVsInfo.setMaxDepth(settings.getMaxdepth(), settings.getSeed());
         HashMap<Integer, LocusIndelDataList> chrIndelsInfo = new HashMap<>(16);
+        // b2r will hold derived information on each record in turn
+        BamfoRecord b2r = new BamfoRecord(settings.isTrimBtail(), settings.isTrimpolyedge());
 
         int nowreference = -1;
         int nowRefLen = 0;
 
-        int cachelocations = 64;
-
         // these will be indexes walking on the chromosome
         int nowpos = 0;
         int lastdrain = 1;
@@ -632,13 +637,13 @@ public class BamfoVcfDetail extends BamfoTool implements Runnable {
                     isIndelsBS = makeVariantBitSet((Integer) chrlengths.get(nowchrname), chrIndelsSummary);
 
                     // get a new object holding details of genotypes on loci
-                    chrSNVsInfo = new HashMap<Integer, LocusSNVDataList>(2 * cachelocations);
+                    chrSNVsInfo.clear();
                     chrIndelsInfo = new HashMap<Integer, LocusIndelDataList>(cachelocations);
                 }
 
                 // process this read   
                 try {
-                    fillChrInfo(samRecord, isSNVsBS, chrSNVsInfo, isIndelsBS, chrIndelsInfo);
+                    fillChrInfo(b2r, samRecord, isSNVsBS, chrSNVsInfo, isIndelsBS, chrIndelsInfo);
                 } catch (Exception ex) {
                     bamfolog.log("Error during extraction: " + ex.getMessage());
                     bamfolog.log(samRecord.getSAMString());
@@ -794,18 +799,15 @@ public class BamfoVcfDetail extends BamfoTool implements Runnable {
         outstream.close();
     }
 
-    private void fillChrInfoForIndels(byte[] thischrsequence, SAMRecord record, ArrayList<CigarElement> cigarelements, byte[] bases,
-            int maxpos,
+    private void fillChrInfoForIndels(byte[] thischrsequence, BamfoRecord b2r,
             BitSet chrIndelsBS, HashMap<Integer, LocusIndelDataList> chrIndelsInfo) {
 
-        int readlength = record.getReadLength();
-        int mapquality = record.getMappingQuality();
-        int nowp = record.getAlignmentStart();
+        byte[] bases = b2r.bases;
+        int nowp = b2r.startpos;
         int nowi = 0;
         // loop over the cigars  
-        for (int i = 0; i < cigarelements.size(); i++) {
-            CigarElement ce = cigarelements.get(i);
-            int celen = ce.getLength();
+        for (int i = 0; i < b2r.numcigar; i++) {
+            int celen = b2r.cigarlengths[i];
 
             boolean heredeletion = false;
             boolean hereinsertion = false;
@@ -813,7 +815,7 @@ public class BamfoVcfDetail extends BamfoTool implements Runnable {
             int indelstart = nowp;
             int indelindex = nowi;
 
-            switch (ce.getOperator()) {
+            switch (b2r.cigarops[i]) {
                 case M:
                     nowp += celen;
                     nowi += celen;
@@ -891,8 +893,8 @@ public class BamfoVcfDetail extends BamfoTool implements Runnable {
                     }
 
                     //save information about this indel
-                    nowIDL.add(anchor, indel, indelstart, mapquality, record.getReadNegativeStrandFlag(), nowi, readlength,
-                            record.getReadName(), nowp >= maxpos, hereinsertion);
+                    nowIDL.add(anchor, 0, anchor.length, indel, 0, indel.length, indelstart,
+                            b2r, nowi, hereinsertion);
                 }
             }
         }
@@ -910,13 +912,13 @@ public class BamfoVcfDetail extends BamfoTool implements Runnable {
      * @param chrSNVsInfo
      *
      */
-    private void fillChrInfo(SAMRecord record,
-            BitSet chrSNVsBS, HashMap<Integer, LocusSNVDataList> chrSNVsInfo,
+    private void fillChrInfo(BamfoRecord b2r, SAMRecord record,
+            BitSet chrSNVsBS, LocusSNVPileup chrSNVsInfo,
             BitSet chrIndelsBS, HashMap<Integer, LocusIndelDataList> chrIndelsInfo) {
 
-        // create an object holding the record and some derived quantities 
+        // load the record and some derived quantities into the reusable object
         // this will provide easy access to the positions of each base, etc.
-        BamfoRecord b2r = new BamfoRecord(record, settings.isTrimBtail(), settings.isTrimpolyedge());
+        b2r.load(record);
 
         // deal with single bases        
         for (int nowindex = 0; nowindex < b2r.readlength; nowindex++) {
@@ -927,16 +929,8 @@ public class BamfoVcfDetail extends BamfoTool implements Runnable {
             //
             if (nowpos > 0 && (chrSNVsBS.get(nowpos) || chrIndelsBS.get(nowpos))) {
 
-                LocusSNVDataList nowGDL = chrSNVsInfo.get(nowpos);
-                if (nowGDL == null) {
-                    nowGDL = new LocusSNVDataList(record.getReferenceName() + ":" + nowpos);
-                }
-
                 // save information about this base
-                nowGDL.add(b2r, nowindex);
-
-                // make sure the object is added/updated back into the chrinfo
-                chrSNVsInfo.put(nowpos, nowGDL);
+                chrSNVsInfo.add(nowpos, b2r, nowindex);
             }
 
         } // end of loop over indexes in bases/positions/qualities
@@ -945,8 +939,7 @@ public class BamfoVcfDetail extends BamfoTool implements Runnable {
         if (b2r.readhasindel) {
             byte[] thisChrSequence = chrsequences.get(record.getReferenceName());
             if (thisChrSequence != null) {
-                fillChrInfoForIndels(thisChrSequence, record, b2r.cigarelements, b2r.bases, b2r.overlapstart,
-                        chrIndelsBS, chrIndelsInfo);
+                fillChrInfoForIndels(thisChrSequence, b2r, chrIndelsBS, chrIndelsInfo);
             }
         }
     }
@@ -962,7 +955,7 @@ public class BamfoVcfDetail extends BamfoTool implements Runnable {
      * @return
      */
     private int drainChrInfo(int sampleindex,
-            HashMap<Integer, LocusSNVDataList> chrSNVsInfo,
+            LocusSNVPileup chrSNVsInfo,
             HashMap<Integer, VariantSummary> chrSNVsSummary,
             HashMap<Integer, LocusIndelDataList> chrIndelsInfo,
             HashMap<Integer, VariantSummary> chrIndelsSummary,
@@ -970,6 +963,7 @@ public class BamfoVcfDetail extends BamfoTool implements Runnable {
 
         // quick check that chrinfo actually has some data to process
         if (chrSNVsInfo.isEmpty() && chrIndelsInfo.isEmpty()) {
+            chrSNVsInfo.setWindowStart(end);
             return end;
         }
 
@@ -1007,6 +1001,7 @@ public class BamfoVcfDetail extends BamfoTool implements Runnable {
             }
 
         }
+        chrSNVsInfo.setWindowStart(end);
         // for the return value, give the first position that was not treated in this loop, i.e. the end position        
         return end;
     }
@@ -1020,78 +1015,9 @@ public class BamfoVcfDetail extends BamfoTool implements Runnable {
      */
     private void updateVIforIndels(VariantSummary vI, LocusSNVDataList SNVlocus,
             LocusIndelDataList indellocus, int sampleindex) {
-
-        // get an estimate of the coverage using the SNVlocus information
-        // this will give valuable information about the coverage (low and high quality)                
-        updateVIforSNVs(vI, SNVlocus, sampleindex);
-       
-        // get the byte sequence of the declared indel 
-        byte[] vIseq = vI.getIndel();
-
-        // but the ref, alt, refLowQ, altLowQ estimates will be off here. 
-        // So I reset them here and then re-evaluate them further down in this function.
-        vI.refcounts[sampleindex] = 0;
-        vI.altcounts[sampleindex] = 0;
-        vI.altcountsLowQ[sampleindex] = 0;
-
-        // count the number of indels among high quality reads
-        int altcounts = 0, altcountsLowQ = 0;
-
-        // get information about the types of indels encountered and the number of reads
-        // showing each kind
-        ArrayList<LocusIndelData> hereindels = new ArrayList<>(8);
-        ArrayList<Integer> counts = new ArrayList<>(8);
-        if (indellocus != null) {
-            indellocus.getIndelCounts(hereindels, counts,
-                    settings.getMinfromstart(), settings.getMinfromend(), settings.getMinmapqual());
-        }
-        // look through the intermediate results and count the number of indels, i.e. alternative counts
-        for (int j = 0; j < counts.size(); j++) {
-            int nowcount = counts.get(j);
-            LocusIndelData nowindel = hereindels.get(j);
-            byte[] nowseq = nowindel.getIndel();
-            if (byteEqual(nowseq, vIseq)) {
-                altcounts += nowcount;
-            } else {
-                altcountsLowQ += nowcount;
-            }
-        }
-
-        // the reported altcounts and refcounts can now be estimated
-        vI.altcounts[sampleindex] = altcounts;
-
-        // from the total coverage and from the number of alternative counts (indels)
-        // compute the number of reference ounts
-        vI.refcounts[sampleindex] = vI.coverage[sampleindex] - altcounts - altcountsLowQ;
-
-        // for the vI.altCountsLowQ, I want to include the low-mapping quality reads
-        // as well as those reads that report a different indel sequence.
-        // so re-evaluate hereindels and counts
-        int lowaltcounts = 0, lowaltcountsLowQ = 0;
-
-        hereindels = new ArrayList<>(8);
-        counts = new ArrayList<>(8);
-        if (indellocus != null) {
-            indellocus.getIndelCounts(hereindels, counts, 0, 0, 0);
-        }
-
-        // look through the intermediate results and count the number of indels, i.e. alternative counts
-        for (int j = 0; j < counts.size(); j++) {
-            int nowcount = counts.get(j);
-            LocusIndelData nowindel = hereindels.get(j);
-            byte[] nowseq = nowindel.getIndel();
-            if (byteEqual(nowseq, vIseq)) {
-                lowaltcounts += nowcount;
-            } else {
-                lowaltcountsLowQ += nowcount;
-            }
-        }
-
-        // the reported count of low-quality alternative alleles 
-        // will consist of (same sequence indels with low mapping quality)
-        // plus (different sequence indels regardless of mapping quality)
-        vI.altcountsLowQ[sampleindex] = (lowaltcounts - altcounts) + lowaltcountsLowQ;
-
+        // the coverage comes from SNVlocus, the ref and alt counts from the indels
+        counts.countIndel(SNVlocus, indellocus, vI.ref.charAt(0), vI.getIndel(), settings);
+        copyCounts(vI, sampleindex);
     }
 
     /**
@@ -1108,86 +1034,17 @@ public class BamfoVcfDetail extends BamfoTool implements Runnable {
      *
      */
     private void updateVIforSNVs(VariantSummary vI, LocusSNVDataList SNVlocus, int sampleindex) {
-
-        // helper arrays that will store number of reads with ref/alt
-        int[] covtot = new int[5];
-        int[] covplus = new int[5];
-        int[] covminus = new int[5];
-        int[] maxns = new int[5];
-        // make arrays to store counts for all information (including low quality)
-        int[] lowcovtot = new int[5];
-        int[] lowcovplus = new int[5];
-        int[] lowcovminus = new int[5];
-        int[] lowmaxns = new int[5];
-
-        // extract the coverage counts on the locus
-        int tottot = 0;
-        SNVlocus.getCoverageCounts(covplus, covminus, maxns,
-                settings.getMinfromstart(), settings.getMinfromend(),
-                settings.getMinbasequal(), settings.getMinmapqual());
-        // sum the totals 
-        for (int j = 0; j < 5; j++) {
-            covtot[j] = covplus[j] + covminus[j];
-            tottot += covtot[j];
-        }
-
-        // extract all counts on the locus (inlcuding low coverage)
-        int lowtottot = 0;
-        SNVlocus.getCoverageCounts(lowcovplus, lowcovminus, lowmaxns,
-                0, 0, (byte) 0, 0);
-        // sum the totals 
-        for (int j = 0; j < 5; j++) {
-            lowcovtot[j] = lowcovplus[j] + lowcovminus[j] - covtot[j];
-            lowtottot += lowcovtot[j];
-        }
-
-        // now update the variant summary object with the total "effective" coverage
-        // and the evidence for the ref and alt abses
-        vI.coverage[sampleindex] = tottot;
-        vI.refcounts[sampleindex] = covtot[BamfoCommon.basesToZeroToFour(vI.ref.charAt(0))];
-        if (settings.isNRef()) {
-            vI.refcounts[sampleindex] += covtot[BamfoCommon.codeN];
-        }
-        vI.altcounts[sampleindex] = covtot[BamfoCommon.basesToZeroToFour(vI.alt.charAt(0))];
-
-        // repeat for the low quality bases                
-        vI.coverageLowQ[sampleindex] = lowtottot;
-        vI.refcountsLowQ[sampleindex] = lowcovtot[BamfoCommon.basesToZeroToFour(vI.ref.charAt(0))];
-        if (settings.isNRef()) {
-            vI.refcounts[sampleindex] += lowcovtot[BamfoCommon.codeN];
-        }
-        vI.altcountsLowQ[sampleindex] = lowcovtot[BamfoCommon.basesToZeroToFour(vI.alt.charAt(0))];
+        counts.countSNV(SNVlocus, vI.ref.charAt(0), vI.alt.charAt(0), settings);
+        copyCounts(vI, sampleindex);
     }
 
-    /**
-     * checks the identity of two arrays
-     *
-     * @param a
-     * @param b
-     * @return
-     *
-     * true if contents of a and b are exactly equal.
-     */
-    private static boolean byteEqual(byte[] a, byte[] b) {
-
-        if (a == b) {
-            return true;
-        }
-
-        // check their lengths
-        int alen = a.length;
-        if (alen != b.length) {
-            return false;
-        }
-
-        // check each base one at a time
-        for (int i = 0; i < alen; i++) {
-            if (a[i] != b[i]) {
-                return false;
-            }
-        }
-
-        return true;
+    private void copyCounts(VariantSummary vI, int sampleindex) {
+        vI.coverage[sampleindex] = counts.coverage;
+        vI.refcounts[sampleindex] = counts.refcounts;
+        vI.altcounts[sampleindex] = counts.altcounts;
+        vI.coverageLowQ[sampleindex] = counts.coverageLowQ;
+        vI.refcountsLowQ[sampleindex] = counts.refcountsLowQ;
+        vI.altcountsLowQ[sampleindex] = counts.altcountsLowQ;
     }
 
     /**
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2012-2014 Tomasz Konopka.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bamfo.call;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Describes how far a variant calling run has progressed. A checkpoint
+ * records the last chromosome that was completely written to the output vcf
+ * and the size of the output at that point. It also holds a hash of the
+ * calling settings so that a run is only resumed with the same settings.
+ *
+ * @author tkonopka
+ */
+class CallCheckpoint {
+
+    final String settingshash;
+    // index of the last completed reference in the sequence dictionary (-1 if none)
+    final int reference;
+    // number of bytes in the output file when the reference was completed
+    final long offset;
+    final boolean complete;
+
+    CallCheckpoint(String settingshash, int reference, long offset, boolean complete) {
+        this.settingshash = settingshash;
+        this.reference = reference;
+        this.offset = offset;
+        this.complete = complete;
+    }
+
+    /**
+     * Reads a checkpoint from a file.
+     *
+     * @param f
+     * @return
+     * @throws IOException
+     */
+    static CallCheckpoint read(File f) throws IOException {
+        String hash = null;
+        int reference = -1;
+        long offset = -1;
+        boolean complete = false;
+
+        BufferedReader br = new BufferedReader(new FileReader(f));
+        try {
+            String s;
+            while ((s = br.readLine()) != null) {
+                String[] tokens = s.split("\t");
+                switch (tokens[0]) {
+                    case "settings":
+                        hash = tokens[1];
+                        break;
+                    case "reference":
+                        reference = Integer.parseInt(tokens[1]);
+                        break;
+                    case "offset":
+                        offset = Long.parseLong(tokens[1]);
+                        break;
+                    case "complete":
+                        complete = true;
+                        break;
+                    default:
+                        break;
+                }
+            }
+        } finally {
+            br.close();
+        }
+
+        if (hash == null || offset < 0) {
+            throw new IOException("incomplete checkpoint file " + f.getName());
+        }
+        return new CallCheckpoint(hash, reference, offset, complete);
+    }
+
+    /**
+     * Saves the checkpoint. The file is first written under a temporary name
+     * and then moved into place, so that an interrupted write does not
+     * corrupt an existing checkpoint.
+     *
+     * @param f
+     * @throws IOException
+     */
+    void write(File f) throws IOException {
+        File temp = new File(f.getPath() + ".tmp");
+        PrintWriter pw = new PrintWriter(new FileWriter(temp));
+        try {
+            pw.println("settings\t" + settingshash);
+            pw.println("reference\t" + reference);
+            pw.println("offset\t" + offset);
+            if (complete) {
+                pw.println("complete");
+            }
+        } finally {
+            pw.close();
+        }
+        Files.move(temp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
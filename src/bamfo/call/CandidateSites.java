@@ -0,0 +1,324 @@
+/*
+ * Copyright 2012-2014 Tomasz Konopka.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bamfo.call;
+
+import bamfo.utils.BamfoCommon;
+import bamfo.utils.BamfoRecord;
+import bamfo.utils.ChromosomeSequence;
+import java.util.BitSet;
+import java.util.List;
+import net.sf.samtools.CigarElement;
+import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMRecordIterator;
+
+/**
+ * Marks loci on a chromosome where a variant call is possible. Used in the
+ * prescan mode of variant calling: full evidence is only collected at the
+ * marked loci.
+ *
+ * A locus is a candidate if at least mindepth reads have a mismatch there
+ * (according to the MD tags), if it is the anchor of an indel in some read,
+ * or if the reference base is an ambiguity code. Reads without an MD tag
+ * make their whole aligned span a candidate. The MD tags are assumed to refer
+ * to the same reference sequence as used for calling.
+ *
+ * Mismatch counts are kept in bitsets, one per count level, so the structure
+ * needs mindepth bits per locus. Only a window of the chromosome is scanned
+ * at a time (see scan).
+ *
+ * @author tkonopka
+ */
+class CandidateSites {
+
+    // reads starting this far beyond a window can still have indels anchored in it
+    private final static int ANCHORMARGIN = 2048;
+    private final SAMFileReader reader;
+    private final ChromosomeSequence chrsequence;
+    private final String chrname;
+    private final int chrlen;
+    // levels[i] marks loci with at least (i+1) mismatches
+    private final BitSet[] levels;
+    private final BamfoRecord b2r;
+    // scanned window, 1-based, start included, end not included
+    private int start = 1, end = 1;
+    // mismatch offsets decoded from an MD tag
+    private int[] mismatches = new int[16];
+
+    /**
+     *
+     * @param reader
+     *
+     * reader for an indexed alignment. It should not be iterated elsewhere
+     * while a scan is running.
+     *
+     * @param chrsequence
+     * @param mindepth
+     * @param trimBtail
+     * @param trimPolyedge
+     */
+    CandidateSites(SAMFileReader reader, ChromosomeSequence chrsequence, int mindepth,
+            boolean trimBtail, boolean trimPolyedge) {
+        this.reader = reader;
+        this.chrsequence = chrsequence;
+        this.chrname = chrsequence.getChromosomeName();
+        this.chrlen = chrsequence.getChromosomeLength();
+        levels = new BitSet[Math.max(1, mindepth)];
+        for (int i = 0; i < levels.length; i++) {
+            levels[i] = new BitSet();
+        }
+        b2r = new BamfoRecord(trimBtail, trimPolyedge);
+    }
+
+    int getEnd() {
+        return end;
+    }
+
+    /**
+     *
+     * @param pos
+     * @return
+     *
+     * true if the locus is a candidate. Loci outside the scanned window are
+     * not candidates.
+     */
+    boolean isCandidate(int pos) {
+        return pos >= start && pos < end && levels[levels.length - 1].get(pos - start);
+    }
+
+    /**
+     * Replace the current window with a new one and mark the candidates in
+     * it.
+     *
+     * @param from
+     *
+     * 1-based position, included
+     *
+     * @param to
+     *
+     * 1-based position, not included
+     */
+    void scan(int from, int to) {
+        start = Math.max(1, from);
+        end = Math.min(to, chrlen + 1);
+        for (int i = 0; i < levels.length; i++) {
+            levels[i].clear();
+        }
+        if (start >= end) {
+            return;
+        }
+
+        // loci with ambiguous reference bases can be called without mismatches
+        for (int pos = start; pos < end; pos++) {
+            byte refbase = chrsequence.getBaseAtPositionBase1(pos);
+            if (refbase != 'N' && BamfoCommon.basesToZeroToFour(refbase) == BamfoCommon.codeN) {
+                levels[levels.length - 1].set(pos - start);
+            }
+        }
+
+        SAMRecordIterator it = reader.query(chrname, start, Math.min(chrlen, end - 1 + ANCHORMARGIN), false);
+        try {
+            while (it.hasNext()) {
+                SAMRecord record = it.next();
+                if (BamfoVcf.isCallableRecord(record)) {
+                    scanRecord(record);
+                }
+            }
+        } finally {
+            it.close();
+        }
+    }
+
+    private void scanRecord(SAMRecord record) {
+        List<CigarElement> cigar = record.getCigar().getCigarElements();
+        boolean hasindel = false;
+        for (int i = 0; i < cigar.size(); i++) {
+            switch (cigar.get(i).getOperator()) {
+                case I:
+                case D:
+                    hasindel = true;
+                    break;
+                default:
+                    break;
+            }
+        }
+        if (hasindel) {
+            markAnchors(record);
+        }
+
+        // reads without mismatches or indels cannot create candidates
+        Object NMtag = record.getAttribute("NM");
+        if (!hasindel && NMtag != null && ((Number) NMtag).intValue() == 0) {
+            return;
+        }
+
+        Object MDtag = record.getAttribute("MD");
+        if (MDtag == null) {
+            int from = Math.max(start, record.getAlignmentStart());
+            int to = Math.min(end, record.getAlignmentEnd() + 1);
+            if (from < to) {
+                levels[levels.length - 1].set(from - start, to - start);
+            }
+            return;
+        }
+
+        // convert offsets in the MD tag (which counts aligned and deleted
+        // reference bases) into genomic positions by walking the cigar
+        int nummismatches = parseMD((String) MDtag);
+        int k = 0;
+        int mdoffset = 0;
+        int refpos = record.getAlignmentStart();
+        for (int i = 0; i < cigar.size() && k < nummismatches; i++) {
+            int celen = cigar.get(i).getLength();
+            switch (cigar.get(i).getOperator()) {
+                case M:
+                case EQ:
+                case X:
+                    while (k < nummismatches && mismatches[k] < mdoffset + celen) {
+                        int pos = refpos + mismatches[k] - mdoffset;
+                        if (pos >= start && pos < end) {
+                            mark(pos);
+                        }
+                        k++;
+                    }
+                    mdoffset += celen;
+                    refpos += celen;
+                    break;
+                case D:
+                    mdoffset += celen;
+                    refpos += celen;
+                    break;
+                case N:
+                    refpos += celen;
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Decodes mismatch offsets from an MD tag into the mismatches array.
+     *
+     * @param MDtag
+     * @return
+     *
+     * number of mismatches
+     */
+    private int parseMD(String MDtag) {
+        int num = 0;
+        int offset = 0;
+        int number = 0;
+        boolean deletion = false;
+        for (int i = 0; i < MDtag.length(); i++) {
+            char c = MDtag.charAt(i);
+            if (c >= '0' && c <= '9') {
+                number = 10 * number + (c - '0');
+                deletion = false;
+            } else if (c == '^') {
+                offset += number;
+                number = 0;
+                deletion = true;
+            } else {
+                offset += number;
+                number = 0;
+                if (!deletion) {
+                    if (num == mismatches.length) {
+                        int[] temp = new int[2 * num];
+                        System.arraycopy(mismatches, 0, temp, 0, num);
+                        mismatches = temp;
+                    }
+                    mismatches[num] = offset;
+                    num++;
+                }
+                offset++;
+            }
+        }
+        return num;
+    }
+
+    /**
+     * Marks the anchors of indels in a record. The anchors are computed in the
+     * same way as during calling, i.e. using the read and reference
+     * sequences.
+     *
+     * @param record
+     */
+    private void markAnchors(SAMRecord record) {
+        b2r.load(record);
+        byte[] bases = b2r.bases;
+
+        int nowp = b2r.startpos;
+        int nowi = 0;
+        for (int i = 0; i < b2r.numcigar; i++) {
+            int celen = b2r.cigarlengths[i];
+            int indelstart = nowp;
+            int indelindex = nowi;
+            byte[] indel = null;
+
+            switch (b2r.cigarops[i]) {
+                case M:
+                    nowp += celen;
+                    nowi += celen;
+                    break;
+                case N:
+                case P:
+                    nowp += celen;
+                    break;
+                case D:
+                    nowp += celen;
+                    indel = chrsequence.getSequenceBase1(indelstart, nowp - 1);
+                    break;
+                case S:
+                    nowi += celen;
+                    break;
+                case I:
+                    indel = new byte[celen];
+                    System.arraycopy(bases, nowi, indel, 0, celen);
+                    nowi += celen;
+                    break;
+                default:
+                    break;
+            }
+
+            if (indel != null) {
+                indelstart--;
+                int anchorpos = BamfoCommon.getAnchorPosition(chrsequence, indelstart, indel);
+                int readanchorpos = BamfoCommon.getAnchorPosition(bases, indelindex, indel);
+                int anchorpos2 = indelstart - (indelindex - readanchorpos);
+                int pos = Math.min(Math.max(1, anchorpos), Math.max(1, anchorpos2));
+                if (pos >= start && pos < end) {
+                    levels[levels.length - 1].set(pos - start);
+                }
+            }
+        }
+    }
+
+    /**
+     * Increment the mismatch count at a locus.
+     *
+     * @param pos
+     */
+    private void mark(int pos) {
+        int index = pos - start;
+        for (int i = 0; i < levels.length; i++) {
+            if (!levels[i].get(index)) {
+                levels[i].set(index);
+                return;
+            }
+        }
+    }
+}
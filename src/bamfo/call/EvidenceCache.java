@@ -0,0 +1,385 @@
+/*
+ * Copyright 2012-2014 Tomasz Konopka.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bamfo.call;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Binary file holding the evidence collected at loci during variant calling
+ * (see callvariants --evidence). A locus is stored when enough of its reads
+ * differ from the reference, or when it anchors indels. The stored reads are
+ * complete, so the loci can be called again with other thresholds without
+ * reading the alignment (see BamfoRescore).
+ *
+ * The file starts with a text header (the settings and the alignment used
+ * for calling) followed by blocks of loci. Each block holds loci from one
+ * chromosome and is compressed separately. An index of the blocks
+ * (chromosome, first and last position, file offset) is written at the end
+ * of the file, so that a reader can go directly to the blocks it needs.
+ *
+ * @author tkonopka
+ */
+class EvidenceCache {
+
+    private final static int MAGIC = 0x42464556;
+    private final static int INDEXMAGIC = 0x42464549;
+    private final static int VERSION = 1;
+    // blocks are closed when they hold this many bytes before compression
+    private final static int BLOCKSIZE = 1 << 16;
+
+    /**
+     * Writes an integer using one to five bytes (small values, also negative
+     * ones, use fewer bytes).
+     *
+     * @param out
+     * @param value
+     * @throws IOException
+     */
+    static void writeVarint(DataOutput out, int value) throws IOException {
+        int zigzag = (value << 1) ^ (value >> 31);
+        while ((zigzag & ~0x7F) != 0) {
+            out.writeByte((zigzag & 0x7F) | 0x80);
+            zigzag >>>= 7;
+        }
+        out.writeByte(zigzag);
+    }
+
+    static int readVarint(DataInput in) throws IOException {
+        int zigzag = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = in.readUnsignedByte();
+            zigzag |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return (zigzag >>> 1) ^ -(zigzag & 1);
+    }
+
+    /**
+     * Writes loci into an evidence file. Loci must be added in the order of
+     * positions within each chromosome.
+     */
+    static class Writer {
+
+        private final DataOutputStream out;
+        private long offset;
+        // the open block
+        private final ByteArrayOutputStream blockbytes = new ByteArrayOutputStream(2 * BLOCKSIZE);
+        private final DataOutputStream block = new DataOutputStream(blockbytes);
+        private String blockchr = null;
+        private int blockfirst, blocklast, blockloci;
+        private final Deflater deflater = new Deflater();
+        private byte[] compressed = new byte[BLOCKSIZE];
+        // index of the completed blocks
+        private final ArrayList<String> indexchrs = new ArrayList<>(64);
+        private final ArrayList<int[]> indexranges = new ArrayList<>(64);
+        private final ArrayList<Long> indexoffsets = new ArrayList<>(64);
+        private long numloci = 0;
+
+        /**
+         *
+         * @param f
+         * @param header
+         *
+         * text describing how the evidence was collected
+         *
+         * @throws IOException
+         */
+        Writer(File f, String header) throws IOException {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), BLOCKSIZE));
+            byte[] headerbytes = header.getBytes("UTF-8");
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(headerbytes.length);
+            out.write(headerbytes);
+            offset = 12 + headerbytes.length;
+        }
+
+        /**
+         * Stores the evidence at one locus.
+         *
+         * @param chr
+         * @param pos
+         * @param refbase
+         * @param snvlist
+         *
+         * reads at the locus (can be null)
+         *
+         * @param indellist
+         *
+         * reads with indels anchored at the locus (can be null)
+         *
+         * @throws IOException
+         */
+        void add(String chr, int pos, byte refbase,
+                LocusSNVDataList snvlist, LocusIndelDataList indellist) throws IOException {
+            if (blockchr != null && (!blockchr.equals(chr) || blockbytes.size() >= BLOCKSIZE)) {
+                writeBlock();
+            }
+            if (blockchr == null) {
+                blockchr = chr;
+                blockfirst = pos;
+                blocklast = pos;
+            }
+
+            writeVarint(block, pos - blocklast);
+            blocklast = pos;
+            block.writeByte(refbase);
+            block.writeByte((snvlist == null ? 0 : 1) | (indellist == null ? 0 : 2));
+            if (snvlist != null) {
+                snvlist.write(block);
+            }
+            if (indellist != null) {
+                indellist.write(block);
+            }
+            blockloci++;
+            numloci++;
+        }
+
+        private void writeBlock() throws IOException {
+            if (blockchr == null) {
+                return;
+            }
+            byte[] raw = blockbytes.toByteArray();
+            deflater.reset();
+            deflater.setInput(raw);
+            deflater.finish();
+            int clen = 0;
+            while (!deflater.finished()) {
+                if (clen == compressed.length) {
+                    byte[] temp = new byte[2 * compressed.length];
+                    System.arraycopy(compressed, 0, temp, 0, clen);
+                    compressed = temp;
+                }
+                clen += deflater.deflate(compressed, clen, compressed.length - clen);
+            }
+
+            indexchrs.add(blockchr);
+            indexranges.add(new int[]{blockfirst, blocklast});
+            indexoffsets.add(offset);
+
+            out.writeInt(blockloci);
+            out.writeInt(raw.length);
+            out.writeInt(clen);
+            out.write(compressed, 0, clen);
+            offset += 12 + clen;
+
+            blockbytes.reset();
+            blockchr = null;
+            blockloci = 0;
+        }
+
+        /**
+         * Writes the last block and the index, and closes the file.
+         *
+         * @throws IOException
+         */
+        void close() throws IOException {
+            writeBlock();
+            long indexoffset = offset;
+            out.writeInt(indexchrs.size());
+            for (int i = 0; i < indexchrs.size(); i++) {
+                out.writeUTF(indexchrs.get(i));
+                out.writeInt(indexranges.get(i)[0]);
+                out.writeInt(indexranges.get(i)[1]);
+                out.writeLong(indexoffsets.get(i));
+            }
+            out.writeLong(indexoffset);
+            out.writeInt(INDEXMAGIC);
+            out.close();
+            deflater.end();
+        }
+
+        String getMetrics() {
+            return "Evidence cache: " + numloci + " loci in " + indexchrs.size() + " blocks";
+        }
+    }
+
+    /**
+     * Reads loci from an evidence file, one block at a time.
+     */
+    static class Reader {
+
+        private final RandomAccessFile raf;
+        private final String header;
+        // the index
+        private final String[] blockchrs;
+        private final int[] blockfirsts, blocklasts;
+        private final long[] blockoffsets;
+        private final Inflater inflater = new Inflater();
+        // the block being read
+        private DataInputStream block = null;
+        private int remaining = 0;
+        // the current locus
+        private String chr = null;
+        private int pos = 0;
+        private byte refbase;
+        private LocusSNVDataList snvlist;
+        private LocusIndelDataList indellist;
+
+        Reader(File f) throws IOException {
+            raf = new RandomAccessFile(f, "r");
+            try {
+                if (raf.readInt() != MAGIC) {
+                    throw new IOException("not an evidence file: " + f.getName());
+                }
+                int version = raf.readInt();
+                if (version != VERSION) {
+                    throw new IOException("unsupported evidence file version " + version);
+                }
+                byte[] headerbytes = new byte[raf.readInt()];
+                raf.readFully(headerbytes);
+                header = new String(headerbytes, "UTF-8");
+
+                raf.seek(raf.length() - 12);
+                long indexoffset = raf.readLong();
+                if (raf.readInt() != INDEXMAGIC) {
+                    throw new IOException("evidence file is incomplete: " + f.getName());
+                }
+                raf.seek(indexoffset);
+                int numblocks = raf.readInt();
+                blockchrs = new String[numblocks];
+                blockfirsts = new int[numblocks];
+                blocklasts = new int[numblocks];
+                blockoffsets = new long[numblocks];
+                for (int i = 0; i < numblocks; i++) {
+                    blockchrs[i] = raf.readUTF();
+                    blockfirsts[i] = raf.readInt();
+                    blocklasts[i] = raf.readInt();
+                    blockoffsets[i] = raf.readLong();
+                }
+            } catch (IOException ex) {
+                raf.close();
+                throw ex;
+            }
+        }
+
+        String getHeader() {
+            return header;
+        }
+
+        int getNumberBlocks() {
+            return blockchrs.length;
+        }
+
+        String getBlockChromosome(int index) {
+            return blockchrs[index];
+        }
+
+        int getBlockFirst(int index) {
+            return blockfirsts[index];
+        }
+
+        int getBlockLast(int index) {
+            return blocklasts[index];
+        }
+
+        /**
+         * Loads a block. Its loci are then available through nextLocus.
+         *
+         * @param index
+         * @throws IOException
+         */
+        void readBlock(int index) throws IOException {
+            raf.seek(blockoffsets[index]);
+            int numloci = raf.readInt();
+            byte[] raw = new byte[raf.readInt()];
+            byte[] compressed = new byte[raf.readInt()];
+            raf.readFully(compressed);
+
+            inflater.reset();
+            inflater.setInput(compressed);
+            try {
+                int len = 0;
+                while (len < raw.length && !inflater.finished()) {
+                    len += inflater.inflate(raw, len, raw.length - len);
+                }
+                if (len < raw.length) {
+                    throw new IOException("truncated block in evidence file");
+                }
+            } catch (DataFormatException ex) {
+                throw new IOException("corrupt block in evidence file: " + ex.getMessage());
+            }
+
+            block = new DataInputStream(new ByteArrayInputStream(raw));
+            remaining = numloci;
+            chr = blockchrs[index];
+            pos = blockfirsts[index];
+        }
+
+        /**
+         * Moves to the next locus in the current block.
+         *
+         * @return
+         *
+         * false if there are no more loci in the block
+         *
+         * @throws IOException
+         */
+        boolean nextLocus() throws IOException {
+            if (remaining == 0) {
+                return false;
+            }
+            remaining--;
+            pos += readVarint(block);
+            refbase = block.readByte();
+            int flags = block.readByte();
+            snvlist = (flags & 1) == 0 ? null : LocusSNVDataList.read(block, pos);
+            indellist = (flags & 2) == 0 ? null : LocusIndelDataList.read(block, pos);
+            return true;
+        }
+
+        String getChromosome() {
+            return chr;
+        }
+
+        int getPosition() {
+            return pos;
+        }
+
+        byte getReferenceBase() {
+            return refbase;
+        }
+
+        LocusSNVDataList getSNVs() {
+            return snvlist;
+        }
+
+        LocusIndelDataList getIndels() {
+            return indellist;
+        }
+
+        void close() throws IOException {
+            raf.close();
+            inflater.end();
+        }
+    }
+}
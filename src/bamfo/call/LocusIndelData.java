@@ -16,7 +16,8 @@
 package bamfo.call;
 
 /**
- * Structure describe one indel with a read.
+ * Structure describing one indel allele at an anchor. Reads supporting the
+ * same allele share one object (see LocusIndelDataList).
  * 
  * Class is used with the BamfoVcf tool.
  *
@@ -33,42 +34,64 @@ class LocusIndelData {
     final int indellen;
     // ofset of actual indel sequence from anchor sequence
     final int offset;
-    final boolean minusstrand;
-    // fromstart/fromend are distances of the indel from the read extremities
-    final int fromstart;
-    final int fromend;
-    final int mapquality;
     final boolean insertion;
 
-    public LocusIndelData(byte anchorbase, byte[] anchor, byte[] indel, int indelstart, 
-            boolean minusstrand, int indexonread, int readlength, int mapquality,
-            boolean insertion) {
+    /**
+     * 
+     * @param anchorbase
+     * @param anchor
+     * @param anchoroffset
+     * @param anchorlen
+     * 
+     * the anchor sequence is anchor[anchoroffset, anchoroffset+anchorlen)
+     * 
+     * @param indel
+     * @param indeloffset
+     * @param indellen
+     * 
+     * the indel sequence is indel[indeloffset, indeloffset+indellen)
+     * 
+     * @param indelstart
+     * @param insertion 
+     */
+    public LocusIndelData(byte anchorbase, byte[] anchor, int anchoroffset, int anchorlen,
+            byte[] indel, int indeloffset, int indellen, int indelstart, boolean insertion) {
         
         this.anchorbase = anchorbase;
         
-        int al = anchor.length;
-        int il = indel.length;
-        sequence = new byte[al + il];
-
-        System.arraycopy(anchor, 0, sequence, 0, al);
-        System.arraycopy(indel, 0, sequence, al, il);
-        this.offset = al;
+        sequence = new byte[anchorlen + indellen];
+        System.arraycopy(anchor, anchoroffset, sequence, 0, anchorlen);
+        System.arraycopy(indel, indeloffset, sequence, anchorlen, indellen);
+        this.offset = anchorlen;
 
         this.indelstart = indelstart;
-        this.minusstrand = minusstrand;
-        this.mapquality = mapquality;
-        this.indellen = il;
-
+        this.indellen = indellen;
         this.insertion = insertion;
-
-        // convert the index on read and read length into distances from the read edges
-        if (minusstrand) {
-            this.fromend = indexonread;
-            this.fromstart = readlength - indexonread - 1;
-        } else {
-            this.fromstart = indexonread;
-            this.fromend = readlength - indexonread - 1;
+    }
+    
+    /**
+     * 
+     * @return 
+     * 
+     * true if this object describes the given allele
+     */
+    boolean matches(byte[] anchor, int anchoroffset, int anchorlen,
+            byte[] indel, int indeloffset, int indellen, int indelstart, boolean insertion) {
+        if (this.insertion != insertion || this.indelstart != indelstart
+                || this.indellen != indellen || this.offset != anchorlen) {
+            return false;
+        }
+        for (int i = 0; i < anchorlen; i++) {
+            if (sequence[i] != anchor[anchoroffset + i]) {
+                return false;
+            }
+        }
+        for (int i = 0; i < indellen; i++) {
+            if (sequence[anchorlen + i] != indel[indeloffset + i]) {
+                return false;
+            }
         }
+        return true;
     }
     
     /**
@@ -95,32 +118,13 @@ class LocusIndelData {
     public String toString() {
         StringBuilder sb = new StringBuilder(256);
         sb.append("indel:\t").append(new String(sequence)).append("\t").append(offset).append("\n");
-        sb.append("minustrand:\t").append(minusstrand).append("\n");
         sb.append("insertions:\t").append(insertion).append("\n");
-        sb.append("from:\t").append(fromstart).append("\t").append(fromend).append("\n");
+        sb.append("start:\t").append(indelstart).append("\n");
         return sb.toString();
     }
-    
-    /**     
-     * 
-     * @return 
-     * 
-     * the mapping quality number associated with the read. 
-     * Is also accessible directly, so is this necessary or should the variable be private?
-     * 
-     */
-    public int getMapquality() {
-        return mapquality;
-    }
-    
-    public int getFromstart() {
-        return fromstart;
-    }
 
     public int getIndelLen() {
         return indellen;
     }
     
 }
-
-
@@ -17,7 +17,11 @@ package bamfo.call;
 
 import bamfo.utils.BamfoCommon;
 import bamfo.utils.BamfoRecord;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
@@ -26,12 +30,26 @@ import java.util.Set;
  * A structure that will hold the information about an indel from multiple reads.
  *
  * The class is used within BamfoVcf to hold temporary information about indels.
+ * 
+ * Alleles are interned: each distinct allele at the anchor is stored once, as
+ * a LocusIndelData object, and reads only record the index of their allele 
+ * together with a few numbers (strand, distance from read start, mapping
+ * quality). Loci in repetitive regions can have hundreds of reads with the 
+ * same indel, so this keeps memory flat and lets counting work on a tally of
+ * alleles rather than on a sorted list of reads.
  *
  * @author tkonopka
  */
 class LocusIndelDataList {
 
-    private final ArrayList<LocusIndelData> datalist;    
+    // distinct alleles at this anchor
+    private final ArrayList<LocusIndelData> alleles;
+    // information on reads (one element per read)
+    private int[] readallele;
+    private boolean[] minusstrand;
+    private int[] fromstart;
+    private int[] mapquality;
+    private int size = 0;
     private final int locuspos;
     private final byte anchorbase;
 
@@ -40,9 +58,14 @@ class LocusIndelDataList {
     }
     
     public LocusIndelDataList(int locuspos, byte anchorbase) {
-        this.datalist = new ArrayList<>(16);
+        this.alleles = new ArrayList<>(2);
         this.locuspos = locuspos;
-        this.anchorbase = anchorbase;        
+        this.anchorbase = anchorbase;
+        int capacity = 8;
+        readallele = new int[capacity];
+        minusstrand = new boolean[capacity];
+        fromstart = new int[capacity];
+        mapquality = new int[capacity];
     }
 
     /**
@@ -50,32 +73,68 @@ class LocusIndelDataList {
      * BamfoRecord object. 
      * 
      * @param anchor
+     * @param anchoroffset
+     * @param anchorlen
+     * 
+     * the anchor sequence is anchor[anchoroffset, anchoroffset+anchorlen)
+     * 
      * @param indel
+     * @param indeloffset
+     * @param indellen
+     * 
+     * the indel sequence is indel[indeloffset, indeloffset+indellen)
+     * 
      * @param indelstart
      * @param b2r
      * @param indexonread
      * @param insertion 
      */
-    public void add(byte[] anchor, byte[] indel, int indelstart, BamfoRecord b2r, 
+    public void add(byte[] anchor, int anchoroffset, int anchorlen,
+            byte[] indel, int indeloffset, int indellen, int indelstart, BamfoRecord b2r, 
             int indexonread, boolean insertion) {
         
         // this blog is a safeguard against potential bugs where the indexonread may go beyond
         // the read array length (can occur if reads have unusual/wrong cigars, e.g. 30M20I20D        
-        if (indexonread>=b2r.pos.length) {
+        if (indexonread>=b2r.readlength) {
             return;
         }
         
-        add(anchor, indel, indelstart, b2r.mapquality, b2r.record.getReadNegativeStrandFlag(),
-                indexonread, b2r.readlength, b2r.recordname, b2r.pos[indexonread]>b2r.overlapstart, 
-                insertion);
+        add(anchor, anchoroffset, anchorlen, indel, indeloffset, indellen, indelstart,
+                b2r.mapquality, b2r.minusstrand, indexonread, b2r.readlength, insertion);
     }
     
-    public void add(byte[] anchor, byte[] indel, int indelstart, int mapquality, boolean minusstrand,
-            int indexonread, int readlength,
-            String readname, boolean overlapping, boolean insertion) {
+    private void add(byte[] anchor, int anchoroffset, int anchorlen,
+            byte[] indel, int indeloffset, int indellen, int indelstart,
+            int mapquality, boolean minusstrand, int indexonread, int readlength, boolean insertion) {
 
-        datalist.add(new LocusIndelData(anchorbase, anchor, indel, indelstart, minusstrand, indexonread, readlength, mapquality, insertion));
+        // find the allele among those already seen at this anchor (there are usually very few)
+        int allele = -1;
+        for (int i = 0; i < alleles.size(); i++) {
+            if (alleles.get(i).matches(anchor, anchoroffset, anchorlen,
+                    indel, indeloffset, indellen, indelstart, insertion)) {
+                allele = i;
+                break;
+            }
+        }
+        if (allele < 0) {
+            alleles.add(new LocusIndelData(anchorbase, anchor, anchoroffset, anchorlen,
+                    indel, indeloffset, indellen, indelstart, insertion));
+            allele = alleles.size() - 1;
+        }
 
+        if (size == readallele.length) {
+            int capacity = 2 * size;
+            readallele = Arrays.copyOf(readallele, capacity);
+            this.minusstrand = Arrays.copyOf(this.minusstrand, capacity);
+            fromstart = Arrays.copyOf(fromstart, capacity);
+            this.mapquality = Arrays.copyOf(this.mapquality, capacity);
+        }
+        readallele[size] = allele;
+        this.minusstrand[size] = minusstrand;
+        // convert the index on read and read length into distances from the read edges
+        this.fromstart[size] = minusstrand ? readlength - indexonread - 1 : indexonread;
+        this.mapquality[size] = mapquality;
+        size++;
     }
 
     /**
@@ -106,19 +165,18 @@ class LocusIndelDataList {
             ArrayList<Integer> indelcounts,
             int minfromstart, int minfromend, int minmapqual) {
 
-        // subtract from the minimums so that can use > instead of >=
-        minfromstart--;
-        minfromend--;
-        minmapqual--;
-
-        LocusIndelDataComparator lidc = new LocusIndelDataComparator();
+        // tally the reads that satisfy minmapqual for each allele
+        int[] tally = new int[alleles.size()];
+        for (int i = 0; i < size; i++) {
+            if (mapquality[i] >= minmapqual) {
+                tally[readallele[i]]++;
+            }
+        }
 
-        // make a sublist with only those reads that satisfy minmapqual, minfromstart etc.
-        ArrayList<LocusIndelData> templist = new ArrayList<>(datalist.size());
-        for (int i = 0; i < datalist.size(); i++) {
-            LocusIndelData now = datalist.get(i);
-            if (now.mapquality > minmapqual) {
-                templist.add(now);
+        ArrayList<LocusIndelData> templist = new ArrayList<>(alleles.size());
+        for (int i = 0; i < alleles.size(); i++) {
+            if (tally[i] > 0) {
+                templist.add(alleles.get(i));
             }
         }
 
@@ -127,36 +185,36 @@ class LocusIndelDataList {
             return;
         }
 
-        // sort the data list to get better-indels first        
+        // sort the alleles to get better-indels first        
+        LocusIndelDataComparator lidc = new LocusIndelDataComparator();
         Collections.sort(templist, lidc);
 
         // record the unique indels and the number of times they appear
         // the first sorted indel is always included
         uniqueindels.add(templist.get(0));
-        int counter = 1;
+        int counter = tally[alleles.indexOf(templist.get(0))];
         for (int i = 1; i < templist.size(); i++) {
+            int nowtally = tally[alleles.indexOf(templist.get(i))];
             if (lidc.similar(templist.get(i), templist.get(i - 1))) {
-                counter++;
+                counter += nowtally;
             } else {
                 indelcounts.add(counter);
-                counter = 1;
+                counter = nowtally;
                 uniqueindels.add(templist.get(i));
             }
 
         }
         indelcounts.add(counter);
-        
-        
 
     }
 
     public int size() {
-        return datalist.size();
+        return size;
     }
 
     public void print() {
         System.out.println("LocusIndelDataList at locuspos "+locuspos);
-        System.out.println("datalist has "+datalist.size()+" elements");
+        System.out.println("datalist has "+size+" elements");
         
         ArrayList<LocusIndelData> uniqueindels = new ArrayList<>(4);
         ArrayList<Integer> indelcounts = new ArrayList<>(4);
@@ -179,15 +237,10 @@ class LocusIndelDataList {
      * 
      */
     public double getMedianMappingQuality() {
-        if (datalist.isEmpty()) {
+        if (size == 0) {
             return -1;
         }
-        int[] mq = new int[datalist.size()];
-        for (int i=0; i<mq.length; i++) {
-            mq[i] = datalist.get(i).getMapquality();
-        }
-        
-        return BamfoCommon.getMedian(mq);
+        return BamfoCommon.getMedian(Arrays.copyOf(mapquality, size));
     }
     
     /**
@@ -198,15 +251,13 @@ class LocusIndelDataList {
      *
      */
     public int getNumberUniqueFromstart(int len) {
-        int dsize = datalist.size();
-        Set<Integer> fromstart = new HashSet<>(dsize);
-        for (int i = 0; i < dsize; i++) {
-            LocusIndelData nowlocus = datalist.get(i);
-            if (nowlocus.getIndelLen() == len) {
-                fromstart.add(nowlocus.getFromstart());
+        Set<Integer> uniquefromstart = new HashSet<>(size);
+        for (int i = 0; i < size; i++) {
+            if (alleles.get(readallele[i]).indellen == len) {
+                uniquefromstart.add(fromstart[i]);
             }
         }
-        return fromstart.size();
+        return uniquefromstart.size();
     }
     
     /**
@@ -218,11 +269,9 @@ class LocusIndelDataList {
      */
     public int[] getStrandedIndelCount(int len) {
         int[] counts = new int[2];
-        int dsize = datalist.size();        
-        for (int i = 0; i < dsize; i++) {
-            LocusIndelData nowlocus = datalist.get(i);
-            if (nowlocus.getIndelLen() == len) {
-                if (nowlocus.minusstrand) {
+        for (int i = 0; i < size; i++) {
+            if (alleles.get(readallele[i]).indellen == len) {
+                if (minusstrand[i]) {
                     counts[1]++;
                 } else {
                     counts[0]++;
@@ -232,4 +281,66 @@ class LocusIndelDataList {
         return counts;
     }
     
+
+    /**
+     * Writes the alleles and reads in a compact form (see EvidenceCache).
+     *
+     * @param out
+     * @throws IOException
+     */
+    void write(DataOutput out) throws IOException {
+        out.writeByte(anchorbase);
+        EvidenceCache.writeVarint(out, alleles.size());
+        for (int i = 0; i < alleles.size(); i++) {
+            LocusIndelData allele = alleles.get(i);
+            EvidenceCache.writeVarint(out, allele.indelstart);
+            EvidenceCache.writeVarint(out, allele.offset);
+            EvidenceCache.writeVarint(out, allele.sequence.length);
+            out.write(allele.sequence);
+            out.writeBoolean(allele.insertion);
+        }
+        EvidenceCache.writeVarint(out, size);
+        for (int i = 0; i < size; i++) {
+            EvidenceCache.writeVarint(out, readallele[i]);
+            out.writeBoolean(minusstrand[i]);
+            EvidenceCache.writeVarint(out, fromstart[i]);
+            EvidenceCache.writeVarint(out, mapquality[i]);
+        }
+    }
+
+    /**
+     * Reads a list written by write. Alleles and reads keep their order.
+     *
+     * @param in
+     * @param locuspos
+     * @return
+     * @throws IOException
+     */
+    static LocusIndelDataList read(DataInput in, int locuspos) throws IOException {
+        byte anchorbase = in.readByte();
+        LocusIndelDataList list = new LocusIndelDataList(locuspos, anchorbase);
+        int numalleles = EvidenceCache.readVarint(in);
+        for (int i = 0; i < numalleles; i++) {
+            int indelstart = EvidenceCache.readVarint(in);
+            int offset = EvidenceCache.readVarint(in);
+            byte[] sequence = new byte[EvidenceCache.readVarint(in)];
+            in.readFully(sequence);
+            boolean insertion = in.readBoolean();
+            list.alleles.add(new LocusIndelData(anchorbase, sequence, 0, offset,
+                    sequence, offset, sequence.length - offset, indelstart, insertion));
+        }
+        int size = EvidenceCache.readVarint(in);
+        list.readallele = new int[Math.max(8, size)];
+        list.minusstrand = new boolean[list.readallele.length];
+        list.fromstart = new int[list.readallele.length];
+        list.mapquality = new int[list.readallele.length];
+        for (int i = 0; i < size; i++) {
+            list.readallele[i] = EvidenceCache.readVarint(in);
+            list.minusstrand[i] = in.readBoolean();
+            list.fromstart[i] = EvidenceCache.readVarint(in);
+            list.mapquality[i] = EvidenceCache.readVarint(in);
+        }
+        list.size = size;
+        return list;
+    }
 }
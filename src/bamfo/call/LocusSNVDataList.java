@@ -17,15 +17,40 @@ package bamfo.call;
 
 import bamfo.utils.BamfoCommon;
 import bamfo.utils.BamfoRecord;
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
 
 /**
- * Structure to hold references to all bases that are aligned onto a single
+ * Structure to hold information on all bases that are aligned onto a single
  * locus.
  *
+ * The information is stored in primitive arrays (one element per read) rather
+ * than in LocusSNVData objects. The arrays are kept when the object is
+ * cleared, so that one object can be reused for many loci (see
+ * LocusSNVPileup).
+ *
+ * In variant calling, most reads at most loci simply match the reference.
+ * Such reads can be added with addCounted, which only updates a few per-base
+ * counters (strand counts, low-quality counts, NM sums, distinct distances
+ * from read starts, and mapping qualities). The per-read arrays are then only
+ * needed (and allocated) once a mismatch or an N arrives. The counters hold
+ * everything that summarize needs, so calls do not change. Counting requires
+ * thresholds (see setCounting), which must be the same as those later used
+ * to summarize the locus. size, summarize, getCoverageCounts, and
+ * getNonReferenceCount include the counted reads; accessors that need
+ * per-read details throw an IllegalStateException if there are any.
+ *
+ * The number of stored reads can be capped (see setMaxDepth). Once a locus
+ * reaches the cap, further reads replace stored ones by reservoir sampling,
+ * so the stored reads are a uniform sample of all the reads. The random
+ * choices depend only on the seed and on the locus position, so they are
+ * the same in every run. Reads that are not kept in the sample are counted
+ * instead, so sizes, summaries, and coverage counts remain exact.
+ *
  * Used within the Bamfo variant calling program.
  *
  *
@@ -33,41 +58,216 @@ import java.util.Set;
  */
 public class LocusSNVDataList {
 
-    private ArrayList<LocusSNVData> lgdl;
-    private final String locusname;
-    private HashMap<String, Integer> overlappingReads = null;
+    private int locuspos;
+    private int size = 0;
+    // number of reads offered for storage (can exceed size when capped)
+    private int seen = 0;
+    // cap on size (0 for no cap), and state of the random number generator
+    private int maxdepth = 0;
+    private long seed = 0;
+    private long random;
+    // per-read information
+    private byte[] bases;
+    private byte[] qualities;
+    private boolean[] minusstrand;
+    private int[] fromstart;
+    private int[] fromend;
+    private boolean[] readhasindel;
+    private int[] mapquality;
+    private int[] NMtag;
+    private int[] maxN;
+    // thresholds for reads that are only counted (see setCounting)
+    private boolean counting = false;
+    private int minfromstart, minfromend, minmapqual;
+    private byte minbasequal;
+    // reads that are only counted (see addCounted and setMaxDepth)
+    private int counted = 0;
+    // per-base strand counts and maximal N, for reads passing the thresholds
+    private final int[] countplus = new int[5];
+    private final int[] countminus = new int[5];
+    private final int[] countmaxN = new int[5];
+    // the same for all reads, regardless of thresholds
+    private final int[] allplus = new int[5];
+    private final int[] allminus = new int[5];
+    private final int[] allmaxN = new int[5];
+    private int countlowmapqual, countlowbasequal;
+    // per-base NM sums and distinct distances from read starts (exact base codes only)
+    private final int[] countbases = new int[5];
+    private final long[] countNMsums = new long[5];
+    private final long[][] countfromstart = new long[5][2];
+    private final int[] countfromstartwords = new int[5];
+    // distinct mapping qualities of counted reads, with their counts
+    private int[] countmapqual = new int[2];
+    private int[] countmapqualcounts = new int[2];
+    private int countmapqualsize = 0;
+    // first of the bases held at this locus until their mates arrive (see
+    // MateOverlapTracker), -1 if there are none
+    private int held = -1;
 
     public String getLocusname() {
-        return locusname;
+        return "" + locuspos;
     }
 
-    public int getLocuspos2() {
-        //return locuspos;
-        return 0;
+    public int getLocuspos() {
+        return locuspos;
     }
 
-    public LocusSNVDataList(String locusname) {
-        this.lgdl = new ArrayList<>(16);
-        this.locusname = locusname;
-        this.overlappingReads = new HashMap<>(4, 0.8f);
+    public LocusSNVDataList(int locuspos) {
+        this.locuspos = locuspos;
+        // the per-read arrays are allocated when the first read is stored
     }
 
-    public LocusSNVDataList(int locuspos) {
-        this.lgdl = new ArrayList<>(16);
-        this.locusname = "" + locuspos;
+    /**
+     * Remove all information from the list, and assign the list to a new
+     * locus. The allocated arrays are kept for reuse.
+     *
+     * @param locuspos
+     */
+    public void clear(int locuspos) {
+        this.locuspos = locuspos;
+        this.size = 0;
+        this.seen = 0;
+        this.random = seed ^ (locuspos * 0x9E3779B97F4A7C15L);
+        this.held = -1;
+        if (counted > 0) {
+            counted = 0;
+            Arrays.fill(countplus, 0);
+            Arrays.fill(countminus, 0);
+            Arrays.fill(countmaxN, 0);
+            Arrays.fill(allplus, 0);
+            Arrays.fill(allminus, 0);
+            Arrays.fill(allmaxN, 0);
+            countlowmapqual = 0;
+            countlowbasequal = 0;
+            Arrays.fill(countbases, 0);
+            Arrays.fill(countNMsums, 0);
+            for (int i = 0; i < 5; i++) {
+                Arrays.fill(countfromstart[i], 0, countfromstartwords[i], 0L);
+                countfromstartwords[i] = 0;
+            }
+            countmapqualsize = 0;
+        }
+    }
+
+    /**
+     * Allows reads to be counted rather than stored (see addCounted and
+     * setMaxDepth). Should be called before any reads are added.
+     *
+     * @param minfromstart
+     * @param minfromend
+     * @param minbasequal
+     * @param minmapqual
+     */
+    public void setCounting(int minfromstart, int minfromend, byte minbasequal, int minmapqual) {
+        this.counting = true;
+        this.minfromstart = minfromstart;
+        this.minfromend = minfromend;
+        this.minbasequal = minbasequal;
+        this.minmapqual = minmapqual;
     }
 
+    /**
+     * Caps the number of reads stored in the list. Reads that are not kept
+     * are counted, so a cap requires thresholds set with setCounting. Should
+     * be called before any reads are added.
+     *
+     * @param maxdepth
+     *
+     * maximal number of stored reads (0 for no cap)
+     *
+     * @param seed
+     *
+     * seed for the choice of reads at loci with more than maxdepth reads
+     */
+    public void setMaxDepth(int maxdepth, long seed) {
+        if (maxdepth > 0 && !counting) {
+            throw new IllegalStateException("a depth cap requires counting thresholds");
+        }
+        this.maxdepth = maxdepth;
+        this.seed = seed;
+        this.random = seed ^ (locuspos * 0x9E3779B97F4A7C15L);
+    }
+
+    /**
+     *
+     * @return
+     *
+     * the first of the bases held at this locus by a MateOverlapTracker, or
+     * -1 if there are none
+     */
+    int getHeld() {
+        return held;
+    }
+
+    void setHeld(int held) {
+        this.held = held;
+    }
+
+    /**
+     *
+     * @return
+     *
+     * the number of reads at the locus (stored and counted)
+     */
     public int size() {
-        return lgdl.size();
+        return size + counted;
     }
 
+    /**
+     *
+     * @param index
+     * @return
+     *
+     * a copy of the information on one read, or null if the index is out of
+     * range. Counted reads have no index, so the list must not hold any.
+     *
+     */
     public LocusSNVData getLocusData(int index) {
-        if (index < lgdl.size()) {
-            return lgdl.get(index);
+        if (counted > 0) {
+            throw new IllegalStateException("counted reads cannot be accessed individually");
+        }
+        if (index < size) {
+            LocusSNVData lgd = new LocusSNVData(bases[index], qualities[index], minusstrand[index],
+                    0, 1, mapquality[index], readhasindel[index], maxN[index], NMtag[index]);
+            lgd.setFromstart(fromstart[index]);
+            lgd.setFromend(fromend[index]);
+            return lgd;
         }
         return null;
     }
 
+    /**
+     * make sure the arrays can hold one more element
+     */
+    private void ensureCapacity() {
+        if (bases == null) {
+            int capacity = 4;
+            bases = new byte[capacity];
+            qualities = new byte[capacity];
+            minusstrand = new boolean[capacity];
+            fromstart = new int[capacity];
+            fromend = new int[capacity];
+            readhasindel = new boolean[capacity];
+            mapquality = new int[capacity];
+            NMtag = new int[capacity];
+            maxN = new int[capacity];
+            return;
+        }
+        if (size < bases.length) {
+            return;
+        }
+        int capacity = 2 * bases.length;
+        bases = Arrays.copyOf(bases, capacity);
+        qualities = Arrays.copyOf(qualities, capacity);
+        minusstrand = Arrays.copyOf(minusstrand, capacity);
+        fromstart = Arrays.copyOf(fromstart, capacity);
+        fromend = Arrays.copyOf(fromend, capacity);
+        readhasindel = Arrays.copyOf(readhasindel, capacity);
+        mapquality = Arrays.copyOf(mapquality, capacity);
+        NMtag = Arrays.copyOf(NMtag, capacity);
+        maxN = Arrays.copyOf(maxN, capacity);
+    }
+
     /**
      * This is an easy way to add a base to the list. It uses the information in
      * the BamfoRecord to get all the relevant information and put it into the
@@ -75,167 +275,229 @@ public class LocusSNVDataList {
      *
      * @param b2r
      * @param indexonread
+     *
+     * @return
+     *
+     * index of the new item in the list, or -1 if the read was only counted
+     * (only at loci above the depth cap)
      */
-    public void add(BamfoRecord b2r, int indexonread) {
-
-        add(b2r.bases[indexonread], b2r.qualities[indexonread], b2r.mapquality,
-                b2r.record.getReadNegativeStrandFlag(), indexonread, b2r.readlength,
-                b2r.recordname, b2r.pos[indexonread] >= b2r.overlapstart,
+    public int add(BamfoRecord b2r, int indexonread) {
+        return add(b2r.bases[indexonread], b2r.qualities[indexonread], b2r.mapquality,
+                b2r.minusstrand, indexonread, b2r.readlength,
                 b2r.readhasindel, b2r.maxN, b2r.getNMtag());
-
     }
 
-    public void add(byte base, byte quality, int mapquality, boolean minusstrand,
-            int indexonread, int readlength, String readname, boolean overlapping,
+    public int add(byte base, byte quality, int mapquality, boolean minusstrand,
+            int indexonread, int readlength,
             boolean readhasindel, int maxN, int NMtag) {
 
-        // check if this is the first time the readname is encountered
-        Integer overlappingindex;
-        if (overlappingReads == null) {
-            overlappingindex = null;
-        } else {
-            overlappingindex = overlappingReads.get(readname);
-        }
-
-        if (overlappingindex == null) {
-            // first time this read name is encountered, so insert the information onto the locus
-            lgdl.add(new LocusSNVData(base, quality, minusstrand, indexonread, readlength,
-                    mapquality, readhasindel, maxN, NMtag));
-
-            // but if the read is said to be overlapping, then save its name into the HashMap
-            // for the value, put the index of this LocusGenotypData so that it can be retrieved later
-            if (overlapping) {
-                // first create a hashmap if necessary
-                if (overlappingReads == null) {
-                    overlappingReads = new HashMap<>(8);
-                }
-                overlappingReads.put(readname, lgdl.size() - 1);
-            }
-
-        } else {
-            // the read name is encountered before. Look up the already present information            
-            LocusSNVData lgd = lgdl.get((int) overlappingindex);
-
-            // update the attributes (base, quality, fromstart, fromend) to reflect the better quality evidence
-            //byte oldquality = lgd.quality;
-            int oldmapquality = lgd.getMapquality();
-            //boolean oldminusstrand = lgd.minusstrand;
-
-            // update the fromstart and fromend information 
-            int nowfromstart, nowfromend;
-            if (minusstrand) {
-                nowfromend = indexonread;
-                nowfromstart = -1 + readlength - indexonread;
-            } else {
-                nowfromstart = indexonread;
-                nowfromend = -1 + readlength - indexonread;
-            }
-
-            // check qualities
-            // replace the old information on base, quality, and strand if 
-            //   - new quality is better            
-
-            // if they are not concordant:
-            // if one of the bases is N, be optimistic and record the non-N base.
-            // if none of the two are N, then the base becomes unknown and is recorded as N
-            if (lgd.getBase() != base) {
-                if (lgd.getBase() == 'N') {
-                    lgd.setBase(base);
-                } else {
-                    if (base != 'N') {
-                        lgd.setBase((byte) 'N');
-                    }
-                }
-            }
+        return store(base, quality, mapquality, minusstrand,
+                getFromstart(minusstrand, indexonread, readlength),
+                getFromend(minusstrand, indexonread, readlength),
+                readhasindel, maxN, NMtag);
+    }
 
-            if (mapquality > oldmapquality) {
-                lgd.setMapquality(mapquality);
-            }
+    private int store(byte base, byte quality, int mapquality, boolean minusstrand,
+            int nowfromstart, int nowfromend,
+            boolean readhasindel, int maxN, int NMtag) {
 
-            // check if the old read had an indel
-            // if it did, and if this one does not, use the base as if it does not have an indel
-            if (lgd.isReadhasindel() && !readhasindel) {
-                lgd.setReadhasindel(readhasindel);
+        seen++;
+        int index = size;
+        if (maxdepth > 0 && size >= maxdepth) {
+            // reservoir sampling: keep the read with probability maxdepth/seen,
+            // reads that are not kept (new or replaced) are counted
+            index = nextRandom(seen);
+            if (index >= size) {
+                count(base, quality, minusstrand, nowfromstart, nowfromend, mapquality, NMtag, maxN);
+                return -1;
             }
-
-            // replace the old fromstart from end with larger values. 
-            // This is somewhat ad-hoc as it is impossible to determine exactly                       
-            lgd.setFromstart(Math.max(lgd.getFromstart(), nowfromstart));
-            lgd.setFromend(Math.max(lgd.getFromend(), nowfromend));
-            lgd.setMaxN(Math.max(lgd.getMaxN(), maxN));
-            lgd.setNMtag(Math.max(lgd.getNMtag(), NMtag));
+            count(bases[index], qualities[index], this.minusstrand[index], fromstart[index],
+                    fromend[index], this.mapquality[index], this.NMtag[index], this.maxN[index]);
+        } else {
+            ensureCapacity();
+            size++;
         }
 
+        set(index, base, quality, mapquality, minusstrand, nowfromstart, nowfromend,
+                readhasindel, maxN, NMtag);
+        return index;
+    }
+
+    private void set(int index, byte base, byte quality, int mapquality, boolean minusstrand,
+            int fromstart, int fromend, boolean readhasindel, int maxN, int NMtag) {
+        this.bases[index] = base;
+        this.qualities[index] = quality;
+        this.minusstrand[index] = minusstrand;
+        this.fromstart[index] = fromstart;
+        this.fromend[index] = fromend;
+        this.readhasindel[index] = readhasindel;
+        this.mapquality[index] = mapquality;
+        this.NMtag[index] = NMtag;
+        this.maxN[index] = maxN;
     }
 
     /**
      *
+     * @param bound
      * @return
      *
-     * true if this locus saw some overlapping reads.
+     * a pseudo-random integer in [0, bound)
+     */
+    private int nextRandom(int bound) {
+        // splitmix64
+        random += 0x9E3779B97F4A7C15L;
+        long z = random;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        z = z ^ (z >>> 31);
+        return (int) ((z >>> 1) % bound);
+    }
+
+    /**
+     * Adds a base from a read, only counting it if it matches the reference.
+     * Reads are counted using the thresholds set with setCounting.
      *
+     * @param refbase
+     *
+     * reference base at the locus
+     *
+     * @param b2r
+     * @param indexonread
      */
-    public int numOverlaps() {
-        return overlappingReads.size();
+    public void addCounted(byte refbase, BamfoRecord b2r, int indexonread) {
+        byte base = b2r.bases[indexonread];
+        if (base != refbase || BamfoCommon.basesToZeroToFour(base) == BamfoCommon.codeN) {
+            add(b2r, indexonread);
+            return;
+        }
+        count(base, b2r.qualities[indexonread], b2r.minusstrand,
+                getFromstart(b2r.minusstrand, indexonread, b2r.readlength),
+                getFromend(b2r.minusstrand, indexonread, b2r.readlength),
+                b2r.mapquality, b2r.getNMtag(), b2r.maxN);
     }
 
     /**
+     * Adds a base that was held while waiting for a mate (see
+     * MateOverlapTracker), possibly merged with the mate. If the list has
+     * counting thresholds, a base matching the reference is only counted, as
+     * in addCounted. Other bases are stored subject to the depth cap, like
+     * bases added with add.
      *
-     * @return
+     * @param refbase
      *
-     * the number of unique distances from the start of a read
+     * reference base at the locus
      *
      */
-    public int getNumberUniqueFromstart(byte base) {
-        int lsize = lgdl.size();
-        Set<Integer> fromstart = new HashSet<>(lsize);
-        for (int i = 0; i < lsize; i++) {
-            LocusSNVData nowlocus = lgdl.get(i);
-            if (nowlocus.getBase() == base) {
-                fromstart.add(nowlocus.getFromstart());
+    void addHeld(byte refbase, byte base, byte quality, int mapquality, boolean minusstrand,
+            int fromstart, int fromend, boolean readhasindel, int maxN, int NMtag) {
+        if (counting && base == refbase && BamfoCommon.basesToZeroToFour(base) != BamfoCommon.codeN) {
+            count(base, quality, minusstrand, fromstart, fromend, mapquality, NMtag, maxN);
+        } else {
+            store(base, quality, mapquality, minusstrand, fromstart, fromend, readhasindel, maxN, NMtag);
+        }
+    }
+
+    /**
+     * Records a read in the counters. Uses the same criteria as
+     * LocusSNVSummary.add, so that summaries do not depend on whether reads
+     * are stored or counted.
+     */
+    private void count(byte base, byte quality, boolean minusstrand, int fromstart, int fromend,
+            int mapquality, int NMtag, int maxN) {
+
+        counted++;
+        int whichbase = BamfoCommon.basesToZeroToFour(base);
+        if (minusstrand) {
+            allminus[whichbase]++;
+        } else {
+            allplus[whichbase]++;
+        }
+        allmaxN[whichbase] = Math.max(allmaxN[whichbase], maxN);
+
+        if (fromstart >= minfromstart && fromend >= minfromend) {
+            if (quality >= minbasequal && mapquality >= minmapqual) {
+                if (minusstrand) {
+                    countminus[whichbase]++;
+                } else {
+                    countplus[whichbase]++;
+                }
+                countmaxN[whichbase] = Math.max(countmaxN[whichbase], maxN);
+            }
+            if (mapquality < minmapqual) {
+                countlowmapqual++;
+            } else if (quality < minbasequal) {
+                countlowbasequal++;
+            }
+        }
+
+        // NM and distinct fromstart are recorded only for exact base codes
+        if (whichbase != BamfoCommon.codeN || base == 'N') {
+            countbases[whichbase]++;
+            countNMsums[whichbase] += NMtag;
+            int word = fromstart >>> 6;
+            long[] bits = countfromstart[whichbase];
+            if (word >= bits.length) {
+                bits = Arrays.copyOf(bits, Math.max(2 * bits.length, word + 1));
+                countfromstart[whichbase] = bits;
+            }
+            bits[word] |= 1L << (fromstart & 63);
+            countfromstartwords[whichbase] = Math.max(countfromstartwords[whichbase], word + 1);
+        }
+
+        for (int i = 0; i < countmapqualsize; i++) {
+            if (countmapqual[i] == mapquality) {
+                countmapqualcounts[i]++;
+                return;
             }
         }
-        return fromstart.size();
+        if (countmapqualsize == countmapqual.length) {
+            countmapqual = Arrays.copyOf(countmapqual, 2 * countmapqualsize);
+            countmapqualcounts = Arrays.copyOf(countmapqualcounts, 2 * countmapqualsize);
+        }
+        countmapqual[countmapqualsize] = mapquality;
+        countmapqualcounts[countmapqualsize] = 1;
+        countmapqualsize++;
     }
 
     /**
      *
-     * @param base
      * @return
      *
-     * the average NM tag value associated with reads containing the input base.
-     *
+     * true if the thresholds are those used to count reads
      */
-    public int getMeanNMtag(byte base) {
-        double tottag = 0.0;
-        double numtags = 0.0;
-        int lsize = lgdl.size();
-        for (int i = 0; i < lsize; i++) {
-            LocusSNVData nowlocus = lgdl.get(i);
-            if (nowlocus.getBase() == base) {
-                numtags += 1;
-                tottag += nowlocus.getNMtag();
-            }
-        }        
-        return (int) Math.round(tottag / numtags);
+    private boolean isCountingThresholds(int minfromstart, int minfromend, byte minbasequal, int minmapqual) {
+        return minfromstart == this.minfromstart && minfromend == this.minfromend
+                && minbasequal == this.minbasequal && minmapqual == this.minmapqual;
+    }
+
+    // convert the index on read and read length into distances from the read edges
+    static int getFromstart(boolean minusstrand, int indexonread, int readlength) {
+        return minusstrand ? -1 + readlength - indexonread : indexonread;
+    }
+
+    static int getFromend(boolean minusstrand, int indexonread, int readlength) {
+        return minusstrand ? indexonread : -1 + readlength - indexonread;
     }
 
     /**
      *
      * @return
      *
-     * the number of unique distances from the end of a read
+     * the number of unique distances from the end of a read (distances from
+     * the end are not kept for counted reads, so the list must not hold any)
      *
      */
     public int getNumberUniqueFromend(byte base) {
-        Set<Integer> fromend = new HashSet<>(8);
-        for (int i = 0; i < lgdl.size(); i++) {
-            LocusSNVData nowlocus = lgdl.get(i);
-            if (nowlocus.getBase() == base) {
-                fromend.add(nowlocus.getFromend());
+        if (counted > 0) {
+            throw new IllegalStateException("counted reads do not record distances from the end");
+        }
+        Set<Integer> uniquefromend = new HashSet<>(8);
+        for (int i = 0; i < size; i++) {
+            if (bases[i] == base) {
+                uniquefromend.add(fromend[i]);
             }
         }
-        return fromend.size();
+        return uniquefromend.size();
     }
 
     /**
@@ -260,31 +522,50 @@ public class LocusSNVDataList {
      *
      * @minmapqual
      *
+     * Counted reads are included if the thresholds are those used for
+     * counting, or if all thresholds are zero.
      *
      */
     public void getCoverageCounts(int[] covplus, int[] covminus, int[] maxnvalues,
             int minfromstart, int minfromend, byte minbasequal, int minmapqual) {
 
+        if (counted > 0) {
+            int[] plus, minus, maxN;
+            if (isCountingThresholds(minfromstart, minfromend, minbasequal, minmapqual)) {
+                plus = countplus;
+                minus = countminus;
+                maxN = countmaxN;
+            } else if (minfromstart == 0 && minfromend == 0 && minbasequal == 0 && minmapqual == 0) {
+                plus = allplus;
+                minus = allminus;
+                maxN = allmaxN;
+            } else {
+                throw new IllegalStateException("counted reads are not available at these thresholds");
+            }
+            for (int i = 0; i < 5; i++) {
+                covplus[i] += plus[i];
+                covminus[i] += minus[i];
+                maxnvalues[i] = Math.max(maxnvalues[i], maxN[i]);
+            }
+        }
+
         // subtract from the minimums so that can use > instead of >=
         minfromstart--;
         minfromend--;
         minmapqual--;
 
-        int listlen = lgdl.size();
-        for (int i = 0; i < listlen; i++) {
-            LocusSNVData lgd = lgdl.get(i);
-
+        for (int i = 0; i < size; i++) {
             // make sure the locus has appropriate distance from the read start/end position
-            if (lgd.getFromstart() > minfromstart && lgd.getFromend() > minfromend
-                    && lgd.quality >= minbasequal && lgd.getMapquality() > minmapqual) {
-                int whichbase = BamfoCommon.basesToZeroToFour(lgd.getBase());
-                if (lgd.minusstrand) {
+            if (fromstart[i] > minfromstart && fromend[i] > minfromend
+                    && qualities[i] >= minbasequal && mapquality[i] > minmapqual) {
+                int whichbase = BamfoCommon.basesToZeroToFour(bases[i]);
+                if (minusstrand[i]) {
                     covminus[whichbase]++;
                 } else {
                     covplus[whichbase]++;
                 }
-                if (lgd.getMaxN() > maxnvalues[whichbase]) {
-                    maxnvalues[whichbase] = lgd.getMaxN();
+                if (maxN[i] > maxnvalues[whichbase]) {
+                    maxnvalues[whichbase] = maxN[i];
                 }
             } else {
                 // do not count this base in the genotyping
@@ -294,149 +575,132 @@ public class LocusSNVDataList {
     }
 
     /**
+     * Collects all the information needed to score a locus in a single sweep
+     * over the reads, including the counted reads.
+     *
+     * @param summary
+     *
+     * object that will be reset and filled in
      *
      * @param minfromstart
      * @param minfromend
      * @param minbasequal
      * @param minmapqual
-     * @return
-     *
-     * the effective depth at this locus. That is the total number of bases
-     * covering the position with sufficient high mapping quality, minimum
-     * distance from ends, etc.
-     *
      */
-    public int getEffectiveDepth(int minfromstart, int minfromend, byte minbasequal, int minmapqual) {
-
-        int depth = 0;
-
-        // subtract from the minimums so that can use > instead of >=
-        minfromstart--;
-        minfromend--;
-        minmapqual--;
-
-        int listlen = lgdl.size();
-        for (int i = 0; i < listlen; i++) {
-            LocusSNVData lgd = lgdl.get(i);
-            // make sure the locus has appropriate distance from the read start/end position
-            if (lgd.getFromstart() > minfromstart && lgd.getFromend() > minfromend
-                    && lgd.quality >= minbasequal && lgd.getMapquality() > minmapqual) {
-                depth++;
+    void summarize(LocusSNVSummary summary,
+            int minfromstart, int minfromend, byte minbasequal, int minmapqual) {
+        if (counted > 0 && !isCountingThresholds(minfromstart, minfromend, minbasequal, minmapqual)) {
+            throw new IllegalStateException("counted reads cannot be summarized at other thresholds");
+        }
+        summary.reset(minfromstart, minfromend, minbasequal, minmapqual);
+        for (int i = 0; i < size; i++) {
+            summary.add(bases[i], qualities[i], minusstrand[i], fromstart[i], fromend[i],
+                    mapquality[i], NMtag[i], maxN[i]);
+        }
+        if (counted > 0) {
+            for (int i = 0; i < 5; i++) {
+                summary.addCounted(i, countbases[i], countplus[i], countminus[i], countmaxN[i],
+                        countNMsums[i], countfromstart[i], countfromstartwords[i]);
+            }
+            summary.addLowQuality(countlowmapqual, countlowbasequal);
+            for (int i = 0; i < countmapqualsize; i++) {
+                summary.addMappingQuality(countmapqual[i], countmapqualcounts[i]);
             }
         }
-
-        return depth;
     }
 
     /**
      *
-     * @param minfromstart
-     * @param minfromend
-     * @param minbasequal
-     * @param minmapqual
+     * @param refbase
      * @return
      *
-     * the effective depth at this locus. That is the total number of bases
-     * covering the position with sufficient high mapping quality, minimum
-     * distance from ends, etc. The return object is an array with plus and
-     * minus strand counts.
-     *
+     * the number of reads whose base differs from the reference (all reads if
+     * the reference base is ambiguous)
      */
-    public int[] getStrandEffectiveDepth(int minfromstart, int minfromend, byte minbasequal, int minmapqual) {
-
-        int[] depth = new int[2];
-
-        // subtract from the minimums so that can use > instead of >=
-        minfromstart--;
-        minfromend--;
-        minmapqual--;
-
-        int listlen = lgdl.size();
-        for (int i = 0; i < listlen; i++) {
-            LocusSNVData lgd = lgdl.get(i);
-            // make sure the locus has appropriate distance from the read start/end position
-            if (lgd.getFromstart() > minfromstart && lgd.getFromend() > minfromend
-                    && lgd.quality >= minbasequal && lgd.getMapquality() > minmapqual) {
-                if (lgd.minusstrand) {
-                    depth[1]++;
-                } else {
-                    depth[0]++;
-                }
+    int getNonReferenceCount(byte refbase) {
+        int refcode = BamfoCommon.basesToZeroToFour(refbase);
+        if (refcode == BamfoCommon.codeN) {
+            return size();
+        }
+        int count = 0;
+        for (int i = 0; i < 5; i++) {
+            if (i != refcode) {
+                count += allplus[i] + allminus[i];
             }
         }
-
-        return depth;
+        for (int i = 0; i < size; i++) {
+            if (BamfoCommon.basesToZeroToFour(bases[i]) != refcode) {
+                count++;
+            }
+        }
+        return count;
     }
 
     /**
-     * count the number of reads with low mapping quality and low base quality
-     * covering this locus
-     *
-     * @param minfromstart
-     * @param minfromend
-     * @param minbasequal
-     * @param minmapqual
-     *
-     * @return
-     *
-     * array of two elements. First item is number of reads with low mapping
-     * quality. Second item is number of reads with high mapping quality but low
-     * base quality score.
+     * Writes the stored reads in a compact form (see EvidenceCache). Reads
+     * that were only counted cannot be written.
      *
+     * @param out
+     * @throws IOException
      */
-    public int[] getLowQualityCounts(int minfromstart, int minfromend, byte minbasequal, int minmapqual) {
-
-        int[] numlow = new int[2];
-
-        // subtract from the minimums so that can use > instead of >=
-        minfromstart--;
-        minfromend--;
-
-        int listlen = lgdl.size();
-        for (int i = 0; i < listlen; i++) {
-            LocusSNVData lgd = lgdl.get(i);
-            // make sure the locus has appropriate distance from the read start/end position
-            if (lgd.getFromstart() > minfromstart && lgd.getFromend() > minfromend) {
-                if (lgd.getMapquality() < minmapqual) {
-                    numlow[0]++;
-                } else {
-                    if (lgd.quality < minbasequal) {
-                        numlow[1]++;
-                    }
-                }
-            }
+    void write(DataOutput out) throws IOException {
+        if (counted > 0) {
+            throw new IllegalStateException("counted reads cannot be written");
+        }
+        EvidenceCache.writeVarint(out, seen);
+        EvidenceCache.writeVarint(out, size);
+        for (int i = 0; i < size; i++) {
+            out.writeByte(bases[i]);
+            out.writeByte(qualities[i]);
+            out.writeByte((minusstrand[i] ? 1 : 0) | (readhasindel[i] ? 2 : 0));
+            EvidenceCache.writeVarint(out, fromstart[i]);
+            EvidenceCache.writeVarint(out, fromend[i]);
+            EvidenceCache.writeVarint(out, mapquality[i]);
+            EvidenceCache.writeVarint(out, NMtag[i]);
+            EvidenceCache.writeVarint(out, maxN[i]);
         }
-
-        return numlow;
     }
 
     /**
+     * Reads a list written by write.
      *
+     * @param in
+     * @param locuspos
      * @return
-     *
-     * the median mapping quality associated with the locus
-     *
+     * @throws IOException
      */
-    public double getMedianMappingQuality() {
-        if (lgdl.isEmpty()) {
-            return -1;
-        }
-        int[] mq = new int[lgdl.size()];
-        for (int i = 0; i < mq.length; i++) {
-            mq[i] = lgdl.get(i).getMapquality();
+    static LocusSNVDataList read(DataInput in, int locuspos) throws IOException {
+        LocusSNVDataList list = new LocusSNVDataList(locuspos);
+        int seen = EvidenceCache.readVarint(in);
+        int size = EvidenceCache.readVarint(in);
+        for (int i = 0; i < size; i++) {
+            list.ensureCapacity();
+            list.bases[i] = in.readByte();
+            list.qualities[i] = in.readByte();
+            int flags = in.readByte();
+            list.minusstrand[i] = (flags & 1) != 0;
+            list.readhasindel[i] = (flags & 2) != 0;
+            list.fromstart[i] = EvidenceCache.readVarint(in);
+            list.fromend[i] = EvidenceCache.readVarint(in);
+            list.mapquality[i] = EvidenceCache.readVarint(in);
+            list.NMtag[i] = EvidenceCache.readVarint(in);
+            list.maxN[i] = EvidenceCache.readVarint(in);
+            list.size++;
         }
-
-        return BamfoCommon.getMedian(mq);
+        list.seen = seen;
+        return list;
     }
 
     /**
      * prints all information about this locus to the screen
      */
     public void print() {
-        System.out.println(locusname + " ");
-        for (int i = 0; i < lgdl.size(); i++) {
-            LocusSNVData lgd = lgdl.get(i);
-            System.out.println((char) lgd.getBase() + "\t" + lgd.quality + "\t" + lgd.getFromstart() + "\t" + lgd.getFromend());
+        System.out.println(getLocusname() + " ");
+        if (counted > 0) {
+            System.out.println("counted\t" + counted);
+        }
+        for (int i = 0; i < size; i++) {
+            System.out.println((char) bases[i] + "\t" + qualities[i] + "\t" + fromstart[i] + "\t" + fromend[i]);
         }
         System.out.println();
     }
@@ -0,0 +1,357 @@
+/*
+ * Copyright 2012-2014 Tomasz Konopka.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bamfo.call;
+
+import bamfo.utils.BamfoRecord;
+
+/**
+ * A circular buffer holding LocusSNVDataList objects for a window of loci on
+ * one chromosome. It replaces a HashMap<Integer, LocusSNVDataList> in
+ * traversals of sorted alignments.
+ *
+ * The window starts at windowstart and grows to the right as reads are added.
+ * Loci are stored in slots indexed by (position modulo capacity), so the
+ * capacity always covers the whole window. The LocusSNVDataList objects in
+ * the slots are reused for new loci, so a traversal does not allocate new
+ * objects once the buffer has warmed up.
+ *
+ * Bases from mates that overlap each other are counted once. The pileup
+ * keeps one MateOverlapTracker for the whole window; the first mate's bases
+ * in the overlap region are held there, and the second mate is merged into
+ * them before they are added to the loci. Loci should therefore be fetched
+ * (get) only once all reads that cover them have been added; bases still
+ * held at that point are added without a mate.
+ *
+ * The number of reads stored per locus can be capped (see setMaxDepth).
+ * The tracker in addition holds one base per overlapping first mate whose
+ * second mate has not yet arrived.
+ *
+ * @author tkonopka
+ */
+public class LocusSNVPileup {
+
+    // slotpos holds the locus currently stored in each slot (0 for an empty slot)
+    private int[] slotpos;
+    private LocusSNVDataList[] slots;
+    private int mask;
+    private int windowstart = 1;
+    // number of loci holding data
+    private int numloci = 0;
+    private final MateOverlapTracker overlaps;
+    // thresholds for counted reads (see LocusSNVDataList.addCounted)
+    private final boolean counted;
+    private final int minfromstart, minfromend, minmapqual;
+    private final byte minbasequal;
+    // cap on reads stored per locus (see LocusSNVDataList.setMaxDepth)
+    private int maxdepth = 0;
+    private long seed = 0;
+
+    /**
+     *
+     * @param capacity
+     *
+     * initial number of slots (will be rounded up to a power of two)
+     *
+     */
+    public LocusSNVPileup(int capacity) {
+        this(capacity, false, 0, 0, (byte) 0, 0);
+    }
+
+    /**
+     * Creates a pileup in which reads matching the reference are only counted
+     * (see add(int, byte, BamfoRecord, int)). The thresholds must be the same
+     * as those later used to summarize the loci.
+     *
+     * @param capacity
+     * @param minfromstart
+     * @param minfromend
+     * @param minbasequal
+     * @param minmapqual
+     */
+    public LocusSNVPileup(int capacity, int minfromstart, int minfromend,
+            byte minbasequal, int minmapqual) {
+        this(capacity, true, minfromstart, minfromend, minbasequal, minmapqual);
+    }
+
+    private LocusSNVPileup(int capacity, boolean counted, int minfromstart, int minfromend,
+            byte minbasequal, int minmapqual) {
+        this.counted = counted;
+        this.minfromstart = minfromstart;
+        this.minfromend = minfromend;
+        this.minbasequal = minbasequal;
+        this.minmapqual = minmapqual;
+        int size = 16;
+        while (size < capacity) {
+            size *= 2;
+        }
+        slotpos = new int[size];
+        slots = new LocusSNVDataList[size];
+        mask = size - 1;
+        overlaps = new MateOverlapTracker(4 * size);
+    }
+
+    /**
+     * Remove all loci from the buffer and reset the window to start at locus
+     * 1. (Use when a traversal moves onto a new chromosome.)
+     */
+    public void clear() {
+        clear(1);
+    }
+
+    /**
+     * Remove all loci from the buffer and reset the window.
+     *
+     * @param windowstart
+     *
+     * first locus that can be stored in the buffer
+     */
+    public void clear(int windowstart) {
+        for (int i = 0; i < slotpos.length; i++) {
+            if (slotpos[i] > 0) {
+                slotpos[i] = 0;
+                slots[i].clear(0);
+            }
+        }
+        this.windowstart = windowstart;
+        this.numloci = 0;
+        overlaps.clear();
+    }
+
+    /**
+     * Caps the number of reads stored at each locus. Loci above the cap keep
+     * a reproducible random sample of their reads; the other reads are
+     * counted using the thresholds of the pileup, so a cap is only available
+     * in pileups created with thresholds.
+     *
+     * @param maxdepth
+     *
+     * maximal number of stored reads per locus (0 for no cap)
+     *
+     * @param seed
+     */
+    public void setMaxDepth(int maxdepth, long seed) {
+        if (maxdepth > 0 && !counted) {
+            throw new IllegalStateException("a depth cap requires a pileup with thresholds");
+        }
+        this.maxdepth = maxdepth;
+        this.seed = seed;
+        for (int i = 0; i < slots.length; i++) {
+            if (slots[i] != null) {
+                slots[i].setMaxDepth(maxdepth, seed);
+            }
+        }
+    }
+
+    public int getWindowStart() {
+        return windowstart;
+    }
+
+    public boolean isEmpty() {
+        return numloci == 0;
+    }
+
+    /**
+     * Move the start of the window. Loci before the new start are discarded.
+     *
+     * @param newstart
+     */
+    public void setWindowStart(int newstart) {
+        if (newstart <= windowstart) {
+            return;
+        }
+        if (newstart - windowstart > slotpos.length) {
+            clear(newstart);
+            return;
+        }
+        for (int i = windowstart; i < newstart; i++) {
+            remove(i);
+        }
+        windowstart = newstart;
+    }
+
+    /**
+     *
+     * @param pos
+     * @return
+     *
+     * the list of bases at a locus, or null if the locus holds no data. Bases
+     * held at the locus for mates that have not arrived are added to the list.
+     *
+     */
+    public LocusSNVDataList get(int pos) {
+        if (pos < windowstart) {
+            return null;
+        }
+        int index = pos & mask;
+        if (slotpos[index] == pos) {
+            if (slots[index].getHeld() >= 0) {
+                overlaps.releaseAll(slots[index]);
+            }
+            return slots[index];
+        }
+        return null;
+    }
+
+    /**
+     *
+     * @param pos
+     * @return
+     *
+     * a list for the locus. If the locus does not hold any data yet, the list
+     * will be empty. Returns null for loci before the window start.
+     *
+     */
+    public LocusSNVDataList getOrCreate(int pos) {
+        if (pos < windowstart) {
+            return null;
+        }
+        if (pos - windowstart >= slotpos.length) {
+            grow(pos - windowstart + 1);
+        }
+        int index = pos & mask;
+        if (slotpos[index] != pos) {
+            // slot is empty (loci are always removed before the window moves past them)
+            if (slots[index] == null) {
+                slots[index] = new LocusSNVDataList(pos);
+                if (counted) {
+                    slots[index].setCounting(minfromstart, minfromend, minbasequal, minmapqual);
+                }
+                slots[index].setMaxDepth(maxdepth, seed);
+            } else {
+                slots[index].clear(pos);
+            }
+            slotpos[index] = pos;
+            numloci++;
+        }
+        return slots[index];
+    }
+
+    /**
+     * Record a base from a read at a locus.
+     *
+     * @param pos
+     * @param b2r
+     * @param indexonread
+     */
+    public void add(int pos, BamfoRecord b2r, int indexonread) {
+        add(pos, (byte) 'N', b2r, indexonread);
+    }
+
+    /**
+     * Record a base from a read at a locus. If the pileup was created with
+     * thresholds, bases matching the reference are only counted. Bases from a
+     * read that overlaps its mate are counted or stored once the mates have
+     * been merged.
+     *
+     * @param pos
+     * @param refbase
+     *
+     * reference base at the locus
+     *
+     * @param b2r
+     * @param indexonread
+     */
+    public void add(int pos, byte refbase, BamfoRecord b2r, int indexonread) {
+        LocusSNVDataList locus = getOrCreate(pos);
+        if (locus == null) {
+            return;
+        }
+
+        // only reads that overlap a mate, or second mates at loci where a first
+        // mate is held, need the template id
+        boolean overlapping = pos >= b2r.overlapstart;
+        if (!overlapping && (!b2r.aftermate || locus.getHeld() < 0)) {
+            addNew(locus, refbase, b2r, indexonread);
+            return;
+        }
+
+        long template = b2r.getTemplateId();
+        int item = overlaps.get(template, pos);
+        if (item >= 0) {
+            // the merged base no longer waits for a mate
+            overlaps.merge(item, b2r, indexonread);
+            overlaps.release(item, locus);
+        } else if (overlapping) {
+            // this base may later be merged with a mate
+            overlaps.put(template, pos, refbase, b2r, indexonread, locus);
+        } else {
+            addNew(locus, refbase, b2r, indexonread);
+        }
+    }
+
+    private void addNew(LocusSNVDataList locus, byte refbase, BamfoRecord b2r, int indexonread) {
+        if (counted) {
+            locus.addCounted(refbase, b2r, indexonread);
+        } else {
+            locus.add(b2r, indexonread);
+        }
+    }
+
+    /**
+     * Remove information about a locus. The list object is kept for reuse.
+     *
+     * @param pos
+     */
+    public void remove(int pos) {
+        int index = pos & mask;
+        if (slotpos[index] == pos) {
+            if (slots[index].getHeld() >= 0) {
+                overlaps.removeAll(slots[index]);
+            }
+            slotpos[index] = 0;
+            slots[index].clear(0);
+            numloci--;
+        }
+    }
+
+    /**
+     * Increase the number of slots so that the window can hold at least
+     * minsize loci.
+     *
+     * @param minsize
+     */
+    private void grow(int minsize) {
+        int newsize = slotpos.length;
+        while (newsize < minsize) {
+            newsize *= 2;
+        }
+        int newmask = newsize - 1;
+        int[] newslotpos = new int[newsize];
+        LocusSNVDataList[] newslots = new LocusSNVDataList[newsize];
+
+        // move the loci in the window into their new slots
+        for (int i = 0; i < slotpos.length; i++) {
+            if (slotpos[i] > 0) {
+                newslotpos[slotpos[i] & newmask] = slotpos[i];
+                newslots[slotpos[i] & newmask] = slots[i];
+            }
+        }
+        // place the objects of unused slots into empty slots
+        int j = 0;
+        for (int i = 0; i < slotpos.length; i++) {
+            if (slots[i] != null && slotpos[i] == 0) {
+                while (newslots[j] != null) {
+                    j++;
+                }
+                newslots[j] = slots[i];
+            }
+        }
+
+        slotpos = newslotpos;
+        slots = newslots;
+        mask = newmask;
+    }
+}
@@ -0,0 +1,294 @@
+/*
+ * Copyright 2012-2014 Tomasz Konopka.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bamfo.call;
+
+import bamfo.utils.BamfoCommon;
+import java.util.Arrays;
+
+/**
+ * Summary of the evidence at one locus, computed in a single sweep over a
+ * LocusSNVDataList (see LocusSNVDataList.summarize). The summary holds the
+ * quantities used to score an SNV: per-base strand counts and maximal N
+ * lengths (for reads that pass the quality thresholds), low-quality counts,
+ * NM tag sums, distinct distances from read starts, and a histogram of
+ * mapping qualities.
+ *
+ * One object can be reused for many loci.
+ *
+ * @author tkonopka
+ */
+class LocusSNVSummary {
+
+    // counts for bases passing thresholds (indexed by BamfoCommon codes)
+    final int[] covplus = new int[5];
+    final int[] covminus = new int[5];
+    final int[] maxn = new int[5];
+    // number of reads with low mapping quality, and with low base quality
+    final int[] lowcounts = new int[2];
+    // per-base information from all reads, regardless of thresholds
+    private final int[] basecounts = new int[5];
+    private final long[] nmsums = new long[5];
+    // bitmasks of distinct distances from read start, one per base
+    private final long[][] fromstartbits = new long[5][4];
+    private final int[] fromstartwords = new int[5];
+    // histogram of mapping qualities of all reads, and the range of values used
+    private final int[] mapqhist = new int[256];
+    private int minmapq = 255, maxmapq = 0;
+    private int size = 0;
+    // thresholds (distances adjusted so that comparisons can use >)
+    private int minfromstart, minfromend, minmapqual;
+    private byte minbasequal;
+
+    /**
+     * Prepares the object for a new locus.
+     *
+     * @param minfromstart
+     * @param minfromend
+     * @param minbasequal
+     * @param minmapqual
+     */
+    void reset(int minfromstart, int minfromend, byte minbasequal, int minmapqual) {
+        this.minfromstart = minfromstart - 1;
+        this.minfromend = minfromend - 1;
+        this.minbasequal = minbasequal;
+        this.minmapqual = minmapqual;
+        Arrays.fill(covplus, 0);
+        Arrays.fill(covminus, 0);
+        Arrays.fill(maxn, 0);
+        Arrays.fill(basecounts, 0);
+        Arrays.fill(nmsums, 0);
+        lowcounts[0] = 0;
+        lowcounts[1] = 0;
+        for (int i = 0; i < 5; i++) {
+            Arrays.fill(fromstartbits[i], 0, fromstartwords[i], 0L);
+            fromstartwords[i] = 0;
+        }
+        if (size > 0) {
+            Arrays.fill(mapqhist, minmapq, maxmapq + 1, 0);
+            minmapq = 255;
+            maxmapq = 0;
+        }
+        size = 0;
+    }
+
+    /**
+     * Adds the information from one read.
+     */
+    void add(byte base, byte quality, boolean minusstrand, int fromstart, int fromend,
+            int mapquality, int NMtag, int maxN) {
+
+        size++;
+        int mapq = Math.min(Math.max(mapquality, 0), 255);
+        mapqhist[mapq]++;
+        minmapq = Math.min(minmapq, mapq);
+        maxmapq = Math.max(maxmapq, mapq);
+
+        int whichbase = BamfoCommon.basesToZeroToFour(base);
+        // NM and distinct fromstart are recorded only for exact base codes
+        if (whichbase != BamfoCommon.codeN || base == 'N') {
+            basecounts[whichbase]++;
+            nmsums[whichbase] += NMtag;
+            setFromstart(whichbase, fromstart);
+        }
+
+        if (fromstart > minfromstart && fromend > minfromend) {
+            // evidence used for genotyping
+            if (quality >= minbasequal && mapquality >= minmapqual) {
+                if (minusstrand) {
+                    covminus[whichbase]++;
+                } else {
+                    covplus[whichbase]++;
+                }
+                if (maxN > maxn[whichbase]) {
+                    maxn[whichbase] = maxN;
+                }
+            }
+            // low quality evidence
+            if (mapquality < minmapqual) {
+                lowcounts[0]++;
+            } else if (quality < minbasequal) {
+                lowcounts[1]++;
+            }
+        }
+    }
+
+    /**
+     * Adds the aggregated information on one base from reads that were only
+     * counted (see LocusSNVDataList.addCounted). Low-quality counts and
+     * mapping qualities are added separately using addLowQuality and
+     * addMappingQuality.
+     *
+     * @param whichbase
+     * @param count
+     *
+     * number of reads with exactly this base code
+     *
+     * @param plus
+     * @param minus
+     * @param maxN
+     * @param NMsum
+     * @param fromstart
+     *
+     * bitmask of distances from read start
+     *
+     * @param fromstartwords
+     */
+    void addCounted(int whichbase, int count, int plus, int minus, int maxN,
+            long NMsum, long[] fromstart, int fromstartwords) {
+        basecounts[whichbase] += count;
+        nmsums[whichbase] += NMsum;
+        covplus[whichbase] += plus;
+        covminus[whichbase] += minus;
+        if (maxN > maxn[whichbase]) {
+            maxn[whichbase] = maxN;
+        }
+        long[] bits = fromstartbits[whichbase];
+        if (fromstartwords > bits.length) {
+            bits = Arrays.copyOf(bits, Math.max(2 * bits.length, fromstartwords));
+            fromstartbits[whichbase] = bits;
+        }
+        for (int i = 0; i < fromstartwords; i++) {
+            bits[i] |= fromstart[i];
+        }
+        if (fromstartwords > this.fromstartwords[whichbase]) {
+            this.fromstartwords[whichbase] = fromstartwords;
+        }
+    }
+
+    /**
+     * Adds the low-quality counts of reads that were only counted.
+     *
+     * @param lowmapqual
+     * @param lowbasequal
+     */
+    void addLowQuality(int lowmapqual, int lowbasequal) {
+        lowcounts[0] += lowmapqual;
+        lowcounts[1] += lowbasequal;
+    }
+
+    /**
+     * Adds several reads with the same mapping quality to the histogram.
+     *
+     * @param mapquality
+     * @param count
+     */
+    void addMappingQuality(int mapquality, int count) {
+        size += count;
+        int mapq = Math.min(Math.max(mapquality, 0), 255);
+        mapqhist[mapq] += count;
+        minmapq = Math.min(minmapq, mapq);
+        maxmapq = Math.max(maxmapq, mapq);
+    }
+
+    private void setFromstart(int whichbase, int fromstart) {
+        int word = fromstart >>> 6;
+        long[] bits = fromstartbits[whichbase];
+        if (word >= bits.length) {
+            bits = Arrays.copyOf(bits, Math.max(2 * bits.length, word + 1));
+            fromstartbits[whichbase] = bits;
+        }
+        bits[word] |= 1L << (fromstart & 63);
+        if (word >= fromstartwords[whichbase]) {
+            fromstartwords[whichbase] = word + 1;
+        }
+    }
+
+    /**
+     *
+     * @param whichbase
+     *
+     * base code as in BamfoCommon (codeA, ..., codeN)
+     *
+     * @return
+     *
+     * the number of unique distances from the start of a read
+     */
+    int getNumberUniqueFromstart(int whichbase) {
+        int count = 0;
+        long[] bits = fromstartbits[whichbase];
+        for (int i = 0; i < fromstartwords[whichbase]; i++) {
+            count += Long.bitCount(bits[i]);
+        }
+        return count;
+    }
+
+    /**
+     *
+     * @param whichbase
+     * @return
+     *
+     * the average NM tag value of reads containing the base
+     */
+    int getMeanNMtag(int whichbase) {
+        if (basecounts[whichbase] == 0) {
+            return 0;
+        }
+        return (int) Math.round((double) nmsums[whichbase] / (double) basecounts[whichbase]);
+    }
+
+    /**
+     *
+     * @return
+     *
+     * number of bases passing thresholds, on the plus and minus strands
+     */
+    int[] getStrandEffectiveDepth() {
+        int[] depth = new int[2];
+        for (int i = 0; i < 5; i++) {
+            depth[0] += covplus[i];
+            depth[1] += covminus[i];
+        }
+        return depth;
+    }
+
+    /**
+     *
+     * @return
+     *
+     * the median mapping quality of all reads at the locus (-1 if there are no
+     * reads)
+     */
+    double getMedianMappingQuality() {
+        if (size == 0) {
+            return -1;
+        }
+        int mid = size / 2;
+        int upper = getMappingQualityAtRank(mid);
+        if (size % 2 == 0) {
+            int lower = getMappingQualityAtRank(mid - 1);
+            return ((double) upper + (double) lower) / 2;
+        }
+        return (double) upper;
+    }
+
+    /**
+     *
+     * @param rank
+     * @return
+     *
+     * the mapping quality that would appear at position rank in a sorted list
+     */
+    private int getMappingQualityAtRank(int rank) {
+        int cumulative = 0;
+        for (int q = minmapq; q < maxmapq; q++) {
+            cumulative += mapqhist[q];
+            if (cumulative > rank) {
+                return q;
+            }
+        }
+        return maxmapq;
+    }
+}
@@ -0,0 +1,379 @@
+/*
+ * Copyright 2012-2014 Tomasz Konopka.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bamfo.call;
+
+import bamfo.utils.BamfoRecord;
+import java.util.Arrays;
+
+/**
+ * Keeps track of bases from paired reads that overlap their mates. When the
+ * first mate of a pair is added to a pileup, its bases in the overlap region
+ * are held here under (template id, locus) instead of being added to the
+ * locus lists. When the second mate arrives, its bases are looked up and
+ * merged into the held bases, and the merged bases are released into the
+ * locus lists. Bases whose mate never arrives are released when their locus
+ * is fetched from the pileup.
+ *
+ * Held bases are kept in primitive arrays (one element per base). The bases
+ * held at one locus are chained, and the list for the locus records the
+ * first of them (see LocusSNVDataList.getHeld). Elements of released bases
+ * are reused. The table from (template id, locus) to held bases uses open
+ * addressing with linear probing; entries of released bases are marked as
+ * removed and are dropped when the table is rebuilt.
+ *
+ * @author tkonopka
+ */
+class MateOverlapTracker {
+
+    // keys are (template id, locus), a locus of 0 marks an empty slot and a
+    // locus of -1 a removed entry
+    private long[] templates;
+    private int[] loci;
+    private int[] values;
+    private int mask;
+    // number of occupied slots (including removed entries)
+    private int used = 0;
+    // details of held bases
+    private long[] heldtemplate;
+    private int[] heldlocus;
+    private byte[] refbases, bases, qualities;
+    private int[] mapquality, fromstart, fromend, NMtag, maxN;
+    private boolean[] minusstrand, readhasindel;
+    // chains of held bases at one locus, and of unused elements (next only)
+    private int[] prev, next;
+    private int numheld = 0;
+    private int numallocated = 0;
+    private int unused = -1;
+
+    MateOverlapTracker(int capacity) {
+        int size = 64;
+        while (size < capacity) {
+            size *= 2;
+        }
+        allocate(size);
+        ensureHeldCapacity(64);
+    }
+
+    private void allocate(int size) {
+        templates = new long[size];
+        loci = new int[size];
+        values = new int[size];
+        mask = size - 1;
+        used = 0;
+    }
+
+    private void ensureHeldCapacity(int capacity) {
+        if (bases != null && bases.length >= capacity) {
+            return;
+        }
+        if (bases == null) {
+            heldtemplate = new long[capacity];
+            heldlocus = new int[capacity];
+            refbases = new byte[capacity];
+            bases = new byte[capacity];
+            qualities = new byte[capacity];
+            mapquality = new int[capacity];
+            fromstart = new int[capacity];
+            fromend = new int[capacity];
+            NMtag = new int[capacity];
+            maxN = new int[capacity];
+            minusstrand = new boolean[capacity];
+            readhasindel = new boolean[capacity];
+            prev = new int[capacity];
+            next = new int[capacity];
+            return;
+        }
+        capacity = Math.max(capacity, 2 * bases.length);
+        heldtemplate = Arrays.copyOf(heldtemplate, capacity);
+        heldlocus = Arrays.copyOf(heldlocus, capacity);
+        refbases = Arrays.copyOf(refbases, capacity);
+        bases = Arrays.copyOf(bases, capacity);
+        qualities = Arrays.copyOf(qualities, capacity);
+        mapquality = Arrays.copyOf(mapquality, capacity);
+        fromstart = Arrays.copyOf(fromstart, capacity);
+        fromend = Arrays.copyOf(fromend, capacity);
+        NMtag = Arrays.copyOf(NMtag, capacity);
+        maxN = Arrays.copyOf(maxN, capacity);
+        minusstrand = Arrays.copyOf(minusstrand, capacity);
+        readhasindel = Arrays.copyOf(readhasindel, capacity);
+        prev = Arrays.copyOf(prev, capacity);
+        next = Arrays.copyOf(next, capacity);
+    }
+
+    /**
+     * Remove all entries and held bases. The chains recorded in locus lists
+     * become invalid, so the lists must be cleared as well.
+     */
+    void clear() {
+        if (used > 0) {
+            Arrays.fill(loci, 0);
+            used = 0;
+        }
+        numheld = 0;
+        numallocated = 0;
+        unused = -1;
+    }
+
+    private int slot(long template, int locus) {
+        long h = template ^ (locus * 0x9E3779B97F4A7C15L);
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        return (int) h & mask;
+    }
+
+    /**
+     *
+     * @param template
+     * @param locus
+     * @return
+     *
+     * the base held for a template at a locus, or -1 if there is none
+     */
+    int get(long template, int locus) {
+        if (numheld == 0) {
+            return -1;
+        }
+        int i = slot(template, locus);
+        while (loci[i] != 0) {
+            if (loci[i] == locus && templates[i] == template) {
+                return values[i];
+            }
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Hold a base from a read that overlaps its mate.
+     *
+     * @param template
+     * @param locus
+     * @param refbase
+     *
+     * reference base at the locus
+     *
+     * @param b2r
+     * @param indexonread
+     * @param list
+     *
+     * list for the locus, the base is chained to the bases held there
+     */
+    void put(long template, int locus, byte refbase, BamfoRecord b2r, int indexonread,
+            LocusSNVDataList list) {
+        if (2 * (used + 1) > loci.length) {
+            rebuild();
+        }
+
+        // take an element for the new base
+        int item = unused;
+        if (item >= 0) {
+            unused = next[item];
+        } else {
+            ensureHeldCapacity(numallocated + 1);
+            item = numallocated;
+            numallocated++;
+        }
+        numheld++;
+
+        heldtemplate[item] = template;
+        heldlocus[item] = locus;
+        refbases[item] = refbase;
+        bases[item] = b2r.bases[indexonread];
+        qualities[item] = b2r.qualities[indexonread];
+        mapquality[item] = b2r.mapquality;
+        minusstrand[item] = b2r.minusstrand;
+        readhasindel[item] = b2r.readhasindel;
+        fromstart[item] = LocusSNVDataList.getFromstart(b2r.minusstrand, indexonread, b2r.readlength);
+        fromend[item] = LocusSNVDataList.getFromend(b2r.minusstrand, indexonread, b2r.readlength);
+        NMtag[item] = b2r.getNMtag();
+        maxN[item] = b2r.maxN;
+
+        // chain the base in front of the others at the locus
+        int first = list.getHeld();
+        prev[item] = -1;
+        next[item] = first;
+        if (first >= 0) {
+            prev[first] = item;
+        }
+        list.setHeld(item);
+
+        int i = slot(template, locus);
+        while (loci[i] != 0) {
+            i = (i + 1) & mask;
+        }
+        templates[i] = template;
+        loci[i] = locus;
+        values[i] = item;
+        used++;
+    }
+
+    /**
+     * Combine a base from the second mate with a held base.
+     *
+     * @param item
+     *
+     * held base of the first mate (see get)
+     *
+     * @param b2r
+     * @param indexonread
+     */
+    void merge(int item, BamfoRecord b2r, int indexonread) {
+        byte base = b2r.bases[indexonread];
+
+        // if they are not concordant:
+        // if one of the bases is N, be optimistic and record the non-N base.
+        // if none of the two are N, then the base becomes unknown and is recorded as N
+        if (bases[item] != base) {
+            if (bases[item] == 'N') {
+                bases[item] = base;
+            } else {
+                if (base != 'N') {
+                    bases[item] = (byte) 'N';
+                }
+            }
+        }
+
+        if (b2r.mapquality > mapquality[item]) {
+            mapquality[item] = b2r.mapquality;
+        }
+
+        // check if the old read had an indel
+        // if it did, and if this one does not, use the base as if it does not have an indel
+        if (readhasindel[item] && !b2r.readhasindel) {
+            readhasindel[item] = false;
+        }
+
+        // replace the old fromstart from end with larger values.
+        // This is somewhat ad-hoc as it is impossible to determine exactly
+        fromstart[item] = Math.max(fromstart[item],
+                LocusSNVDataList.getFromstart(b2r.minusstrand, indexonread, b2r.readlength));
+        fromend[item] = Math.max(fromend[item],
+                LocusSNVDataList.getFromend(b2r.minusstrand, indexonread, b2r.readlength));
+        maxN[item] = Math.max(maxN[item], b2r.maxN);
+        NMtag[item] = Math.max(NMtag[item], b2r.getNMtag());
+    }
+
+    /**
+     * Add a held base to the list for its locus and stop holding it.
+     *
+     * @param item
+     * @param list
+     */
+    void release(int item, LocusSNVDataList list) {
+        addToList(item, list);
+
+        // unlink the base from the chain at the locus
+        if (prev[item] >= 0) {
+            next[prev[item]] = next[item];
+        } else {
+            list.setHeld(next[item]);
+        }
+        if (next[item] >= 0) {
+            prev[next[item]] = prev[item];
+        }
+        discard(item);
+    }
+
+    /**
+     * Add all bases held at a locus to its list, e.g. when the locus is
+     * about to be genotyped and no more mates can arrive.
+     *
+     * @param list
+     */
+    void releaseAll(LocusSNVDataList list) {
+        int item = list.getHeld();
+        while (item >= 0) {
+            int nextitem = next[item];
+            addToList(item, list);
+            discard(item);
+            item = nextitem;
+        }
+        list.setHeld(-1);
+    }
+
+    /**
+     * Stop holding bases at a locus without adding them to its list, e.g.
+     * when the locus is removed from the pileup.
+     *
+     * @param list
+     */
+    void removeAll(LocusSNVDataList list) {
+        int item = list.getHeld();
+        while (item >= 0) {
+            int nextitem = next[item];
+            discard(item);
+            item = nextitem;
+        }
+        list.setHeld(-1);
+    }
+
+    private void addToList(int item, LocusSNVDataList list) {
+        list.addHeld(refbases[item], bases[item], qualities[item], mapquality[item], minusstrand[item],
+                fromstart[item], fromend[item], readhasindel[item], maxN[item], NMtag[item]);
+    }
+
+    /**
+     * Mark the table entry of a held base as removed, and make its element
+     * available for reuse.
+     *
+     * @param item
+     */
+    private void discard(int item) {
+        long template = heldtemplate[item];
+        int locus = heldlocus[item];
+        int i = slot(template, locus);
+        while (loci[i] != 0) {
+            if (values[i] == item && loci[i] == locus && templates[i] == template) {
+                loci[i] = -1;
+                break;
+            }
+            i = (i + 1) & mask;
+        }
+        next[item] = unused;
+        unused = item;
+        numheld--;
+    }
+
+    /**
+     * Drop removed entries, and grow the table if the held bases would still
+     * make it too full.
+     */
+    private void rebuild() {
+        long[] oldtemplates = templates;
+        int[] oldloci = loci;
+        int[] oldvalues = values;
+
+        int size = oldloci.length;
+        while (4 * numheld > size) {
+            size *= 2;
+        }
+        allocate(size);
+
+        for (int i = 0; i < oldloci.length; i++) {
+            if (oldloci[i] > 0) {
+                int j = slot(oldtemplates[i], oldloci[i]);
+                while (loci[j] != 0) {
+                    j = (j + 1) & mask;
+                }
+                templates[j] = oldtemplates[i];
+                loci[j] = oldloci[i];
+                values[j] = oldvalues[i];
+                used++;
+            }
+        }
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright 2012-2014 Tomasz Konopka.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bamfo.call;
+
+import bamfo.utils.BamfoRecord;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMRecordIterator;
+import net.sf.samtools.SAMSequenceDictionary;
+
+/**
+ * Reads and decodes alignment records on a separate thread. The decoder
+ * thread iterates over an alignment, skips records that are not used in
+ * calling, loads the others into BamfoRecord objects, and passes them on in
+ * batches through a bounded queue. Batches are recycled once the consumer is
+ * done with them, so the BamfoRecord objects are reused throughout the
+ * traversal.
+ *
+ * The pipeline keeps track of how long each side waits for the other. Large
+ * decoder stalls mean that calling is the bottleneck; large caller stalls
+ * mean that reading/decoding is the bottleneck.
+ *
+ * @author tkonopka
+ */
+class RecordPipeline {
+
+    // number of records in one batch, and number of batches in circulation
+    private static final int BATCHSIZE = 256;
+    private static final int NUMBATCHES = 8;
+    private final ArrayBlockingQueue<RecordBatch> full = new ArrayBlockingQueue<>(NUMBATCHES + 1);
+    private final ArrayBlockingQueue<RecordBatch> free = new ArrayBlockingQueue<>(NUMBATCHES);
+    // an empty batch marks the end of the alignment
+    private final RecordBatch endbatch = new RecordBatch(0, false, false);
+    private final Thread decoder;
+    // batch being filled on the decoder thread
+    private RecordBatch batch = null;
+    private volatile Exception error = null;
+    // set by close(), the decoder then closes its iterator and exits
+    private volatile boolean stopped = false;
+    private volatile SAMRecord errorrecord = null;
+    // metrics (stall times in nanoseconds)
+    private volatile long decoderstall = 0;
+    private long callerstall = 0;
+    private long depthsum = 0;
+    private long numbatches = 0;
+
+    /**
+     * A set of decoded records.
+     */
+    static class RecordBatch {
+
+        final BamfoRecord[] records;
+        int size = 0;
+
+        RecordBatch(int capacity, boolean trimBtail, boolean trimPolyedge) {
+            records = new BamfoRecord[capacity];
+            for (int i = 0; i < capacity; i++) {
+                records[i] = new BamfoRecord(trimBtail, trimPolyedge);
+            }
+        }
+    }
+
+    /**
+     * Creates a pipeline. The decoder thread is started with start().
+     *
+     * @param inputSam
+     *
+     * reader for the alignment. It should not be used by other threads while
+     * the pipeline is running.
+     *
+     * @param firstref
+     *
+     * index of the first chromosome to read. Records on earlier chromosomes
+     * are skipped (using the alignment index, if available).
+     *
+     * @param trimBtail
+     * @param trimPolyedge
+     */
+    RecordPipeline(final SAMFileReader inputSam, final int firstref, boolean trimBtail, boolean trimPolyedge) {
+        for (int i = 0; i < NUMBATCHES; i++) {
+            free.add(new RecordBatch(BATCHSIZE, trimBtail, trimPolyedge));
+        }
+        decoder = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                decode(inputSam, firstref);
+            }
+        }, "bamfo-decoder");
+        decoder.setDaemon(true);
+    }
+
+    void start() {
+        decoder.start();
+    }
+
+    /**
+     * Work performed on the decoder thread.
+     *
+     * @param inputSam
+     * @param firstref
+     */
+    private void decode(SAMFileReader inputSam, int firstref) {
+        try {
+            if (firstref > 0 && inputSam.hasIndex()) {
+                // jump to each remaining chromosome in turn
+                SAMSequenceDictionary dictionary = inputSam.getFileHeader().getSequenceDictionary();
+                for (int i = firstref; i < dictionary.size() && !stopped; i++) {
+                    SAMRecordIterator it = inputSam.query(dictionary.getSequence(i).getSequenceName(), 0, 0, false);
+                    try {
+                        decode(it, firstref);
+                    } finally {
+                        it.close();
+                    }
+                }
+            } else {
+                SAMRecordIterator it = inputSam.iterator();
+                try {
+                    decode(it, firstref);
+                } finally {
+                    it.close();
+                }
+            }
+            if (stopped) {
+                return;
+            }
+            if (batch != null) {
+                full.put(batch);
+            }
+        } catch (InterruptedException ex) {
+            // the consumer has stopped, there is nobody to signal
+            return;
+        } catch (Exception ex) {
+            error = ex;
+        }
+        try {
+            full.put(endbatch);
+        } catch (InterruptedException ex) {
+            // consumer has stopped
+        }
+    }
+
+    /**
+     * Decodes records from one iterator, filling batches and passing them on
+     * when they are full.
+     *
+     * @param it
+     * @param firstref
+     * @throws InterruptedException
+     */
+    private void decode(Iterator<SAMRecord> it, int firstref) throws InterruptedException {
+        while (!stopped && it.hasNext()) {
+            SAMRecord samRecord = it.next();
+            if (!BamfoVcf.isCallableRecord(samRecord) || samRecord.getReferenceIndex() < firstref) {
+                continue;
+            }
+            if (batch == null) {
+                long waitstart = System.nanoTime();
+                batch = free.take();
+                decoderstall += System.nanoTime() - waitstart;
+                batch.size = 0;
+            }
+            try {
+                batch.records[batch.size].load(samRecord);
+            } catch (RuntimeException ex) {
+                errorrecord = samRecord;
+                throw ex;
+            }
+            batch.size++;
+            if (batch.size == BATCHSIZE) {
+                full.put(batch);
+                batch = null;
+            }
+        }
+    }
+
+    /**
+     * Fetches the next batch of records. Once the records have been used,
+     * the batch should be returned using recycle().
+     *
+     * @return
+     *
+     * a batch with at least one record, or null at the end of the alignment
+     *
+     * @throws InterruptedException
+     * @throws IOException
+     *
+     * if reading or decoding failed on the decoder thread
+     */
+    RecordBatch take() throws InterruptedException, IOException {
+        int depth = full.size();
+        long waitstart = System.nanoTime();
+        RecordBatch batch = full.take();
+        callerstall += System.nanoTime() - waitstart;
+        if (batch == endbatch) {
+            if (error != null) {
+                String message = error.getMessage();
+                if (errorrecord != null) {
+                    message += "\n" + errorrecord.getSAMString();
+                }
+                throw new IOException(message, error);
+            }
+            return null;
+        }
+        depthsum += depth;
+        numbatches++;
+        return batch;
+    }
+
+    void recycle(RecordBatch batch) {
+        free.offer(batch);
+    }
+
+    /**
+     * Stops the decoder thread (if it is still running) and waits for it to
+     * close its iterator. After this, the alignment reader can be closed.
+     */
+    void close() {
+        stopped = true;
+        decoder.interrupt();
+        boolean interrupted = false;
+        while (decoder.isAlive()) {
+            try {
+                decoder.join();
+            } catch (InterruptedException ex) {
+                // keep waiting, the reader must not be closed under the decoder
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return
+     *
+     * a one-line summary of the queue depth and stall times
+     */
+    String getMetrics() {
+        double meandepth = numbatches == 0 ? 0.0 : (double) depthsum / (double) numbatches;
+        return String.format("Decoder pipeline: %d batches, mean queue depth %.2f of %d, "
+                + "decoder stalled %.2fs, caller stalled %.2fs",
+                numbatches, meandepth, NUMBATCHES, decoderstall / 1e9, callerstall / 1e9);
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2012-2014 Tomasz Konopka.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bamfo.call;
+
+import joptsimple.OptionParser;
+import joptsimple.OptionSet;
+
+/**
+ * Decides whether a variant is a change event between a reference sample A
+ * (e.g. normal tissue) and a sample B (e.g. tumor tissue). The criteria and
+ * the event score are those of the R function getVarChangeEvents
+ * (R/getVarChangeEvents.r), applied to the counts of one variant in the two
+ * samples.
+ *
+ * @author tkonopka
+ */
+class SomaticFilter {
+
+    // thresholds with the defaults of getVarChangeEvents
+    int mindepthA = 4;
+    double maxAPA = 0.05;
+    int mindepthB = 4;
+    double minAPB = 0.05;
+    int minaltB = 3;
+    double minscoreAB = 20;
+    boolean checklow = false;
+
+    void addOptionsToOptionParser(OptionParser op) {
+        op.accepts("mindepthA").withRequiredArg().ofType(Integer.class);
+        op.accepts("maxAPA").withRequiredArg().ofType(Double.class);
+        op.accepts("mindepthB").withRequiredArg().ofType(Integer.class);
+        op.accepts("minAPB").withRequiredArg().ofType(Double.class);
+        op.accepts("minaltB").withRequiredArg().ofType(Integer.class);
+        op.accepts("minscoreAB").withRequiredArg().ofType(Double.class);
+        op.accepts("checklow");
+    }
+
+    boolean getOptionValues(OptionSet os) {
+        try {
+            if (os.has("mindepthA")) {
+                mindepthA = (Integer) os.valueOf("mindepthA");
+            }
+            if (os.has("maxAPA")) {
+                maxAPA = (Double) os.valueOf("maxAPA");
+            }
+            if (os.has("mindepthB")) {
+                mindepthB = (Integer) os.valueOf("mindepthB");
+            }
+            if (os.has("minAPB")) {
+                minAPB = (Double) os.valueOf("minAPB");
+            }
+            if (os.has("minaltB")) {
+                minaltB = (Integer) os.valueOf("minaltB");
+            }
+            if (os.has("minscoreAB")) {
+                minscoreAB = (Double) os.valueOf("minscoreAB");
+            }
+        } catch (Exception ex) {
+            System.out.println("Error parsing change event thresholds: " + ex.getMessage());
+            return false;
+        }
+        checklow = os.has("checklow");
+        return true;
+    }
+
+    String printHelp() {
+        StringBuilder sb = new StringBuilder(1024);
+        sb.append("Change event options (sample A is the reference, e.g. normal; sample B e.g. tumor):\n");
+        sb.append("  --mindepthA <int>        - minimum depth in sample A [default ").append(mindepthA).append("]\n");
+        sb.append("  --maxAPA <double>        - maximum allelic proportion in sample A [default ").append(maxAPA).append("]\n");
+        sb.append("  --mindepthB <int>        - minimum depth in sample B [default ").append(mindepthB).append("]\n");
+        sb.append("  --minAPB <double>        - minimum allelic proportion in sample B [default ").append(minAPB).append("]\n");
+        sb.append("  --minaltB <int>          - minimum alternative count in sample B [default ").append(minaltB).append("]\n");
+        sb.append("  --minscoreAB <double>    - minimum event score [default ").append(minscoreAB).append("]\n");
+        sb.append("  --checklow               - also require a low allelic proportion among\n");
+        sb.append("                             low-quality reads in sample A\n");
+        return sb.toString();
+    }
+
+    /**
+     *
+     * @param A
+     *
+     * counts in the reference sample
+     *
+     * @param B
+     *
+     * counts in the probant sample
+     *
+     * @return
+     *
+     * true if the counts pass the thresholds on each sample and the event
+     * score is at least minscoreAB
+     */
+    boolean isEvent(VariantCounts A, VariantCounts B) {
+
+        // thresholds on sample A
+        int altA = Math.max(0, A.altcounts);
+        int altlowA = Math.max(0, A.altcountsLowQ);
+        if (A.coverage < mindepthA
+                || !((double) altA / A.coverage < maxAPA)
+                || !((double) (altA + altlowA) / (A.coverage + A.coverageLowQ) < maxAPA)) {
+            return false;
+        }
+
+        // thresholds on sample B
+        int altB = Math.max(0, B.altcounts);
+        int altlowB = Math.max(0, B.altcountsLowQ);
+        if (B.coverage < mindepthB
+                || !((double) altB / B.coverage > minAPB)
+                || !((double) (altB + altlowB) / (B.coverage + B.coverageLowQ) > minAPB)
+                || altB < minaltB) {
+            return false;
+        }
+
+        if (getEventScore(A, B) < minscoreAB) {
+            return false;
+        }
+
+        // a ratio that is not finite fails this test
+        return !checklow || (double) altlowA / A.coverageLowQ < maxAPA;
+    }
+
+    /**
+     *
+     * @param A
+     * @param B
+     * @return
+     *
+     * difference of the allelic proportions in B and A, relative to their
+     * joint uncertainty (multiplied by 10)
+     */
+    double getEventScore(VariantCounts A, VariantCounts B) {
+        double[] apA = getAllelicProportion(A);
+        double[] apB = getAllelicProportion(B);
+        return 10 * (apB[0] - apA[0]) / Math.sqrt(apA[1] * apA[1] + apB[1] * apB[1]);
+    }
+
+    /**
+     *
+     * @param counts
+     * @return
+     *
+     * the allelic proportion (0 if there are no ref or alt reads) and its
+     * uncertainty, estimated using one "dark" count on each allele
+     */
+    private static double[] getAllelicProportion(VariantCounts counts) {
+        double ref = Math.max(0, counts.refcounts);
+        double alt = Math.max(0, counts.altcounts);
+        double AP = ref + alt > 0 ? alt / (ref + alt) : 0.0;
+        double APerr = Math.sqrt((ref + 1) * (alt + 1)) / Math.pow(ref + alt + 2, 1.5);
+        return new double[]{AP, APerr};
+    }
+
+    /**
+     *
+     * @param counts
+     * @return
+     *
+     * fraction of high-quality reads that carry the alternative allele
+     */
+    static double getBAF(VariantCounts counts) {
+        return (double) Math.max(0, counts.altcounts) / counts.coverage;
+    }
+
+    /**
+     *
+     * @return
+     *
+     * the thresholds in the form of vcf header lines
+     */
+    String printSettings() {
+        StringBuilder sb = new StringBuilder(256);
+        sb.append("##bamformatics.mindepthA=").append(mindepthA).append("\n");
+        sb.append("##bamformatics.maxAPA=").append(maxAPA).append("\n");
+        sb.append("##bamformatics.mindepthB=").append(mindepthB).append("\n");
+        sb.append("##bamformatics.minAPB=").append(minAPB).append("\n");
+        sb.append("##bamformatics.minaltB=").append(minaltB).append("\n");
+        sb.append("##bamformatics.minscoreAB=").append(minscoreAB).append("\n");
+        sb.append("##bamformatics.checklow=").append(checklow).append("\n");
+        return sb.toString();
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2012-2014 Tomasz Konopka.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bamfo.call;
+
+import bamfo.utils.BamfoSettings;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import joptsimple.OptionParser;
+import joptsimple.OptionSet;
+
+/**
+ * One set of calling thresholds in a parameter sweep. All profiles in a sweep
+ * share the evidence collected from the alignment, so they can only differ in
+ * settings that are applied when a locus is scored.
+ *
+ * Profiles are read from a text file with one profile per line: a label
+ * followed by options in command-line form, e.g.
+ *
+ * strict --minscore 40 --minallelic 0.2
+ *
+ * Options that are not given on a line keep the values of the base settings.
+ * Empty lines and lines starting with # are ignored.
+ *
+ * @author tkonopka
+ */
+class SweepProfile {
+
+    // settings that can differ between the profiles in a sweep
+    final static String[] profiletypes = {"minbasequal", "minmapqual",
+        "minscore", "minallelic", "mindepth", "minfromstart", "minfromend",
+        "strandbias", "NRef"};
+    final String label;
+    final BamfoSettings settings;
+
+    SweepProfile(String label, BamfoSettings settings) {
+        this.label = label;
+        this.settings = settings;
+    }
+
+    /**
+     * Reads profiles from a file.
+     *
+     * @param f
+     * @param base
+     *
+     * settings used for options that are not specified in a profile (this
+     * object is not modified)
+     *
+     * @return
+     * @throws IOException
+     */
+    static ArrayList<SweepProfile> read(File f, BamfoSettings base) throws IOException {
+        ArrayList<SweepProfile> profiles = new ArrayList<>(16);
+        HashSet<String> labels = new HashSet<>(16);
+
+        OptionParser prs = new OptionParser();
+        new BamfoSettings(profiletypes).addOptionsToOptionParser(prs);
+
+        BufferedReader br = new BufferedReader(new FileReader(f));
+        try {
+            String s;
+            int linenumber = 0;
+            while ((s = br.readLine()) != null) {
+                linenumber++;
+                s = s.trim();
+                if (s.isEmpty() || s.startsWith("#")) {
+                    continue;
+                }
+                String[] tokens = s.split("\\s+");
+                String label = tokens[0];
+                if (label.startsWith("-") || !label.matches("[A-Za-z0-9_.-]+")) {
+                    throw new IOException("invalid profile label on line " + linenumber + ": " + label);
+                }
+                if (!labels.add(label)) {
+                    throw new IOException("duplicate profile label: " + label);
+                }
+
+                String[] args = new String[tokens.length - 1];
+                System.arraycopy(tokens, 1, args, 0, args.length);
+                OptionSet options;
+                try {
+                    options = prs.parse(args);
+                } catch (Exception ex) {
+                    throw new IOException("could not parse profile " + label + ": " + ex.getMessage());
+                }
+                if (!options.nonOptionArguments().isEmpty()) {
+                    throw new IOException("unexpected arguments in profile " + label);
+                }
+                BamfoSettings settings = new BamfoSettings(base);
+                if (!settings.getOptionValues(options)) {
+                    throw new IOException("invalid values in profile " + label);
+                }
+                profiles.add(new SweepProfile(label, settings));
+            }
+        } finally {
+            br.close();
+        }
+
+        if (profiles.isEmpty()) {
+            throw new IOException("no profiles in " + f.getName());
+        }
+        return profiles;
+    }
+
+    /**
+     *
+     * @param output
+     *
+     * name of the output of the whole sweep
+     *
+     * @param bgzf
+     * @return
+     *
+     * name of the vcf file for this profile. The label is inserted before a
+     * .vcf or .vcf.gz extension, or appended with a .vcf extension.
+     */
+    String getOutputName(String output, boolean bgzf) {
+        String[] extensions = {".vcf.gz", ".vcf.bz2", ".vcf"};
+        for (int i = 0; i < extensions.length; i++) {
+            if (output.endsWith(extensions[i])) {
+                return output.substring(0, output.length() - extensions[i].length())
+                        + "." + label + extensions[i];
+            }
+        }
+        return output + "." + label + (bgzf ? ".vcf.gz" : ".vcf");
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2012-2014 Tomasz Konopka.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bamfo.call;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Reads a tab-separated table one line at a time. Lines are kept as bytes and
+ * split into fields by recording the offsets of the tabs, so fields can be
+ * compared, parsed as integers, or copied to an output without creating
+ * strings.
+ *
+ * @author tkonopka
+ */
+class TableLineReader {
+
+    private final InputStream in;
+    private final byte[] buffer = new byte[1 << 16];
+    private int bufferpos = 0, bufferlen = 0;
+    // the current line and the start and end offsets of its fields
+    private byte[] line = new byte[1024];
+    private int linelen = 0;
+    private int[] starts = new int[64];
+    private int[] ends = new int[64];
+    private int numfields = 0;
+    private long linenumber = 0;
+
+    TableLineReader(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Moves to the next line.
+     *
+     * @return
+     *
+     * false at the end of the input
+     *
+     * @throws IOException
+     */
+    boolean next() throws IOException {
+        linelen = 0;
+        boolean eol = false;
+        while (!eol) {
+            if (bufferpos == bufferlen) {
+                bufferlen = in.read(buffer, 0, buffer.length);
+                bufferpos = 0;
+                if (bufferlen <= 0) {
+                    bufferlen = 0;
+                    if (linelen == 0) {
+                        return false;
+                    }
+                    break;
+                }
+            }
+            // copy up to the end of the line or the end of the buffer
+            int end = bufferpos;
+            while (end < bufferlen && buffer[end] != '\n') {
+                end++;
+            }
+            eol = end < bufferlen;
+            int len = end - bufferpos;
+            if (linelen + len > line.length) {
+                byte[] temp = new byte[2 * (linelen + len)];
+                System.arraycopy(line, 0, temp, 0, linelen);
+                line = temp;
+            }
+            System.arraycopy(buffer, bufferpos, line, linelen, len);
+            linelen += len;
+            bufferpos = eol ? end + 1 : end;
+        }
+        if (linelen > 0 && line[linelen - 1] == '\r') {
+            linelen--;
+        }
+        linenumber++;
+
+        // record the positions of the fields
+        numfields = 0;
+        int start = 0;
+        for (int i = 0; i <= linelen; i++) {
+            if (i == linelen || line[i] == '\t') {
+                if (numfields == starts.length) {
+                    int[] temp = new int[2 * numfields];
+                    System.arraycopy(starts, 0, temp, 0, numfields);
+                    starts = temp;
+                    temp = new int[2 * numfields];
+                    System.arraycopy(ends, 0, temp, 0, numfields);
+                    ends = temp;
+                }
+                starts[numfields] = start;
+                ends[numfields] = i;
+                numfields++;
+                start = i + 1;
+            }
+        }
+        return true;
+    }
+
+    int getNumberFields() {
+        return numfields;
+    }
+
+    long getLineNumber() {
+        return linenumber;
+    }
+
+    String getField(int index) {
+        return new String(line, starts[index], ends[index] - starts[index]);
+    }
+
+    /**
+     *
+     * @param index
+     * @return
+     *
+     * the field parsed as an integer
+     *
+     * @throws NumberFormatException
+     */
+    int getInt(int index) {
+        int pos = starts[index];
+        int end = ends[index];
+        boolean negative = pos < end && line[pos] == '-';
+        if (negative) {
+            pos++;
+        }
+        if (pos == end) {
+            throw new NumberFormatException("invalid integer on line " + linenumber + ": " + getField(index));
+        }
+        int value = 0;
+        for (; pos < end; pos++) {
+            int digit = line[pos] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new NumberFormatException("invalid integer on line " + linenumber + ": " + getField(index));
+            }
+            value = 10 * value + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     *
+     * @param index
+     * @param value
+     * @return
+     *
+     * true if the field consists of exactly the given bytes
+     */
+    boolean fieldEquals(int index, byte[] value) {
+        int start = starts[index];
+        if (ends[index] - start != value.length) {
+            return false;
+        }
+        for (int i = 0; i < value.length; i++) {
+            if (line[start + i] != value[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Copies the first fields of the line, separated by tabs, to an output.
+     *
+     * @param out
+     * @param count
+     *
+     * number of fields to copy
+     *
+     * @throws IOException
+     */
+    void writeFields(OutputStream out, int count) throws IOException {
+        out.write(line, 0, ends[count - 1]);
+    }
+}
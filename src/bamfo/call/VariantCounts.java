@@ -0,0 +1,193 @@
+/*
+ * Copyright 2012-2014 Tomasz Konopka.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bamfo.call;
+
+import bamfo.utils.BamfoCommon;
+import bamfo.utils.BamfoSettings;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Read counts supporting one declared variant in one sample: the coverage,
+ * reference and alternative counts among reads that pass the calling
+ * thresholds, and the same counts among the remaining reads. These are the
+ * cov, ref, alt, cov.low, ref.low and alt.low columns of variantdetails.
+ *
+ * @author tkonopka
+ */
+class VariantCounts {
+
+    int coverage, refcounts, altcounts;
+    int coverageLowQ, refcountsLowQ, altcountsLowQ;
+
+    void clear() {
+        coverage = 0;
+        refcounts = 0;
+        altcounts = 0;
+        coverageLowQ = 0;
+        refcountsLowQ = 0;
+        altcountsLowQ = 0;
+    }
+
+    /**
+     * Counts the reads supporting a substitution.
+     *
+     * @param SNVlocus
+     *
+     * reads at the locus (can be null, then all counts are zero)
+     *
+     * @param ref
+     * @param alt
+     * @param settings
+     */
+    void countSNV(LocusSNVDataList SNVlocus, char ref, char alt, BamfoSettings settings) {
+        clear();
+        if (SNVlocus == null) {
+            return;
+        }
+
+        // helper arrays that will store number of reads with ref/alt
+        int[] covtot = new int[5];
+        int[] covplus = new int[5];
+        int[] covminus = new int[5];
+        int[] maxns = new int[5];
+        // make arrays to store counts for all information (including low quality)
+        int[] lowcovtot = new int[5];
+        int[] lowcovplus = new int[5];
+        int[] lowcovminus = new int[5];
+        int[] lowmaxns = new int[5];
+
+        // extract the coverage counts on the locus
+        int tottot = 0;
+        SNVlocus.getCoverageCounts(covplus, covminus, maxns,
+                settings.getMinfromstart(), settings.getMinfromend(),
+                settings.getMinbasequal(), settings.getMinmapqual());
+        // sum the totals
+        for (int j = 0; j < 5; j++) {
+            covtot[j] = covplus[j] + covminus[j];
+            tottot += covtot[j];
+        }
+
+        // extract all counts on the locus (inlcuding low coverage)
+        int lowtottot = 0;
+        SNVlocus.getCoverageCounts(lowcovplus, lowcovminus, lowmaxns,
+                0, 0, (byte) 0, 0);
+        // sum the totals
+        for (int j = 0; j < 5; j++) {
+            lowcovtot[j] = lowcovplus[j] + lowcovminus[j] - covtot[j];
+            lowtottot += lowcovtot[j];
+        }
+
+        // the total "effective" coverage and the evidence for the ref and alt bases
+        coverage = tottot;
+        refcounts = covtot[BamfoCommon.basesToZeroToFour(ref)];
+        if (settings.isNRef()) {
+            refcounts += covtot[BamfoCommon.codeN];
+        }
+        altcounts = covtot[BamfoCommon.basesToZeroToFour(alt)];
+
+        // repeat for the low quality bases
+        coverageLowQ = lowtottot;
+        refcountsLowQ = lowcovtot[BamfoCommon.basesToZeroToFour(ref)];
+        if (settings.isNRef()) {
+            refcountsLowQ += lowcovtot[BamfoCommon.codeN];
+        }
+        altcountsLowQ = lowcovtot[BamfoCommon.basesToZeroToFour(alt)];
+    }
+
+    /**
+     * Counts the reads supporting an indel. The coverage is estimated from the
+     * reads at the anchor position.
+     *
+     * @param SNVlocus
+     *
+     * reads at the anchor position (can be null, then all counts are zero)
+     *
+     * @param indellocus
+     *
+     * reads with indels anchored at the position (can be null)
+     *
+     * @param ref
+     * @param indel
+     *
+     * sequence of the declared indel (without the anchor)
+     *
+     * @param settings
+     */
+    void countIndel(LocusSNVDataList SNVlocus, LocusIndelDataList indellocus,
+            char ref, byte[] indel, BamfoSettings settings) {
+
+        // get an estimate of the coverage using the SNVlocus information
+        // this will give valuable information about the coverage (low and high quality)
+        countSNV(SNVlocus, ref, ref, settings);
+        if (SNVlocus == null) {
+            return;
+        }
+
+        // but the ref, alt, refLowQ, altLowQ estimates will be off here.
+        // So I reset them here and then re-evaluate them further down in this function.
+        refcounts = 0;
+        altcounts = 0;
+        altcountsLowQ = 0;
+
+        // count the number of indels among high quality reads
+        int nowaltcounts = 0, nowaltcountsLowQ = 0;
+
+        // get information about the types of indels encountered and the number of reads
+        // showing each kind
+        ArrayList<LocusIndelData> hereindels = new ArrayList<>(8);
+        ArrayList<Integer> counts = new ArrayList<>(8);
+        if (indellocus != null) {
+            indellocus.getIndelCounts(hereindels, counts,
+                    settings.getMinfromstart(), settings.getMinfromend(), settings.getMinmapqual());
+        }
+        // look through the intermediate results and count the number of indels, i.e. alternative counts
+        for (int j = 0; j < counts.size(); j++) {
+            if (Arrays.equals(hereindels.get(j).getIndel(), indel)) {
+                nowaltcounts += counts.get(j);
+            } else {
+                nowaltcountsLowQ += counts.get(j);
+            }
+        }
+
+        // from the total coverage and from the number of alternative counts (indels)
+        // compute the number of reference counts
+        altcounts = nowaltcounts;
+        refcounts = coverage - nowaltcounts - nowaltcountsLowQ;
+
+        // for the altcountsLowQ, include the low-mapping quality reads
+        // as well as those reads that report a different indel sequence.
+        // so re-evaluate hereindels and counts
+        int lowaltcounts = 0, lowaltcountsLowQ = 0;
+        hereindels = new ArrayList<>(8);
+        counts = new ArrayList<>(8);
+        if (indellocus != null) {
+            indellocus.getIndelCounts(hereindels, counts, 0, 0, 0);
+        }
+        for (int j = 0; j < counts.size(); j++) {
+            if (Arrays.equals(hereindels.get(j).getIndel(), indel)) {
+                lowaltcounts += counts.get(j);
+            } else {
+                lowaltcountsLowQ += counts.get(j);
+            }
+        }
+
+        // the count of low-quality alternative alleles consists of
+        // (same sequence indels with low mapping quality)
+        // plus (different sequence indels regardless of mapping quality)
+        altcountsLowQ = (lowaltcounts - nowaltcounts) + lowaltcountsLowQ;
+    }
+}
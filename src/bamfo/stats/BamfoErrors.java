@@ -16,22 +16,23 @@
 package bamfo.stats;
 
 import bamfo.call.LocusSNVDataList;
+import bamfo.call.LocusSNVPileup;
 import bamfo.utils.BamfoCommon;
 import bamfo.utils.BamfoLog;
 import bamfo.utils.BamfoRecord;
 import bamfo.utils.BamfoSettings;
+import bamfo.utils.ChromosomeSequence;
+import bamfo.utils.IndexedFastaReader;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.HashMap;
 import joptsimple.OptionParser;
 import joptsimple.OptionSet;
 import jsequtils.file.BufferedReaderMaker;
 import jsequtils.file.OutputStreamMaker;
 import jsequtils.genome.GenomeInfo;
 import jsequtils.regions.GenomeBitSet;
-import jsequtils.sequence.FastaReader;
 import net.sf.samtools.SAMFileHeader;
 import net.sf.samtools.SAMFileReader;
 import net.sf.samtools.SAMRecord;
@@ -71,7 +72,7 @@ public class BamfoErrors implements Runnable {
     // e.g. If an error rate is high on first 5prime base, do not count it here
     // if it is not included in variant calling anyway
     private final static String[] settingtypes = {"minbasequal", "minmapqual",
-        "minfromstart", "minfromend", "notrim", "notrimQB", "genome", "validate"};
+        "minfromstart", "minfromend", "notrim", "notrimQB", "maxdepth", "seed", "genome", "validate"};
     private BamfoSettings settings = new BamfoSettings(settingtypes);
     // internal book-keeping objects
     private long[] eligible = new long[5];
@@ -90,7 +91,7 @@ public class BamfoErrors implements Runnable {
         System.out.println("General options:");
         System.out.println("  --bam <File>             - input alignment file");
         System.out.println("  --output <File>          - output vcf file");
-        System.out.println("  --genome <File>          - fasta file with genome sequence");
+        System.out.println("  --genome <File>          - fasta file with genome sequence (indexed with .fai)");
         System.out.println("  --verbose                - print progress information");
         System.out.println();
         System.out.println(settings.printHelp());
@@ -268,9 +269,9 @@ public class BamfoErrors implements Runnable {
      *
      * an initialized reader of SAM files
      *
-     * @param genomereader
+     * @param genome
      *
-     * an initialized reader of fasta sequence (reference genome)
+     * an initialized reader of an indexed fasta file (reference genome)
      *
      * @param outstream
      *
@@ -280,7 +281,7 @@ public class BamfoErrors implements Runnable {
      *
      * @throws IOException
      */
-    private void errorscanBam(SAMFileReader inputSam, FastaReader genomereader,
+    private void errorscanBam(SAMFileReader inputSam, IndexedFastaReader genome,
             GenomeBitSet regions) throws IOException {
 
         if (verbose) {
@@ -301,7 +302,13 @@ public class BamfoErrors implements Runnable {
         int lastdrain = 1;
         String nowRefName;
         int nowRefLen = 0;
-        HashMap<Integer, LocusSNVDataList> chrinfo = new HashMap<Integer, LocusSNVDataList>(16);
+        ChromosomeSequence chrsequence = null;
+        // (the thresholds allow reads beyond a depth cap to be counted exactly)
+        LocusSNVPileup chrinfo = new LocusSNVPileup(2 * cachelocations, settings.getMinfromstart(),
+                settings.getMinfromend(), settings.getMinbasequal(), settings.getMinmapqual());
+        chrinfo.setMaxDepth(settings.getMaxdepth(), settings.getSeed());
+        // b2r will hold derived information on each record in turn
+        BamfoRecord b2r = new BamfoRecord(settings.isTrimBtail(), settings.isTrimpolyedge());
 
         // read each record, for each chromosome
         for (final SAMRecord samRecord : inputSam) {
@@ -320,7 +327,7 @@ public class BamfoErrors implements Runnable {
 
                     // process the remaining loci on the chromosome
                     if (nowRef != -1) {
-                        lastdrain = evalerrors(chrinfo, regions, genomereader, lastdrain, 1 + nowRefLen);
+                        lastdrain = evalerrors(chrinfo, regions, chrsequence, lastdrain, 1 + nowRefLen);
                     }
 
                     // get information about the new chromosome
@@ -329,18 +336,14 @@ public class BamfoErrors implements Runnable {
                     nowRefLen = (samHeader.getSequence(nowRef)).getSequenceLength();
                     lastdrain = 1;
 
-                    // get chromosome sequence from the genome reader (perhaps skip over missing chromosomes)
-                    genomereader.readNext();
-                    while (genomereader.hasThis() && !nowRefName.equals(genomereader.getChromosomeName())) {
-                        genomereader.readNext();
-                    }
-                    if (!nowRefName.equals(genomereader.getChromosomeName())) {
+                    // get access to the chromosome sequence
+                    chrsequence = genome.getChromosome(nowRefName);
+                    if (chrsequence == null) {
                         bamfolog.log("Error: chromsome " + nowRefName + " does not appear in the genome reference file");
-                        bamfolog.log("(check that chromsomes appear in the same order in bam and reference)");
                         return;
                     }
                     // check that the chromsome lengths in alignment and reference match
-                    if (nowRefLen != genomereader.getChromosomeLength()) {
+                    if (nowRefLen != chrsequence.getChromosomeLength()) {
                         bamfolog.log("Error: discordant lengths on chromosome " + nowRefName);
                         return;
                     }
@@ -349,14 +352,14 @@ public class BamfoErrors implements Runnable {
                         bamfolog.log(nowRefName);
                     }
 
-                    // initialize a new chrinfo object that will store pileup information
-                    chrinfo = new HashMap<Integer, LocusSNVDataList>(2 * cachelocations);
+                    // reset the chrinfo object that will store pileup information
+                    chrinfo.clear();
                 }
 
                 // parse information from this record to 
                 // add the contribution of this read to the coverage
                 try {
-                    modifyGenotype(chrinfo, samRecord);
+                    modifyGenotype(b2r, chrinfo, samRecord);
                 } catch (Exception ex) {
                     bamfolog.log("Error:" + ex.getMessage());
                     bamfolog.log(samRecord.getSAMString());
@@ -365,14 +368,14 @@ public class BamfoErrors implements Runnable {
 
                 // perhaps drain the chrinfo if the fill index has run too far ahead of the drain index
                 if (nowpos - lastdrain > cachelocations && nowRefLen - nowpos > cachelocations) {
-                    lastdrain = evalerrors(chrinfo, regions, genomereader, lastdrain, nowpos);
+                    lastdrain = evalerrors(chrinfo, regions, chrsequence, lastdrain, nowpos);
                 }
             }
         } // end of for loop over records
 
         // if there is still something left in the chrinfo, genotype from the current index beyond the chromosome length
         if (nowRef != -1) {
-            lastdrain = evalerrors(chrinfo, regions, genomereader, lastdrain, 1 + nowRefLen);
+            lastdrain = evalerrors(chrinfo, regions, chrsequence, lastdrain, 1 + nowRefLen);
         }
 
         if (verbose) {
@@ -381,11 +384,11 @@ public class BamfoErrors implements Runnable {
 
     }
 
-    private void modifyGenotype(HashMap<Integer, LocusSNVDataList> chrinfo, SAMRecord record) {
+    private void modifyGenotype(BamfoRecord b2r, LocusSNVPileup chrinfo, SAMRecord record) {
 
-        // create an object holding the record and some derived quantities 
+        // load the record and some derived quantities 
         // this will provide easy access to the positions of each base, etc.
-        BamfoRecord b2r = new BamfoRecord(record, settings.isTrimBtail(), settings.isTrimpolyedge());
+        b2r.load(record);
 
         int[] pos = b2r.pos;
 
@@ -394,16 +397,8 @@ public class BamfoErrors implements Runnable {
 
             // deal with simple alignments first
             if (pos[nowindex] > 0) {
-                LocusSNVDataList nowGDL = chrinfo.get(pos[nowindex]);
-                if (nowGDL == null) {
-                    nowGDL = new LocusSNVDataList(record.getReferenceName() + ":" + pos[nowindex]);
-                }
-
                 // save information about this base
-                nowGDL.add(b2r, nowindex);
-
-                // make sure the object is added/updated back into the chrinfo
-                chrinfo.put(pos[nowindex], nowGDL);
+                chrinfo.add(pos[nowindex], b2r, nowindex);
             }
         }
     }
@@ -414,7 +409,7 @@ public class BamfoErrors implements Runnable {
      *
      * @param outstream
      * @param chrinfo
-     * @param genomereader
+     * @param chrsequence
      * @param startpos
      *
      * 1-based coordinate system
@@ -426,17 +421,17 @@ public class BamfoErrors implements Runnable {
      * @return
      * @throws IOException
      */
-    private int evalerrors(HashMap<Integer, LocusSNVDataList> chrinfo,
+    private int evalerrors(LocusSNVPileup chrinfo,
             GenomeBitSet regions,
-            FastaReader genomereader, int startpos, int endpos) throws IOException {
+            ChromosomeSequence chrsequence, int startpos, int endpos) throws IOException {
 
-        String chrname = genomereader.getChromosomeName();
+        String chrname = chrsequence.getChromosomeName();
 
         for (int i = startpos; i < endpos; i++) {
             LocusSNVDataList lgl = chrinfo.get(i);
             if (regions.get(chrname, i - 1) && lgl != null) {
                 try {
-                    updateErrors(lgl, genomereader.getBaseAtPositionBase1(i));
+                    updateErrors(lgl, chrsequence.getBaseAtPositionBase1(i));
                 } catch (Exception ex) {
                     bamfolog.log(true, "Exception at " + chrname + ":" + i);
                 }
@@ -445,6 +440,7 @@ public class BamfoErrors implements Runnable {
                 chrinfo.remove(i);
             }
         }
+        chrinfo.setWindowStart(endpos);
 
         return endpos;
     }
@@ -619,11 +615,11 @@ public class BamfoErrors implements Runnable {
         }
 
         // create a reader for the reference genome
-        FastaReader genomereader;
+        IndexedFastaReader genome;
         GenomeInfo ginfo;
         try {
             ginfo = new GenomeInfo(new File(settings.getGenome()));
-            genomereader = new FastaReader(BufferedReaderMaker.makeBufferedReader(settings.getGenome()));
+            genome = new IndexedFastaReader(new File(settings.getGenome()));
         } catch (Exception ex) {
             System.out.println("Could not open the genome file: " + ex.getMessage());
             return;
@@ -648,7 +644,7 @@ public class BamfoErrors implements Runnable {
 
         try {
             GenomeBitSet regions = loadRegions(ginfo, bedfile, vcffile, avoid);
-            errorscanBam(inputSam, genomereader, regions);
+            errorscanBam(inputSam, genome, regions);
             writeErrorsTable(outstream);
             inputSam.close();
         } catch (Exception ex) {
@@ -18,14 +18,12 @@ package bamfo.tracks;
 import bamfo.utils.BamfoCommon;
 import java.io.File;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.HashMap;
 import joptsimple.OptionParser;
 import joptsimple.OptionSet;
 import jsequtils.file.OutputStreamMaker;
-import jsequtils.file.RleWriter;
 import net.sf.samtools.*;
 
 /**
@@ -154,7 +152,7 @@ public class BamfoEntropy implements Runnable {
         int indexdrain = 1;
         // filldraininterval will determine how much information to cache in memory before computing the entropy        
         int filldraininterval = 4 * windowsize;
-        double[] entropy = null;
+        RleTrackWriter entropy = null;
 
         int nowRefLen = 0;
 
@@ -181,9 +179,7 @@ public class BamfoEntropy implements Runnable {
                     // save the coverage saved so far
                     if (nowRef != -1) {
                         indexdrain = drainEntropyChrInfo(entropy, chrinfo, windowsize, indexdrain, nowRefLen);
-                        OutputStream os = OutputStreamMaker.makeOutputStream(outdir.getCanonicalPath(), nowRefName + ".txt.gz");
-                        RleWriter.write(os, entropy, true, dblformat);
-                        os.close();
+                        closeEntropyTrack(entropy, nowRefLen);
                     }
 
                     // get information about this chromosome
@@ -191,7 +187,8 @@ public class BamfoEntropy implements Runnable {
                     nowRefName = samRecord.getReferenceName();
                     SAMSequenceRecord ssr = samHeader.getSequence(recordReference);
                     nowRefLen = ssr.getSequenceLength();
-                    entropy = new double[nowRefLen];
+                    entropy = new RleTrackWriter(OutputStreamMaker.makeOutputStream(
+                            outdir.getCanonicalPath(), nowRefName + ".txt.gz"), dblformat);
 
                     // initialize a new chrinfo object that will store pileup information
                     chrinfo = new HashMap<Integer, LocusPileup>(2 * filldraininterval, 0.75f);
@@ -215,13 +212,40 @@ public class BamfoEntropy implements Runnable {
 
         if (nowRef != -1) {
             indexdrain = drainEntropyChrInfo(entropy, chrinfo, windowsize, indexdrain, nowRefLen);
-            OutputStream os = OutputStreamMaker.makeOutputStream(outdir.getCanonicalPath(), nowRefName + ".txt.gz");
-            RleWriter.write(os, entropy, true, dblformat);
-            os.close();
+            closeEntropyTrack(entropy, nowRefLen);
         }
 
     }
 
+    /**
+     * Adds an entropy value to a track. Positions that are skipped are set to
+     * zero.
+     *
+     * @param entropy
+     * @param position
+     *
+     * 1-based position, after the positions already in the track
+     *
+     * @param value
+     * @throws IOException
+     */
+    private void addEntropy(RleTrackWriter entropy, int position, double value) throws IOException {
+        entropy.add(0.0, position - 1 - (int) entropy.getLength());
+        entropy.add(value);
+    }
+
+    /**
+     * Fills the track with zeros up to the end of the chromosome and closes it.
+     *
+     * @param entropy
+     * @param chromlen
+     * @throws IOException
+     */
+    private void closeEntropyTrack(RleTrackWriter entropy, int chromlen) throws IOException {
+        entropy.add(0.0, chromlen - (int) entropy.getLength());
+        entropy.close();
+    }
+
     private void printLocusPileups(HashMap<Integer, LocusPileup> chrinfo, int from, int to) {
 
         for (int pos = from; pos < to; pos++) {
@@ -310,7 +334,7 @@ public class BamfoEntropy implements Runnable {
      *
      * @param entropy
      *
-     * array with entropy. This will be modified on certain locations
+     * track with entropy. Values are added for positions in the interval
      *
      * @param chrinfo
      *
@@ -336,8 +360,8 @@ public class BamfoEntropy implements Runnable {
      *
      *
      */
-    private int drainEntropyChrInfo(double[] entropy, HashMap<Integer, LocusPileup> chrinfo,
-            int windowsize, int startpos, int endpos) {
+    private int drainEntropyChrInfo(RleTrackWriter entropy, HashMap<Integer, LocusPileup> chrinfo,
+            int windowsize, int startpos, int endpos) throws IOException {
 
         //System.out.println("draining positions " + startpos + "-" + endpos);
 
@@ -404,8 +428,8 @@ public class BamfoEntropy implements Runnable {
         // compute the entropy of the first item. Here the formula is the same
         // as inside the loop below, but the sumXstart and sumXlogXstart are zero by construction
         if (nowN > 0 && chrinfo.get(startpos + windowoffset) != null) {
-            entropy[startpos - 1 + windowoffset] = -(sumXlogXmiddle + sumXlogXend
-                    - ((sumXmiddle + sumXend) * (Math.log(nowN) / log2))) / nowN;
+            addEntropy(entropy, startpos + windowoffset, -(sumXlogXmiddle + sumXlogXend
+                    - ((sumXmiddle + sumXend) * (Math.log(nowN) / log2))) / nowN);
         }
 
         for (int pos = startpos + 1; pos < lastpos; pos++) {
@@ -447,8 +471,8 @@ public class BamfoEntropy implements Runnable {
             // compute the entropy for this window.
             // record it if there is coverage on this location
             if (nowN > 0 && (chrinfo.get(pos + windowoffset) != null)) {
-                entropy[pos - 1 + windowoffset] = -(sumXlogXmiddle + sumXlogXend
-                        - ((sumXmiddle + sumXend) * (Math.log(nowN) / log2))) / nowN;
+                addEntropy(entropy, pos + windowoffset, -(sumXlogXmiddle + sumXlogXend
+                        - ((sumXmiddle + sumXend) * (Math.log(nowN) / log2))) / nowN);
             }
 
         }
@@ -0,0 +1,329 @@
+/*
+ * Copyright 2012-2014 Tomasz Konopka.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bamfo.tracks;
+
+import bamfo.utils.BamfoTool;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import joptsimple.OptionParser;
+import joptsimple.OptionSet;
+import jsequtils.file.BufferedReaderMaker;
+import jsequtils.file.OutputStreamMaker;
+
+/**
+ * Looks up values of binary tracks (tracks --format bin) in genomic regions.
+ * Only the blocks of the track files that overlap the regions are read.
+ *
+ * @author tkonopka
+ */
+public class BamfoTrackQuery extends BamfoTool implements Runnable {
+
+    private File trackdir = null;
+    private File bedfile = null;
+    private String output = "stdout";
+    private boolean summary = false;
+    // regions given on the command line
+    private final ArrayList<String> regionchrs = new ArrayList<>(4);
+    private final ArrayList<long[]> regionpos = new ArrayList<>(4);
+    // open track files, one per chromosome
+    private final HashMap<String, TrackReader> readers = new HashMap<>(64);
+
+    private void printTrackQueryHelp() {
+        outputStream.println("Bamformatics trackquery: a tool for reading values of binary tracks in regions");
+        outputStream.println();
+        outputStream.println("  --track <File>           - directory with binary tracks (from tracks --format bin)");
+        outputStream.println("  --region <String>        - region as chr:start-end, chr:position, or chr");
+        outputStream.println("                             (1-based, can be repeated)");
+        outputStream.println("  --bed <File>             - regions in a bed file");
+        outputStream.println("  --summary                - output min, max and mean in each region instead of");
+        outputStream.println("                             values at each position");
+        outputStream.println("  --output <File>          - output table");
+        outputStream.println();
+    }
+
+    private boolean parseTrackQueryParameters(String[] args) {
+
+        OptionParser prs = new OptionParser();
+
+        prs.accepts("track").withRequiredArg().ofType(File.class);
+        prs.accepts("region").withRequiredArg().ofType(String.class);
+        prs.accepts("bed").withRequiredArg().ofType(File.class);
+        prs.accepts("summary");
+        prs.accepts("output").withRequiredArg().ofType(String.class);
+
+        OptionSet options;
+        try {
+            options = prs.parse(args);
+        } catch (Exception ex) {
+            outputStream.println("Error parsing command line parameters\n" + ex.getMessage());
+            return false;
+        }
+
+        if (options.has("track")) {
+            trackdir = (File) options.valueOf("track");
+            if (!trackdir.isDirectory()) {
+                outputStream.println("track is not a directory: " + trackdir.getName());
+                return false;
+            }
+        } else {
+            outputStream.println("missing parameter track");
+            return false;
+        }
+
+        if (options.has("region")) {
+            List regionlist = options.valuesOf("region");
+            for (int i = 0; i < regionlist.size(); i++) {
+                if (!parseRegion((String) regionlist.get(i))) {
+                    outputStream.println("invalid region: " + regionlist.get(i));
+                    return false;
+                }
+            }
+        }
+        if (options.has("bed")) {
+            bedfile = (File) options.valueOf("bed");
+            if (!bedfile.canRead()) {
+                outputStream.println("bed file is not readable");
+                return false;
+            }
+        }
+        if (bedfile == null && regionchrs.isEmpty()) {
+            outputStream.println("missing parameter region or bed");
+            return false;
+        }
+
+        summary = options.has("summary");
+        if (options.has("output")) {
+            output = (String) options.valueOf("output");
+        }
+
+        return true;
+    }
+
+    /**
+     *
+     * @param region
+     *
+     * a string chr:start-end, chr:position, or chr
+     *
+     * @return
+     *
+     * true if the region was parsed
+     */
+    private boolean parseRegion(String region) {
+        int colon = region.lastIndexOf(':');
+        long start = 1, end = Long.MAX_VALUE;
+        String chr = region;
+        if (colon >= 0) {
+            chr = region.substring(0, colon);
+            String[] tokens = region.substring(colon + 1).replace(",", "").split("-");
+            try {
+                start = Long.parseLong(tokens[0]);
+                end = tokens.length > 1 ? Long.parseLong(tokens[1]) : start;
+            } catch (NumberFormatException ex) {
+                return false;
+            }
+            if (tokens.length > 2 || start < 1 || end < start) {
+                return false;
+            }
+        }
+        regionchrs.add(chr);
+        regionpos.add(new long[]{start, end});
+        return true;
+    }
+
+    public BamfoTrackQuery(String[] args, PrintStream logstream) {
+        super(logstream);
+
+        if (args == null) {
+            printTrackQueryHelp();
+            return;
+        }
+
+        if (!parseTrackQueryParameters(args)) {
+            return;
+        }
+
+        isReady = true;
+    }
+
+    /**
+     *
+     * @param chr
+     * @return
+     *
+     * reader for the track on a chromosome, or null if there is no track file
+     *
+     * @throws IOException
+     */
+    private TrackReader getReader(String chr) throws IOException {
+        if (!readers.containsKey(chr)) {
+            File trackfile = new File(trackdir, chr + BinTrackWriter.EXTENSION);
+            TrackReader reader = null;
+            if (trackfile.canRead()) {
+                reader = new TrackReader(trackfile);
+            }
+            readers.put(chr, reader);
+        }
+        return readers.get(chr);
+    }
+
+    private static void appendValue(StringBuilder sb, double value, boolean integer) {
+        if (Double.isNaN(value)) {
+            sb.append("NA");
+        } else if (integer) {
+            sb.append((long) value);
+        } else {
+            sb.append(value);
+        }
+    }
+
+    /**
+     * Writes the values or the summary of the track in one region. Values on
+     * chromosomes without a track are NA.
+     *
+     * @param chr
+     * @param start
+     * @param end
+     * @param out
+     * @throws IOException
+     */
+    private void queryRegion(String chr, long start, long end, OutputStream out) throws IOException {
+        TrackReader reader = getReader(chr);
+        boolean integer = false;
+        if (reader != null) {
+            end = Math.min(end, reader.getLength());
+            integer = reader.isInteger();
+        } else if (end == Long.MAX_VALUE) {
+            // a whole chromosome that is not known
+            end = start;
+        }
+        if (start > end) {
+            return;
+        }
+
+        StringBuilder sb = new StringBuilder(1024);
+        if (summary) {
+            double[] minmaxmean = {Double.NaN, Double.NaN, Double.NaN};
+            if (reader != null) {
+                minmaxmean = reader.getSummary(start, end);
+            }
+            sb.append(chr).append("\t").append(start).append("\t").append(end).append("\t");
+            appendValue(sb, minmaxmean[0], integer);
+            sb.append("\t");
+            appendValue(sb, minmaxmean[1], integer);
+            sb.append("\t");
+            appendValue(sb, minmaxmean[2], false);
+            sb.append("\n");
+            out.write(sb.toString().getBytes());
+            return;
+        }
+
+        // values, in chunks so that long regions are not held in memory
+        long chunksize = 1 << 16;
+        for (long from = start; from <= end; from += chunksize) {
+            long to = Math.min(end, from + chunksize - 1);
+            double[] values = new double[(int) (to - from + 1)];
+            if (reader != null) {
+                values = reader.getValues(from, to);
+            } else {
+                Arrays.fill(values, Double.NaN);
+            }
+            for (int i = 0; i < values.length; i++) {
+                sb.append(chr).append("\t").append(from + i).append("\t");
+                appendValue(sb, values[i], integer);
+                sb.append("\n");
+                if (sb.length() > (1 << 16)) {
+                    out.write(sb.toString().getBytes());
+                    sb = new StringBuilder((1 << 16) + 1024);
+                }
+            }
+        }
+        out.write(sb.toString().getBytes());
+    }
+
+    private void queryRegions(OutputStream out) throws IOException {
+        if (summary) {
+            out.write("chr\tstart\tend\tmin\tmax\tmean\n".getBytes());
+        } else {
+            out.write("chr\tposition\tvalue\n".getBytes());
+        }
+
+        for (int i = 0; i < regionchrs.size(); i++) {
+            queryRegion(regionchrs.get(i), regionpos.get(i)[0], regionpos.get(i)[1], out);
+        }
+
+        // regions in bed files have 0-based starts
+        if (bedfile != null) {
+            BufferedReader br = BufferedReaderMaker.makeBufferedReader(bedfile);
+            String s;
+            while ((s = br.readLine()) != null) {
+                if (!s.startsWith("#") && !s.startsWith("track") && !s.isEmpty()) {
+                    String[] tokens = s.split("\t", 4);
+                    queryRegion(tokens[0], Long.parseLong(tokens[1]) + 1, Long.parseLong(tokens[2]), out);
+                }
+            }
+            br.close();
+        }
+    }
+
+    @Override
+    public void run() {
+        if (!isReady) {
+            return;
+        }
+
+        OutputStream out;
+        try {
+            if (output.equals("stdout")) {
+                out = new BufferedOutputStream(System.out, 1 << 16);
+            } else {
+                out = OutputStreamMaker.makeOutputStream(output);
+            }
+        } catch (IOException ex) {
+            outputStream.println("Could not create output: " + ex.getMessage());
+            return;
+        }
+
+        try {
+            queryRegions(out);
+        } catch (Exception ex) {
+            outputStream.println("Error querying tracks: " + ex.getMessage());
+        }
+
+        try {
+            if (output.equals("stdout")) {
+                out.flush();
+            } else {
+                out.close();
+            }
+            for (TrackReader reader : readers.values()) {
+                if (reader != null) {
+                    reader.close();
+                }
+            }
+        } catch (IOException ex) {
+            outputStream.println("Error closing streams: " + ex.getMessage());
+        }
+    }
+}
@@ -18,6 +18,7 @@ package bamfo.tracks;
 import bamfo.utils.BamfoSettings;
 import java.io.File;
 import java.io.PrintStream;
+import java.util.ArrayList;
 import joptsimple.OptionParser;
 import joptsimple.OptionSet;
 
@@ -32,10 +33,17 @@ public class BamfoTracks implements Runnable {
     private static final int TRACK_READEND = 2;
     private static final int TRACK_READSTARTEND = 3;
     private static final int TRACK_MEDMAPQUAL = 4;
+    private static final int TRACK_LOWMAPQUAL = 5;
+    private static final int TRACK_QUANTMAPQUAL = 6;
+    // names of the track types, indexed by the codes above
+    private static final String[] tracknames = {"coverage", "readS", "readE", "readSE",
+        "medmapqual", "lowmapqual", "quantmapqual"};
     private File bamfile;
     private File outdir;
-    private String tracktypeString = "coverage";
-    private int tracktype = 0;
+    private final ArrayList<Integer> tracktypes = new ArrayList<>(tracknames.length);
+    private int threads = 1;
+    private double quantile = 0.5;
+    private boolean binary = false;
     private final static String[] settingtypes = {"minbasequal", "mindepth", "minmapqual",
         "minfromstart", "minfromend", "trim", "trimQB", "NRef","validate"};
     private BamfoSettings settings = new BamfoSettings(settingtypes);
@@ -46,7 +54,14 @@ public class BamfoTracks implements Runnable {
         System.out.println("Bamformatics tracks: compute the *genotype-able* tracks of an alignment\n");
         System.out.println("  --bam <File>          - alignment file");
         System.out.println("  --output <File>       - output directory");
-        System.out.println("  --type <String>       - type of track (coverage, readS, readE, readSE)");
+        System.out.println("  --type <String>       - types of track, separated by commas");
+        System.out.println("                          (coverage, readS, readE, readSE, medmapqual, lowmapqual, quantmapqual)");
+        System.out.println("                          with several types, each is written to a subdirectory of output");
+        System.out.println("                          lowmapqual is the fraction of reads below minmapqual");
+        System.out.println("  --quantile <double>   - quantile of mapping quality for quantmapqual [default 0.5]");
+        System.out.println("  --format <String>     - txt for gzipped text, bin for indexed binary files [default txt]");
+        System.out.println("                          (binary files can be read with trackquery)");
+        System.out.println("  --threads <int>       - number of chromosomes computed at once (requires indexed bam)");
         System.out.println();
 
         // also print options for genotyping
@@ -63,6 +78,12 @@ public class BamfoTracks implements Runnable {
         prs.accepts("output").withRequiredArg().ofType(File.class);
         // type - type of track to compute directory
         prs.accepts("type").withRequiredArg().ofType(String.class);
+        // threads - number of chromosomes processed in parallel
+        prs.accepts("threads").withRequiredArg().ofType(Integer.class);
+        // quantile - for quantmapqual tracks
+        prs.accepts("quantile").withRequiredArg().ofType(Double.class);
+        // format - text or binary output
+        prs.accepts("format").withRequiredArg().ofType(String.class);
 
         // some options for genotyping
         settings.addOptionsToOptionParser(prs);
@@ -88,24 +109,49 @@ public class BamfoTracks implements Runnable {
         }
 
         if (options.has("type")) {
-            tracktypeString = (String) options.valueOf("type");
-            if (tracktypeString.equalsIgnoreCase("coverage")) {
-                tracktype = TRACK_COVERAGE;
-            } else if (tracktypeString.equalsIgnoreCase("readS")) {
-                tracktype = TRACK_READSTART;
-            } else if (tracktypeString.equalsIgnoreCase("readE")) {
-                tracktype = TRACK_READEND;
-            } else if (tracktypeString.equalsIgnoreCase("readSE")) {
-                tracktype = TRACK_READSTARTEND;
-            } else if (tracktypeString.equalsIgnoreCase("medmapqual")) {
-                tracktype = TRACK_MEDMAPQUAL;
-            } else {
-                System.out.println("unrecognized track type " + tracktype);
-                return false;
+            String[] tracktypeStrings = ((String) options.valueOf("type")).split(",");
+            for (int i = 0; i < tracktypeStrings.length; i++) {
+                int tracktype = getTrackType(tracktypeStrings[i]);
+                if (tracktype < 0) {
+                    System.out.println("unrecognized track type " + tracktypeStrings[i]);
+                    return false;
+                }
+                if (tracktypes.contains(tracktype)) {
+                    System.out.println("track type listed more than once: " + tracktypeStrings[i]);
+                    return false;
+                }
+                tracktypes.add(tracktype);
             }
         } else {
             // when type is not specified, the default behavior will be to compute the 
             // coverage tracks
+            tracktypes.add(TRACK_COVERAGE);
+        }
+
+        if (options.has("threads")) {
+            threads = (Integer) options.valueOf("threads");
+            if (threads < 1) {
+                System.out.println("threads must be a positive integer");
+                return false;
+            }
+        }
+
+        if (options.has("quantile")) {
+            quantile = (Double) options.valueOf("quantile");
+            if (quantile < 0 || quantile > 1) {
+                System.out.println("quantile must be between 0 and 1");
+                return false;
+            }
+        }
+
+        if (options.has("format")) {
+            String format = (String) options.valueOf("format");
+            if (format.equalsIgnoreCase("bin")) {
+                binary = true;
+            } else if (!format.equalsIgnoreCase("txt")) {
+                System.out.println("unrecognized format " + format);
+                return false;
+            }
         }
 
         if (options.has("output")) {
@@ -125,6 +171,17 @@ public class BamfoTracks implements Runnable {
             return false;
         }
 
+        // with several types, each track has its own subdirectory
+        if (tracktypes.size() > 1) {
+            for (int i = 0; i < tracktypes.size(); i++) {
+                File trackdir = new File(outdir, tracknames[tracktypes.get(i)]);
+                if (!trackdir.exists() && !trackdir.mkdirs()) {
+                    System.out.println("Could not create output directory " + trackdir.getName());
+                    return false;
+                }
+            }
+        }
+
         // get the genotyping-style options 
         if (!settings.getOptionValues(options)) {
             return false;
@@ -133,6 +190,22 @@ public class BamfoTracks implements Runnable {
         return true;
     }
 
+    /**
+     *
+     * @param tracktypeString
+     * @return
+     *
+     * code of the track type, or -1 if the type is not recognized
+     */
+    private static int getTrackType(String tracktypeString) {
+        for (int i = 0; i < tracknames.length; i++) {
+            if (tracknames[i].equalsIgnoreCase(tracktypeString)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
     /**
      *
      * @param args
@@ -167,11 +240,22 @@ public class BamfoTracks implements Runnable {
             return;
         }
 
-        if (tracktype < TRACK_MEDMAPQUAL) {
-            new TracksCoverage(settings, bamfile, outdir, tracktype).run();
-        } else if (tracktype == TRACK_MEDMAPQUAL) {
-            new TracksMedMapQual(settings, bamfile, outdir).run();
+        // all the tracks are computed in one pass through the alignment
+        ArrayList<TracksCompute> tracks = new ArrayList<>(tracktypes.size());
+        for (int i = 0; i < tracktypes.size(); i++) {
+            int tracktype = tracktypes.get(i);
+            File trackdir = outdir;
+            if (tracktypes.size() > 1) {
+                trackdir = new File(outdir, tracknames[tracktype]);
+            }
+            if (tracktype < TRACK_MEDMAPQUAL) {
+                tracks.add(new TracksCoverage(settings, trackdir, binary, tracktype));
+            } else {
+                tracks.add(new TracksMapQual(settings, trackdir, binary, tracktype, quantile));
+            }
         }
 
+        new TracksMulti(settings, bamfile, tracks, threads).run();
+
     }
 }
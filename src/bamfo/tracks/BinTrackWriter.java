@@ -0,0 +1,227 @@
+/*
+ * Copyright 2012-2014 Tomasz Konopka.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bamfo.tracks;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a track in an indexed binary format. Runs are grouped into blocks
+ * that are compressed separately, and an index records where each block
+ * starts on the chromosome and in the file. The file also holds zoom levels
+ * with the min, max and sum of the track in bins of fixed size. A
+ * TrackReader can then read a region by decompressing only the blocks that
+ * overlap it.
+ *
+ * Layout of the file (big-endian, as DataOutputStream):
+ *
+ * header: int MAGIC, int VERSION, byte integer
+ *
+ * blocks: deflated (int runlength, double value) for each run
+ *
+ * zoom data: deflated (double min, double max, double sum) for each bin
+ *
+ * index: int number of blocks, then (long start, long offset, int compressed
+ * length, int number of runs) for each block; int number of zoom levels, then
+ * (int binsize, int number of bins, long offset, int compressed length) for
+ * each level
+ *
+ * footer: long track length, long index offset, int MAGIC
+ *
+ * @author tkonopka
+ */
+class BinTrackWriter extends TrackWriter {
+
+    final static int MAGIC = 0x4246544b;
+    final static int VERSION = 2;
+    final static int FOOTERSIZE = 20;
+    final static String EXTENSION = ".trk";
+    private final static int BLOCKRUNS = 4096;
+    private final static int[] ZOOMBINS = {1000, 10000, 100000};
+    private final DataOutputStream out;
+    // number of bytes written so far
+    private long offset = 0;
+    // runs of the current block, and its start position
+    private final ByteArrayOutputStream blockbytes = new ByteArrayOutputStream(BLOCKRUNS * 12);
+    private final DataOutputStream block = new DataOutputStream(blockbytes);
+    private int blockruns = 0;
+    private long blockstart = 1;
+    private long nextpos = 1;
+    // index of the blocks
+    private final ByteArrayOutputStream indexbytes = new ByteArrayOutputStream(1 << 12);
+    private final DataOutputStream index = new DataOutputStream(indexbytes);
+    private int numblocks = 0;
+    private final ZoomLevel[] zooms = new ZoomLevel[ZOOMBINS.length];
+    private final Deflater deflater = new Deflater();
+    private final byte[] deflatebuffer = new byte[1 << 16];
+
+    /**
+     * Summaries of the track in bins of fixed size.
+     */
+    private class ZoomLevel {
+
+        private final int binsize;
+        private final ByteArrayOutputStream binbytes = new ByteArrayOutputStream(1 << 12);
+        private final DataOutputStream bins = new DataOutputStream(binbytes);
+        private int numbins = 0;
+        // the current bin
+        private double min, max, sum;
+        private int inbin = 0;
+
+        ZoomLevel(int binsize) {
+            this.binsize = binsize;
+        }
+
+        void add(int count, double value) throws IOException {
+            while (count > 0) {
+                int now = Math.min(count, binsize - inbin);
+                if (inbin == 0) {
+                    min = value;
+                    max = value;
+                    sum = 0;
+                }
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+                sum += now * value;
+                inbin += now;
+                count -= now;
+                if (inbin == binsize) {
+                    closeBin();
+                }
+            }
+        }
+
+        void closeBin() throws IOException {
+            if (inbin == 0) {
+                return;
+            }
+            bins.writeDouble(min);
+            bins.writeDouble(max);
+            bins.writeDouble(sum);
+            numbins++;
+            inbin = 0;
+        }
+    }
+
+    /**
+     *
+     * @param file
+     * @param integer
+     *
+     * set true for tracks with integer values
+     *
+     * @throws IOException
+     */
+    BinTrackWriter(File file, boolean integer) throws IOException {
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeByte(integer ? 1 : 0);
+        offset = 9;
+        for (int i = 0; i < ZOOMBINS.length; i++) {
+            zooms[i] = new ZoomLevel(ZOOMBINS[i]);
+        }
+    }
+
+    @Override
+    void writeRun(int count, double value, boolean last) throws IOException {
+        block.writeInt(count);
+        block.writeDouble(value);
+        blockruns++;
+        nextpos += count;
+        for (int i = 0; i < zooms.length; i++) {
+            zooms[i].add(count, value);
+        }
+        if (blockruns == BLOCKRUNS) {
+            writeBlock();
+        }
+    }
+
+    /**
+     * Compresses bytes and writes them to the output.
+     *
+     * @param data
+     * @return
+     *
+     * number of bytes written
+     *
+     * @throws IOException
+     */
+    private int writeDeflated(ByteArrayOutputStream data) throws IOException {
+        deflater.reset();
+        deflater.setInput(data.toByteArray());
+        deflater.finish();
+        int total = 0;
+        while (!deflater.finished()) {
+            int len = deflater.deflate(deflatebuffer);
+            out.write(deflatebuffer, 0, len);
+            total += len;
+        }
+        offset += total;
+        return total;
+    }
+
+    private void writeBlock() throws IOException {
+        if (blockruns == 0) {
+            return;
+        }
+        long blockoffset = offset;
+        int len = writeDeflated(blockbytes);
+        index.writeLong(blockstart);
+        index.writeLong(blockoffset);
+        index.writeInt(len);
+        index.writeInt(blockruns);
+        numblocks++;
+        blockbytes.reset();
+        blockruns = 0;
+        blockstart = nextpos;
+    }
+
+    @Override
+    void finish() throws IOException {
+        writeBlock();
+
+        // zoom data
+        ByteArrayOutputStream zoomindexbytes = new ByteArrayOutputStream(256);
+        DataOutputStream zoomindex = new DataOutputStream(zoomindexbytes);
+        for (int i = 0; i < zooms.length; i++) {
+            zooms[i].closeBin();
+            long zoomoffset = offset;
+            int len = writeDeflated(zooms[i].binbytes);
+            zoomindex.writeInt(zooms[i].binsize);
+            zoomindex.writeInt(zooms[i].numbins);
+            zoomindex.writeLong(zoomoffset);
+            zoomindex.writeInt(len);
+        }
+
+        // index and footer
+        long indexoffset = offset;
+        out.writeInt(numblocks);
+        indexbytes.writeTo(out);
+        out.writeInt(zooms.length);
+        zoomindexbytes.writeTo(out);
+        out.writeLong(getLength());
+        out.writeLong(indexoffset);
+        out.writeInt(MAGIC);
+        out.close();
+        deflater.end();
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright 2012-2014 Tomasz Konopka.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bamfo.tracks;
+
+import java.io.IOException;
+
+/**
+ * Histograms of mapping qualities over a window that slides along a
+ * chromosome. Only mapping qualities that occur in the alignment get a bin,
+ * so each position needs a few counters rather than a list of qualities.
+ * Like in TrackWindow, positions are kept in a circular buffer that only
+ * needs to span the longest read, and positions before the start of the
+ * current read are drained into a TrackWriter.
+ *
+ * Statistics are computed by a cumulative scan over the bins. Positions
+ * without reads are written as -1.
+ *
+ * @author tkonopka
+ */
+class MapQualWindow {
+
+    static final int STAT_QUANTILE = 0;
+    static final int STAT_FRACTIONBELOW = 1;
+    // bin for each mapping quality (-1 if the quality has not been seen)
+    private final int[] binof = new int[256];
+    // mapping quality of each bin, and bins sorted by mapping quality
+    private int[] binvalue = new int[8];
+    private int[] sortedbins = new int[8];
+    private int numbins = 0;
+    // counts[slot * binvalue.length + bin] and total count in each slot
+    private int[] counts;
+    private int[] totals;
+    private int capacity;
+    // 1-based position of the first slot that has not been drained
+    private int start = 1;
+    // last position with a non-zero count
+    private int maxpos = 0;
+
+    MapQualWindow(int capacity) {
+        for (int i = 0; i < binof.length; i++) {
+            binof[i] = -1;
+        }
+        this.capacity = capacity;
+        counts = new int[capacity * binvalue.length];
+        totals = new int[capacity];
+    }
+
+    int getStart() {
+        return start;
+    }
+
+    /**
+     * Records one read with a given mapping quality at a position.
+     *
+     * @param position
+     *
+     * 1-based position on the chromosome, must not be before the start of the
+     * window
+     *
+     * @param mapqual
+     */
+    void add(int position, int mapqual) {
+        int bin = binof[mapqual & 255];
+        if (bin < 0) {
+            bin = addBin(mapqual & 255);
+        }
+        if (position - start >= capacity) {
+            resize(Math.max(position - start + 1, 2 * capacity), binvalue.length);
+        }
+        int slot = position % capacity;
+        counts[slot * binvalue.length + bin]++;
+        totals[slot]++;
+        if (position > maxpos) {
+            maxpos = position;
+        }
+    }
+
+    /**
+     * Creates a bin for a mapping quality that has not been seen before.
+     *
+     * @param mapqual
+     * @return
+     *
+     * index of the new bin
+     */
+    private int addBin(int mapqual) {
+        if (numbins == binvalue.length) {
+            resize(capacity, 2 * binvalue.length);
+            int[] temp = new int[2 * numbins];
+            System.arraycopy(binvalue, 0, temp, 0, numbins);
+            binvalue = temp;
+            temp = new int[2 * numbins];
+            System.arraycopy(sortedbins, 0, temp, 0, numbins);
+            sortedbins = temp;
+        }
+        int bin = numbins;
+        binof[mapqual] = bin;
+        binvalue[bin] = mapqual;
+        numbins++;
+        // insert the bin into the sorted list
+        int i = numbins - 1;
+        while (i > 0 && binvalue[sortedbins[i - 1]] > mapqual) {
+            sortedbins[i] = sortedbins[i - 1];
+            i--;
+        }
+        sortedbins[i] = bin;
+        return bin;
+    }
+
+    /**
+     * Changes the number of slots and/or the number of bins per slot while
+     * keeping the counts that have not been drained.
+     *
+     * @param newcapacity
+     * @param newbins
+     */
+    private void resize(int newcapacity, int newbins) {
+        int oldbins = binvalue.length;
+        int[] newcounts = new int[newcapacity * newbins];
+        int[] newtotals = new int[newcapacity];
+        for (int pos = start; pos <= maxpos; pos++) {
+            int oldslot = pos % capacity;
+            int newslot = pos % newcapacity;
+            System.arraycopy(counts, oldslot * oldbins, newcounts, newslot * newbins, oldbins);
+            newtotals[newslot] = totals[oldslot];
+        }
+        counts = newcounts;
+        totals = newtotals;
+        capacity = newcapacity;
+    }
+
+    /**
+     *
+     * @param slot
+     * @param quantile
+     * @return
+     *
+     * quantile of the mapping qualities in a slot, interpolated between
+     * neighbouring qualities (as type 7 in R). With quantile 0.5 this is the
+     * usual median.
+     */
+    private double getQuantile(int slot, double quantile) {
+        int offset = slot * binvalue.length;
+        double h = (totals[slot] - 1) * quantile;
+        int lo = (int) Math.floor(h);
+        int hi = (int) Math.ceil(h);
+        // find the qualities at ranks lo and hi
+        int cumsum = 0;
+        int lovalue = -1;
+        for (int i = 0; i < numbins; i++) {
+            int bin = sortedbins[i];
+            cumsum += counts[offset + bin];
+            if (lovalue < 0 && cumsum > lo) {
+                lovalue = binvalue[bin];
+            }
+            if (cumsum > hi) {
+                return lovalue + (h - lo) * (binvalue[bin] - lovalue);
+            }
+        }
+        return lovalue;
+    }
+
+    /**
+     *
+     * @param slot
+     * @param threshold
+     * @return
+     *
+     * fraction of reads in a slot with mapping quality below a threshold
+     */
+    private double getFractionBelow(int slot, int threshold) {
+        int offset = slot * binvalue.length;
+        int below = 0;
+        for (int i = 0; i < numbins && binvalue[sortedbins[i]] < threshold; i++) {
+            below += counts[offset + sortedbins[i]];
+        }
+        return (double) below / totals[slot];
+    }
+
+    /**
+     * Writes a statistic on positions before endpos and moves the window.
+     *
+     * @param writer
+     * @param endpos
+     *
+     * first position that is not drained
+     *
+     * @param stat
+     *
+     * one of the STAT_ codes
+     *
+     * @param param
+     *
+     * quantile for STAT_QUANTILE, threshold for STAT_FRACTIONBELOW
+     *
+     * @throws IOException
+     */
+    void drain(TrackWriter writer, int endpos, int stat, double param) throws IOException {
+        int last = Math.min(endpos - 1, maxpos);
+        for (; start <= last; start++) {
+            int slot = start % capacity;
+            if (totals[slot] == 0) {
+                writer.add(-1);
+                continue;
+            }
+            if (stat == STAT_QUANTILE) {
+                writer.add(getQuantile(slot, param));
+            } else {
+                writer.add(getFractionBelow(slot, (int) param));
+            }
+            int offset = slot * binvalue.length;
+            for (int i = 0; i < numbins; i++) {
+                counts[offset + i] = 0;
+            }
+            totals[slot] = 0;
+        }
+        // beyond the last read, there is no information on the mapping quality
+        if (start < endpos) {
+            writer.add(-1, endpos - start);
+            start = endpos;
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2012-2014 Tomasz Konopka.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bamfo.tracks;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.DecimalFormat;
+
+/**
+ * Streaming version of RleWriter. Values of a track are encoded as they
+ * arrive, so a track never has to be held in memory as a whole. The output is
+ * the same as that of RleWriter.write on an array with the same values.
+ *
+ * @author tkonopka
+ */
+class RleTrackWriter extends TrackWriter {
+
+    private final static int BUFFERSIZE = 1 << 16;
+    private final OutputStream os;
+    // integer tracks are written without decimals
+    private final boolean integer;
+    // format for runs of a double track (can be null)
+    private final DecimalFormat format;
+    private StringBuilder sb = new StringBuilder(BUFFERSIZE + 256);
+    // the header is written with the first run
+    private boolean started = false;
+
+    /**
+     *
+     * @param os
+     *
+     * stream for the output, closed by close()
+     *
+     * @param integer
+     *
+     * set true to write values as integers (as RleWriter does for int[])
+     *
+     */
+    RleTrackWriter(OutputStream os, boolean integer) {
+        this.os = os;
+        this.integer = integer;
+        this.format = null;
+    }
+
+    /**
+     *
+     * @param os
+     * @param format
+     *
+     * format for values of the track
+     *
+     */
+    RleTrackWriter(OutputStream os, DecimalFormat format) {
+        this.os = os;
+        this.integer = false;
+        this.format = format;
+    }
+
+    @Override
+    void writeRun(int count, double value, boolean last) throws IOException {
+        if (!started) {
+            sb.append("length\ta0\n");
+            started = true;
+        }
+        sb.append(count).append("\t");
+        if (integer) {
+            sb.append((int) value);
+        } else if (format == null || last) {
+            // RleWriter writes the last run without the format
+            sb.append(value);
+        } else {
+            sb.append(format.format(value));
+        }
+        sb.append("\n");
+        if (sb.length() > BUFFERSIZE) {
+            os.write(sb.toString().getBytes());
+            sb = new StringBuilder(BUFFERSIZE + 256);
+        }
+    }
+
+    /**
+     * Writes the buffered runs and closes the output stream. A track without
+     * any values produces an empty output.
+     *
+     * @throws IOException
+     */
+    @Override
+    void finish() throws IOException {
+        os.write(sb.toString().getBytes());
+        os.close();
+    }
+}
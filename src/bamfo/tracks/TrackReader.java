@@ -0,0 +1,336 @@
+/*
+ * Copyright 2012-2014 Tomasz Konopka.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bamfo.tracks;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads a track written in the binary format of BinTrackWriter. Opening a
+ * track reads only its index; values in a region are obtained by reading and
+ * decompressing the blocks that overlap the region. The most recently used
+ * block is kept, so queries on nearby positions are cheap.
+ *
+ * A reader is not thread-safe.
+ *
+ * @author tkonopka
+ */
+public class TrackReader {
+
+    private final RandomAccessFile raf;
+    private final boolean integer;
+    private final long length;
+    // index of the blocks
+    private final long[] blockstarts;
+    private final long[] blockoffsets;
+    private final int[] blocklens;
+    private final int[] blockruns;
+    // index of the zoom levels, and zoom data (loaded when needed)
+    private final int[] zoombins;
+    private final int[] zoomnumbins;
+    private final long[] zoomoffsets;
+    private final int[] zoomlens;
+    private final double[][] zoomdata;
+    // the last block that was read: run lengths and values
+    private int cachedblock = -1;
+    private int[] cachedcounts = new int[0];
+    private double[] cachedvalues = new double[0];
+    private final Inflater inflater = new Inflater();
+
+    /**
+     *
+     * @param file
+     *
+     * a track file created with tracks --format bin
+     *
+     * @throws IOException
+     */
+    public TrackReader(File file) throws IOException {
+        raf = new RandomAccessFile(file, "r");
+        if (raf.length() < 9 + BinTrackWriter.FOOTERSIZE
+                || raf.readInt() != BinTrackWriter.MAGIC) {
+            raf.close();
+            throw new IOException("not a binary track file: " + file.getName());
+        }
+        if (raf.readInt() != BinTrackWriter.VERSION) {
+            raf.close();
+            throw new IOException("unsupported version of track file: " + file.getName());
+        }
+        integer = raf.readByte() == 1;
+
+        // the footer gives the length of the track and the location of the index
+        raf.seek(raf.length() - BinTrackWriter.FOOTERSIZE);
+        length = raf.readLong();
+        long indexoffset = raf.readLong();
+        if (raf.readInt() != BinTrackWriter.MAGIC) {
+            raf.close();
+            throw new IOException("track file is incomplete: " + file.getName());
+        }
+        byte[] indexbytes = new byte[(int) (raf.length() - BinTrackWriter.FOOTERSIZE - indexoffset)];
+        raf.seek(indexoffset);
+        raf.readFully(indexbytes);
+        DataInputStream index = new DataInputStream(new ByteArrayInputStream(indexbytes));
+
+        int numblocks = index.readInt();
+        blockstarts = new long[numblocks];
+        blockoffsets = new long[numblocks];
+        blocklens = new int[numblocks];
+        blockruns = new int[numblocks];
+        for (int i = 0; i < numblocks; i++) {
+            blockstarts[i] = index.readLong();
+            blockoffsets[i] = index.readLong();
+            blocklens[i] = index.readInt();
+            blockruns[i] = index.readInt();
+        }
+
+        int numzooms = index.readInt();
+        zoombins = new int[numzooms];
+        zoomnumbins = new int[numzooms];
+        zoomoffsets = new long[numzooms];
+        zoomlens = new int[numzooms];
+        zoomdata = new double[numzooms][];
+        for (int i = 0; i < numzooms; i++) {
+            zoombins[i] = index.readInt();
+            zoomnumbins[i] = index.readInt();
+            zoomoffsets[i] = index.readLong();
+            zoomlens[i] = index.readInt();
+        }
+    }
+
+    /**
+     *
+     * @return
+     *
+     * number of positions in the track
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     *
+     * @return
+     *
+     * true if the track holds integer values (e.g. coverage)
+     */
+    public boolean isInteger() {
+        return integer;
+    }
+
+    /**
+     *
+     * @return
+     *
+     * sizes of the bins in the zoom levels, from finest to coarsest
+     */
+    public int[] getZoomBinSizes() {
+        return Arrays.copyOf(zoombins, zoombins.length);
+    }
+
+    public void close() throws IOException {
+        raf.close();
+        inflater.end();
+    }
+
+    private byte[] readDeflated(long offset, int len, int inflatedlen) throws IOException {
+        byte[] compressed = new byte[len];
+        raf.seek(offset);
+        raf.readFully(compressed);
+        byte[] data = new byte[inflatedlen];
+        inflater.reset();
+        inflater.setInput(compressed);
+        try {
+            int done = 0;
+            while (done < inflatedlen && !inflater.finished()) {
+                done += inflater.inflate(data, done, inflatedlen - done);
+            }
+        } catch (DataFormatException ex) {
+            throw new IOException("corrupt track file: " + ex.getMessage());
+        }
+        return data;
+    }
+
+    private void loadBlock(int blockindex) throws IOException {
+        if (blockindex == cachedblock) {
+            return;
+        }
+        int numruns = blockruns[blockindex];
+        DataInputStream data = new DataInputStream(new ByteArrayInputStream(
+                readDeflated(blockoffsets[blockindex], blocklens[blockindex], 12 * numruns)));
+        cachedcounts = new int[numruns];
+        cachedvalues = new double[numruns];
+        for (int i = 0; i < numruns; i++) {
+            cachedcounts[i] = data.readInt();
+            cachedvalues[i] = data.readDouble();
+        }
+        cachedblock = blockindex;
+    }
+
+    /**
+     * Reads the values of the track in a region.
+     *
+     * @param start
+     *
+     * 1-based start of the region
+     *
+     * @param end
+     *
+     * 1-based end of the region (inclusive)
+     *
+     * @return
+     *
+     * array with end-start+1 values. Positions outside of the track are NaN.
+     *
+     * @throws IOException
+     */
+    public double[] getValues(long start, long end) throws IOException {
+        double[] values = new double[(int) Math.max(0, end - start + 1)];
+        Arrays.fill(values, Double.NaN);
+        long from = Math.max(start, 1);
+        long to = Math.min(end, length);
+        if (from > to || blockstarts.length == 0) {
+            return values;
+        }
+
+        // find the block that contains the first position
+        int blockindex = Arrays.binarySearch(blockstarts, from);
+        if (blockindex < 0) {
+            blockindex = -blockindex - 2;
+        }
+        for (; blockindex < blockstarts.length && blockstarts[blockindex] <= to; blockindex++) {
+            loadBlock(blockindex);
+            long runstart = blockstarts[blockindex];
+            for (int i = 0; i < cachedcounts.length && runstart <= to; i++) {
+                long runend = runstart + cachedcounts[i] - 1;
+                for (long pos = Math.max(runstart, from); pos <= Math.min(runend, to); pos++) {
+                    values[(int) (pos - start)] = cachedvalues[i];
+                }
+                runstart = runend + 1;
+            }
+        }
+        return values;
+    }
+
+    /**
+     *
+     * @param level
+     *
+     * index of the zoom level
+     *
+     * @return
+     *
+     * min, max and sum of each bin in the zoom level
+     *
+     * @throws IOException
+     */
+    private double[] getZoomData(int level) throws IOException {
+        if (zoomdata[level] == null) {
+            int numvalues = 3 * zoomnumbins[level];
+            DataInputStream data = new DataInputStream(new ByteArrayInputStream(
+                    readDeflated(zoomoffsets[level], zoomlens[level], 8 * numvalues)));
+            double[] temp = new double[numvalues];
+            for (int i = 0; i < numvalues; i++) {
+                temp[i] = data.readDouble();
+            }
+            zoomdata[level] = temp;
+        }
+        return zoomdata[level];
+    }
+
+    /**
+     * Summarizes the track in a region. Bins of the coarsest zoom level that
+     * fit in the region are taken from the zoom data, and only the edges of the
+     * region are read from the blocks.
+     *
+     * @param start
+     *
+     * 1-based start of the region
+     *
+     * @param end
+     *
+     * 1-based end of the region (inclusive)
+     *
+     * @return
+     *
+     * array with the min, max and mean of the track in the region (NaN if the
+     * region is outside of the track)
+     *
+     * @throws IOException
+     */
+    public double[] getSummary(long start, long end) throws IOException {
+        long from = Math.max(start, 1);
+        long to = Math.min(end, length);
+        double min = Double.NaN, max = Double.NaN, sum = 0;
+        long count = 0;
+        if (from > to) {
+            return new double[]{min, max, Double.NaN};
+        }
+
+        // choose the coarsest zoom level with at least one bin inside the region
+        int level = -1;
+        long binfrom = 0, binto = -1;
+        for (int i = 0; i < zoombins.length; i++) {
+            long first = (from - 1 + zoombins[i] - 1) / zoombins[i];
+            long last = (to / zoombins[i]) - 1;
+            if (to == length) {
+                // the last bin of the track can be shorter than the others
+                last = zoomnumbins[i] - 1;
+            }
+            if (first <= last && (level < 0 || zoombins[i] > zoombins[level])) {
+                level = i;
+                binfrom = first;
+                binto = last;
+            }
+        }
+
+        // positions before and after the zoom bins
+        long rawto = to, rawfrom = to + 1;
+        if (level >= 0) {
+            rawto = binfrom * zoombins[level];
+            rawfrom = Math.min(to, (binto + 1) * zoombins[level]) + 1;
+            double[] zoom = getZoomData(level);
+            for (long bin = binfrom; bin <= binto; bin++) {
+                int b = (int) (3 * bin);
+                long binlen = Math.min(length, (bin + 1) * zoombins[level]) - bin * zoombins[level];
+                min = count == 0 ? zoom[b] : Math.min(min, zoom[b]);
+                max = count == 0 ? zoom[b + 1] : Math.max(max, zoom[b + 1]);
+                sum += zoom[b + 2];
+                count += binlen;
+            }
+        }
+        for (int part = 0; part < 2; part++) {
+            long a = part == 0 ? from : rawfrom;
+            long b = part == 0 ? rawto : to;
+            if (a > b) {
+                continue;
+            }
+            double[] values = getValues(a, b);
+            for (int i = 0; i < values.length; i++) {
+                min = count == 0 ? values[i] : Math.min(min, values[i]);
+                max = count == 0 ? values[i] : Math.max(max, values[i]);
+                sum += values[i];
+                count++;
+            }
+        }
+        return new double[]{min, max, sum / count};
+    }
+}
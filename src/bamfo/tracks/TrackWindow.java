@@ -0,0 +1,103 @@
+/*
+ * Copyright 2012-2014 Tomasz Konopka.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bamfo.tracks;
+
+import java.io.IOException;
+
+/**
+ * A window of integer counts that slides along a chromosome. Counts are kept
+ * in a circular buffer that only needs to span the longest read. When reads
+ * are processed in order of their start positions, counts before the start of
+ * the current read are final; they are drained into a TrackWriter and
+ * their slots are reused.
+ *
+ * @author tkonopka
+ */
+class TrackWindow {
+
+    private int[] counts;
+    // 1-based position of the first count that has not been drained
+    private int start = 1;
+    // last position with a non-zero count
+    private int maxpos = 0;
+
+    TrackWindow(int capacity) {
+        counts = new int[capacity];
+    }
+
+    int getStart() {
+        return start;
+    }
+
+    /**
+     *
+     * @param position
+     *
+     * 1-based position on the chromosome, must not be before the start of the
+     * window
+     *
+     */
+    void increment(int position) {
+        if (position - start >= counts.length) {
+            grow(position - start + 1);
+        }
+        counts[position % counts.length]++;
+        if (position > maxpos) {
+            maxpos = position;
+        }
+    }
+
+    /**
+     * Enlarges the buffer while keeping the counts that have not been drained.
+     *
+     * @param span
+     */
+    private void grow(int span) {
+        int[] temp = new int[Math.max(span, 2 * counts.length)];
+        for (int pos = start; pos <= maxpos; pos++) {
+            temp[pos % temp.length] = counts[pos % counts.length];
+        }
+        counts = temp;
+    }
+
+    /**
+     * Writes the counts on positions before endpos and moves the window.
+     *
+     * @param writer
+     * @param endpos
+     *
+     * first position that is not drained
+     *
+     * @param mindepth
+     *
+     * counts below this threshold are written as zero
+     *
+     * @throws IOException
+     */
+    void drain(TrackWriter writer, int endpos, int mindepth) throws IOException {
+        int last = Math.min(endpos - 1, maxpos);
+        for (; start <= last; start++) {
+            int index = start % counts.length;
+            writer.add(counts[index] < mindepth ? 0 : counts[index]);
+            counts[index] = 0;
+        }
+        // beyond the last count, the track is a single run of zeros
+        if (start < endpos) {
+            writer.add(0, endpos - start);
+            start = endpos;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2012-2014 Tomasz Konopka.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bamfo.tracks;
+
+import java.io.IOException;
+
+/**
+ * Receives the values of a track one position at a time (or as runs of equal
+ * values) and collects them into runs. Subclasses decide how the runs are
+ * stored.
+ *
+ * @author tkonopka
+ */
+abstract class TrackWriter {
+
+    // the run that is not yet written.
+    private double runvalue = 0;
+    private int runlength = 0;
+    // total number of values added to the track
+    private long length = 0;
+
+    /**
+     *
+     * @return
+     *
+     * number of positions added to the track so far
+     */
+    long getLength() {
+        return length;
+    }
+
+    void add(double value) throws IOException {
+        add(value, 1);
+    }
+
+    /**
+     * Adds the same value on several consecutive positions.
+     *
+     * @param value
+     * @param count
+     * @throws IOException
+     */
+    void add(double value, int count) throws IOException {
+        if (count < 1) {
+            return;
+        }
+        if (length > 0 && value != runvalue) {
+            writeRun(runlength, runvalue, false);
+            runlength = 0;
+        }
+        // like RleWriter, the run takes the value of its last element
+        runvalue = value;
+        runlength += count;
+        length += count;
+    }
+
+    /**
+     * Writes the last run and closes the output.
+     *
+     * @throws IOException
+     */
+    void close() throws IOException {
+        if (runlength > 0) {
+            writeRun(runlength, runvalue, true);
+        }
+        finish();
+    }
+
+    /**
+     *
+     * @param count
+     * @param value
+     * @param last
+     *
+     * true for the last run of the track
+     *
+     * @throws IOException
+     */
+    abstract void writeRun(int count, double value, boolean last) throws IOException;
+
+    /**
+     * Completes and closes the output after the last run.
+     *
+     * @throws IOException
+     */
+    abstract void finish() throws IOException;
+}
@@ -15,25 +15,25 @@
  */
 package bamfo.tracks;
 
-import bamfo.utils.BamfoCommon;
+import bamfo.utils.BamfoRecord;
 import bamfo.utils.BamfoSettings;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.logging.Level;
-import java.util.logging.Logger;
 import jsequtils.file.OutputStreamMaker;
-import jsequtils.file.RleWriter;
 import net.sf.samtools.SAMFileHeader;
-import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.SAMRecord;
 import net.sf.samtools.SAMSequenceRecord;
 
 /**
+ * One type of track. The alignment is read by TracksMulti, which can feed
+ * several tracks at once; a track receives the records of each chromosome
+ * through a ChromosomeTrack.
  *
  * @author tkonopka
  */
-abstract class TracksCompute implements Runnable {
+abstract class TracksCompute {
     
     final BamfoSettings settings;
     static final int TRACK_COVERAGE = 0;
@@ -41,73 +41,108 @@ abstract class TracksCompute implements Runnable {
     static final int TRACK_READEND = 2;
     static final int TRACK_READSTARTEND = 3;
     static final int TRACK_MEDMAPQUAL = 4;
-    final File bamfile;    
+    static final int TRACK_LOWMAPQUAL = 5;
+    static final int TRACK_QUANTMAPQUAL = 6;
     final File outdir;   
+    // write tracks in the indexed binary format instead of gzipped text
+    final boolean binary;
     
-    public TracksCompute(BamfoSettings settings, File bamfile, File outdir) {
+    public TracksCompute(BamfoSettings settings, File outdir, boolean binary) {
         this.settings = settings;
-        this.bamfile = bamfile;
         this.outdir = outdir;
+        this.binary = binary;
     }
     
-    void outputRleTrack(int[] track, String nowRefName, File outdir) throws FileNotFoundException, IOException {
-        OutputStream os = OutputStreamMaker.makeOutputStream(outdir.getCanonicalPath(), nowRefName + ".txt.gz");
-        RleWriter.write(os, track, true);
-        os.close();
+    /**
+     * Computes the track on one chromosome. Records are added in order of 
+     * their start positions, and the track is written when it is closed.
+     */
+    abstract class ChromosomeTrack {
+        
+        /**
+         * 
+         * @param record
+         * @param b2r
+         * 
+         * derived information, already loaded from the record
+         * 
+         * @throws IOException 
+         */
+        abstract void add(SAMRecord record, BamfoRecord b2r) throws IOException;
+        
+        abstract void close() throws IOException;
     }
-       
-    void outputRleTrack(double[] track, String nowRefName, File outdir) throws FileNotFoundException, IOException {
+    
+    /**
+     * 
+     * @param nowRefName
+     * @param chromlen
+     * @return
+     * 
+     * an object that will compute the track on one chromosome
+     * 
+     * @throws IOException 
+     */
+    abstract ChromosomeTrack startChromosome(String nowRefName, int chromlen) throws IOException;
+    
+    /**
+     * 
+     * @return 
+     * 
+     * value of the track on chromosomes without any records
+     */
+    abstract double getDefaultValue();
+    
+    /**
+     * 
+     * @return 
+     * 
+     * records with lower mapping quality do not contribute to the track
+     */
+    abstract int getMinMapQual();
+    
+    /**
+     * 
+     * @param nowRefName
+     * @param integer
+     * 
+     * set true for tracks with integer values
+     * 
+     * @return
+     * 
+     * a writer for the track of one chromosome
+     * 
+     * @throws FileNotFoundException
+     * @throws IOException 
+     */
+    TrackWriter openTrack(String nowRefName, boolean integer) throws FileNotFoundException, IOException {
+        if (binary) {
+            return new BinTrackWriter(new File(outdir, nowRefName + BinTrackWriter.EXTENSION), integer);
+        }
         OutputStream os = OutputStreamMaker.makeOutputStream(outdir.getCanonicalPath(), nowRefName + ".txt.gz");
-        RleWriter.write(os, track, true);
-        os.close();
+        return new RleTrackWriter(os, integer);
     }
     
+    /**
+     * 
+     * @return 
+     * 
+     * true for tracks with integer values
+     */
+    abstract boolean isInteger();
     
-    void saveNotPresentChromosomes(boolean[] chroms, SAMFileHeader samHeader, File outdir, double defaultvalue) throws FileNotFoundException, IOException {        
+    void saveNotPresentChromosomes(boolean[] chroms, SAMFileHeader samHeader) throws FileNotFoundException, IOException {        
         // at the end, check that all chromosomes have been output
         // if not, coverage must have been zero
         for (int i = 0; i < chroms.length; i++) {
             if (!chroms[i]) {
-                // create dummy array and output it
+                // the track is a single run of the default value
+                // (text tracks write this run as a double, even for integer tracks)
                 SAMSequenceRecord ssr = samHeader.getSequence(i);
-                int chromlen = ssr.getSequenceLength();
-                double[] blank = new double[chromlen];
-                
-                // fill the blank with the default value
-                if (defaultvalue!=0) {
-                    for (int j=0; j<chromlen; j++) {
-                        blank[j]=defaultvalue;
-                    }
-                }
-                
-                String nowRefName = ssr.getSequenceName();
-                outputRleTrack(blank, nowRefName, outdir);                
+                TrackWriter writer = openTrack(ssr.getSequenceName(), binary && isInteger());
+                writer.add(getDefaultValue(), ssr.getSequenceLength());
+                writer.close();
             }
         }
     }
-    
-    abstract void computeTrack(SAMFileReader inputSam) throws FileNotFoundException, IOException;
-    
-    /**
-     * After the utility is initialized, it has to be "executed" by invoking this method.
-     * If initialization failed, this method does not do anything.
-     * 
-     */
-    @Override
-    public void run() {
-        // start processing, open the SAM file and start computing
-        SAMFileReader inputSam = new SAMFileReader(bamfile);
-        BamfoCommon.updateValidationStringency(inputSam, settings.getValidate());
-        
-        try {
-            computeTrack(inputSam);
-        } catch (IOException ex) {
-            System.out.println("computing error");
-            Logger.getLogger(TracksCoverage.class.getName()).log(Level.SEVERE, null, ex);
-        }
-
-        // close input SAM file
-        inputSam.close();
-    }
-            
 }
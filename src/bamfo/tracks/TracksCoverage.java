@@ -18,12 +18,8 @@ package bamfo.tracks;
 import bamfo.utils.BamfoRecord;
 import bamfo.utils.BamfoSettings;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import net.sf.samtools.SAMFileHeader;
-import net.sf.samtools.SAMFileReader;
 import net.sf.samtools.SAMRecord;
-import net.sf.samtools.SAMSequenceRecord;
 
 /**
  *
@@ -33,90 +29,87 @@ import net.sf.samtools.SAMSequenceRecord;
  */
 class TracksCoverage extends TracksCompute {
 
+    // initial span of the window, grows if a read spans more positions
+    private final static int WINDOWSIZE = 4096;
     private final int tracktype;
 
-    public TracksCoverage(BamfoSettings settings, File bamfile, File outdir, int tracktype) {
-        super(settings, bamfile, outdir);
+    public TracksCoverage(BamfoSettings settings, File outdir, boolean binary, int tracktype) {
+        super(settings, outdir, binary);
         this.tracktype = tracktype;
     }
 
     @Override
-    void computeTrack(SAMFileReader inputSam) throws FileNotFoundException, IOException {
-
-        int[] coverage = new int[1];
-        coverage[0] = 0;
-
-        int nowRef = -1;
-        String nowRefName = "none";
-
-        SAMFileHeader samHeader = inputSam.getFileHeader();
-
-        // find out all the chromosome names from the header        
-        int numchromosomes = samHeader.getSequenceDictionary().size();
-        boolean[] chromoutput = new boolean[numchromosomes];
+    double getDefaultValue() {
+        return 0;
+    }
 
-        // read each record, for each chromosome
-        for (final SAMRecord samRecord : inputSam) {
+    @Override
+    boolean isInteger() {
+        return true;
+    }
 
-            int recordReference = samRecord.getReferenceIndex();
+    @Override
+    int getMinMapQual() {
+        return settings.getMinmapqual();
+    }
 
-            // check that the record is aligned and that is primary
-            // and non-duplicate
-            if (recordReference > -1 && !samRecord.getNotPrimaryAlignmentFlag()
-                    && !samRecord.getReadUnmappedFlag() && !samRecord.getDuplicateReadFlag()) {
+    @Override
+    ChromosomeTrack startChromosome(String nowRefName, int chromlen) throws IOException {
+        return new ChromosomeCoverage(openTrack(nowRefName, true), chromlen);
+    }
 
-                // check if the record starts a new chromosome
-                // if so, save the coverage and process next chromosome
-                if (recordReference != nowRef) {
-                    // save the coverage saved so far
-                    if (nowRef != -1) {
-                        chromoutput[nowRef] = true;
-                        thresholdMinDepth(coverage, settings.getMindepth());
-                        outputRleTrack(coverage, nowRefName, outdir);
-                    }
+    /**
+     * Counts on one chromosome. Counts are held only over a window that
+     * slides with the reads.
+     */
+    private class ChromosomeCoverage extends ChromosomeTrack {
 
-                    // create a new coverage array for the new chromosome
-                    SAMSequenceRecord ssr = samHeader.getSequence(recordReference);
-                    int chromlen = ssr.getSequenceLength();
-                    coverage = new int[chromlen];
+        private final TrackWindow coverage = new TrackWindow(WINDOWSIZE);
+        private final TrackWriter writer;
+        private final int chromlen;
+        private final int mindepth = settings.getMindepth();
 
-                    nowRef = recordReference;
-                    nowRefName = samRecord.getReferenceName();
-                }
+        ChromosomeCoverage(TrackWriter writer, int chromlen) {
+            this.writer = writer;
+            this.chromlen = chromlen;
+        }
 
-                // add the contribution of this read to the coverage
-                updateTrack(coverage, samRecord);
+        @Override
+        void add(SAMRecord record, BamfoRecord b2r) throws IOException {
+            // positions before the start of this read will not change anymore
+            int startpos = record.getAlignmentStart();
+            if (startpos < coverage.getStart()) {
+                throw new IOException("alignment is not sorted by coordinate: " + record.getReadName());
             }
-        } // end of loop over records
+            coverage.drain(writer, Math.min(startpos, chromlen + 1), mindepth);
 
-        // save the coverage on the last chromosome
-        if (nowRef != -1) {
-            chromoutput[nowRef] = true;
-            thresholdMinDepth(coverage, settings.getMindepth());
-            outputRleTrack(coverage, nowRefName, outdir);
+            // add the contribution of this read to the coverage
+            updateTrack(coverage, b2r, record);
         }
 
-        // at the end, check that all chromosomes have been output
-        // if not, coverage must have been zero        
-        saveNotPresentChromosomes(chromoutput, samHeader, outdir, 0);
-
+        @Override
+        void close() throws IOException {
+            coverage.drain(writer, chromlen + 1, mindepth);
+            writer.close();
+        }
     }
 
     /**
      *
      * @param track
+     * @param b2r
+     *
+     * derived information, already loaded from the record
+     *
      * @param record
      */
-    private void updateTrack(int[] track, SAMRecord record) {
+    private void updateTrack(TrackWindow track, BamfoRecord b2r, SAMRecord record) {
 
         // ignore read if its mapquality is too low
         if (record.getMappingQuality() < settings.getMinmapqual()) {
             return;
         }
 
-        // compute all needed derived qualities of the read via BamfoRecord
-        BamfoRecord b2r = new BamfoRecord(record, settings.isTrimBtail(), settings.isTrimpolyedge());
-
         // the overlapstart needs to be updated because reads can be trimmed from start and finish
         int overlapstart = b2r.overlapstart;
         if (overlapstart < Integer.MAX_VALUE) {
@@ -187,10 +180,10 @@ class TracksCoverage extends TracksCompute {
      *
      * @return
      *
-     * Nothing is returned, but the track array should be modified.
+     * Nothing is returned, but the track window should be modified.
      *
      */
-    private void updateHelper(int[] track, BamfoRecord b2r, int overlapstart,
+    private void updateHelper(TrackWindow track, BamfoRecord b2r, int overlapstart,
             int imin, int imax, byte minbasequal,
             final boolean onlystart, final boolean fromstart, final boolean fromend,
             final boolean NRef) {
@@ -204,7 +197,7 @@ class TracksCoverage extends TracksCompute {
                         && b2r.pos[i] >= 0
                         && b2r.qualities[i] >= minbasequal) {
                     if (NRef || b2r.bases[i] != 'N') {
-                        track[b2r.pos[i] - 1]++;
+                        track.increment(b2r.pos[i]);
                         if (onlystart) {
                             i = imax;
                         }
@@ -223,7 +216,7 @@ class TracksCoverage extends TracksCompute {
                         && b2r.pos[i] >= 0
                         && b2r.qualities[i] >= minbasequal) {
                     if (NRef || b2r.bases[i] != 'N') {
-                        track[b2r.pos[i] - 1]++;
+                        track.increment(b2r.pos[i]);
                         i = -1;
                     }
                 }
@@ -231,26 +224,4 @@ class TracksCoverage extends TracksCompute {
         }
 
     }
-
-    /**
-     * Thresholds all coverage values below a threshold to zero.
-     *
-     * @param track
-     *
-     * coverage track. This object will be modified during the course of the
-     * function.
-     *
-     * @param mindepth
-     *
-     * threshold. Values below this number will be set to zero.
-     *
-     */
-    private void thresholdMinDepth(int[] track, int mindepth) {
-        int tlen = track.length;
-        for (int i = 0; i < tlen; i++) {
-            if (track[i] < mindepth) {
-                track[i] = 0;
-            }
-        }
-    }
 }
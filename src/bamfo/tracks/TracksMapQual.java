@@ -0,0 +1,139 @@
+/*
+ * Copyright 2013 Tomasz Konopka.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bamfo.tracks;
+
+import bamfo.utils.BamfoRecord;
+import bamfo.utils.BamfoSettings;
+import java.io.File;
+import java.io.IOException;
+import net.sf.samtools.SAMRecord;
+
+/**
+ * Tracks that summarize the mapping qualities of reads at each locus: the
+ * median, another quantile, or the fraction of reads below the minimum
+ * mapping quality. Positions without reads are set to -1.
+ *
+ * @author tkonopka
+ */
+class TracksMapQual extends TracksCompute {
+
+    // initial span of the window, grows if a read spans more positions
+    private final static int WINDOWSIZE = 1024;
+    private final int stat;
+    private final double param;
+
+    /**
+     *
+     * @param settings
+     * @param outdir
+     * @param binary
+     * @param tracktype
+     *
+     * one of TRACK_MEDMAPQUAL, TRACK_QUANTMAPQUAL, TRACK_LOWMAPQUAL
+     *
+     * @param quantile
+     *
+     * quantile computed for TRACK_QUANTMAPQUAL
+     *
+     */
+    public TracksMapQual(BamfoSettings settings, File outdir, boolean binary, int tracktype, double quantile) {
+        super(settings, outdir, binary);
+        if (tracktype == TRACK_LOWMAPQUAL) {
+            stat = MapQualWindow.STAT_FRACTIONBELOW;
+            param = settings.getMinmapqual();
+        } else {
+            stat = MapQualWindow.STAT_QUANTILE;
+            param = tracktype == TRACK_QUANTMAPQUAL ? quantile : 0.5;
+        }
+    }
+
+    @Override
+    double getDefaultValue() {
+        return -1;
+    }
+
+    @Override
+    boolean isInteger() {
+        return false;
+    }
+
+    @Override
+    int getMinMapQual() {
+        // do not ignore reads judging by their mapping quality
+        return 0;
+    }
+
+    @Override
+    ChromosomeTrack startChromosome(String nowRefName, int chromlen) throws IOException {
+        return new ChromosomeMapQual(openTrack(nowRefName, false), chromlen);
+    }
+
+    /**
+     * Mapping qualities on one chromosome. Histograms are held only over a
+     * window that slides with the reads.
+     */
+    private class ChromosomeMapQual extends ChromosomeTrack {
+
+        private final MapQualWindow qualinfo = new MapQualWindow(WINDOWSIZE);
+        private final TrackWriter writer;
+        private final int nowRefLen;
+
+        ChromosomeMapQual(TrackWriter writer, int chromlen) {
+            this.writer = writer;
+            this.nowRefLen = chromlen;
+        }
+
+        @Override
+        void add(SAMRecord record, BamfoRecord b2r) throws IOException {
+            // positions before the start of this read will not change anymore
+            int nowpos = record.getAlignmentStart();
+            if (nowpos < qualinfo.getStart()) {
+                throw new IOException("alignment is not sorted by coordinate: " + record.getReadName());
+            }
+            qualinfo.drain(writer, Math.min(nowpos, nowRefLen + 1), stat, param);
+
+            // add the contribution of this read
+            updateQualInfo(qualinfo, b2r, record);
+        }
+
+        @Override
+        void close() throws IOException {
+            qualinfo.drain(writer, nowRefLen + 1, stat, param);
+            writer.close();
+        }
+    }
+
+    private void updateQualInfo(MapQualWindow qualinfo, BamfoRecord b2r, SAMRecord record) {
+
+        // determine range of the read that is genotypeable
+        int imin, imax;
+        if (record.getReadNegativeStrandFlag()) {
+            imax = b2r.readlength - settings.getMinfromstart();
+            imin = settings.getMinfromend();
+        } else {
+            imax = b2r.readlength - settings.getMinfromend();
+            imin = settings.getMinfromstart();
+        }
+
+        int[] pos = b2r.pos;
+        for (int i = imin; i < imax; i++) {
+            if (pos[i] > 0) {
+                // save information about this base
+                qualinfo.add(pos[i], b2r.mapquality);
+            }
+        }
+    }
+}
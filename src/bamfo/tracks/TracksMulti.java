@@ -0,0 +1,274 @@
+/*
+ * Copyright 2012-2014 Tomasz Konopka.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bamfo.tracks;
+
+import bamfo.utils.BamfoCommon;
+import bamfo.utils.BamfoRecord;
+import bamfo.utils.BamfoSettings;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMRecordIterator;
+import net.sf.samtools.SAMSequenceDictionary;
+
+/**
+ * Computes several tracks in a single pass through an alignment. Each record
+ * is loaded into a BamfoRecord once and then passed to all the tracks.
+ *
+ * @author tkonopka
+ */
+class TracksMulti implements Runnable {
+
+    private final BamfoSettings settings;
+    private final File bamfile;
+    private final ArrayList<TracksCompute> tracks;
+    // with more than one thread, chromosomes are computed in parallel (requires indexed bam)
+    private final int threads;
+    // records below this mapping quality are not used by any track
+    private final int minmapqual;
+
+    public TracksMulti(BamfoSettings settings, File bamfile, ArrayList<TracksCompute> tracks, int threads) {
+        this.settings = settings;
+        this.bamfile = bamfile;
+        this.tracks = tracks;
+        this.threads = threads;
+        int temp = Integer.MAX_VALUE;
+        for (int i = 0; i < tracks.size(); i++) {
+            temp = Math.min(temp, tracks.get(i).getMinMapQual());
+        }
+        this.minmapqual = temp;
+    }
+
+    private void closeChromosome(TracksCompute.ChromosomeTrack[] chromtracks) throws IOException {
+        for (int i = 0; i < chromtracks.length; i++) {
+            chromtracks[i].close();
+        }
+    }
+
+    /**
+     * Computes tracks for all chromosomes that have records in an iterator,
+     * and writes one output file per chromosome and track.
+     *
+     * @param records
+     *
+     * records sorted by coordinate, from the whole alignment or from one
+     * chromosome
+     *
+     * @param samHeader
+     * @param chromoutput
+     *
+     * the function sets true the indexes of chromosomes that have been output
+     *
+     * @throws IOException
+     */
+    private void computeTracks(Iterator<SAMRecord> records, SAMFileHeader samHeader,
+            boolean[] chromoutput) throws IOException {
+
+        int numtracks = tracks.size();
+        TracksCompute.ChromosomeTrack[] chromtracks = new TracksCompute.ChromosomeTrack[numtracks];
+        int nowRef = -1;
+
+        // b2r will hold derived information on each record in turn
+        BamfoRecord b2r = new BamfoRecord(settings.isTrimBtail(), settings.isTrimpolyedge());
+
+        // read each record, for each chromosome
+        while (records.hasNext()) {
+            final SAMRecord samRecord = records.next();
+
+            int recordReference = samRecord.getReferenceIndex();
+
+            // check that the record is aligned and that is primary
+            // and non-duplicate
+            if (recordReference > -1 && !samRecord.getNotPrimaryAlignmentFlag()
+                    && !samRecord.getReadUnmappedFlag() && !samRecord.getDuplicateReadFlag()) {
+
+                // check if the record starts a new chromosome
+                // if so, save the tracks and process next chromosome
+                if (recordReference != nowRef) {
+                    if (nowRef != -1) {
+                        chromoutput[nowRef] = true;
+                        closeChromosome(chromtracks);
+                    }
+                    nowRef = recordReference;
+                    int chromlen = samHeader.getSequence(nowRef).getSequenceLength();
+                    for (int i = 0; i < numtracks; i++) {
+                        chromtracks[i] = tracks.get(i).startChromosome(samRecord.getReferenceName(), chromlen);
+                    }
+                }
+
+                if (samRecord.getMappingQuality() < minmapqual) {
+                    continue;
+                }
+
+                // compute all needed derived qualities of the read via BamfoRecord
+                b2r.load(samRecord);
+                for (int i = 0; i < numtracks; i++) {
+                    chromtracks[i].add(samRecord, b2r);
+                }
+            }
+        } // end of loop over records
+
+        // save the tracks on the last chromosome
+        if (nowRef != -1) {
+            chromoutput[nowRef] = true;
+            closeChromosome(chromtracks);
+        }
+    }
+
+    /**
+     * Computes the tracks for one chromosome using an indexed query. Each task
+     * takes a reader from a shared queue and returns it when done.
+     */
+    private class ChromosomeTask implements Callable<Boolean> {
+
+        private final ArrayBlockingQueue<SAMFileReader> readers;
+        private final SAMFileHeader samHeader;
+        private final String chrname;
+        private final boolean[] chromoutput;
+
+        public ChromosomeTask(ArrayBlockingQueue<SAMFileReader> readers, SAMFileHeader samHeader,
+                String chrname, boolean[] chromoutput) {
+            this.readers = readers;
+            this.samHeader = samHeader;
+            this.chrname = chrname;
+            this.chromoutput = chromoutput;
+        }
+
+        @Override
+        public Boolean call() throws Exception {
+            SAMFileReader reader = readers.take();
+            try {
+                SAMRecordIterator it = reader.query(chrname, 0, 0, false);
+                try {
+                    computeTracks(it, samHeader, chromoutput);
+                } finally {
+                    it.close();
+                }
+            } finally {
+                readers.put(reader);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Version of computeTracks that processes several chromosomes at once.
+     * Chromosomes are submitted longest first, so that the short ones fill in
+     * the gaps at the end.
+     *
+     * @param samHeader
+     * @param chromoutput
+     * @throws IOException
+     */
+    private void computeTracksThreaded(SAMFileHeader samHeader, boolean[] chromoutput) throws IOException {
+
+        // each thread will use one of these readers at a time
+        ArrayBlockingQueue<SAMFileReader> readers = new ArrayBlockingQueue<>(threads);
+        for (int i = 0; i < threads; i++) {
+            SAMFileReader reader = new SAMFileReader(bamfile);
+            BamfoCommon.updateValidationStringency(reader, settings.getValidate());
+            readers.add(reader);
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+
+        final SAMSequenceDictionary dictionary = samHeader.getSequenceDictionary();
+        ArrayList<Integer> order = new ArrayList<>(dictionary.size());
+        for (int i = 0; i < dictionary.size(); i++) {
+            order.add(i);
+        }
+        Collections.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                return Integer.compare(dictionary.getSequence(o2).getSequenceLength(),
+                        dictionary.getSequence(o1).getSequenceLength());
+            }
+        });
+
+        try {
+            ArrayList<Future<Boolean>> tasks = new ArrayList<>(order.size());
+            for (int i = 0; i < order.size(); i++) {
+                String chrname = dictionary.getSequence(order.get(i)).getSequenceName();
+                tasks.add(pool.submit(new ChromosomeTask(readers, samHeader, chrname, chromoutput)));
+            }
+            for (int i = 0; i < tasks.size(); i++) {
+                tasks.get(i).get();
+            }
+        } catch (InterruptedException ex) {
+            throw new IOException("computing interrupted");
+        } catch (ExecutionException ex) {
+            throw new IOException(ex.getCause());
+        } finally {
+            pool.shutdownNow();
+            for (SAMFileReader reader : readers) {
+                reader.close();
+            }
+        }
+    }
+
+    /**
+     * After the utility is initialized, it has to be "executed" by invoking
+     * this method. If initialization failed, this method does not do anything.
+     *
+     */
+    @Override
+    public void run() {
+        // start processing, open the SAM file and start computing
+        SAMFileReader inputSam = new SAMFileReader(bamfile);
+        BamfoCommon.updateValidationStringency(inputSam, settings.getValidate());
+        SAMFileHeader samHeader = inputSam.getFileHeader();
+
+        // find out all the chromosome names from the header        
+        boolean[] chromoutput = new boolean[samHeader.getSequenceDictionary().size()];
+
+        try {
+            if (threads > 1 && inputSam.hasIndex()) {
+                computeTracksThreaded(samHeader, chromoutput);
+            } else {
+                if (threads > 1) {
+                    System.out.println("Alignment is not indexed; computing with a single thread");
+                }
+                SAMRecordIterator it = inputSam.iterator();
+                computeTracks(it, samHeader, chromoutput);
+                it.close();
+            }
+
+            // at the end, check that all chromosomes have been output
+            for (int i = 0; i < tracks.size(); i++) {
+                tracks.get(i).saveNotPresentChromosomes(chromoutput, samHeader);
+            }
+        } catch (IOException ex) {
+            System.out.println("computing error");
+            Logger.getLogger(TracksMulti.class.getName()).log(Level.SEVERE, null, ex);
+        }
+
+        // close input SAM file
+        inputSam.close();
+    }
+}
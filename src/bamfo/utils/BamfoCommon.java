@@ -18,7 +18,6 @@ package bamfo.utils;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
-import jsequtils.sequence.FastaReader;
 import net.sf.samtools.Cigar;
 import net.sf.samtools.CigarElement;
 import net.sf.samtools.CigarOperator;
@@ -189,13 +188,21 @@ public class BamfoCommon {
      * an integer, the 1-based position of a suitable anchor for the indel
      *
      */
-    public static int getAnchorPosition(FastaReader genomereader, int indelstart, byte[] indel) {
+    public static int getAnchorPosition(ChromosomeSequence genomereader, int indelstart, byte[] indel) {
+        return getAnchorPosition(genomereader, indelstart, indel, 0, indel.length);
+    }
+
+    /**
+     * Version of getAnchorPosition that reads the indel sequence from a part
+     * of a larger array, indel[indeloffset, indeloffset+indellen).
+     */
+    public static int getAnchorPosition(ChromosomeSequence genomereader, int indelstart, byte[] indel,
+            int indeloffset, int indellen) {
 
         // by default, the anchor will be the indelstart;
         int anchor = indelstart;
 
         // start by looking at the last base in the indel
-        int indellen = indel.length;
         int inindel = indellen;
 
         boolean found = false;
@@ -204,7 +211,7 @@ public class BamfoCommon {
             if (inindel < 0) {
                 inindel = indellen - 1;
             }
-            byte indelbase = indel[inindel];
+            byte indelbase = indel[indeloffset + inindel];
             byte genomebase = genomereader.getBaseAtPositionBase1(anchor);
             if (genomebase != indelbase) {
                 found = true;
@@ -243,12 +250,20 @@ public class BamfoCommon {
      *
      */
     public static int getAnchorPosition(byte[] sequence, int indelstart, byte[] indel) {
+        return getAnchorPosition(sequence, indelstart, indel, 0, indel.length);
+    }
+
+    /**
+     * Version of getAnchorPosition that reads the indel sequence from a part
+     * of a larger array, indel[indeloffset, indeloffset+indellen).
+     */
+    public static int getAnchorPosition(byte[] sequence, int indelstart, byte[] indel,
+            int indeloffset, int indellen) {
 
         // by default, the anchor will be the indelstart;
         int anchor = indelstart;
 
         // start by looking at the last base in the indel
-        int indellen = indel.length;
         int inindel = indellen;
 
         boolean found = false;
@@ -257,7 +272,7 @@ public class BamfoCommon {
             if (inindel < 0) {
                 inindel = indellen - 1;
             }
-            byte indelbase = indel[inindel];
+            byte indelbase = indel[indeloffset + inindel];
             byte genomebase = sequence[anchor - 1];
             if (genomebase != indelbase) {
                 found = true;
@@ -41,12 +41,14 @@ public class BamfoDefaults implements Runnable {
     final static boolean DEFAULT_TRIMPOLYEDGE = true;
     final static boolean DEFAULT_TRIMBTAIL = true;
     final static boolean DEFAULT_NREF = false;
+    final static int DEFAULT_MAXDEPTH = 0;
+    final static int DEFAULT_SEED = 0;
     final static String DEFAULT_GENOME = "NA";
     final static String DEFAULT_VALIDATE = "STRICT";
     // make sure to create a genotypesettings object with all options
     final static String[] settingtypes = {"minbasequal", "minmapqual",
         "minscore", "minallelic", "mindepth", "minfromstart", "minfromend",
-        "strandbias", "trim", "trimQB", "NRef", "genome", "validate"};
+        "strandbias", "trim", "trimQB", "NRef", "maxdepth", "seed", "genome", "validate"};
     private BamfoSettings genotypesettings = new BamfoSettings(settingtypes);
     private Preferences prefs = getPreferences();
     // some options obtained from the command line
@@ -138,6 +140,8 @@ public class BamfoDefaults implements Runnable {
         prefs.putInt("minfromstart", DEFAULT_MINFROMSTART);
         prefs.putInt("minfromend", DEFAULT_MINFROMEND);
         prefs.putInt("minmapqual", DEFAULT_MINMAPQUAL);
+        prefs.putInt("maxdepth", DEFAULT_MAXDEPTH);
+        prefs.putInt("seed", DEFAULT_SEED);
 
         // defaults for other parameters
         prefs.put("genome", DEFAULT_GENOME);
@@ -182,6 +186,12 @@ public class BamfoDefaults implements Runnable {
         if (genotypesettings.isNRef() != prefs.getBoolean("NRef", DEFAULT_NREF)) {
             prefs.putBoolean("NRef", genotypesettings.isNRef());
         }
+        if (genotypesettings.getMaxdepth() != prefs.getInt("maxdepth", DEFAULT_MAXDEPTH)) {
+            prefs.putInt("maxdepth", genotypesettings.getMaxdepth());
+        }
+        if (genotypesettings.getSeed() != prefs.getInt("seed", DEFAULT_SEED)) {
+            prefs.putInt("seed", genotypesettings.getSeed());
+        }
         if (!genotypesettings.getValidate().equalsIgnoreCase(prefs.get("validate", DEFAULT_VALIDATE))) {
             prefs.put("validate", genotypesettings.getValidate());
         }
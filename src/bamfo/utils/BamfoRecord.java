@@ -15,7 +15,8 @@
  */
 package bamfo.utils;
 
-import java.util.ArrayList;
+import java.util.List;
+import net.sf.samtools.BAMRecord;
 import net.sf.samtools.CigarElement;
 import net.sf.samtools.CigarOperator;
 import net.sf.samtools.SAMRecord;
@@ -27,23 +28,40 @@ import net.sf.samtools.SAMRecord;
  * For example, the wrapper creates an array pos, which holds the position of each base on the chromosome
  * The positions are computed from the read start position and the cigar.
  * 
+ * One object can be reused for many records (see load()). The arrays are then
+ * kept between records and are only reallocated when a longer read is
+ * encountered. Thus, the arrays can be longer than the read; only the first
+ * readlength items are meaningful. For records from bam files, the bases,
+ * qualities, and cigar are decoded directly from the binary record.
+ * 
  * @author tkonopka
  */
 public class BamfoRecord {
     // a reference to the orginal record
-    public final SAMRecord record;
+    public SAMRecord record;
     // some derived data from the record
-    public final String recordname;
-    public final byte[] qualities;
-    public final byte[] bases;
-    public final int maxN;
-    public final int[] pos;
-    public final ArrayList<CigarElement> cigarelements;
-    public final int readlength;
-    public final int startpos;
-    public final int overlapstart;
-    public final int mapquality;
-    public final boolean readhasindel;
+    public byte[] qualities;
+    public byte[] bases;
+    public int maxN;
+    public int[] pos;
+    // cigar of the record as two arrays, with numcigar elements
+    public CigarOperator[] cigarops;
+    public int[] cigarlengths;
+    public int numcigar;
+    public int readlength;
+    public int startpos;
+    public int overlapstart;
+    // true if the read is paired and its mate starts at or before this read
+    public boolean aftermate;
+    public int mapquality;
+    public boolean readhasindel;
+    public boolean minusstrand;
+    // these are computed only when needed
+    private String recordname;
+    private long templateid;
+    private boolean templateidValid;
+    private int NMtag;
+    private boolean NMtagValid;
     
     // the booleans are not technically derived, they are saved from the constructor
     final boolean trimBtail;
@@ -52,68 +70,245 @@ public class BamfoRecord {
     // some internally used items
     public final static int posIns = -2;
     public final static int posClip = -1;
+    private final static byte[] compressedBases = "=ACMGRSVTWYHKDBN".getBytes();
+    
+    /**
+     * Create an empty object. Use load() to fill it with data from a record.
+     * 
+     * @param trimBtail
+     * @param trimPolyedge 
+     */
+    public BamfoRecord(boolean trimBtail, boolean trimPolyedge) {
+        this.trimBtail = trimBtail;
+        this.trimPolyedge = trimPolyedge;
+        allocate(256, 16);
+    }
     
     public BamfoRecord(SAMRecord record, boolean trimBtail, boolean trimPolyedge) {
+        this.trimBtail = trimBtail;
+        this.trimPolyedge = trimPolyedge;
+        allocate(record.getReadLength(), 8);
+        load(record);
+    }
+    
+    private void allocate(int maxreadlength, int maxcigar) {
+        qualities = new byte[maxreadlength];
+        bases = new byte[maxreadlength];
+        pos = new int[maxreadlength];
+        cigarops = new CigarOperator[maxcigar];
+        cigarlengths = new int[maxcigar];
+    }
+    
+    /**
+     * Fill this object with data from a new record. 
+     * 
+     * @param record 
+     */
+    public void load(SAMRecord record) {
         // copy a reference to the read
         this.record = record;
-        
+        this.recordname = null;
+        this.templateidValid = false;
+        this.NMtagValid = false;
+
         // extract information about the read and store them in separate variables
-        this.cigarelements = new ArrayList(record.getCigar().getCigarElements());
         this.readlength = record.getReadLength();
+        if (readlength > bases.length) {
+            int newlength = Math.max(readlength, 2 * bases.length);
+            qualities = new byte[newlength];
+            bases = new byte[newlength];
+            pos = new int[newlength];
+        }
+        
+        byte[] binary = null;
+        if (record instanceof BAMRecord) {
+            binary = ((BAMRecord) record).getVariableBinaryRepresentation();
+        }
+        if (binary != null) {
+            decodeBinary((BAMRecord) record, binary);
+        } else {
+            decodeRecord(record);
+        }
+        
         this.startpos = record.getAlignmentStart();        
-        this.pos = getBasePositions(cigarelements, startpos, readlength);
-        this.maxN = getMaxIntron(cigarelements);
-        this.bases = record.getReadBases();
-        this.qualities = getFullQualities(record);
-        this.recordname = record.getReadName();
-        this.readhasindel = containsIndel(cigarelements);
-        this.overlapstart = getOverlapStart(record);
+        fillBasePositions();
+        this.maxN = getMaxIntron();
+        this.readhasindel = containsIndel();
+        this.overlapstart = getOverlapStart(record, getAlignmentEnd());
+        this.aftermate = record.getReadPairedFlag()
+                && record.getMateReferenceIndex() == record.getReferenceIndex()
+                && record.getMateAlignmentStart() <= startpos;
         this.mapquality = record.getMappingQuality();
-        
-        // save the booleans
-        this.trimBtail = trimBtail;
-        this.trimPolyedge = trimPolyedge;
+        this.minusstrand = record.getReadNegativeStrandFlag();
                 
         // modify the derived data according to the booleans
         if (trimBtail) {
-            trimBNtails(bases, qualities, pos);
+            trimBNtails(bases, qualities, pos, readlength);
         }
         if (trimPolyedge) {
-            trimPolyPatternOnEdges(bases, pos);
+            trimPolyPatternOnEdges(bases, pos, readlength);
         }
     }
     
     /**
-     * Given a record, return an array specifying the position of each base.
-     * This is trivial when the cigar is XXM, but is complicated when there are
-     * insertions, deletions, splices, etc.
+     * Extract cigar, bases, and qualities from the variable part of a bam
+     * record (read name, cigar, bases, qualities, attributes).
      *
+     * @param record
+     * @param binary
+     */
+    private void decodeBinary(BAMRecord record, byte[] binary) {
+
+        // skip over the read name
+        int offset = record.getReadNameLength() + 1;
+
+        // cigar is stored as 32-bit integers (little endian) with length and operator
+        ensureCigarCapacity(record.getCigarLength());
+        numcigar = record.getCigarLength();
+        for (int i = 0; i < numcigar; i++) {
+            int cigarint = (binary[offset] & 0xff) | ((binary[offset + 1] & 0xff) << 8)
+                    | ((binary[offset + 2] & 0xff) << 16) | ((binary[offset + 3] & 0xff) << 24);
+            cigarops[i] = CigarOperator.binaryToEnum(cigarint & 0xf);
+            cigarlengths[i] = cigarint >>> 4;
+            offset += 4;
+        }
+
+        // bases are stored two per byte
+        for (int i = 0; i < readlength; i++) {
+            int twobases = binary[offset + (i / 2)];
+            if (i % 2 == 0) {
+                bases[i] = compressedBases[(twobases >> 4) & 0xf];
+            } else {
+                bases[i] = compressedBases[twobases & 0xf];
+            }
+        }
+        offset += (readlength + 1) / 2;
+
+        // qualities are stored as phred scores. Convert to ascii phred+33 characters.
+        // missing qualities are stored as 0xff (these are converted into zeros)
+        if (readlength > 0 && binary[offset] == (byte) 0xff) {
+            for (int i = 0; i < readlength; i++) {
+                qualities[i] = 0;
+            }
+        } else {
+            for (int i = 0; i < readlength; i++) {
+                qualities[i] = (byte) (binary[offset + i] + 33);
+            }
+        }
+    }
+
+    /**
+     * Extract cigar, bases and qualities using the SAMRecord interface. (Used
+     * for records that are not from bam files.)
      *
      * @param record
-     * @return
+     */
+    private void decodeRecord(SAMRecord record) {
+        List<CigarElement> cigarelements = record.getCigar().getCigarElements();
+        ensureCigarCapacity(cigarelements.size());
+        numcigar = cigarelements.size();
+        for (int i = 0; i < numcigar; i++) {
+            CigarElement ce = cigarelements.get(i);
+            cigarops[i] = ce.getOperator();
+            cigarlengths[i] = ce.getLength();
+        }
+        System.arraycopy(record.getReadBases(), 0, bases, 0, readlength);
+        byte[] qual = record.getBaseQualities();
+        if (qual.length != readlength) {
+            for (int i = 0; i < readlength; i++) {
+                qualities[i] = 0;
+            }
+        } else {
+            for (int i = 0; i < readlength; i++) {
+                qualities[i] = (byte) (qual[i] + 33);
+            }
+        }
+    }
+
+    private void ensureCigarCapacity(int size) {
+        if (size > cigarops.length) {
+            int newsize = Math.max(size, 2 * cigarops.length);
+            cigarops = new CigarOperator[newsize];
+            cigarlengths = new int[newsize];
+        }
+    }
+
+    /**
+     * 
+     * @return 
+     * 
+     * name of the read (decoded from the record only when needed)
+     * 
+     */
+    public String getRecordName() {
+        if (recordname == null) {
+            recordname = record.getReadName();
+        }
+        return recordname;
+    }
+    
+    /**
+     * 
+     * @return 
+     * 
+     * a 64-bit hash that is the same for both mates of a pair. It combines 
+     * the read name with the chromosome and the positions of the two mates. 
+     * For bam records, the name is hashed from the binary record without
+     * creating a String.
+     * 
+     */
+    public long getTemplateId() {
+        if (!templateidValid) {
+            long h = 0xcbf29ce484222325L;
+            byte[] binary = null;
+            if (record instanceof BAMRecord) {
+                binary = ((BAMRecord) record).getVariableBinaryRepresentation();
+            }
+            if (binary != null) {
+                int namelength = ((BAMRecord) record).getReadNameLength();
+                for (int i = 0; i < namelength; i++) {
+                    h = (h ^ binary[i]) * 0x100000001b3L;
+                }
+            } else {
+                String name = getRecordName();
+                for (int i = 0; i < name.length(); i++) {
+                    h = (h ^ name.charAt(i)) * 0x100000001b3L;
+                }
+            }
+            int matestart = record.getMateAlignmentStart();
+            h = (h ^ record.getReferenceIndex()) * 0x100000001b3L;
+            h = (h ^ Math.min(startpos, matestart)) * 0x100000001b3L;
+            h = (h ^ Math.max(startpos, matestart)) * 0x100000001b3L;
+            templateid = h;
+            templateidValid = true;
+        }
+        return templateid;
+    }
+    
+    /**
+     * Fill the array pos with the position of each base.
+     * This is trivial when the cigar is XXM, but is complicated when there are
+     * insertions, deletions, splices, etc.
      *
-     * The returned positions are 1-based. Negative positions indicate special
+     * The positions are 1-based. Negative positions indicate special
      * features.
      *
      * -1 --> soft clip -2 --> insertion
      *
      */
-    private static int[] getBasePositions(ArrayList<CigarElement> cigarelements, int startpos, int readlength) {
-
-        int[] positions = new int[readlength];
+    private void fillBasePositions() {
 
         int nowpos = startpos;
         int nowindex = 0;
 
-        for (int i = 0; i < cigarelements.size(); i++) {
+        for (int i = 0; i < numcigar; i++) {
             
-            CigarElement ce = cigarelements.get(i);
-            int celen = ce.getLength();
+            int celen = cigarlengths[i];
 
-            switch (ce.getOperator()) {
+            switch (cigarops[i]) {
                 case M:
                     for (int k = 0; k < celen; k++) {
-                        positions[nowindex] = nowpos;
+                        pos[nowindex] = nowpos;
                         nowpos++;
                         nowindex++;
                     }
@@ -126,13 +321,13 @@ public class BamfoRecord {
                     break;
                 case S:
                     for (int j = 0; j < celen; j++) {
-                        positions[nowindex] = posClip;
+                        pos[nowindex] = posClip;
                         nowindex++;
                     }
                     break;
                 case I:
                     for (int j = 0; j < celen; j++) {
-                        positions[nowindex] = posIns;
+                        pos[nowindex] = posIns;
                         nowindex++;
                     }
                     break;
@@ -140,11 +335,13 @@ public class BamfoRecord {
                     break;
             }            
         }
-
-        return positions;
+        
+        // positions not covered by the cigar are left as zero
+        for (int i = nowindex; i < readlength; i++) {
+            pos[i] = 0;
+        }
     }
 
-    
     /**
      * qualities in a SAM record can be a full string or a '*' In the latter
      * case, this function returns an array of length equal to the record
@@ -161,65 +358,80 @@ public class BamfoRecord {
         return qual;
     }
     
-    
     /**
      * for a record with a cigar, get the maximal number before the code 'N' for
      * intron
      *
-     * @param record
      * @return
      */
-    private static int getMaxIntron(ArrayList<CigarElement> cigarelements) {
+    private int getMaxIntron() {
 
-        int maxN = 0;
+        int maxintron = 0;
 
         // look at each cigar element
-        for (int i = 0; i < cigarelements.size(); i++) {
-            CigarElement ce = cigarelements.get(i);
-
-            if (ce.getOperator() == CigarOperator.N) {
-                int herelen = ce.getLength();
-                if (herelen > maxN) {
-                    maxN = herelen;
+        for (int i = 0; i < numcigar; i++) {
+            if (cigarops[i] == CigarOperator.N) {
+                int herelen = cigarlengths[i];
+                if (herelen > maxintron) {
+                    maxintron = herelen;
                 }
             }
         }
 
-        return maxN;
+        return maxintron;
     }
 
     /**
      *
-     * @param recordcigar
      * @return
      *
      * true if the record contains an insertion or a deletion
      */
-    private static boolean containsIndel(ArrayList<CigarElement> cigarelements) {
-        for (int i = 0; i < cigarelements.size(); i++) {
-            CigarElement ce = cigarelements.get(i);
-            if (ce.getOperator() == CigarOperator.D || ce.getOperator() == CigarOperator.I) {
+    private boolean containsIndel() {
+        for (int i = 0; i < numcigar; i++) {
+            if (cigarops[i] == CigarOperator.D || cigarops[i] == CigarOperator.I) {
                 return true;
             }
         }
         return false;
     }
 
+    /**
+     * 
+     * @return 
+     * 
+     * the last aligned position of the read (same as SAMRecord.getAlignmentEnd, 
+     * but computed without decoding the cigar into objects)
+     * 
+     */
+    public int getAlignmentEnd() {
+        if (record.getReadUnmappedFlag()) {
+            return 0;
+        }
+        int reflength = 0;
+        for (int i = 0; i < numcigar; i++) {
+            if (cigarops[i].consumesReferenceBases()) {
+                reflength += cigarlengths[i];
+            }
+        }
+        return startpos + reflength - 1;
+    }
+    
     /**
      * gives the position of the first base where paired-end reads overlap.
      *
      * @param record
+     * @param readend
      * @return
      *
      * position of first overlap. If there is no overlap, Integer.MAX_Value
      *
      */
-    private static int getOverlapStart(SAMRecord record) {
+    private static int getOverlapStart(SAMRecord record, int readend) {
 
         // the logic applies only to paired reads found on the same chromosome
         if (record.getReadPairedFlag() && record.getMateReferenceIndex() == record.getReferenceIndex()) {
             int startpos = record.getAlignmentStart();
-            int readend = record.getAlignmentEnd();
             int matestart = record.getMateAlignmentStart();
             if (matestart >= startpos && matestart < readend) {
                 // there is overlap, and it starts at the where the mate begins
@@ -239,9 +451,9 @@ public class BamfoRecord {
      *
      * @param qualities
      * @param pos
+     * @param readlength
      */
-    private static void trimBNtails(byte[] bases, byte[] qualities, int[] pos) {
-        int readlength = qualities.length;
+    private static void trimBNtails(byte[] bases, byte[] qualities, int[] pos, int readlength) {
         if (readlength < 2) {
             return;
         }
@@ -276,9 +488,8 @@ public class BamfoRecord {
      *
      *
      */
-    private static void trimPolyPatternOnEdges(byte[] bases, int[] pos) {
+    private static void trimPolyPatternOnEdges(byte[] bases, int[] pos, int readlength) {
 
-        int readlength = bases.length;
         if (readlength < 2) {
             return;
         }
@@ -315,13 +526,17 @@ public class BamfoRecord {
      * the value associated with the NM tag (number of mismatches to reference genome)
      * 
      */
-    public int getNMtag() {        
-        Object NMtag = record.getAttribute("NM");
-        if (NMtag==null) {
-            return 0;
-        } else {
-            return (Integer) NMtag;
-        }        
+    public int getNMtag() {
+        if (!NMtagValid) {
+            Object tag = record.getAttribute("NM");
+            if (tag == null) {
+                NMtag = 0;
+            } else {
+                NMtag = ((Number) tag).intValue();
+            }
+            NMtagValid = true;
+        }
+        return NMtag;
     }
     
 }
@@ -42,6 +42,10 @@ public class BamfoSettings {
     private boolean trimBtail = false;
     // NRef - if true N's in alignment are treated as reference bases
     private boolean NRef = false;
+    // maxdepth - cap on the number of reads stored per locus (0 for no cap)
+    // seed - seed for choosing the reads that are stored at capped loci
+    private int maxdepth = 0;
+    private int seed = 0;
     private String validate = "STRICT";
     // other options for general use.
     // the default reference genome can be set here
@@ -67,6 +71,8 @@ public class BamfoSettings {
         this.trimpolyedge = s.trimpolyedge;
         this.trimBtail = s.trimBtail;
         this.NRef = s.NRef;
+        this.maxdepth = s.maxdepth;
+        this.seed = s.seed;
         this.genome = s.genome;
         this.validate = s.validate;
         this.settingtypes = new String[s.settingtypes.length];
@@ -117,6 +123,14 @@ public class BamfoSettings {
         return NRef;
     }
 
+    public int getMaxdepth() {
+        return maxdepth;
+    }
+
+    public int getSeed() {
+        return seed;
+    }
+
     public String getGenome() {
         return genome;
     }
@@ -169,6 +183,14 @@ public class BamfoSettings {
         this.trimBtail = trimBtail;
     }
 
+    public void setMaxdepth(int maxdepth) {
+        this.maxdepth = maxdepth;
+    }
+
+    public void setSeed(int seed) {
+        this.seed = seed;
+    }
+
     public void setGenome(String genome) {
         this.genome = genome;
     }
@@ -185,7 +207,7 @@ public class BamfoSettings {
     public BamfoSettings() {
         this(new String[]{"minscore", "minallelic", "mindepth",
                     "minfromstart", "minfromend", "minmapqual", "minbasequal",
-                    "strandbias", "trim", "trimQB", "NRef", "genome", "validate"});
+                    "strandbias", "trim", "trimQB", "NRef", "maxdepth", "seed", "genome", "validate"});
     }
 
     /**
@@ -236,6 +258,12 @@ public class BamfoSettings {
         if (this.has("NRef")) {
             NRef = prefs.getBoolean("NRef", BamfoDefaults.DEFAULT_NREF);
         }
+        if (this.has("maxdepth")) {
+            maxdepth = prefs.getInt("maxdepth", BamfoDefaults.DEFAULT_MAXDEPTH);
+        }
+        if (this.has("seed")) {
+            seed = prefs.getInt("seed", BamfoDefaults.DEFAULT_SEED);
+        }
         if (this.has("genome")) {
             genome = prefs.get("genome", BamfoDefaults.DEFAULT_GENOME);
         }
@@ -302,6 +330,12 @@ public class BamfoSettings {
         if (this.has("NRef")) {
             op.accepts("NRef").withRequiredArg().ofType(Boolean.class);
         }
+        if (this.has("maxdepth")) {
+            op.accepts("maxdepth").withRequiredArg().ofType(Integer.class);
+        }
+        if (this.has("seed")) {
+            op.accepts("seed").withRequiredArg().ofType(Integer.class);
+        }
         if (this.has("genome")) {
             op.accepts("genome").withRequiredArg().ofType(String.class);
         }
@@ -335,6 +369,10 @@ public class BamfoSettings {
         sb.append("##bamformatics.trim=").append(trimpolyedge).append("\n");
         sb.append("##bamformatics.trimQB=").append(trimBtail).append("\n");
         sb.append("##bamformatics.NRef=").append(NRef).append("\n");
+        if (maxdepth > 0) {
+            sb.append("##bamformatics.maxdepth=").append(maxdepth).append("\n");
+            sb.append("##bamformatics.seed=").append(seed).append("\n");
+        }
         sb.append("##bamformatics.validate=").append(validate).append("\n");
         if (genome == null) {
             sb.append("##bamformatics.genome=").append("NA").append("\n");
@@ -454,6 +492,27 @@ public class BamfoSettings {
             }
         }
 
+        if (os.has("maxdepth")) {
+            try {
+                maxdepth = (Integer) os.valueOf("maxdepth");
+            } catch (Exception ex) {
+                System.out.println("Error parsing parameter maxdepth: " + ex.getMessage());
+                return false;
+            }
+            if (maxdepth < 0) {
+                System.out.println("Error: maxdepth must be non-negative");
+                return false;
+            }
+        }
+        if (os.has("seed")) {
+            try {
+                seed = (Integer) os.valueOf("seed");
+            } catch (Exception ex) {
+                System.out.println("Error parsing parameter seed: " + ex.getMessage());
+                return false;
+            }
+        }
+
         if (os.has("genome")) {
             try {
                 genome = (String) os.valueOf("genome");
@@ -489,6 +548,9 @@ public class BamfoSettings {
         if (this.has("genome")) {
             sb.append("  --genome <String>        - reference genome\n");
         }
+        if (this.has("maxdepth")) {
+            sb.append("  --maxdepth <int>         - maximum number of reads stored per locus (0 for no limit)\n");
+        }
         if (this.has("minallelic")) {
             sb.append("  --minallelic <double>    - minimum allelic proportion for variant\n");
         }
@@ -513,6 +575,9 @@ public class BamfoSettings {
         if (this.has("NRef")) {
             sb.append("  --NRef <boolean>         - count Ns in read sequence as reference bases\n");
         }
+        if (this.has("seed")) {
+            sb.append("  --seed <int>             - seed for choosing reads at loci above maxdepth\n");
+        }
         if (this.has("strandbias")) {
             sb.append("  --strandbias <double>    - minimum strand bias probability (fisher test)\n");
         }
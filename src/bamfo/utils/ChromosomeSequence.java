@@ -0,0 +1,141 @@
+/*
+ * Copyright 2012-2014 Tomasz Konopka.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bamfo.utils;
+
+import java.nio.MappedByteBuffer;
+
+/**
+ * Sequence of one chromosome, backed by a memory-mapped region of a fasta
+ * file. Lookup methods follow the conventions of jsequtils FastaReader, i.e.
+ * bases are reported in upper case.
+ *
+ * Objects are created by IndexedFastaReader. They only use absolute reads on
+ * the underlying buffer, so they can be used by several threads at once.
+ *
+ * @author tkonopka
+ */
+public class ChromosomeSequence {
+
+    private final String name;
+    private final int length;
+    private final MappedByteBuffer region;
+    private final int linebases, linewidth;
+
+    ChromosomeSequence(String name, int length, MappedByteBuffer region, int linebases, int linewidth) {
+        this.name = name;
+        this.length = length;
+        this.region = region;
+        this.linebases = linebases;
+        this.linewidth = linewidth;
+    }
+
+    public String getChromosomeName() {
+        return name;
+    }
+
+    public int getChromosomeLength() {
+        return length;
+    }
+
+    /**
+     *
+     * @param position
+     *
+     * 0-based position on the chromosome
+     *
+     * @return
+     *
+     * the base at the position, in upper case
+     */
+    public byte getBaseAtPositionBase0(int position) {
+        byte base = region.get((position / linebases) * linewidth + (position % linebases));
+        if (base >= 'a' && base <= 'z') {
+            base -= 32;
+        }
+        return base;
+    }
+
+    /**
+     *
+     * @param position
+     *
+     * 1-based position on the chromosome
+     *
+     * @return
+     */
+    public byte getBaseAtPositionBase1(int position) {
+        return getBaseAtPositionBase0(position - 1);
+    }
+
+    /**
+     *
+     * @param start
+     *
+     * 0-based position, included
+     *
+     * @param end
+     *
+     * 0-based position, not included
+     *
+     * @return
+     */
+    public byte[] getSequenceBase0(int start, int end) {
+        byte[] ans = new byte[end - start];
+        for (int i = start; i < end; i++) {
+            ans[i - start] = getBaseAtPositionBase0(i);
+        }
+        return ans;
+    }
+
+    /**
+     *
+     * @param start
+     *
+     * 1-based position, included
+     *
+     * @param end
+     *
+     * 1-based position, included
+     *
+     * @return
+     */
+    public byte[] getSequenceBase1(int start, int end) {
+        return getSequenceBase0(start - 1, end);
+    }
+
+    /**
+     * Copies a part of the chromosome into an existing array (avoids
+     * allocating a new array for each query).
+     *
+     * @param start
+     *
+     * 1-based position, included
+     *
+     * @param end
+     *
+     * 1-based position, included
+     *
+     * @param target
+     *
+     * array that receives the sequence, starting at index 0. It must be
+     * long enough.
+     */
+    public void getSequenceBase1(int start, int end, byte[] target) {
+        for (int i = start; i <= end; i++) {
+            target[i - start] = getBaseAtPositionBase1(i);
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2012-2014 Tomasz Konopka.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bamfo.utils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Random-access reader of a fasta file with a samtools-style .fai index. The
+ * sequence of each chromosome is memory-mapped, so lookups do not require
+ * parsing or copying the genome into the heap. Chromosomes can be requested
+ * in any order.
+ *
+ * One reader can be shared by several threads.
+ *
+ * @author tkonopka
+ */
+public class IndexedFastaReader {
+
+    private final File fasta;
+    private final HashMap<String, ChromosomeSequence> chromosomes = new HashMap<>(256);
+    private final ArrayList<String> chrnames = new ArrayList<>(256);
+
+    /**
+     *
+     * @param fasta
+     *
+     * an uncompressed fasta file. The index file should be available next to
+     * the fasta file, with extension .fai
+     *
+     * @throws IOException
+     */
+    public IndexedFastaReader(File fasta) throws IOException {
+        this.fasta = fasta;
+        File fastaindex = new File(fasta.getAbsolutePath() + ".fai");
+        if (!fastaindex.canRead()) {
+            throw new IOException("cannot read genome index file " + fastaindex.getName());
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(fasta, "r");
+        BufferedReader br = new BufferedReader(new FileReader(fastaindex));
+        try {
+            FileChannel channel = raf.getChannel();
+            long filesize = channel.size();
+            String s;
+            while ((s = br.readLine()) != null) {
+                if (s.isEmpty()) {
+                    continue;
+                }
+                String[] tokens = s.split("\t");
+                if (tokens.length < 5) {
+                    throw new IOException("malformed genome index line: " + s);
+                }
+                String chrname = tokens[0];
+                int chrlen = Integer.parseInt(tokens[1]);
+                long offset = Long.parseLong(tokens[2]);
+                int linebases = Integer.parseInt(tokens[3]);
+                int linewidth = Integer.parseInt(tokens[4]);
+
+                // size of the sequence region of the chromosome, including end-of-line characters
+                long regionsize = 0;
+                if (chrlen > 0) {
+                    regionsize = ((long) (chrlen - 1) / linebases) * linewidth + ((chrlen - 1) % linebases) + 1;
+                }
+                if (offset + regionsize > filesize) {
+                    throw new IOException("genome index does not match fasta file at chromosome " + chrname);
+                }
+                MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, offset, regionsize);
+                chromosomes.put(chrname, new ChromosomeSequence(chrname, chrlen, region, linebases, linewidth));
+                chrnames.add(chrname);
+            }
+        } finally {
+            br.close();
+            // mappings remain valid after the file is closed
+            raf.close();
+        }
+    }
+
+    /**
+     *
+     * @return
+     *
+     * the fasta file underlying this reader
+     */
+    public File getFile() {
+        return fasta;
+    }
+
+    /**
+     *
+     * @return
+     *
+     * names of the chromosomes in the order they appear in the index
+     */
+    public ArrayList<String> getChromosomeNames() {
+        return chrnames;
+    }
+
+    public boolean hasChromosome(String chrname) {
+        return chromosomes.containsKey(chrname);
+    }
+
+    /**
+     *
+     * @param chrname
+     * @return
+     *
+     * an object giving access to the sequence of one chromosome, or null if
+     * the chromosome is not present in the index
+     */
+    public ChromosomeSequence getChromosome(String chrname) {
+        return chromosomes.get(chrname);
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2012-2014 Tomasz Konopka.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bamfo.utils;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMRecordIterator;
+
+/**
+ * Iterates over records from several coordinate-sorted alignments as if they
+ * were one alignment. Records are ordered by reference index and alignment
+ * start. After each call to next(), getSource() gives the index of the
+ * alignment that provided the record.
+ *
+ * The alignments should share a sequence dictionary.
+ *
+ * @author tkonopka
+ */
+public class MergedSAMRecordIterator implements Iterator<SAMRecord> {
+
+    private final List<SAMRecordIterator> iterators;
+    private final PriorityQueue<SourcedRecord> queue;
+    private int source = -1;
+
+    /**
+     * holds a record together with the index of the alignment it came from
+     */
+    private static class SourcedRecord {
+
+        final SAMRecord record;
+        final int source;
+
+        public SourcedRecord(SAMRecord record, int source) {
+            this.record = record;
+            this.source = source;
+        }
+    }
+
+    /**
+     * Orders records by reference index, then by alignment start. Unmapped
+     * records (reference index -1) appear at the end. Ties are broken by the
+     * alignment index so that the merge is deterministic.
+     */
+    private static class SourcedRecordComparator implements Comparator<SourcedRecord> {
+
+        @Override
+        public int compare(SourcedRecord o1, SourcedRecord o2) {
+            int ref1 = o1.record.getReferenceIndex();
+            int ref2 = o2.record.getReferenceIndex();
+            if (ref1 != ref2) {
+                if (ref1 < 0) {
+                    return 1;
+                }
+                if (ref2 < 0) {
+                    return -1;
+                }
+                return ref1 < ref2 ? -1 : 1;
+            }
+            int start1 = o1.record.getAlignmentStart();
+            int start2 = o2.record.getAlignmentStart();
+            if (start1 != start2) {
+                return start1 < start2 ? -1 : 1;
+            }
+            return o1.source < o2.source ? -1 : (o1.source > o2.source ? 1 : 0);
+        }
+    }
+
+    /**
+     *
+     * @param readers
+     *
+     * initialized readers of coordinate-sorted alignments. The iterators of
+     * these readers are used (and not closed) by this object.
+     *
+     */
+    public MergedSAMRecordIterator(SAMFileReader[] readers) {
+        iterators = new ArrayList<>(readers.length);
+        queue = new PriorityQueue<>(Math.max(1, readers.length), new SourcedRecordComparator());
+        for (int i = 0; i < readers.length; i++) {
+            iterators.add(readers[i].iterator());
+            advance(i);
+        }
+    }
+
+    /**
+     * moves the record from one alignment into the queue
+     *
+     * @param i
+     */
+    private void advance(int i) {
+        SAMRecordIterator it = iterators.get(i);
+        if (it.hasNext()) {
+            queue.add(new SourcedRecord(it.next(), i));
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        return !queue.isEmpty();
+    }
+
+    @Override
+    public SAMRecord next() {
+        SourcedRecord sr = queue.poll();
+        source = sr.source;
+        advance(source);
+        return sr.record;
+    }
+
+    /**
+     *
+     * @return
+     *
+     * index of the alignment that provided the last record returned by next()
+     */
+    public int getSource() {
+        return source;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException("Not supported.");
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright 2012-2014 Tomasz Konopka.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bamfo.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import net.sf.samtools.util.BinaryCodec;
+import net.sf.samtools.util.BlockCompressedOutputStream;
+
+/**
+ * Collects the locations of records in a bgzf-compressed vcf file and writes
+ * a tabix (.tbi) index for that file. Records must be added in the order in
+ * which they appear in the file, i.e. sorted by position within each
+ * chromosome.
+ *
+ * @author tkonopka
+ */
+public class TabixIndexBuilder {
+
+    // linear index uses windows of 2^14 bases, as in tabix
+    private static final int LINEARSHIFT = 14;
+    private final ArrayList<String> names = new ArrayList<>(64);
+    private final ArrayList<ReferenceIndex> references = new ArrayList<>(64);
+    private ReferenceIndex nowref = null;
+
+    /**
+     * Bins and linear index for one chromosome.
+     */
+    private static class ReferenceIndex {
+
+        final TreeMap<Integer, ChunkList> bins = new TreeMap<>();
+        long[] linear = new long[64];
+        int numlinear = 0;
+
+        void add(int beg, int end, long vstart, long vend) {
+            int bin = reg2bin(beg, end);
+            ChunkList chunks = bins.get(bin);
+            if (chunks == null) {
+                chunks = new ChunkList();
+                bins.put(bin, chunks);
+            }
+            chunks.add(vstart, vend);
+
+            // the linear index records the first record overlapping each window
+            int lastwindow = (end - 1) >> LINEARSHIFT;
+            if (lastwindow >= linear.length) {
+                linear = Arrays.copyOf(linear, Math.max(2 * linear.length, lastwindow + 1));
+            }
+            for (int w = beg >> LINEARSHIFT; w <= lastwindow; w++) {
+                if (linear[w] == 0) {
+                    linear[w] = vstart;
+                }
+            }
+            numlinear = Math.max(numlinear, lastwindow + 1);
+        }
+    }
+
+    /**
+     * A list of (start, end) virtual file offsets. Consecutive chunks are
+     * merged.
+     */
+    private static class ChunkList {
+
+        long[] data = new long[4];
+        int size = 0;
+
+        void add(long vstart, long vend) {
+            if (size > 0 && data[size - 1] == vstart) {
+                data[size - 1] = vend;
+                return;
+            }
+            if (size + 2 > data.length) {
+                data = Arrays.copyOf(data, 2 * data.length);
+            }
+            data[size] = vstart;
+            data[size + 1] = vend;
+            size += 2;
+        }
+    }
+
+    /**
+     * Computes the smallest bin that contains an interval (UCSC binning
+     * scheme, as in the SAM specification).
+     *
+     * @param beg
+     *
+     * 0-based, included
+     *
+     * @param end
+     *
+     * 0-based, not included
+     *
+     * @return
+     */
+    static int reg2bin(int beg, int end) {
+        end--;
+        if (beg >> 14 == end >> 14) {
+            return ((1 << 15) - 1) / 7 + (beg >> 14);
+        }
+        if (beg >> 17 == end >> 17) {
+            return ((1 << 12) - 1) / 7 + (beg >> 17);
+        }
+        if (beg >> 20 == end >> 20) {
+            return ((1 << 9) - 1) / 7 + (beg >> 20);
+        }
+        if (beg >> 23 == end >> 23) {
+            return ((1 << 6) - 1) / 7 + (beg >> 23);
+        }
+        if (beg >> 26 == end >> 26) {
+            return ((1 << 3) - 1) / 7 + (beg >> 26);
+        }
+        return 0;
+    }
+
+    /**
+     * Records the location of one vcf record.
+     *
+     * @param chr
+     * @param position
+     *
+     * 1-based position, as in the vcf
+     *
+     * @param reflength
+     *
+     * length of the reference allele
+     *
+     * @param vstart
+     *
+     * virtual file offset of the start of the record
+     *
+     * @param vend
+     *
+     * virtual file offset just after the end of the record
+     */
+    public void add(String chr, int position, int reflength, long vstart, long vend) {
+        if (nowref == null || !chr.equals(names.get(names.size() - 1))) {
+            nowref = new ReferenceIndex();
+            names.add(chr);
+            references.add(nowref);
+        }
+        int beg = position - 1;
+        nowref.add(beg, beg + Math.max(1, reflength), vstart, vend);
+    }
+
+    /**
+     * Writes the index in the tabix format.
+     *
+     * @param indexfile
+     *
+     * output file, conventionally the vcf file name with a .tbi extension
+     *
+     * @throws IOException
+     */
+    public void write(File indexfile) throws IOException {
+        BinaryCodec codec = new BinaryCodec(new BlockCompressedOutputStream(indexfile));
+        try {
+            codec.writeBytes(new byte[]{'T', 'B', 'I', 1});
+            codec.writeInt(names.size());
+            // format (vcf), sequence column, begin column, end column, meta character, lines to skip
+            codec.writeInt(2);
+            codec.writeInt(1);
+            codec.writeInt(2);
+            codec.writeInt(0);
+            codec.writeInt('#');
+            codec.writeInt(0);
+
+            // chromosome names, each terminated by a zero
+            int namelength = 0;
+            for (int i = 0; i < names.size(); i++) {
+                namelength += names.get(i).length() + 1;
+            }
+            codec.writeInt(namelength);
+            for (int i = 0; i < names.size(); i++) {
+                codec.writeBytes(names.get(i).getBytes());
+                codec.writeByte(0);
+            }
+
+            for (int i = 0; i < references.size(); i++) {
+                ReferenceIndex refindex = references.get(i);
+                codec.writeInt(refindex.bins.size());
+                for (Map.Entry<Integer, ChunkList> entry : refindex.bins.entrySet()) {
+                    ChunkList chunks = entry.getValue();
+                    codec.writeInt(entry.getKey());
+                    codec.writeInt(chunks.size / 2);
+                    for (int j = 0; j < chunks.size; j++) {
+                        codec.writeLong(chunks.data[j]);
+                    }
+                }
+                // windows without records point to the previous record
+                codec.writeInt(refindex.numlinear);
+                long lastoffset = 0;
+                for (int w = 0; w < refindex.numlinear; w++) {
+                    if (refindex.linear[w] != 0) {
+                        lastoffset = refindex.linear[w];
+                    }
+                    codec.writeLong(lastoffset);
+                }
+            }
+        } finally {
+            codec.close();
+        }
+    }
+}
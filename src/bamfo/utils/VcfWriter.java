@@ -0,0 +1,279 @@
+/*
+ * Copyright 2012-2014 Tomasz Konopka.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bamfo.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import jsequtils.variants.VcfEntry;
+import net.sf.samtools.util.BlockCompressedOutputStream;
+
+/**
+ * Writes vcf records to a stream. Records are formatted directly into a
+ * reusable byte buffer and written out in large blocks.
+ *
+ * In bgzf mode, the output is block-compressed and a tabix index is built as
+ * the records are written. The index is saved next to the output when the
+ * writer is closed.
+ *
+ * @author tkonopka
+ */
+public class VcfWriter {
+
+    private static final int BUFFERSIZE = 1 << 16;
+    private final OutputStream out;
+    // in bgzf mode, records go straight to the compressed stream (which has its own buffer)
+    private final BlockCompressedOutputStream bgzfout;
+    private final TabixIndexBuilder index;
+    private final File indexfile;
+    // buffer holds formatted records waiting to be written
+    private byte[] buffer = new byte[BUFFERSIZE];
+    private int bufferlen = 0;
+    // number of (uncompressed) bytes passed on to the stream
+    private long byteswritten = 0;
+
+    /**
+     * Creates a writer for uncompressed output.
+     *
+     * @param out
+     *
+     * stream for the vcf. It will be closed when the writer is closed.
+     */
+    public VcfWriter(OutputStream out) {
+        this.out = out;
+        this.bgzfout = null;
+        this.index = null;
+        this.indexfile = null;
+    }
+
+    /**
+     * Creates a writer for bgzf-compressed and indexed output.
+     *
+     * @param vcffile
+     *
+     * output file. The index will be written to the same path with a .tbi
+     * extension.
+     *
+     */
+    public VcfWriter(File vcffile) {
+        this.bgzfout = new BlockCompressedOutputStream(vcffile);
+        this.out = bgzfout;
+        this.index = new TabixIndexBuilder();
+        this.indexfile = new File(vcffile.getPath() + ".tbi");
+    }
+
+    /**
+     * Writes header lines. These are not indexed.
+     *
+     * @param header
+     *
+     * text with complete header lines
+     *
+     * @throws IOException
+     */
+    public void writeHeader(String header) throws IOException {
+        flushBuffer();
+        byte[] headerbytes = header.getBytes();
+        out.write(headerbytes);
+        byteswritten += headerbytes.length;
+    }
+
+    /**
+     * Writes one record.
+     *
+     * @param entry
+     * @throws IOException
+     */
+    public void write(VcfEntry entry) throws IOException {
+        if (bgzfout != null) {
+            flushBuffer();
+        }
+        int start = bufferlen;
+        append(entry.getChr());
+        append('\t');
+        append(entry.getPosition());
+        append('\t');
+        append(entry.getId());
+        append('\t');
+        append(entry.getRef());
+        append('\t');
+        append(entry.getAlt());
+        append('\t');
+        append(entry.getQuality());
+        append('\t');
+        append(entry.getFilter());
+        append('\t');
+        append(entry.getInfo());
+        String format = entry.getFormat();
+        String genotype = entry.getGenotype();
+        if (format.length() + genotype.length() > 0) {
+            append('\t');
+            append(format);
+            append('\t');
+            append(genotype);
+        }
+        append('\n');
+
+        if (bgzfout != null) {
+            writeIndexedRecord(entry.getChr(), entry.getPosition(), entry.getRef().length(), start, bufferlen - start);
+            bufferlen = 0;
+        } else if (bufferlen >= BUFFERSIZE) {
+            flushBuffer();
+        }
+    }
+
+    /**
+     * Writes records that have already been formatted, e.g. by another
+     * VcfWriter that wrote into a byte array.
+     *
+     * @param records
+     *
+     * complete vcf lines, without header lines
+     *
+     * @throws IOException
+     */
+    public void writeRecords(byte[] records) throws IOException {
+        flushBuffer();
+        if (bgzfout == null) {
+            out.write(records);
+            byteswritten += records.length;
+            return;
+        }
+
+        // in bgzf mode, each line must be indexed
+        int linestart = 0;
+        while (linestart < records.length) {
+            int lineend = linestart;
+            while (lineend < records.length && records[lineend] != '\n') {
+                lineend++;
+            }
+            // find the chromosome, position, and reference allele in the line
+            int tab1 = nextTab(records, linestart, lineend);
+            int tab2 = nextTab(records, tab1 + 1, lineend);
+            int tab3 = nextTab(records, tab2 + 1, lineend);
+            int tab4 = nextTab(records, tab3 + 1, lineend);
+            String chr = new String(records, linestart, tab1 - linestart);
+            int position = 0;
+            for (int i = tab1 + 1; i < tab2; i++) {
+                position = 10 * position + (records[i] - '0');
+            }
+            int linelen = Math.min(lineend + 1, records.length) - linestart;
+            long vstart = bgzfout.getFilePointer();
+            out.write(records, linestart, linelen);
+            byteswritten += linelen;
+            index.add(chr, position, tab4 - tab3 - 1, vstart, bgzfout.getFilePointer());
+            linestart += linelen;
+        }
+    }
+
+    private static int nextTab(byte[] b, int from, int to) {
+        while (from < to && b[from] != '\t') {
+            from++;
+        }
+        return from;
+    }
+
+    private void writeIndexedRecord(String chr, int position, int reflength, int start, int len) throws IOException {
+        long vstart = bgzfout.getFilePointer();
+        out.write(buffer, start, len);
+        byteswritten += len;
+        index.add(chr, position, reflength, vstart, bgzfout.getFilePointer());
+    }
+
+    private void ensureCapacity(int extra) {
+        if (bufferlen + extra > buffer.length) {
+            byte[] newbuffer = new byte[Math.max(2 * buffer.length, bufferlen + extra)];
+            System.arraycopy(buffer, 0, newbuffer, 0, bufferlen);
+            buffer = newbuffer;
+        }
+    }
+
+    private void append(char c) {
+        ensureCapacity(1);
+        buffer[bufferlen] = (byte) c;
+        bufferlen++;
+    }
+
+    private void append(String s) {
+        int slen = s.length();
+        ensureCapacity(slen);
+        for (int i = 0; i < slen; i++) {
+            buffer[bufferlen + i] = (byte) s.charAt(i);
+        }
+        bufferlen += slen;
+    }
+
+    private void append(int value) {
+        if (value < 0) {
+            append('-');
+            value = -value;
+        }
+        // count digits, then fill them in from the right
+        int numdigits = 1;
+        for (int v = value / 10; v > 0; v /= 10) {
+            numdigits++;
+        }
+        ensureCapacity(numdigits);
+        for (int i = bufferlen + numdigits - 1; i >= bufferlen; i--) {
+            buffer[i] = (byte) ('0' + (value % 10));
+            value /= 10;
+        }
+        bufferlen += numdigits;
+    }
+
+    private void flushBuffer() throws IOException {
+        if (bufferlen > 0) {
+            out.write(buffer, 0, bufferlen);
+            byteswritten += bufferlen;
+            bufferlen = 0;
+        }
+    }
+
+    /**
+     *
+     * @return
+     *
+     * number of bytes written to the stream (before compression), not
+     * counting records that are still in the buffer
+     */
+    public long getBytesWritten() {
+        return byteswritten;
+    }
+
+    /**
+     * Writes out buffered records, but keeps the stream open.
+     *
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+        flushBuffer();
+        out.flush();
+    }
+
+    /**
+     * Writes out buffered records and closes the stream. In bgzf mode, also
+     * writes the tabix index.
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        flushBuffer();
+        out.close();
+        if (index != null) {
+            index.write(indexfile);
+        }
+    }
+}
@@ -33,6 +33,8 @@ public class BedRegions {
     private final HashMap<String, ArrayList<OneInterval>> bed = new HashMap<String, ArrayList<OneInterval>>(64);
     private final OneIntervalStartComparator startcompare = new OneIntervalStartComparator();
     private final OneIntervalEndComparator endcompare = new OneIntervalEndComparator();
+    // number of intervals left out when reading a file (see skipempty)
+    private int numskipped = 0;
 
     /**
      * Create an empty bed object, but declare a set of chromosomes. When
@@ -41,18 +43,50 @@ public class BedRegions {
      * @param chrs
      */
     public BedRegions(File bedfile) throws IOException {
+        this(bedfile, false);
+    }
+
+    /**
+     * Reads intervals from a bed file.
+     *
+     * @param bedfile
+     * @param skipempty
+     *
+     * if true, intervals with start >= end are left out (see getNumSkipped).
+     * Otherwise the start and end of inverted intervals are swapped.
+     *
+     * @throws IOException
+     */
+    public BedRegions(File bedfile, boolean skipempty) throws IOException {
 
         // read all the intervals input the bed object
         BufferedReader br = BufferedReaderMaker.makeBufferedReader(bedfile);
         String s;
         while ((s = br.readLine()) != null) {
             String[] tokens = s.split("\t");
-            add(tokens[0], Integer.parseInt(tokens[1]), Integer.parseInt(tokens[2]));
+            int start = Integer.parseInt(tokens[1]);
+            int end = Integer.parseInt(tokens[2]);
+            if (skipempty && start >= end) {
+                numskipped++;
+                continue;
+            }
+            add(tokens[0], start, end);
         }
         br.close();
 
     }
 
+    /**
+     *
+     * @return
+     *
+     * the number of empty or inverted intervals left out when reading the bed
+     * file
+     */
+    public int getNumSkipped() {
+        return numskipped;
+    }
+
     /**
      * Create an empty bed object, but declare a set of chromosomes. When
      * printing the bed, the chromosome will appear in the order specified here.
@@ -199,6 +233,76 @@ public class BedRegions {
 
     }
 
+    /**
+     * 
+     * @return
+     * 
+     * list of chromosomes, in the order in which they were added
+     */
+    public ArrayList<String> getChromosomes() {
+        return new ArrayList<String>(chromosomes);
+    }
+
+    /**
+     * 
+     * @param chr
+     * @return 
+     * 
+     * sorted start positions of the (non-overlapping) intervals on a chromosome,
+     * or null if the chromosome is not defined
+     */
+    public int[] getStarts(String chr) {
+        ArrayList<OneInterval> chrregions = bed.get(chr);
+        if (chrregions == null) {
+            return null;
+        }
+        int[] starts = new int[chrregions.size()];
+        for (int i = 0; i < starts.length; i++) {
+            starts[i] = chrregions.get(i).getStart();
+        }
+        return starts;
+    }
+
+    /**
+     * 
+     * @param chr
+     * @return 
+     * 
+     * end positions of the intervals on a chromosome, in the same order as 
+     * getStarts, or null if the chromosome is not defined
+     */
+    public int[] getEnds(String chr) {
+        ArrayList<OneInterval> chrregions = bed.get(chr);
+        if (chrregions == null) {
+            return null;
+        }
+        int[] ends = new int[chrregions.size()];
+        for (int i = 0; i < ends.length; i++) {
+            ends[i] = chrregions.get(i).getEnd();
+        }
+        return ends;
+    }
+
+    /**
+     * Creates a new set of regions where each interval is extended by a flank
+     * on both sides. Intervals that overlap after the extension are merged.
+     * 
+     * @param flank
+     * @return 
+     */
+    public BedRegions expand(int flank) {
+        BedRegions expanded = new BedRegions(chromosomes);
+        for (int i = 0; i < chromosomes.size(); i++) {
+            String nowchrom = chromosomes.get(i);
+            ArrayList<OneInterval> nowregions = bed.get(nowchrom);
+            for (int j = 0; j < nowregions.size(); j++) {
+                OneInterval interval = nowregions.get(j);
+                expanded.add(nowchrom, Math.max(0, interval.getStart() - flank), interval.getEnd() + flank);
+            }
+        }
+        return expanded;
+    }
+
     /**
      * Creates a bed-file representation of the regions.
      * Chromosomes appear in the order in which they were added.